@@ -0,0 +1,78 @@
+package com.fii.pcd.hw01;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// What the transfer benchmarks share: the files sent, the free ports and the server started in the benchmark JVM.
+// The servers write the received files in ./FilesReceived/, as outside the benchmarks.
+public final class TransferFixture {
+    // How long a server is given to bind its port.
+    private static final long SERVER_START_MILLIS = 500;
+    
+    private TransferFixture() {
+    }
+    
+    // The per transfer log lines of the clients and the servers would be measured along with the transfers.
+    public static void quietLogging() {
+        Logger.getLogger("").setLevel(Level.WARNING);
+    }
+    
+    // Writes a file of log like lines, which compresses about as well as the text files sent in practice.
+    public static Path createFile(Path directory, String fileName, long fileSize) throws IOException {
+        Path file = directory.resolve(fileName);
+        Random random = new Random(fileSize);
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            long written = 0;
+            StringBuilder line = new StringBuilder();
+            while (written < fileSize) {
+                line.setLength(0);
+                line.append("2024-01-01T00:00:").append(random.nextInt(60)).append(" INFO request id=")
+                    .append(random.nextLong()).append(" bytes=").append(random.nextInt(1 << 20))
+                    .append(" status=").append(random.nextBoolean() ? "ok" : "retry").append('\n');
+                int length = (int) Math.min(line.length(), fileSize - written);
+                writer.append(line, 0, length);
+                written += length;
+            }
+        }
+        
+        return file;
+    }
+    
+    public static int freePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+    
+    // The servers have no stop, so they run on a daemon thread until the benchmark JVM exits.
+    public static void startServer(Runnable server, String name) throws InterruptedException {
+        Thread thread = new Thread(server, name);
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(SERVER_START_MILLIS);
+    }
+    
+    // A failed transfer is only logged by the clients, so the received file is checked to keep it from passing
+    // for a fast one.
+    public static void checkReceived(Path file, long fileSize) throws IOException {
+        Path receivedFile = Paths.get("./FilesReceived/", file.getFileName().toString());
+        if (!Files.exists(receivedFile) || Files.size(receivedFile) != fileSize) {
+            throw new IllegalStateException("The file = " + file + " was not received.");
+        }
+    }
+    
+    // The clients write the downloaded files in ./FilesDownloaded/.
+    public static void checkDownloaded(Path file, long fileSize) throws IOException {
+        Path downloadedFile = Paths.get("./FilesDownloaded/", file.getFileName().toString());
+        if (!Files.exists(downloadedFile) || Files.size(downloadedFile) != fileSize) {
+            throw new IllegalStateException("The file = " + file + " was not downloaded.");
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+package com.fii.pcd.hw01.compression;
+
+import com.fii.pcd.hw01.integrity.Checksums;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The per chunk copy paths of the transfers: the compression and the decompression of a chunk, its CRC32C and the
+// copy of a chunk into a direct buffer, as done for a chunk sent or received without compression.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkCodecBenchmark {
+    @Param({ "1400", "8192", "65536" })
+    private int chunkSize;
+    
+    @Param({ "DEFLATE", "LZ4" })
+    private CompressionType compressionType;
+    
+    private ChunkCodec chunkCodec;
+    private byte[] chunk;
+    private byte[] compressedChunk;
+    private int compressedLength;
+    private byte[] decompressedChunk;
+    private ByteBuffer directBuffer;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        chunkCodec = new ChunkCodec(compressionType, 1);
+        // A chunk of log like lines, which compresses about as well as the text files sent in practice.
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(42);
+        while (text.length() < chunkSize) {
+            text.append("2024-01-01T00:00:").append(random.nextInt(60)).append(" INFO request id=")
+                .append(random.nextLong()).append(" status=").append(random.nextBoolean() ? "ok" : "retry")
+                .append('\n');
+        }
+        chunk = text.substring(0, chunkSize).getBytes(StandardCharsets.US_ASCII);
+        compressedChunk = new byte[chunkSize];
+        compressedLength = chunkCodec.compress(chunk, 0, chunkSize, compressedChunk, 0, chunkSize);
+        if (compressedLength < 0) {
+            throw new IllegalStateException("The chunk of " + chunkSize + " bytes doesn't compress.");
+        }
+        decompressedChunk = new byte[chunkSize];
+        directBuffer = ByteBuffer.allocateDirect(chunkSize);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        chunkCodec.close();
+    }
+    
+    @Benchmark
+    public int compress() {
+        return chunkCodec.compress(chunk, 0, chunkSize, compressedChunk, 0, chunkSize);
+    }
+    
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        chunkCodec.decompress(compressedChunk, 0, compressedLength, decompressedChunk, 0, chunkSize);
+        return decompressedChunk;
+    }
+    
+    @Benchmark
+    public int crc32c() {
+        return Checksums.crc32c(chunk, 0, chunkSize);
+    }
+    
+    @Benchmark
+    public ByteBuffer copyToDirectBuffer() {
+        directBuffer.clear();
+        return directBuffer.put(chunk, 0, chunkSize);
+    }
+}
\ No newline at end of file
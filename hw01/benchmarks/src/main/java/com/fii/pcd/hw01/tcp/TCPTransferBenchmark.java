@@ -0,0 +1,131 @@
+package com.fii.pcd.hw01.tcp;
+
+import com.fii.pcd.hw01.TransferFixture;
+import com.fii.pcd.hw01.bandwidth.BandwidthOptions;
+import com.fii.pcd.hw01.compression.CompressionType;
+import com.fii.pcd.hw01.storage.DurabilityPolicy;
+import com.fii.pcd.hw01.storage.StorageOptions;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole file transfers from the TCP Client to the TCP Server, both in the benchmark JVM, over the loopback. The
+// megabytes counter of the throughput benchmarks is in MB/s, the latency benchmark reports the percentiles of the
+// transfer time and -prof gc the allocation rate. The concurrent benchmark runs 8 TCP Clients at once, each with its
+// own file.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class TCPTransferBenchmark {
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({ "8192", "65536" })
+        private int messageSize;
+        
+        @Param({ "1048576", "67108864" })
+        private long fileSize;
+        
+        // plain, zero-copy, streams (4 connections of 8 MB ranges), deflate, integrity, async-mmap (the server
+        // writes through memory mapped regions), dedup (the same file again, so it is linked to the stored blob) or
+        // download (the file uploaded once is downloaded, from the hot file cache of the server).
+        @Param({ "plain", "zero-copy", "streams", "deflate", "integrity", "async-mmap", "dedup", "download" })
+        private String mode;
+        
+        @Param({ "THREAD_POOL", "SELECTOR" })
+        private TCPServerEngine.Type engine;
+        
+        private int port;
+        private Path directory;
+        
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, InterruptedException {
+            TransferFixture.quietLogging();
+            directory = Files.createTempDirectory("tcp-transfer-benchmark");
+            port = TransferFixture.freePort();
+            StorageOptions storageOptions = new StorageOptions(1024 * 1024, 4, 2, mode.equals("async-mmap"),
+                DurabilityPolicy.NONE);
+            TCPServer server = new TCPServer(port, messageSize, mode.equals("zero-copy"), engine, 16, 10000,
+                storageOptions, 100000, 256 * 1024 * 1024, new BandwidthOptions(0, 0, 1024 * 1024, 1024 * 1024));
+            TransferFixture.startServer(server::start, "tcp-server");
+        }
+        
+        TCPClient newClient() {
+            return new TCPClient(port, "127.0.0.1", messageSize, mode.equals("zero-copy"),
+                mode.equals("streams") ? 4 : 1, 8 * 1024 * 1024, false,
+                mode.equals("deflate") ? CompressionType.DEFLATE : CompressionType.NONE, 1, mode.equals("integrity"),
+                false, mode.equals("dedup"));
+        }
+    }
+    
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Client {
+        public double megabytes;
+        
+        private TCPClient tcpClient;
+        private Path file;
+        private long fileSize;
+        private boolean download;
+        
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws IOException {
+            // Every thread sends a file of its own name, so the concurrent transfers don't write the same file.
+            tcpClient = server.newClient();
+            fileSize = server.fileSize;
+            file = TransferFixture.createFile(server.directory, "tcp-" + Thread.currentThread().getId() + ".log",
+                fileSize);
+            download = server.mode.equals("download");
+            if (download && !tcpClient.sendFileTransferRequst(file.toString())) {
+                throw new IllegalStateException("The file = " + file + " to download was not uploaded.");
+            }
+        }
+    }
+    
+    @Benchmark
+    @Threads(1)
+    public void transfer(Client client) throws IOException {
+        send(client);
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(1)
+    public void transferLatency(Client client) throws IOException {
+        send(client);
+    }
+    
+    @Benchmark
+    @Threads(8)
+    public void concurrentTransfers(Client client) throws IOException {
+        send(client);
+    }
+    
+    private void send(Client client) throws IOException {
+        if (client.download) {
+            client.tcpClient.downloadFile(client.file.getFileName().toString());
+            TransferFixture.checkDownloaded(client.file, client.fileSize);
+        } else {
+            client.tcpClient.sendFileTransferRequst(client.file.toString());
+            TransferFixture.checkReceived(client.file, client.fileSize);
+        }
+        client.megabytes += client.fileSize / 1e6;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,72 @@
+package com.fii.pcd.hw01.udp;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.fii.pcd.hw01.udp.UDPUtils.CONTROL_DATA_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPControlData;
+
+// The parity computation the UDP Client does for every data message it sends with forward error correction, at the
+// initial redundancy of each mode. The gc.alloc.rate.norm is expected to be about 0 B/op.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FecEncodeBenchmark {
+    private static final long SESSION_ID = 42;
+    
+    @Param({ "1400", "8192" })
+    private int messageSize;
+    
+    @Param({ "XOR", "RS" })
+    private FecMode mode;
+    
+    private FecEncoder fecEncoder;
+    private ByteBuffer message;
+    private ByteBuffer parityMessage;
+    private long seqNumber;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        fecEncoder = new FecEncoder(mode, messageSize);
+        message = ByteBuffer.allocateDirect(messageSize);
+        parityMessage = ByteBuffer.allocateDirect(messageSize);
+        // The data messages give up the overhead of the forward error correction.
+        byte[] data = new byte[messageSize - FecCode.DATA_OVERHEAD - CONTROL_DATA_LENGTH];
+        new Random(42).nextBytes(data);
+        message.put(CONTROL_DATA_LENGTH, data);
+    }
+    
+    @Benchmark
+    public int addDataMessage() {
+        message.clear().limit(messageSize - FecCode.DATA_OVERHEAD);
+        setUDPControlData(message, SESSION_ID, seqNumber, (byte) 0, 0);
+        fecEncoder.add(seqNumber++, message);
+        if (!fecEncoder.isBlockFull()) {
+            return 0;
+        }
+        
+        // The parities of a full block are encoded as the UDP Client sends them.
+        int parityCount = fecEncoder.getParityCount();
+        for (int i = 0; i < parityCount; i++) {
+            fecEncoder.writeParityMessage(i, parityMessage, SESSION_ID, 0);
+        }
+        fecEncoder.endBlock(0);
+        return parityCount;
+    }
+}
\ No newline at end of file
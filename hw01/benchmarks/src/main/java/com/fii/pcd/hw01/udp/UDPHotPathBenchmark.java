@@ -0,0 +1,124 @@
+package com.fii.pcd.hw01.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.fii.pcd.hw01.udp.UDPUtils.getSequenceNumber;
+import static com.fii.pcd.hw01.udp.UDPUtils.getTimestamp;
+import static com.fii.pcd.hw01.udp.UDPUtils.hasValidChecksum;
+import static com.fii.pcd.hw01.udp.UDPUtils.isSelectivelyAcknowledged;
+import static com.fii.pcd.hw01.udp.UDPUtils.setChecksum;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPAcknowledgeData;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPControlData;
+
+// The per datagram path of an UDP transfer over the loopback: the UDP Client encodes a message in place and sends
+// it, the UDP Server receives it in a pooled buffer, checks it and acknowledges it, and the UDP Client receives the
+// acknowledge. Run with -prof gc, the gc.alloc.rate.norm of every benchmark is expected to be about 0 B/op.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class UDPHotPathBenchmark {
+    private static final long SESSION_ID = 42;
+    
+    @Param({ "1400", "8192" })
+    private int messageSize;
+    
+    private DatagramChannel serverChannel;
+    private UDPClientChannel clientChannel;
+    private ByteBuffer message;
+    private ByteBuffer receivedMessage;
+    private ByteBuffer ack;
+    private ByteBuffer receivedAck;
+    private boolean[] receivedAfterLastAck;
+    private long seqNumber;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        serverChannel = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        clientChannel = new UDPClientChannel((InetSocketAddress) serverChannel.getLocalAddress());
+        message = ByteBuffer.allocateDirect(messageSize);
+        receivedMessage = ByteBuffer.allocateDirect(messageSize);
+        ack = ByteBuffer.allocateDirect(messageSize);
+        receivedAck = ByteBuffer.allocateDirect(messageSize);
+        receivedAfterLastAck = new boolean[63];
+        for (int i = 0; i < receivedAfterLastAck.length; i += 3) {
+            receivedAfterLastAck[i] = true;
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        clientChannel.close();
+        serverChannel.close();
+    }
+    
+    @Benchmark
+    public long encodeAndCheckMessage() {
+        encodeMessage();
+        
+        return hasValidChecksum(message, message.limit()) ? getSequenceNumber(message) : -1;
+    }
+    
+    @Benchmark
+    public int encodeAndDecodeAcknowledge() {
+        setUDPAcknowledgeData(ack, SESSION_ID, seqNumber++, System.nanoTime(), receivedAfterLastAck,
+            receivedAfterLastAck.length, (byte) 0);
+        
+        int numberOfMessagesAcknowledged = 0;
+        for (int i = 0; i < receivedAfterLastAck.length; i++) {
+            if (isSelectivelyAcknowledged(ack, ack.limit(), i)) {
+                numberOfMessagesAcknowledged++;
+            }
+        }
+        return hasValidChecksum(ack, ack.limit()) ? numberOfMessagesAcknowledged : -1;
+    }
+    
+    @Benchmark
+    public long datagramRoundTrip() throws IOException {
+        // The UDP Client sends the message.
+        encodeMessage();
+        clientChannel.send(message);
+        
+        // The UDP Server receives it and acknowledges it.
+        receivedMessage.clear();
+        SocketAddress clientAddress = serverChannel.receive(receivedMessage);
+        receivedMessage.flip();
+        if (!hasValidChecksum(receivedMessage, receivedMessage.limit())) {
+            throw new IllegalStateException("Corrupt message for the sequence number = " + seqNumber);
+        }
+        setUDPAcknowledgeData(ack, SESSION_ID, getSequenceNumber(receivedMessage), getTimestamp(receivedMessage),
+            receivedAfterLastAck, 0, (byte) 0);
+        serverChannel.send(ack, clientAddress);
+        
+        // The UDP Client receives the acknowledge.
+        int ackLength = clientChannel.receive(receivedAck, 1_000_000_000L);
+        return ackLength > 0 && hasValidChecksum(receivedAck, ackLength) ? getSequenceNumber(receivedAck) : -1;
+    }
+    
+    private void encodeMessage() {
+        message.clear();
+        setUDPControlData(message, SESSION_ID, seqNumber++, (byte) 0, System.nanoTime());
+        message.limit(messageSize);
+        setChecksum(message, messageSize);
+    }
+}
\ No newline at end of file
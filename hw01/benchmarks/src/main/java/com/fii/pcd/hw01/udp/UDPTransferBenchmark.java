@@ -0,0 +1,119 @@
+package com.fii.pcd.hw01.udp;
+
+import com.fii.pcd.hw01.TransferFixture;
+import com.fii.pcd.hw01.compression.CompressionType;
+import com.fii.pcd.hw01.storage.DurabilityPolicy;
+import com.fii.pcd.hw01.storage.StorageOptions;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole file transfers from the UDP Client to the UDP Server, both in the benchmark JVM, over the loopback. The
+// megabytes counter of the throughput benchmarks is in MB/s, the latency benchmark reports the percentiles of the
+// transfer time and -prof gc the allocation rate. The concurrent benchmark runs 4 UDP Clients at once, each with its
+// own file.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class UDPTransferBenchmark {
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({ "1400", "8192" })
+        private int messageSize;
+        
+        @Param({ "1048576", "67108864" })
+        private long fileSize;
+        
+        @Param({ "64", "512" })
+        private int windowSize;
+        
+        // plain, deflate, integrity or fec (the adaptive Reed-Solomon parities).
+        @Param({ "plain", "deflate", "integrity", "fec" })
+        private String mode;
+        
+        @Param({ "AIMD", "DELAY" })
+        private CongestionController.Type congestionControl;
+        
+        private int port;
+        private Path directory;
+        
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, InterruptedException {
+            TransferFixture.quietLogging();
+            directory = Files.createTempDirectory("udp-transfer-benchmark");
+            port = TransferFixture.freePort();
+            StorageOptions storageOptions = new StorageOptions(1024 * 1024, 4, 2, false, DurabilityPolicy.NONE);
+            UDPServer server = new UDPServer(port, messageSize, windowSize, 1, 2, storageOptions,
+                256 * 1024 * 1024);
+            TransferFixture.startServer(server::start, "udp-server");
+        }
+        
+        UDPClient newClient() {
+            return new UDPClient(port, "127.0.0.1", messageSize, windowSize, congestionControl, false,
+                mode.equals("deflate") ? CompressionType.DEFLATE : CompressionType.NONE, 1, mode.equals("integrity"),
+                mode.equals("fec") ? FecMode.RS : FecMode.NONE, true);
+        }
+    }
+    
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Client {
+        public double megabytes;
+        
+        private UDPClient udpClient;
+        private Path file;
+        private long fileSize;
+        
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws IOException {
+            // Every thread sends a file of its own name, so the concurrent transfers don't write the same file.
+            udpClient = server.newClient();
+            fileSize = server.fileSize;
+            file = TransferFixture.createFile(server.directory, "udp-" + Thread.currentThread().getId() + ".log",
+                fileSize);
+        }
+    }
+    
+    @Benchmark
+    @Threads(1)
+    public void transfer(Client client) throws IOException {
+        send(client);
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(1)
+    public void transferLatency(Client client) throws IOException {
+        send(client);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public void concurrentTransfers(Client client) throws IOException {
+        send(client);
+    }
+    
+    private void send(Client client) throws IOException {
+        client.udpClient.sendFileTransferRequst(client.file.toString());
+        TransferFixture.checkReceived(client.file, client.fileSize);
+        client.megabytes += client.fileSize / 1e6;
+    }
+}
\ No newline at end of file
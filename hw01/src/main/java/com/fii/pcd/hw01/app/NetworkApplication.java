@@ -1,10 +1,26 @@
 package com.fii.pcd.hw01.app;
 
+import com.fii.pcd.hw01.bandwidth.BandwidthOptions;
+import com.fii.pcd.hw01.compression.CompressionType;
+import com.fii.pcd.hw01.loadgen.FileSizeDistribution;
+import com.fii.pcd.hw01.loadgen.LoadGenerator;
+import com.fii.pcd.hw01.metrics.MetricsFormat;
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import com.fii.pcd.hw01.proxy.ImpairmentOptions;
+import com.fii.pcd.hw01.proxy.UDPProxy;
+import com.fii.pcd.hw01.storage.DurabilityPolicy;
+import com.fii.pcd.hw01.storage.StorageOptions;
 import com.fii.pcd.hw01.tcp.TCPClient;
 import com.fii.pcd.hw01.tcp.TCPServer;
+import com.fii.pcd.hw01.tcp.TCPServerEngine;
+import com.fii.pcd.hw01.udp.CongestionController;
+import com.fii.pcd.hw01.udp.FecMode;
 import com.fii.pcd.hw01.udp.UDPClient;
 import com.fii.pcd.hw01.udp.UDPServer;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Properties;
+import java.util.function.Predicate;
 
 public class NetworkApplication {
     public static void main(String[] args) {
@@ -41,26 +57,52 @@ public class NetworkApplication {
             throw new IllegalArgumentException( "Invalid message size!");
         }
         
+        startMetrics(appInputParams);
+        
         switch (type) {
             case SERVER:
-                initServer(protocol, port, messageSize);
+                initServer(protocol, port, messageSize, appInputParams);
                 break;
             case CLIENT:
                 initClient(protocol, port, messageSize, appInputParams);
                 break;
+            case LOADGEN:
+                initLoadGenerator(protocol, port, messageSize, appInputParams);
+                break;
+            case PROXY:
+                initProxy(protocol, port, messageSize, appInputParams);
+                break;
             default:
                 throw new IllegalArgumentException( "Invalid network application type!");
         }
     }
     
-    private static void initServer(Protocol protocol, int port, int messageSize) {
+    private static void initServer(Protocol protocol, int port, int messageSize, Properties appInputParams) {
         switch (protocol) {
             case TCP:
-                var tcpServer = new TCPServer(port, messageSize);
+                TCPServerEngine.Type tcpEngine = getTcpEngine(appInputParams);
+                int tcpThreads = getThreadCount(appInputParams, "--tcpThreads",
+                    tcpEngine == TCPServerEngine.Type.SELECTOR ? Runtime.getRuntime().availableProcessors() : 10);
+                int tcpMaxConnections = Integer.parseInt(appInputParams.getProperty("--tcpMaxConnections", "10000"));
+                if (tcpMaxConnections < 1) {
+                    throw new IllegalArgumentException( "Invalid maximum number of TCP connections!");
+                }
+                int dedupCacheSize = Integer.parseInt(appInputParams.getProperty("--dedupCacheSize", "100000"));
+                if (dedupCacheSize < 1) {
+                    throw new IllegalArgumentException( "Invalid dedup cache size!");
+                }
+                var tcpServer = new TCPServer(port, messageSize, getFlag(appInputParams, "--zeroCopy"),
+                    tcpEngine, tcpThreads, tcpMaxConnections, getStorageOptions(appInputParams), dedupCacheSize,
+                    getDownloadCacheSize(appInputParams), getBandwidthOptions(appInputParams));
                 tcpServer.start();
                 break;
             case UDP:
-                var udpServer = new UDPServer(port, messageSize);
+                int udpWindow = getUdpWindow(appInputParams);
+                int cores = Runtime.getRuntime().availableProcessors();
+                int udpReceivers = getThreadCount(appInputParams, "--udpReceivers", cores);
+                int udpWorkers = getThreadCount(appInputParams, "--udpWorkers", cores);
+                var udpServer = new UDPServer(port, messageSize, udpWindow, udpReceivers, udpWorkers,
+                    getStorageOptions(appInputParams), getDownloadCacheSize(appInputParams));
                 udpServer.start();
                 break;
             default:
@@ -68,34 +110,358 @@ public class NetworkApplication {
         }
     }
     
-    private static void initClient(Protocol protocol, int port, int messageSize, Properties appInputParams) {        
-        String serverAddress = appInputParams.getProperty("--serverAddress");
-        if (serverAddress == null || serverAddress.isEmpty()) {
-            throw new IllegalArgumentException( "Invalid server address!");
-        }
+    private static void initClient(Protocol protocol, int port, int messageSize, Properties appInputParams) {
+        String serverAddress = getServerAddress(appInputParams);
         
         String filePath = appInputParams.getProperty("--filePath");
         if (filePath == null || filePath.isEmpty()) {
             throw new IllegalArgumentException( "Invalid file path!");
         }
         
+        // A download asks the server for the file it received with the name given as the file path.
+        boolean download = getFlag(appInputParams, "--download");
         switch (protocol) {
             case TCP:
-                var tcpClient = new TCPClient(port, serverAddress, messageSize);
-                tcpClient.sendFileTransferRequst(filePath);
+                var tcpClient = createTcpClient(port, serverAddress, messageSize, appInputParams);
+                if (download) {
+                    tcpClient.downloadFile(filePath);
+                } else {
+                    tcpClient.sendFileTransferRequst(filePath);
+                }
                 break;
             case UDP:
-                var udpClient = new UDPClient(port, serverAddress, messageSize);
-                udpClient.sendFileTransferRequst(filePath);
+                var udpClient = createUdpClient(port, serverAddress, messageSize, appInputParams);
+                if (download) {
+                    udpClient.downloadFile(filePath);
+                } else {
+                    udpClient.sendFileTransferRequst(filePath);
+                }
                 break;
             default:
                 throw new IllegalArgumentException( "Invalid protocol for client!");
         }
     }
     
+    private static void initLoadGenerator(Protocol protocol, int port, int messageSize, Properties appInputParams) {
+        String serverAddress = getServerAddress(appInputParams);
+        
+        int loadClients = Integer.parseInt(appInputParams.getProperty("--loadClients", "16"));
+        if ((loadClients < 1) || (loadClients > 100000)) {
+            throw new IllegalArgumentException( "Invalid number of load generator clients!");
+        }
+        
+        double loadRate = Double.parseDouble(appInputParams.getProperty("--loadRate", "10"));
+        if (!(loadRate > 0) || (loadRate > 1000000)) {
+            throw new IllegalArgumentException( "Invalid load generator arrival rate!");
+        }
+        
+        int loadDuration = Integer.parseInt(appInputParams.getProperty("--loadDuration", "60"));
+        if ((loadDuration < 1) || (loadDuration > 86400)) {
+            throw new IllegalArgumentException( "Invalid load generator duration!");
+        }
+        
+        FileSizeDistribution loadFileSizes = null;
+        try {
+            loadFileSizes = FileSizeDistribution.parse(appInputParams.getProperty("--loadFileSizes", "1048576"));
+        } catch(Exception e) {
+            throw new IllegalArgumentException( "Invalid load generator file sizes!", e);
+        }
+        
+        long loadSmallFileSize = Long.parseLong(appInputParams.getProperty("--loadSmallFileSize", "0"));
+        if (loadSmallFileSize < 0) {
+            throw new IllegalArgumentException( "Invalid load generator small file size!");
+        }
+        
+        long loadSeed = Long.parseLong(appInputParams.getProperty("--loadSeed", "42"));
+        
+        Predicate<String> transfer = null;
+        switch (protocol) {
+            case TCP:
+                // A TCP Client opens a connection per transfer, so one is shared by all the simulated clients.
+                var tcpClient = createTcpClient(port, serverAddress, messageSize, appInputParams);
+                transfer = tcpClient::sendFileTransferRequst;
+                break;
+            case UDP:
+                // An UDP Client keeps the state of its congestion control, so every transfer has its own.
+                transfer = filePath -> createUdpClient(port, serverAddress, messageSize, appInputParams)
+                    .sendFileTransferRequst(filePath);
+                break;
+            default:
+                throw new IllegalArgumentException( "Invalid protocol for load generator!");
+        }
+        
+        var loadGenerator = new LoadGenerator(loadClients, loadRate, Duration.ofSeconds(loadDuration), loadFileSizes,
+            loadSmallFileSize, loadSeed, transfer);
+        loadGenerator.run();
+    }
+    
+    private static void initProxy(Protocol protocol, int port, int messageSize, Properties appInputParams) {
+        String serverAddress = getServerAddress(appInputParams);
+        
+        int serverPort = Integer.parseInt(appInputParams.getProperty("--serverPort", "0"));
+        if ((serverPort <= 1024) || (serverPort > 65535) || (serverPort == port)) {
+            throw new IllegalArgumentException( "Invalid server port!");
+        }
+        
+        switch (protocol) {
+            case UDP:
+                var udpProxy = new UDPProxy(port, serverAddress, serverPort, messageSize,
+                    getImpairmentOptions(appInputParams));
+                udpProxy.start();
+                break;
+            default:
+                throw new IllegalArgumentException( "Invalid protocol for proxy!");
+        }
+    }
+    
+    private static String getServerAddress(Properties appInputParams) {
+        String serverAddress = appInputParams.getProperty("--serverAddress");
+        if (serverAddress == null || serverAddress.isEmpty()) {
+            throw new IllegalArgumentException( "Invalid server address!");
+        }
+        
+        return serverAddress;
+    }
+    
+    private static TCPClient createTcpClient(int port, String serverAddress, int messageSize,
+            Properties appInputParams) {
+        return new TCPClient(port, serverAddress, messageSize, getFlag(appInputParams, "--zeroCopy"),
+            getTcpStreams(appInputParams), getTcpRangeSize(appInputParams, messageSize),
+            getFlag(appInputParams, "--resume"), getCompression(appInputParams),
+            getCompressionLevel(appInputParams), getFlag(appInputParams, "--integrity"),
+            getFlag(appInputParams, "--delta"), getFlag(appInputParams, "--dedup"));
+    }
+    
+    private static UDPClient createUdpClient(int port, String serverAddress, int messageSize,
+            Properties appInputParams) {
+        return new UDPClient(port, serverAddress, messageSize, getUdpWindow(appInputParams),
+            getUdpCongestionControl(appInputParams), getFlag(appInputParams, "--resume"),
+            getCompression(appInputParams), getCompressionLevel(appInputParams),
+            getFlag(appInputParams, "--integrity"), getUdpFec(appInputParams),
+            getFlag(appInputParams, "--pathMtuDiscovery", true));
+    }
+    
+    private static TCPServerEngine.Type getTcpEngine(Properties appInputParams) {
+        try {
+            return TCPServerEngine.Type.valueOf(
+                appInputParams.getProperty("--tcpEngine", "thread-pool").replace('-', '_').toUpperCase());
+        } catch(Exception e) {
+            throw new IllegalArgumentException( "Invalid TCP Server engine!", e);
+        }
+    }
+    
+    private static boolean getFlag(Properties appInputParams, String paramName) {
+        return getFlag(appInputParams, paramName, false);
+    }
+    
+    private static boolean getFlag(Properties appInputParams, String paramName, boolean defaultValue) {
+        String flag = appInputParams.getProperty(paramName, String.valueOf(defaultValue));
+        if (!flag.equalsIgnoreCase("true") && !flag.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException( "Invalid flag for " + paramName + "!");
+        }
+        
+        return Boolean.parseBoolean(flag);
+    }
+    
+    private static int getTcpStreams(Properties appInputParams) {
+        int tcpStreams = Integer.parseInt(appInputParams.getProperty("--tcpStreams", "1"));
+        if ((tcpStreams < 1) || (tcpStreams > 256)) {
+            throw new IllegalArgumentException( "Invalid number of TCP streams!");
+        }
+        
+        return tcpStreams;
+    }
+    
+    private static long getTcpRangeSize(Properties appInputParams, int messageSize) {
+        long tcpRangeSize = Long.parseLong(appInputParams.getProperty("--tcpRangeSize", "8388608"));
+        if (tcpRangeSize < messageSize) {
+            throw new IllegalArgumentException( "Invalid TCP range size!");
+        }
+        
+        return tcpRangeSize;
+    }
+    
+    private static int getUdpWindow(Properties appInputParams) {
+        int udpWindow = Integer.parseInt(appInputParams.getProperty("--udpWindow", "1"));
+        if ((udpWindow < 1) || (udpWindow > 65535)) {
+            throw new IllegalArgumentException( "Invalid UDP window size!");
+        }
+        
+        return udpWindow;
+    }
+    
+    private static int getThreadCount(Properties appInputParams, String paramName, int defaultThreadCount) {
+        int threadCount = Integer.parseInt(appInputParams.getProperty(paramName, String.valueOf(defaultThreadCount)));
+        if ((threadCount < 1) || (threadCount > 1024)) {
+            throw new IllegalArgumentException( "Invalid number of threads for " + paramName + "!");
+        }
+        
+        return threadCount;
+    }
+    
+    private static long getDownloadCacheSize(Properties appInputParams) {
+        long downloadCacheSize = Long.parseLong(appInputParams.getProperty("--downloadCacheSize", "268435456"));
+        if (downloadCacheSize < 0) {
+            throw new IllegalArgumentException( "Invalid download cache size!");
+        }
+        
+        return downloadCacheSize;
+    }
+    
+    private static StorageOptions getStorageOptions(Properties appInputParams) {
+        int writeBufferSize = Integer.parseInt(appInputParams.getProperty("--writeBufferSize", "1048576"));
+        if ((writeBufferSize < 4096) || (writeBufferSize > 64 * 1024 * 1024)) {
+            throw new IllegalArgumentException( "Invalid write buffer size!");
+        }
+        
+        int writeBuffers = Integer.parseInt(appInputParams.getProperty("--writeBuffers", "4"));
+        if ((writeBuffers < 1) || (writeBuffers > 1024)) {
+            throw new IllegalArgumentException( "Invalid number of write buffers!");
+        }
+        
+        DurabilityPolicy durability = null;
+        try {
+            durability = DurabilityPolicy.valueOf(appInputParams.getProperty("--durability", "none").toUpperCase());
+        } catch(Exception e) {
+            throw new IllegalArgumentException( "Invalid durability policy!", e);
+        }
+        
+        return new StorageOptions(writeBufferSize, writeBuffers, getThreadCount(appInputParams, "--diskWriters", 2),
+            getFlag(appInputParams, "--mmap"), durability);
+    }
+    
+    private static BandwidthOptions getBandwidthOptions(Properties appInputParams) {
+        long globalRate = Long.parseLong(appInputParams.getProperty("--tcpGlobalRate", "0"));
+        if (globalRate < 0) {
+            throw new IllegalArgumentException( "Invalid TCP global rate!");
+        }
+        
+        long clientRate = Long.parseLong(appInputParams.getProperty("--tcpClientRate", "0"));
+        if (clientRate < 0) {
+            throw new IllegalArgumentException( "Invalid TCP client rate!");
+        }
+        
+        long burstSize = Long.parseLong(appInputParams.getProperty("--tcpBurstSize", "1048576"));
+        if (burstSize < 1) {
+            throw new IllegalArgumentException( "Invalid TCP burst size!");
+        }
+        
+        long smallTransferSize = Long.parseLong(appInputParams.getProperty("--tcpSmallTransferSize", "1048576"));
+        if (smallTransferSize < 0) {
+            throw new IllegalArgumentException( "Invalid TCP small transfer size!");
+        }
+        
+        return new BandwidthOptions(globalRate, clientRate, burstSize, smallTransferSize);
+    }
+    
+    private static ImpairmentOptions getImpairmentOptions(Properties appInputParams) {
+        double burstLength = Double.parseDouble(appInputParams.getProperty("--proxyBurstLength", "1"));
+        if (!(burstLength >= 1)) {
+            throw new IllegalArgumentException( "Invalid proxy burst length!");
+        }
+        
+        long bandwidth = Long.parseLong(appInputParams.getProperty("--proxyBandwidth", "0"));
+        if (bandwidth < 0) {
+            throw new IllegalArgumentException( "Invalid proxy bandwidth!");
+        }
+        
+        int queueSize = Integer.parseInt(appInputParams.getProperty("--proxyQueueSize", "1048576"));
+        if (queueSize < 1) {
+            throw new IllegalArgumentException( "Invalid proxy queue size!");
+        }
+        
+        int mtu = Integer.parseInt(appInputParams.getProperty("--proxyMtu", "0"));
+        if (mtu != 0 && mtu < 68) {
+            throw new IllegalArgumentException( "Invalid proxy MTU!");
+        }
+        
+        return new ImpairmentOptions(getProbability(appInputParams, "--proxyLoss", "0"),
+            getProbability(appInputParams, "--proxyBurstRate", "0"), burstLength,
+            getProbability(appInputParams, "--proxyBurstLoss", "1"),
+            getMicros(appInputParams, "--proxyDelay", "0"), getMicros(appInputParams, "--proxyJitter", "0"),
+            getProbability(appInputParams, "--proxyReorder", "0"),
+            getMicros(appInputParams, "--proxyReorderDelay", "10"),
+            getProbability(appInputParams, "--proxyDuplicate", "0"), bandwidth, queueSize, mtu,
+            Long.parseLong(appInputParams.getProperty("--proxySeed", "42")));
+    }
+    
+    private static double getProbability(Properties appInputParams, String paramName, String defaultProbability) {
+        double probability = Double.parseDouble(appInputParams.getProperty(paramName, defaultProbability));
+        if (!(probability >= 0) || (probability > 1)) {
+            throw new IllegalArgumentException( "Invalid probability for " + paramName + "!");
+        }
+        
+        return probability;
+    }
+    
+    // The durations are given in milliseconds, with a fraction for the shorter ones.
+    private static long getMicros(Properties appInputParams, String paramName, String defaultMillis) {
+        double millis = Double.parseDouble(appInputParams.getProperty(paramName, defaultMillis));
+        if (!(millis >= 0) || (millis > 3_600_000)) {
+            throw new IllegalArgumentException( "Invalid duration for " + paramName + "!");
+        }
+        
+        return Math.round(millis * 1000);
+    }
+    
+    // The metrics are always registered with JMX, and dumped to a file only when one is given.
+    private static void startMetrics(Properties appInputParams) {
+        String metricsFile = appInputParams.getProperty("--metricsFile");
+        MetricsFormat metricsFormat = null;
+        try {
+            metricsFormat = MetricsFormat.valueOf(appInputParams.getProperty("--metricsFormat", "json").toUpperCase());
+        } catch(Exception e) {
+            throw new IllegalArgumentException( "Invalid metrics format!", e);
+        }
+        
+        int metricsInterval = Integer.parseInt(appInputParams.getProperty("--metricsInterval", "10"));
+        if ((metricsInterval < 1) || (metricsInterval > 3600)) {
+            throw new IllegalArgumentException( "Invalid metrics interval!");
+        }
+        
+        MetricsRegistry.start(metricsFile != null && !metricsFile.isEmpty() ? Paths.get(metricsFile) : null,
+            metricsFormat, metricsInterval * 1000L);
+    }
+    
+    private static CongestionController.Type getUdpCongestionControl(Properties appInputParams) {
+        try {
+            return CongestionController.Type.valueOf(
+                appInputParams.getProperty("--udpCongestionControl", "aimd").toUpperCase());
+        } catch(Exception e) {
+            throw new IllegalArgumentException( "Invalid UDP congestion control!", e);
+        }
+    }
+    
+    private static FecMode getUdpFec(Properties appInputParams) {
+        try {
+            return FecMode.valueOf(appInputParams.getProperty("--udpFec", "none").toUpperCase());
+        } catch(Exception e) {
+            throw new IllegalArgumentException( "Invalid UDP forward error correction!", e);
+        }
+    }
+    
+    private static CompressionType getCompression(Properties appInputParams) {
+        try {
+            return CompressionType.valueOf(appInputParams.getProperty("--compression", "none").toUpperCase());
+        } catch(Exception e) {
+            throw new IllegalArgumentException( "Invalid compression!", e);
+        }
+    }
+    
+    private static int getCompressionLevel(Properties appInputParams) {
+        int compressionLevel = Integer.parseInt(appInputParams.getProperty("--compressionLevel", "6"));
+        if ((compressionLevel < 1) || (compressionLevel > 9)) {
+            throw new IllegalArgumentException( "Invalid compression level!");
+        }
+        
+        return compressionLevel;
+    }
+    
     public static enum NetworkAppType {
         SERVER,
-        CLIENT
+        CLIENT,
+        LOADGEN,
+        PROXY
     }
     
     public static enum Protocol {
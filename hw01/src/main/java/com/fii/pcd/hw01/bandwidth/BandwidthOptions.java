@@ -0,0 +1,25 @@
+package com.fii.pcd.hw01.bandwidth;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+// How the TCP Server shares its bandwidth between the TCP Clients. The defaults limit nothing.
+@AllArgsConstructor
+@Getter
+@ToString
+public class BandwidthOptions {
+    // The bytes per second received and sent over all the connections, 0 for no limit. The transfers share it
+    // fairly, the small ones first.
+    private final long globalRate;
+    // The bytes per second received and sent over all the connections of a TCP Client address, 0 for no limit.
+    private final long clientRate;
+    // The bytes a limit lets through at once after an idle time.
+    private final long burstSize;
+    // The transfers up to this size are served before the larger ones.
+    private final long smallTransferSize;
+    
+    public boolean isLimited() {
+        return globalRate > 0 || clientRate > 0;
+    }
+}
\ No newline at end of file
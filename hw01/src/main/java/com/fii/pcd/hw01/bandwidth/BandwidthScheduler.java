@@ -0,0 +1,199 @@
+package com.fii.pcd.hw01.bandwidth;
+
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.RequiredArgsConstructor;
+
+// Shares the bandwidth of the TCP Server between its transfers. Every transfer charges the bytes it received or
+// sent to its session, which then waits while the token bucket of its TCP Client, or the global one, is in debt.
+// The global bucket is shared with self-clocked weighted fair queuing: a charge is tagged with its bytes divided by
+// the weight of its session, past the tag of the last charge served, and the waiting charges are served in the
+// order of their tags. The weight of a session is the inverse of the number of sessions of its TCP Client, so a
+// TCP Client gets the same share whatever the number of its connections. The small transfers are a priority class
+// of their own, served before the others, so they complete first under load. The waits are on a lock rather than
+// on a monitor, so the virtual threads of the TCP Server don't pin their carrier thread while they wait.
+public class BandwidthScheduler {
+    private static final LongAdder WAIT_MICROS = MetricsRegistry.counter("bandwidth_wait_micros_total",
+        "The time the transfers waited for their share of the bandwidth, in microseconds.");
+    private static final LongAdder SMALL_SESSIONS = MetricsRegistry.counter("bandwidth_small_sessions_total",
+        "The transfers served in the priority class of the small transfers.");
+    private static final Comparator<Session> SERVICE_ORDER = Comparator
+        .comparingInt((Session session) -> session.priorityClass)
+        .thenComparingDouble(session -> session.finishTag)
+        .thenComparingLong(session -> session.sequence);
+    private static final int SMALL_TRANSFER_CLASS = 0;
+    private static final int LARGE_TRANSFER_CLASS = 1;
+    
+    private final BandwidthOptions options;
+    // Guards the global bucket, the TCP Clients and the waiting sessions.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signaled whenever a charge is served, so the next waiting session checks whether it is the first one.
+    private final Condition served = lock.newCondition();
+    // Null when the global bandwidth is not limited.
+    private final TokenBucket globalBucket;
+    private final Map<String, Client> clients = new HashMap<>();
+    private final PriorityQueue<Session> waitingSessions = new PriorityQueue<>(SERVICE_ORDER);
+    // The tag of the last charge served, which the tags of the sessions that were idle start from.
+    private double virtualTime;
+    private long nextSequence;
+    
+    public BandwidthScheduler(BandwidthOptions options) {
+        this.options = options;
+        this.globalBucket = options.getGlobalRate() > 0 ?
+            new TokenBucket(options.getGlobalRate(), options.getBurstSize(), System.nanoTime()) : null;
+        MetricsRegistry.gauge("bandwidth_waiting_sessions", "The transfers waiting for their share of the bandwidth.",
+            this::getWaitingSessionCount);
+    }
+    
+    // Opens the session of a transfer of the given size from or to the TCP Client with the given address.
+    public Session open(String clientAddress, long transferSize) {
+        int priorityClass = transferSize <= options.getSmallTransferSize() ? SMALL_TRANSFER_CLASS :
+            LARGE_TRANSFER_CLASS;
+        if (priorityClass == SMALL_TRANSFER_CLASS) {
+            SMALL_SESSIONS.increment();
+        }
+        if (!options.isLimited()) {
+            return new Session(null, priorityClass);
+        }
+        
+        lock.lock();
+        try {
+            Client client = clients.computeIfAbsent(clientAddress, address -> new Client(address,
+                options.getClientRate() > 0 ?
+                    new TokenBucket(options.getClientRate(), options.getBurstSize(), System.nanoTime()) : null));
+            client.sessionCount++;
+            return new Session(client, priorityClass);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean isLimited() {
+        return options.isLimited();
+    }
+    
+    public int getWaitingSessionCount() {
+        lock.lock();
+        try {
+            return waitingSessions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public class Session implements Closeable {
+        // Null when the bandwidth is not limited.
+        private final Client client;
+        private final int priorityClass;
+        private double finishTag;
+        private long sequence;
+        
+        private Session(Client client, int priorityClass) {
+            this.client = client;
+            this.priorityClass = priorityClass;
+        }
+        
+        // Charges the bytes the transfer received or sent, and waits until the bandwidth they took is paid back.
+        public void charge(long bytes) throws InterruptedIOException {
+            if (client == null || bytes <= 0) {
+                return;
+            }
+            
+            long startTime = System.nanoTime();
+            try {
+                chargeClient(bytes);
+                if (globalBucket != null) {
+                    chargeGlobal(bytes);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("The transfer was interrupted while it waited for its share of " +
+                    "the bandwidth.");
+            } finally {
+                WAIT_MICROS.add((System.nanoTime() - startTime) / 1000);
+            }
+        }
+        
+        @Override
+        public void close() {
+            if (client == null) {
+                return;
+            }
+            
+            lock.lock();
+            try {
+                if (--client.sessionCount == 0) {
+                    clients.remove(client.address);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        private void chargeClient(long bytes) throws InterruptedException {
+            TokenBucket clientBucket = client.bucket;
+            if (clientBucket == null) {
+                return;
+            }
+            
+            long waitNanos;
+            synchronized (clientBucket) {
+                long now = System.nanoTime();
+                clientBucket.take(bytes, now);
+                waitNanos = clientBucket.waitNanos(now);
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+        
+        private void chargeGlobal(long bytes) throws InterruptedException {
+            lock.lock();
+            try {
+                // A session that was idle starts from the current virtual time, so it gets no credit for being idle.
+                finishTag = Math.max(virtualTime, finishTag) + (double) bytes * client.sessionCount;
+                sequence = nextSequence++;
+                waitingSessions.add(this);
+                try {
+                    // Only the first waiting session waits for the debt of the bucket, the others for their turn.
+                    while (true) {
+                        if (waitingSessions.peek() != this) {
+                            served.await();
+                            continue;
+                        }
+                        long waitNanos = globalBucket.waitNanos(System.nanoTime());
+                        if (waitNanos <= 0) {
+                            break;
+                        }
+                        served.awaitNanos(waitNanos);
+                    }
+                    globalBucket.take(bytes, System.nanoTime());
+                    virtualTime = finishTag;
+                } finally {
+                    waitingSessions.remove(this);
+                    served.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    @RequiredArgsConstructor
+    private static class Client {
+        private final String address;
+        // Null when the bandwidth of a TCP Client is not limited.
+        private final TokenBucket bucket;
+        // Guarded by the lock of the scheduler.
+        private int sessionCount;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,38 @@
+package com.fii.pcd.hw01.bandwidth;
+
+// A token bucket of bytes, refilled at the given rate up to the burst size. The bytes are taken once they are
+// transferred, so the bucket goes in debt by the last transfer, and the next one waits until the debt is paid.
+// It is guarded by its user.
+class TokenBucket {
+    private final long rate;
+    private final long burstSize;
+    private double tokens;
+    private long lastRefillTime;
+    
+    TokenBucket(long rate, long burstSize, long now) {
+        this.rate = rate;
+        this.burstSize = burstSize;
+        this.tokens = burstSize;
+        this.lastRefillTime = now;
+    }
+    
+    void take(long bytes, long now) {
+        refill(now);
+        tokens -= bytes;
+    }
+    
+    // How long to wait for the debt of the bucket to be paid, 0 when it has tokens.
+    long waitNanos(long now) {
+        refill(now);
+        if (tokens >= 0) {
+            return 0;
+        }
+        
+        return (long) Math.ceil(-tokens * 1e9 / rate);
+    }
+    
+    private void refill(long now) {
+        tokens = Math.min(burstSize, tokens + (now - lastRefillTime) * (rate / 1e9));
+        lastRefillTime = now;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,124 @@
+package com.fii.pcd.hw01.compression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import lombok.Getter;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+// Compresses and decompresses the chunks of a file independently of each other, so every chunk can be
+// decompressed on its own whatever the order it arrives in. Not thread safe, every thread has its own codec.
+public class ChunkCodec implements Closeable {
+    // A chunk is sent compressed only when that saves at least 5% of its size.
+    private static final double MAX_COMPRESSION_RATIO = 0.95;
+    // The number of chunks compressed to estimate the compression ratio of a file.
+    private static final int SAMPLE_COUNT = 8;
+    
+    @Getter
+    private final CompressionType type;
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final LZ4Compressor lz4Compressor;
+    private final LZ4FastDecompressor lz4Decompressor;
+    
+    public ChunkCodec(CompressionType type, int level) {
+        this.type = type;
+        this.deflater = type == CompressionType.DEFLATE ? new Deflater(level) : null;
+        this.inflater = type == CompressionType.DEFLATE ? new Inflater() : null;
+        this.lz4Compressor = type == CompressionType.LZ4 ? LZ4Factory.fastestInstance().fastCompressor() : null;
+        this.lz4Decompressor = type == CompressionType.LZ4 ? LZ4Factory.fastestInstance().fastDecompressor() : null;
+    }
+    
+    // Returns the compressed length, or -1 when the chunk doesn't get smaller or doesn't fit in maxLength.
+    public int compress(byte[] source, int sourceOffset, int sourceLength, byte[] destination, int destinationOffset,
+            int maxLength) {
+        int limit = Math.min(maxLength, (int) (sourceLength * MAX_COMPRESSION_RATIO));
+        switch (type) {
+            case DEFLATE:
+                deflater.reset();
+                deflater.setInput(source, sourceOffset, sourceLength);
+                deflater.finish();
+                int compressedLength = deflater.deflate(destination, destinationOffset, limit);
+                return deflater.finished() ? compressedLength : -1;
+            case LZ4:
+                try {
+                    return lz4Compressor.compress(source, sourceOffset, sourceLength, destination, destinationOffset,
+                        limit);
+                } catch (LZ4Exception e) {
+                    return -1;
+                }
+            default:
+                return -1;
+        }
+    }
+    
+    public void decompress(byte[] source, int sourceOffset, int sourceLength, byte[] destination,
+            int destinationOffset, int rawLength) throws IOException {
+        switch (type) {
+            case DEFLATE:
+                inflater.reset();
+                inflater.setInput(source, sourceOffset, sourceLength);
+                try {
+                    if (inflater.inflate(destination, destinationOffset, rawLength) != rawLength ||
+                            !inflater.finished()) {
+                        throw new IOException("The compressed chunk doesn't hold " + rawLength + " bytes.");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("The compressed chunk is corrupted.", e);
+                }
+                break;
+            case LZ4:
+                try {
+                    if (lz4Decompressor.decompress(source, sourceOffset, destination, destinationOffset,
+                            rawLength) != sourceLength) {
+                        throw new IOException("The compressed chunk doesn't hold " + rawLength + " bytes.");
+                    }
+                } catch (LZ4Exception e) {
+                    throw new IOException("The compressed chunk is corrupted.", e);
+                }
+                break;
+            default:
+                throw new IOException("The chunk cannot be decompressed with the compression type = " + type);
+        }
+    }
+    
+    // Compresses a few chunks spread over the file range and returns the ratio of the compressed size to the
+    // raw size, so a file that doesn't compress is sent without trying.
+    public double sampleCompressionRatio(FileChannel fileChannel, long offset, long length, int chunkSize)
+            throws IOException {
+        byte[] rawBuffer = new byte[chunkSize];
+        byte[] compressedBuffer = new byte[chunkSize];
+        long totalRawLength = 0;
+        long totalCompressedLength = 0;
+        for (int i = 0; i < SAMPLE_COUNT && length > 0; i++) {
+            long position = offset + (length - Math.min(chunkSize, length)) * i / Math.max(SAMPLE_COUNT - 1, 1);
+            ByteBuffer buffer = ByteBuffer.wrap(rawBuffer, 0, (int) Math.min(chunkSize, length));
+            while (buffer.hasRemaining() && fileChannel.read(buffer, position + buffer.position()) != -1) {
+            }
+            
+            int rawLength = buffer.position();
+            int compressedLength = compress(rawBuffer, 0, rawLength, compressedBuffer, 0, compressedBuffer.length);
+            totalRawLength += rawLength;
+            totalCompressedLength += compressedLength < 0 ? rawLength : compressedLength;
+        }
+        
+        return totalRawLength == 0 ? 1 : (double) totalCompressedLength / totalRawLength;
+    }
+    
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+}
\ No newline at end of file
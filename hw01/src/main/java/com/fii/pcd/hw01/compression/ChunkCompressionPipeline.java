@@ -0,0 +1,132 @@
+package com.fii.pcd.hw01.compression;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static com.fii.pcd.hw01.integrity.Checksums.crc32c;
+
+// Reads a range of a file as chunks and compresses them on a thread of its own, so the compression of the next
+// chunks overlaps with the socket I/O of the previous ones. The digest of the range is computed on the same thread.
+public class ChunkCompressionPipeline implements Closeable {
+    // After this many chunks in a row that don't compress, the next chunks are sent raw without trying.
+    private static final int MAX_INCOMPRESSIBLE_CHUNKS = 8;
+    private static final int SKIPPED_CHUNKS = 64;
+    private static final FileChunk END_OF_RANGE = new FileChunk(-1, 0, null, 0, false, 0);
+    
+    private final BlockingQueue<FileChunk> chunks;
+    private final Thread compressorThread;
+    private volatile IOException failure;
+    private final MessageDigest digest;
+    
+    // The raw chunks are at most maxRawLength long and the chunks sent at most maxEncodedLength long. When the
+    // first is larger, the compressed chunks hold as many file bytes as fit, which is what fills the datagrams.
+    // The codec is used by the pipeline thread only and is closed by it at the end. The digest is null when the
+    // range is not hashed.
+    public ChunkCompressionPipeline(FileChannel fileChannel, long offset, long length, int maxRawLength,
+            int maxEncodedLength, ChunkCodec codec, int queueCapacity, MessageDigest digest) {
+        this.chunks = new ArrayBlockingQueue<>(queueCapacity);
+        this.digest = digest;
+        this.compressorThread = new Thread(() -> {
+            try {
+                compressChunks(fileChannel, offset, length, maxRawLength, maxEncodedLength, codec);
+                chunks.put(END_OF_RANGE);
+            } catch (IOException e) {
+                failure = e;
+                chunks.clear();
+                chunks.offer(END_OF_RANGE);
+            } catch (InterruptedException e) {
+                // The pipeline was closed before the end of the range.
+            } finally {
+                codec.close();
+            }
+        }, "chunk-compressor");
+        this.compressorThread.setDaemon(true);
+        this.compressorThread.start();
+    }
+    
+    // Returns null after the last chunk of the range.
+    public FileChunk next() throws IOException, InterruptedException {
+        FileChunk chunk = chunks.take();
+        if (chunk == END_OF_RANGE) {
+            chunks.offer(END_OF_RANGE);
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        
+        return chunk;
+    }
+    
+    // Returns the digest of the range, once next returned null.
+    public byte[] digest() {
+        return digest.digest();
+    }
+    
+    @Override
+    public void close() {
+        compressorThread.interrupt();
+    }
+    
+    private void compressChunks(FileChannel fileChannel, long offset, long length, int maxRawLength,
+            int maxEncodedLength, ChunkCodec codec) throws IOException, InterruptedException {
+        byte[] rawBuffer = new byte[Math.max(maxRawLength, maxEncodedLength)];
+        long position = offset;
+        long end = offset + length;
+        int rawLength = maxEncodedLength;
+        int incompressibleChunks = 0;
+        int skippedChunks = 0;
+        while (position < end) {
+            boolean tryCompression = codec.getType() != CompressionType.NONE && skippedChunks == 0;
+            int readLength = (int) Math.min(tryCompression ? rawLength : maxEncodedLength, end - position);
+            // A chunk sent raw is read straight into the array it is sent from.
+            byte[] readBuffer = tryCompression ? rawBuffer : new byte[readLength];
+            ByteBuffer buffer = ByteBuffer.wrap(readBuffer, 0, readLength);
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+                    throw new EOFException("The file ended at " + (position + buffer.position()) + " bytes of " + end);
+                }
+            }
+            
+            FileChunk chunk = null;
+            if (tryCompression) {
+                byte[] data = new byte[maxEncodedLength];
+                int compressedLength = codec.compress(rawBuffer, 0, readLength, data, 0, maxEncodedLength);
+                if (compressedLength > 0) {
+                    chunk = new FileChunk(position, readLength, data, compressedLength, true,
+                        crc32c(data, 0, compressedLength));
+                    incompressibleChunks = 0;
+                    // Aim at a compressed chunk that fills most of the encoded length.
+                    rawLength = (int) Math.max(Math.min(0.9 * maxEncodedLength * readLength / compressedLength,
+                        maxRawLength), maxEncodedLength);
+                } else {
+                    rawLength = maxEncodedLength;
+                    if (++incompressibleChunks >= MAX_INCOMPRESSIBLE_CHUNKS) {
+                        incompressibleChunks = 0;
+                        skippedChunks = SKIPPED_CHUNKS;
+                    }
+                }
+            } else if (skippedChunks > 0) {
+                skippedChunks--;
+            }
+            
+            if (chunk == null) {
+                int chunkLength = Math.min(readLength, maxEncodedLength);
+                byte[] data = readBuffer == rawBuffer ? Arrays.copyOf(rawBuffer, chunkLength) : readBuffer;
+                chunk = new FileChunk(position, chunkLength, data, chunkLength, false, crc32c(data, 0, chunkLength));
+            }
+            if (digest != null) {
+                digest.update(readBuffer, 0, chunk.getRawLength());
+            }
+            chunks.put(chunk);
+            position += chunk.getRawLength();
+        }
+    }
+}
\ No newline at end of file
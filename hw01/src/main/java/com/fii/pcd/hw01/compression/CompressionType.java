@@ -0,0 +1,27 @@
+package com.fii.pcd.hw01.compression;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// The codecs the file chunks can be compressed with, negotiated by the client and the server for every transfer.
+@AllArgsConstructor
+@Getter
+public enum CompressionType {
+    NONE((byte) 0),
+    // Deflater, at the level chosen by the client.
+    DEFLATE((byte) 1),
+    // LZ4, much faster than Deflater but with a lower compression ratio.
+    LZ4((byte) 2);
+    
+    private final byte code;
+    
+    public static CompressionType fromCode(byte code) {
+        for (CompressionType compressionType : values()) {
+            if (compressionType.code == code) {
+                return compressionType;
+            }
+        }
+        
+        throw new IllegalArgumentException("Invalid compression type = " + code);
+    }
+}
\ No newline at end of file
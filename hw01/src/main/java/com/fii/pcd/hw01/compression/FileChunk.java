@@ -0,0 +1,19 @@
+package com.fii.pcd.hw01.compression;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// A chunk of a file, ready to be sent: compressed when that made it smaller, raw otherwise.
+@AllArgsConstructor
+@Getter
+public class FileChunk {
+    // The offset of the chunk in the file.
+    private final long offset;
+    // The number of file bytes in the chunk.
+    private final int rawLength;
+    private final byte[] data;
+    private final int length;
+    private final boolean compressed;
+    // The CRC32C of the data, as sent.
+    private final int checksum;
+}
\ No newline at end of file
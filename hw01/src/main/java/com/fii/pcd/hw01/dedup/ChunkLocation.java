@@ -0,0 +1,14 @@
+package com.fii.pcd.hw01.dedup;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// Where the content of a chunk is stored: a range of a blob, or of the file being received when the blob digest is
+// null.
+@AllArgsConstructor
+@Getter
+public class ChunkLocation {
+    private final byte[] blobDigest;
+    private final long offset;
+    private final int length;
+}
\ No newline at end of file
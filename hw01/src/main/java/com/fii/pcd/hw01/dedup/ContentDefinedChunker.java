@@ -0,0 +1,58 @@
+package com.fii.pcd.hw01.dedup;
+
+import java.util.SplittableRandom;
+import lombok.experimental.UtilityClass;
+
+// Cuts a file into chunks where its content says so, as FastCDC does: a gear hash of the last bytes is rolled over
+// the data and a chunk ends where the hash has enough zero bits. An insertion then moves only the boundaries around
+// it, so the files that share most of their content share most of their chunks, whatever their offsets.
+@UtilityClass
+public class ContentDefinedChunker {
+    public static final int MIN_CHUNK_LENGTH = 16 * 1024;
+    public static final int MAX_CHUNK_LENGTH = 256 * 1024;
+    private static final int NORMAL_CHUNK_LENGTH = 64 * 1024;
+    // Harder to match before the normal length and easier after it, so the chunk lengths gather around it.
+    private static final long SMALL_CHUNK_MASK = maskOf(18);
+    private static final long LARGE_CHUNK_MASK = maskOf(14);
+    // The same on every client, so the same content is cut the same way everywhere.
+    private static final long[] GEAR = new long[256];
+    
+    static {
+        SplittableRandom random = new SplittableRandom(0x6765617248617368L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+    
+    // Returns the length of the chunk that starts at the offset of the data. The data holds the rest of the file,
+    // or at least the maximum chunk length of it.
+    public static int nextChunkLength(byte[] data, int offset, int length) {
+        if (length <= MIN_CHUNK_LENGTH) {
+            return length;
+        }
+        
+        int normalLength = Math.min(length, NORMAL_CHUNK_LENGTH);
+        int maxLength = Math.min(length, MAX_CHUNK_LENGTH);
+        long hash = 0;
+        int i = MIN_CHUNK_LENGTH;
+        for (; i < normalLength; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & SMALL_CHUNK_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < maxLength; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & LARGE_CHUNK_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        
+        return maxLength;
+    }
+    
+    // The zero bits are taken from the top of the hash, where the most bytes have mixed in.
+    private static long maskOf(int bits) {
+        return -1L << (Long.SIZE - bits);
+    }
+}
\ No newline at end of file
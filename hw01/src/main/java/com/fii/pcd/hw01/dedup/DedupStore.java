@@ -0,0 +1,349 @@
+package com.fii.pcd.hw01.dedup;
+
+import com.fii.pcd.hw01.integrity.Checksums;
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+
+import static com.fii.pcd.hw01.integrity.Checksums.FILE_DIGEST_LENGTH;
+
+// Stores the received files once per content, as blobs named by their SHA-256, and links the received names to
+// them. The chunks of the blobs are indexed by their SHA-256 on the disk, in bucket files appended to as the blobs
+// are added, so a new file is rebuilt from the chunks already stored and only the others are transferred. The
+// blobs and the chunks looked up recently stay in memory, and a Bloom filter of all the indexed chunks spares the
+// bucket scans for the chunks never seen.
+@Slf4j
+public class DedupStore {
+    // The chunk digest, the blob digest, the offset of the chunk in the blob and its length.
+    private static final int INDEX_RECORD_LENGTH = 2 * FILE_DIGEST_LENGTH + Long.BYTES + Integer.BYTES;
+    // The buckets are picked by the first byte of the chunk digest.
+    private static final int INDEX_BUCKET_COUNT = 256;
+    private static final int INDEX_READ_BUFFER_LENGTH = 1024 * INDEX_RECORD_LENGTH;
+    // 16M bits and 4 hashes, about 0.25% of false positives for a million chunks.
+    private static final int FILTER_BITS = 1 << 24;
+    private static final int FILTER_HASHES = 4;
+    private static final HexFormat HEX = HexFormat.of();
+    private static final LongAdder STORED_BLOBS = MetricsRegistry.counter("dedup_stored_blobs_total",
+        "The distinct files stored by the dedup store.");
+    private static final LongAdder LINKED_FILES = MetricsRegistry.counter("dedup_linked_files_total",
+        "The received names linked to a blob of the dedup store, new or not.");
+    
+    private final Path blobDirectory;
+    private final Path indexDirectory;
+    private final Path partDirectory;
+    private final Map<ByteBuffer, Boolean> knownBlobs;
+    private final Map<ByteBuffer, ChunkLocation> chunkLocations;
+    private final AtomicLongArray chunkFilter = new AtomicLongArray(FILTER_BITS / Long.SIZE);
+    private final Object[] bucketLocks = new Object[INDEX_BUCKET_COUNT];
+    
+    public DedupStore(Path directory, int cacheSize) throws IOException {
+        this.blobDirectory = Files.createDirectories(directory.resolve("blobs"));
+        this.indexDirectory = Files.createDirectories(directory.resolve("index"));
+        this.partDirectory = Files.createDirectories(directory.resolve("parts"));
+        this.knownBlobs = newCache(cacheSize);
+        this.chunkLocations = newCache(cacheSize);
+        for (int i = 0; i < INDEX_BUCKET_COUNT; i++) {
+            bucketLocks[i] = new Object();
+        }
+        
+        // The part files left by a previous run were never verified.
+        try (Stream<Path> partFiles = Files.list(partDirectory)) {
+            for (Path partFile : (Iterable<Path>) partFiles::iterator) {
+                Files.deleteIfExists(partFile);
+            }
+        }
+        long indexedChunks = 0;
+        for (int i = 0; i < INDEX_BUCKET_COUNT; i++) {
+            indexedChunks += loadBucket(i);
+        }
+        log.info("The dedup store = {} is opened with {} indexed chunks and with cache size = {}",
+            directory, indexedChunks, cacheSize);
+    }
+    
+    public boolean hasBlob(byte[] fileDigest) {
+        ByteBuffer key = ByteBuffer.wrap(fileDigest);
+        if (knownBlobs.containsKey(key)) {
+            return true;
+        }
+        if (!Files.isRegularFile(blobPath(fileDigest))) {
+            return false;
+        }
+        
+        knownBlobs.put(key, true);
+        return true;
+    }
+    
+    // The SHA-256 of the challenge followed by the content of the blob with the given digest, which only a TCP
+    // Client that has the content computes, unlike the digest of the content, which anyone may know. Returns null
+    // when there is no such blob.
+    public byte[] digestBlob(byte[] fileDigest, byte[] challenge) throws IOException {
+        try (FileChannel blobChannel = FileChannel.open(blobPath(fileDigest), StandardOpenOption.READ)) {
+            MessageDigest digest = Checksums.newFileDigest();
+            digest.update(challenge);
+            Checksums.updateFromFile(digest, blobChannel, 0, blobChannel.size());
+            return digest.digest();
+        } catch (NoSuchFileException e) {
+            // The blob was deleted from the disk behind the store.
+            knownBlobs.remove(ByteBuffer.wrap(fileDigest));
+            return null;
+        }
+    }
+    
+    // Links the target to the blob with the given digest, and returns false when there is no such blob.
+    public boolean linkBlob(byte[] fileDigest, Path target) throws IOException {
+        if (!hasBlob(fileDigest)) {
+            return false;
+        }
+        
+        try {
+            link(blobPath(fileDigest), target);
+        } catch (NoSuchFileException e) {
+            // The blob was deleted from the disk behind the store.
+            knownBlobs.remove(ByteBuffer.wrap(fileDigest));
+            return false;
+        }
+        return true;
+    }
+    
+    // Returns where the chunk with the given digest is stored, null when it is not.
+    public ChunkLocation findChunk(byte[] chunkDigest) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(chunkDigest);
+        ChunkLocation location = chunkLocations.get(key);
+        if (location != null || !mightContain(chunkDigest)) {
+            return location;
+        }
+        
+        location = scanBucket(chunkDigest);
+        if (location != null) {
+            chunkLocations.put(key, location);
+        }
+        return location;
+    }
+    
+    // A new file in the store directory, where a file is rebuilt before it becomes a blob.
+    public Path createPartFile() throws IOException {
+        return Files.createFile(partDirectory.resolve(Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+            ".part"));
+    }
+    
+    // Turns the verified part file into the blob of the recipe, indexes the given chunks of it and links the target
+    // to it. The part file is dropped when another request stored the same content first.
+    public void addBlob(Path partFile, FileRecipe recipe, boolean[] newChunks, Path target) throws IOException {
+        byte[] fileDigest = recipe.getFileDigest();
+        Path blob = blobPath(fileDigest);
+        Files.createDirectories(blob.getParent());
+        if (Files.isRegularFile(blob)) {
+            Files.delete(partFile);
+        } else {
+            Files.move(partFile, blob, StandardCopyOption.ATOMIC_MOVE);
+            STORED_BLOBS.increment();
+            
+            // The index records are grouped by bucket, so each bucket file is appended to once.
+            int[] bucketSizes = new int[INDEX_BUCKET_COUNT];
+            for (int i = 0; i < recipe.getChunkCount(); i++) {
+                if (newChunks[i]) {
+                    bucketSizes[recipe.getChunkDigest(i)[0] & 0xff]++;
+                }
+            }
+            ByteBuffer[] bucketRecords = new ByteBuffer[INDEX_BUCKET_COUNT];
+            long offset = 0;
+            for (int i = 0; i < recipe.getChunkCount(); i++) {
+                byte[] chunkDigest = recipe.getChunkDigest(i);
+                if (newChunks[i]) {
+                    int bucket = chunkDigest[0] & 0xff;
+                    if (bucketRecords[bucket] == null) {
+                        bucketRecords[bucket] = ByteBuffer.allocate(bucketSizes[bucket] * INDEX_RECORD_LENGTH);
+                    }
+                    bucketRecords[bucket].put(chunkDigest).put(fileDigest).putLong(offset)
+                        .putInt(recipe.getChunkLength(i));
+                    addToFilter(chunkDigest);
+                }
+                offset += recipe.getChunkLength(i);
+            }
+            for (int i = 0; i < INDEX_BUCKET_COUNT; i++) {
+                if (bucketRecords[i] != null) {
+                    appendToBucket(i, bucketRecords[i].flip());
+                }
+            }
+        }
+        knownBlobs.put(ByteBuffer.wrap(fileDigest), true);
+        
+        link(blob, target);
+    }
+    
+    // Reads the chunks from the blobs, each blob opened once.
+    public BlobReader openBlobReader() {
+        return new BlobReader();
+    }
+    
+    public class BlobReader implements Closeable {
+        private final Map<ByteBuffer, FileChannel> blobChannels = new HashMap<>();
+        
+        // Reads the chunk at the given location into the start of the buffer.
+        public void read(ChunkLocation location, byte[] buffer) throws IOException {
+            ByteBuffer key = ByteBuffer.wrap(location.getBlobDigest());
+            FileChannel blobChannel = blobChannels.get(key);
+            if (blobChannel == null) {
+                blobChannel = FileChannel.open(blobPath(location.getBlobDigest()), StandardOpenOption.READ);
+                blobChannels.put(key, blobChannel);
+            }
+            
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, location.getLength());
+            while (chunk.hasRemaining()) {
+                if (blobChannel.read(chunk, location.getOffset() + chunk.position()) == -1) {
+                    throw new EOFException("The blob = " + HEX.formatHex(location.getBlobDigest()) +
+                        " ended in the chunk at offset = " + location.getOffset());
+                }
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            for (FileChannel blobChannel : blobChannels.values()) {
+                blobChannel.close();
+            }
+        }
+    }
+    
+    // The blobs are spread over 256 directories by the first byte of their digest.
+    private Path blobPath(byte[] fileDigest) {
+        String name = HEX.formatHex(fileDigest);
+        return blobDirectory.resolve(name.substring(0, 2)).resolve(name);
+    }
+    
+    // Links the target to the blob through a temporary name, so the target is replaced at once. A file system
+    // without hard links gets a copy of the blob instead.
+    private void link(Path blob, Path target) throws IOException {
+        Path link = target.resolveSibling(target.getFileName() + "." +
+            Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".link");
+        try {
+            Files.createLink(link, blob);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(blob, link);
+        }
+        Files.move(link, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LINKED_FILES.increment();
+    }
+    
+    private Path bucketPath(int bucket) {
+        return indexDirectory.resolve(String.format("%02x.idx", bucket));
+    }
+    
+    // Adds the chunks of the bucket file to the Bloom filter and returns their number.
+    private long loadBucket(int bucket) throws IOException {
+        Path bucketPath = bucketPath(bucket);
+        if (!Files.isRegularFile(bucketPath)) {
+            return 0;
+        }
+        
+        long records = 0;
+        byte[] chunkDigest = new byte[FILE_DIGEST_LENGTH];
+        try (FileChannel bucketChannel = FileChannel.open(bucketPath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(INDEX_READ_BUFFER_LENGTH);
+            while (bucketChannel.read(buffer) != -1 || buffer.position() >= INDEX_RECORD_LENGTH) {
+                buffer.flip();
+                while (buffer.remaining() >= INDEX_RECORD_LENGTH) {
+                    buffer.get(chunkDigest);
+                    buffer.position(buffer.position() + INDEX_RECORD_LENGTH - FILE_DIGEST_LENGTH);
+                    addToFilter(chunkDigest);
+                    records++;
+                }
+                buffer.compact();
+            }
+        }
+        return records;
+    }
+    
+    private ChunkLocation scanBucket(byte[] chunkDigest) throws IOException {
+        int bucket = chunkDigest[0] & 0xff;
+        synchronized (bucketLocks[bucket]) {
+            Path bucketPath = bucketPath(bucket);
+            if (!Files.isRegularFile(bucketPath)) {
+                return null;
+            }
+            
+            byte[] recordDigest = new byte[FILE_DIGEST_LENGTH];
+            try (FileChannel bucketChannel = FileChannel.open(bucketPath, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(INDEX_READ_BUFFER_LENGTH);
+                while (bucketChannel.read(buffer) != -1 || buffer.position() >= INDEX_RECORD_LENGTH) {
+                    buffer.flip();
+                    while (buffer.remaining() >= INDEX_RECORD_LENGTH) {
+                        buffer.get(recordDigest);
+                        if (!Arrays.equals(recordDigest, chunkDigest)) {
+                            buffer.position(buffer.position() + INDEX_RECORD_LENGTH - FILE_DIGEST_LENGTH);
+                            continue;
+                        }
+                        byte[] blobDigest = new byte[FILE_DIGEST_LENGTH];
+                        buffer.get(blobDigest);
+                        return new ChunkLocation(blobDigest, buffer.getLong(), buffer.getInt());
+                    }
+                    buffer.compact();
+                }
+            }
+        }
+        return null;
+    }
+    
+    private void appendToBucket(int bucket, ByteBuffer records) throws IOException {
+        synchronized (bucketLocks[bucket]) {
+            try (FileChannel bucketChannel = FileChannel.open(bucketPath(bucket), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (records.hasRemaining()) {
+                    bucketChannel.write(records);
+                }
+            }
+        }
+    }
+    
+    // The digests are uniform already, so their first words are the hashes of the filter.
+    private void addToFilter(byte[] chunkDigest) {
+        ByteBuffer digest = ByteBuffer.wrap(chunkDigest);
+        for (int i = 0; i < FILTER_HASHES; i++) {
+            int bit = digest.getInt(i * Integer.BYTES) & (FILTER_BITS - 1);
+            chunkFilter.getAndUpdate(bit >>> 6, bits -> bits | (1L << bit));
+        }
+    }
+    
+    private boolean mightContain(byte[] chunkDigest) {
+        ByteBuffer digest = ByteBuffer.wrap(chunkDigest);
+        for (int i = 0; i < FILTER_HASHES; i++) {
+            int bit = digest.getInt(i * Integer.BYTES) & (FILTER_BITS - 1);
+            if ((chunkFilter.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static <V> Map<ByteBuffer, V> newCache(int cacheSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, V> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+}
\ No newline at end of file
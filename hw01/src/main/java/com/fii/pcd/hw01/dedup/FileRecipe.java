@@ -0,0 +1,137 @@
+package com.fii.pcd.hw01.dedup;
+
+import com.fii.pcd.hw01.integrity.Checksums;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.Getter;
+
+import static com.fii.pcd.hw01.integrity.Checksums.FILE_DIGEST_LENGTH;
+
+// A file as the SHA-256 of its content and the list of its content defined chunks, each one as its length and its
+// SHA-256. The server rebuilds the file from the chunks it already has and the ones it asks for.
+public class FileRecipe {
+    // The file is read in blocks of several chunks, so the chunker always sees a whole chunk ahead.
+    private static final int READ_BUFFER_LENGTH = 4 * ContentDefinedChunker.MAX_CHUNK_LENGTH;
+    // The chunks of a recipe read from a client are bounded, so the largest file is the one with the most chunks of
+    // the minimum length. A recipe then takes at most about 36 MiB, a length and a SHA-256 per chunk.
+    public static final int MAX_CHUNK_COUNT = 1024 * 1024;
+    public static final long MAX_FILE_SIZE = (long) MAX_CHUNK_COUNT * ContentDefinedChunker.MIN_CHUNK_LENGTH;
+    // The chunks read before the arrays of the recipe grow, so the memory used follows the chunks actually sent.
+    private static final int READ_BATCH_CHUNKS = 4096;
+    
+    @Getter
+    private final byte[] fileDigest;
+    @Getter
+    private final long fileSize;
+    private final int[] chunkLengths;
+    private final byte[][] chunkDigests;
+    
+    private FileRecipe(byte[] fileDigest, long fileSize, int[] chunkLengths, byte[][] chunkDigests) {
+        this.fileDigest = fileDigest;
+        this.fileSize = fileSize;
+        this.chunkLengths = chunkLengths;
+        this.chunkDigests = chunkDigests;
+    }
+    
+    public int getChunkCount() {
+        return chunkLengths.length;
+    }
+    
+    public int getChunkLength(int chunk) {
+        return chunkLengths[chunk];
+    }
+    
+    public byte[] getChunkDigest(int chunk) {
+        return chunkDigests[chunk];
+    }
+    
+    public static FileRecipe compute(FileChannel fileChannel) throws IOException {
+        long fileSize = fileChannel.size();
+        MessageDigest fileDigest = Checksums.newFileDigest();
+        MessageDigest chunkDigest = Checksums.newFileDigest();
+        List<Integer> chunkLengths = new ArrayList<>();
+        List<byte[]> chunkDigests = new ArrayList<>();
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_BUFFER_LENGTH, Math.max(fileSize, 1)));
+        buffer.limit(0);
+        long position = 0;
+        while (position < fileSize) {
+            // Move the bytes not chunked yet to the start of the buffer and fill the rest of it.
+            buffer.compact();
+            while (buffer.hasRemaining() && position + buffer.position() < fileSize) {
+                if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+                    throw new IOException("The file ended at " + (position + buffer.position()) + " bytes of " +
+                        fileSize);
+                }
+            }
+            buffer.flip();
+            
+            while (buffer.remaining() >= ContentDefinedChunker.MAX_CHUNK_LENGTH ||
+                    (buffer.hasRemaining() && position + buffer.remaining() == fileSize)) {
+                int offset = buffer.position();
+                int chunkLength = ContentDefinedChunker.nextChunkLength(buffer.array(), offset, buffer.remaining());
+                fileDigest.update(buffer.array(), offset, chunkLength);
+                chunkDigest.update(buffer.array(), offset, chunkLength);
+                chunkLengths.add(chunkLength);
+                chunkDigests.add(chunkDigest.digest());
+                buffer.position(offset + chunkLength);
+                position += chunkLength;
+            }
+        }
+        
+        return new FileRecipe(fileDigest.digest(), fileSize,
+            chunkLengths.stream().mapToInt(Integer::intValue).toArray(), chunkDigests.toArray(new byte[0][]));
+    }
+    
+    // Reads the chunks of the file with the given digest and size, the digest is sent first on its own.
+    public static FileRecipe read(DataInputStream dataInputStream, byte[] fileDigest, long fileSize)
+            throws IOException {
+        if (fileSize < 0 || fileSize > MAX_FILE_SIZE) {
+            throw new IOException("Invalid file size = " + fileSize + " for a file recipe.");
+        }
+        int chunkCount = dataInputStream.readInt();
+        if (chunkCount < 0 || chunkCount > fileSize / ContentDefinedChunker.MIN_CHUNK_LENGTH + 1) {
+            throw new IOException("Invalid file recipe with " + chunkCount + " chunks for the file size = " +
+                fileSize);
+        }
+        
+        int[] chunkLengths = new int[Math.min(chunkCount, READ_BATCH_CHUNKS)];
+        byte[][] chunkDigests = new byte[chunkLengths.length][];
+        long recipeSize = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            if (i == chunkLengths.length) {
+                int capacity = (int) Math.min(chunkCount, 2L * chunkLengths.length);
+                chunkLengths = Arrays.copyOf(chunkLengths, capacity);
+                chunkDigests = Arrays.copyOf(chunkDigests, capacity);
+            }
+            chunkLengths[i] = dataInputStream.readInt();
+            chunkDigests[i] = new byte[FILE_DIGEST_LENGTH];
+            dataInputStream.readFully(chunkDigests[i]);
+            if (chunkLengths[i] <= 0 || chunkLengths[i] > ContentDefinedChunker.MAX_CHUNK_LENGTH) {
+                throw new IOException("Invalid chunk length = " + chunkLengths[i] + " in the file recipe.");
+            }
+            recipeSize += chunkLengths[i];
+        }
+        if (recipeSize != fileSize) {
+            throw new IOException("Invalid file recipe with " + recipeSize + " bytes for the file size = " +
+                fileSize);
+        }
+        
+        return new FileRecipe(fileDigest, fileSize, chunkLengths, chunkDigests);
+    }
+    
+    public void write(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeInt(chunkLengths.length);
+        for (int i = 0; i < chunkLengths.length; i++) {
+            dataOutputStream.writeInt(chunkLengths[i]);
+            dataOutputStream.write(chunkDigests[i]);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,145 @@
+package com.fii.pcd.hw01.delta;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+
+// The signatures of the full blocks of the copy of a file the server already has: a rolling weak checksum to find
+// the candidate blocks at any offset of the new version, and an MD5 to confirm them.
+public class BlockSignatures {
+    public static final String STRONG_CHECKSUM_ALGORITHM = "MD5";
+    private static final int STRONG_CHECKSUM_LENGTH = 16;
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    
+    @Getter
+    private final int blockSize;
+    private final int[] weakChecksums;
+    private final byte[][] strongChecksums;
+    // The blocks by weak checksum, and a bitmap of the 16 bit tags of the weak checksums, which rules out most
+    // of the offsets without a map lookup.
+    private final Map<Integer, List<Integer>> blocksByWeakChecksum = new HashMap<>();
+    private final boolean[] weakChecksumTags = new boolean[1 << 16];
+    
+    private BlockSignatures(int blockSize, int[] weakChecksums, byte[][] strongChecksums) {
+        this.blockSize = blockSize;
+        this.weakChecksums = weakChecksums;
+        this.strongChecksums = strongChecksums;
+        for (int i = 0; i < weakChecksums.length; i++) {
+            blocksByWeakChecksum.computeIfAbsent(weakChecksums[i], weakChecksum -> new ArrayList<>()).add(i);
+            weakChecksumTags[tag(weakChecksums[i])] = true;
+        }
+    }
+    
+    public int getBlockCount() {
+        return weakChecksums.length;
+    }
+    
+    // About the square root of the file size, as rsync does, so the signatures stay a small fraction of the file.
+    public static int chooseBlockSize(long fileSize) {
+        long blockSize = (long) Math.sqrt(fileSize) & ~1023L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+    
+    public static BlockSignatures compute(FileChannel fileChannel, int blockSize) throws IOException {
+        int blockCount = (int) (fileChannel.size() / blockSize);
+        int[] weakChecksums = new int[blockCount];
+        byte[][] strongChecksums = new byte[blockCount][];
+        MessageDigest strongDigest = newStrongDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        for (int i = 0; i < blockCount; i++) {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, (long) i * blockSize + buffer.position()) == -1) {
+                    throw new EOFException("The file ended in the block = " + i + " of " + blockCount);
+                }
+            }
+            weakChecksums[i] = RollingChecksum.of(buffer.array(), 0, blockSize);
+            strongChecksums[i] = strongDigest.digest(buffer.array());
+        }
+        
+        return new BlockSignatures(blockSize, weakChecksums, strongChecksums);
+    }
+    
+    // The signatures of a file the server doesn't have yet, against which the whole file is sent as literals.
+    public static BlockSignatures none() {
+        return new BlockSignatures(MIN_BLOCK_SIZE, new int[0], new byte[0][]);
+    }
+    
+    public static BlockSignatures read(DataInputStream dataInputStream) throws IOException {
+        int blockSize = dataInputStream.readInt();
+        int blockCount = dataInputStream.readInt();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || blockCount < 0) {
+            throw new IOException("Invalid block signatures with block size = " + blockSize + " and block count = " +
+                blockCount);
+        }
+        
+        int[] weakChecksums = new int[blockCount];
+        byte[][] strongChecksums = new byte[blockCount][STRONG_CHECKSUM_LENGTH];
+        for (int i = 0; i < blockCount; i++) {
+            weakChecksums[i] = dataInputStream.readInt();
+            dataInputStream.readFully(strongChecksums[i]);
+        }
+        
+        return new BlockSignatures(blockSize, weakChecksums, strongChecksums);
+    }
+    
+    public void write(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeInt(blockSize);
+        dataOutputStream.writeInt(weakChecksums.length);
+        for (int i = 0; i < weakChecksums.length; i++) {
+            dataOutputStream.writeInt(weakChecksums[i]);
+            dataOutputStream.write(strongChecksums[i]);
+        }
+    }
+    
+    // Returns the index of a block with the same content as the given one, -1 when there is none. The block
+    // that follows the previous match is tried first, since unchanged files match block after block.
+    int findBlock(int weakChecksum, byte[] data, int offset, int preferredBlock, MessageDigest strongDigest) {
+        if (!weakChecksumTags[tag(weakChecksum)]) {
+            return -1;
+        }
+        List<Integer> candidateBlocks = blocksByWeakChecksum.get(weakChecksum);
+        if (candidateBlocks == null) {
+            return -1;
+        }
+        
+        strongDigest.update(data, offset, blockSize);
+        byte[] strongChecksum = strongDigest.digest();
+        if (preferredBlock >= 0 && preferredBlock < weakChecksums.length &&
+                weakChecksums[preferredBlock] == weakChecksum &&
+                MessageDigest.isEqual(strongChecksums[preferredBlock], strongChecksum)) {
+            return preferredBlock;
+        }
+        for (int candidateBlock : candidateBlocks) {
+            if (MessageDigest.isEqual(strongChecksums[candidateBlock], strongChecksum)) {
+                return candidateBlock;
+            }
+        }
+        
+        return -1;
+    }
+    
+    static MessageDigest newStrongDigest() {
+        try {
+            return MessageDigest.getInstance(STRONG_CHECKSUM_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("The digest algorithm = " + STRONG_CHECKSUM_ALGORITHM +
+                " is not supported.", e);
+        }
+    }
+    
+    private static int tag(int weakChecksum) {
+        return ((weakChecksum >>> 16) ^ weakChecksum) & 0xffff;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,97 @@
+package com.fii.pcd.hw01.delta;
+
+import com.fii.pcd.hw01.integrity.Checksums;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import lombok.Getter;
+
+import static com.fii.pcd.hw01.delta.DeltaEncoder.COPY;
+import static com.fii.pcd.hw01.delta.DeltaEncoder.END;
+import static com.fii.pcd.hw01.delta.DeltaEncoder.LITERAL;
+import static com.fii.pcd.hw01.delta.DeltaEncoder.MAX_LITERAL_LENGTH;
+
+// Rebuilds the new version of a file from the previous one and the delta made by a DeltaEncoder. The new version
+// is written to another file, since its copies are read from the previous version, and hashed on the way.
+@Getter
+public class DeltaDecoder {
+    // Null when there is no previous version, the delta is then made of literals only.
+    private final FileChannel previousFileChannel;
+    private final int blockSize;
+    private long literalBytes;
+    private long copiedBytes;
+    private long numberOfInstructions;
+    
+    public DeltaDecoder(FileChannel previousFileChannel, int blockSize) {
+        this.previousFileChannel = previousFileChannel;
+        this.blockSize = blockSize;
+    }
+    
+    // Reads the delta up to the END instruction, writes the new version and returns its SHA-256.
+    public byte[] decode(DataInputStream dataInputStream, FileChannel fileChannel, long fileSize) throws IOException {
+        long previousFileSize = previousFileChannel != null ? previousFileChannel.size() : 0;
+        MessageDigest fileDigest = Checksums.newFileDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_LITERAL_LENGTH);
+        long position = 0;
+        while (true) {
+            byte instruction = dataInputStream.readByte();
+            numberOfInstructions++;
+            switch (instruction) {
+                case LITERAL:
+                    int length = dataInputStream.readInt();
+                    if (length <= 0 || length > MAX_LITERAL_LENGTH || position + length > fileSize) {
+                        throw new IOException("Invalid literal with length = " + length + " at the offset = " +
+                            position + " of " + fileSize);
+                    }
+                    dataInputStream.readFully(buffer.array(), 0, length);
+                    buffer.clear().limit(length);
+                    writeAndHash(fileChannel, fileDigest, buffer, position);
+                    position += length;
+                    literalBytes += length;
+                    break;
+                case COPY:
+                    long copyOffset = (long) dataInputStream.readInt() * blockSize;
+                    long copyLength = (long) dataInputStream.readInt() * blockSize;
+                    if (copyOffset < 0 || copyLength <= 0 || copyOffset + copyLength > previousFileSize ||
+                            position + copyLength > fileSize) {
+                        throw new IOException("Invalid copy with offset = " + copyOffset + " and with length = " +
+                            copyLength + " at the offset = " + position + " of " + fileSize);
+                    }
+                    for (long copiedLength = 0; copiedLength < copyLength; ) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), copyLength - copiedLength));
+                        while (buffer.hasRemaining()) {
+                            if (previousFileChannel.read(buffer, copyOffset + copiedLength + buffer.position()) == -1) {
+                                throw new EOFException("The previous version of the file ended at " +
+                                    (copyOffset + copiedLength + buffer.position()) + " bytes.");
+                            }
+                        }
+                        buffer.flip();
+                        int bufferLength = buffer.limit();
+                        writeAndHash(fileChannel, fileDigest, buffer, position);
+                        position += bufferLength;
+                        copiedLength += bufferLength;
+                    }
+                    copiedBytes += copyLength;
+                    break;
+                case END:
+                    if (position != fileSize) {
+                        throw new IOException("The delta ended at the offset = " + position + " of " + fileSize);
+                    }
+                    return fileDigest.digest();
+                default:
+                    throw new IOException("Invalid delta instruction = " + instruction);
+            }
+        }
+    }
+    
+    private void writeAndHash(FileChannel fileChannel, MessageDigest fileDigest, ByteBuffer buffer, long position)
+            throws IOException {
+        fileDigest.update(buffer.array(), 0, buffer.limit());
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer, position + buffer.position());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,159 @@
+package com.fii.pcd.hw01.delta;
+
+import com.fii.pcd.hw01.integrity.Checksums;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import lombok.Getter;
+
+// Encodes the new version of a file against the block signatures of the previous one, as rsync does: the blocks
+// found at any offset of the new version are sent as references to the previous version, the other bytes as
+// literals. The file is read once, through a buffer that slides over it, and hashed on the way.
+@Getter
+public class DeltaEncoder {
+    // A literal is sent as its length and bytes, a copy as its first block and block count.
+    static final byte LITERAL = 0;
+    static final byte COPY = 1;
+    static final byte END = 2;
+    // The literals are sent in pieces of at most this length, which bounds the bytes kept in the buffer.
+    public static final int MAX_LITERAL_LENGTH = 64 * 1024;
+    private static final int READ_LENGTH = 1024 * 1024;
+    
+    private final BlockSignatures signatures;
+    private long literalBytes;
+    private long copiedBytes;
+    private long numberOfInstructions;
+    // The file bytes from bufferStart are in the buffer, bufferLength of them.
+    private byte[] buffer;
+    private long bufferStart;
+    private int bufferLength;
+    // The consecutive blocks found last, sent as a single copy.
+    private int pendingCopyBlock = -1;
+    private int pendingCopyCount;
+    
+    public DeltaEncoder(BlockSignatures signatures) {
+        this.signatures = signatures;
+    }
+    
+    // Writes the delta of the file up to the END instruction and returns the SHA-256 of the file.
+    public byte[] encode(FileChannel fileChannel, DataOutputStream dataOutputStream) throws IOException {
+        int blockSize = signatures.getBlockSize();
+        long fileSize = fileChannel.size();
+        MessageDigest fileDigest = Checksums.newFileDigest();
+        MessageDigest strongDigest = BlockSignatures.newStrongDigest();
+        RollingChecksum rollingChecksum = new RollingChecksum();
+        boolean rollingChecksumValid = false;
+        buffer = new byte[MAX_LITERAL_LENGTH + blockSize + READ_LENGTH];
+        
+        long position = 0;
+        long literalStart = 0;
+        while (signatures.getBlockCount() > 0 && position + blockSize <= fileSize) {
+            fillBuffer(fileChannel, fileDigest, literalStart, position + blockSize);
+            int index = (int) (position - bufferStart);
+            if (!rollingChecksumValid) {
+                rollingChecksum.reset(buffer, index, blockSize);
+                rollingChecksumValid = true;
+            }
+            
+            int nextBlock = pendingCopyBlock >= 0 ? pendingCopyBlock + pendingCopyCount : -1;
+            int block = signatures.findBlock(rollingChecksum.getValue(), buffer, index, nextBlock, strongDigest);
+            if (block >= 0) {
+                writeLiteral(dataOutputStream, literalStart, position);
+                addCopy(dataOutputStream, block);
+                position += blockSize;
+                literalStart = position;
+                rollingChecksumValid = false;
+                continue;
+            }
+            
+            // No block starts here, so the byte is a literal and the block slides by one byte.
+            if (position + blockSize < fileSize) {
+                fillBuffer(fileChannel, fileDigest, literalStart, position + blockSize + 1);
+                index = (int) (position - bufferStart);
+                rollingChecksum.roll(buffer[index], buffer[index + blockSize]);
+            }
+            position++;
+            if (position - literalStart == MAX_LITERAL_LENGTH) {
+                writeLiteral(dataOutputStream, literalStart, position);
+                literalStart = position;
+            }
+        }
+        
+        // The end of the file is shorter than a block, or is the whole file when the server has no copy of it.
+        while (literalStart < fileSize) {
+            long literalEnd = Math.min(fileSize, literalStart + MAX_LITERAL_LENGTH);
+            fillBuffer(fileChannel, fileDigest, literalStart, literalEnd);
+            writeLiteral(dataOutputStream, literalStart, literalEnd);
+            literalStart = literalEnd;
+        }
+        flushCopy(dataOutputStream);
+        dataOutputStream.writeByte(END);
+        numberOfInstructions++;
+        
+        return fileDigest.digest();
+    }
+    
+    // Makes the buffer hold the file bytes from keepStart up to end, reading ahead as much as fits.
+    private void fillBuffer(FileChannel fileChannel, MessageDigest fileDigest, long keepStart, long end)
+            throws IOException {
+        if (end <= bufferStart + bufferLength) {
+            return;
+        }
+        
+        int keptLength = (int) (bufferStart + bufferLength - keepStart);
+        System.arraycopy(buffer, (int) (keepStart - bufferStart), buffer, 0, keptLength);
+        bufferStart = keepStart;
+        bufferLength = keptLength;
+        ByteBuffer readBuffer = ByteBuffer.wrap(buffer, bufferLength,
+            (int) Math.min(buffer.length - bufferLength, fileChannel.size() - (bufferStart + bufferLength)));
+        while (readBuffer.hasRemaining()) {
+            if (fileChannel.read(readBuffer, bufferStart + readBuffer.position()) == -1) {
+                throw new EOFException("The file ended at " + (bufferStart + readBuffer.position()) + " bytes.");
+            }
+        }
+        // Every byte of the file is read once, so it is hashed as it is read.
+        fileDigest.update(buffer, bufferLength, readBuffer.position() - bufferLength);
+        bufferLength = readBuffer.position();
+    }
+    
+    private void writeLiteral(DataOutputStream dataOutputStream, long start, long end) throws IOException {
+        if (start == end) {
+            return;
+        }
+        
+        flushCopy(dataOutputStream);
+        for (long position = start; position < end; position += MAX_LITERAL_LENGTH) {
+            int length = (int) Math.min(MAX_LITERAL_LENGTH, end - position);
+            dataOutputStream.writeByte(LITERAL);
+            dataOutputStream.writeInt(length);
+            dataOutputStream.write(buffer, (int) (position - bufferStart), length);
+            literalBytes += length;
+            numberOfInstructions++;
+        }
+    }
+    
+    private void addCopy(DataOutputStream dataOutputStream, int block) throws IOException {
+        if (pendingCopyBlock < 0 || block != pendingCopyBlock + pendingCopyCount) {
+            flushCopy(dataOutputStream);
+            pendingCopyBlock = block;
+        }
+        pendingCopyCount++;
+        copiedBytes += signatures.getBlockSize();
+    }
+    
+    private void flushCopy(DataOutputStream dataOutputStream) throws IOException {
+        if (pendingCopyBlock < 0) {
+            return;
+        }
+        
+        dataOutputStream.writeByte(COPY);
+        dataOutputStream.writeInt(pendingCopyBlock);
+        dataOutputStream.writeInt(pendingCopyCount);
+        numberOfInstructions++;
+        pendingCopyBlock = -1;
+        pendingCopyCount = 0;
+    }
+}
\ No newline at end of file
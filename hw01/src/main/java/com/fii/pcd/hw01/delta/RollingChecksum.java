@@ -0,0 +1,35 @@
+package com.fii.pcd.hw01.delta;
+
+// The weak checksum of rsync: two 16 bit sums over a block, which slide by one byte in constant time.
+class RollingChecksum {
+    private int blockLength;
+    private int a;
+    private int b;
+    
+    void reset(byte[] data, int offset, int length) {
+        blockLength = length;
+        a = 0;
+        b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += (length - i) * (data[offset + i] & 0xff);
+        }
+    }
+    
+    // Slides the block by one byte, the first byte of the block goes out and the next byte after it comes in.
+    void roll(byte outByte, byte inByte) {
+        a += (inByte & 0xff) - (outByte & 0xff);
+        b += a - blockLength * (outByte & 0xff);
+    }
+    
+    int getValue() {
+        return (a & 0xffff) | (b << 16);
+    }
+    
+    static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, offset, length);
+        
+        return checksum.getValue();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,50 @@
+package com.fii.pcd.hw01.integrity;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+import lombok.experimental.UtilityClass;
+
+// The checksums of the file transfers: a CRC32C for every chunk or datagram, which catches a corruption where it
+// happens so only that chunk is sent again, and a SHA-256 of the whole file, which checks it end to end.
+@UtilityClass
+public class Checksums {
+    public static final String FILE_DIGEST_ALGORITHM = "SHA-256";
+    public static final int FILE_DIGEST_LENGTH = 32;
+    private static final int FILE_READ_BUFFER_SIZE = 1024 * 1024;
+    
+    public static int crc32c(byte[] data, int offset, int length) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(data, offset, length);
+        
+        return (int) crc32c.getValue();
+    }
+    
+    public static MessageDigest newFileDigest() {
+        try {
+            return MessageDigest.getInstance(FILE_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("The digest algorithm = " + FILE_DIGEST_ALGORITHM + " is not supported.", e);
+        }
+    }
+    
+    // Adds the given range of the file to the digest, for the bytes that were not hashed as they were transferred.
+    public static void updateFromFile(MessageDigest digest, FileChannel fileChannel, long offset, long length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(FILE_READ_BUFFER_SIZE, Math.max(length, 1)));
+        long position = offset;
+        while (position < offset + length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), offset + length - position));
+            int readBytes = fileChannel.read(buffer, position);
+            if (readBytes == -1) {
+                throw new EOFException("The file ended at " + position + " bytes of " + (offset + length));
+            }
+            digest.update(buffer.array(), 0, readBytes);
+            position += readBytes;
+        }
+    }
+}
\ No newline at end of file
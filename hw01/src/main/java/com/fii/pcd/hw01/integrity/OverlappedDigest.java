@@ -0,0 +1,55 @@
+package com.fii.pcd.hw01.integrity;
+
+import java.io.Closeable;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+// Hashes the bytes of a file on a thread of its own, so the digest of the received chunks overlaps with the socket
+// and disk I/O of the next ones. The bytes are copied when they are queued, so the caller can reuse its buffer.
+public class OverlappedDigest implements Closeable {
+    private static final byte[] DIGEST_REQUEST = new byte[0];
+    
+    private final BlockingQueue<byte[]> pendingBytes;
+    private final BlockingQueue<byte[]> digests = new SynchronousQueue<>();
+    private final Thread digestThread;
+    
+    public OverlappedDigest(int queueCapacity) {
+        this.pendingBytes = new ArrayBlockingQueue<>(queueCapacity);
+        MessageDigest digest = Checksums.newFileDigest();
+        this.digestThread = new Thread(() -> {
+            try {
+                while (true) {
+                    byte[] bytes = pendingBytes.take();
+                    if (bytes == DIGEST_REQUEST) {
+                        digests.put(digest.digest());
+                    } else {
+                        digest.update(bytes);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The digest was closed.
+            }
+        }, "file-digest");
+        this.digestThread.setDaemon(true);
+        this.digestThread.start();
+    }
+    
+    public void update(byte[] data, int offset, int length) throws InterruptedException {
+        pendingBytes.put(Arrays.copyOfRange(data, offset, offset + length));
+    }
+    
+    // Waits for the queued bytes to be hashed and returns their digest. The next bytes start a new digest.
+    public byte[] digest() throws InterruptedException {
+        pendingBytes.put(DIGEST_REQUEST);
+        
+        return digests.take();
+    }
+    
+    @Override
+    public void close() {
+        digestThread.interrupt();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package com.fii.pcd.hw01.loadgen;
+
+import java.util.SplittableRandom;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+// The sizes of the files sent by the load generator, parsed from one of:
+//   SIZE                  every file has the same size,
+//   uniform:MIN-MAX       the sizes are spread evenly between MIN and MAX,
+//   lognormal:MEDIAN,SIGMA the logarithms of the sizes are normal, as for the files of a real file system, and the
+//                         sizes are kept within 3 sigmas of the median.
+@AllArgsConstructor
+@Getter
+@ToString
+public class FileSizeDistribution {
+    private static final double MAX_SIGMAS = 3;
+    
+    private final Type type;
+    private final long minSize;
+    private final long maxSize;
+    // The median of the lognormal distribution and the standard deviation of its logarithm.
+    private final double median;
+    private final double sigma;
+    
+    public static FileSizeDistribution parse(String spec) {
+        String[] typeAndParams = spec.split(":", 2);
+        if (typeAndParams.length == 1) {
+            long size = Long.parseLong(spec);
+            if (size < 0) {
+                throw new IllegalArgumentException("Invalid file size = " + spec);
+            }
+            return new FileSizeDistribution(Type.FIXED, size, size, size, 0);
+        }
+        
+        String[] params = typeAndParams[1].split("[-,]");
+        if (params.length != 2) {
+            throw new IllegalArgumentException("Invalid file size distribution = " + spec);
+        }
+        switch (Type.valueOf(typeAndParams[0].toUpperCase())) {
+            case UNIFORM:
+                long minSize = Long.parseLong(params[0]);
+                long maxSize = Long.parseLong(params[1]);
+                if (minSize < 0 || minSize > maxSize) {
+                    throw new IllegalArgumentException("Invalid file size distribution = " + spec);
+                }
+                return new FileSizeDistribution(Type.UNIFORM, minSize, maxSize, (minSize + maxSize) / 2.0, 0);
+            case LOGNORMAL:
+                double median = Double.parseDouble(params[0]);
+                double sigma = Double.parseDouble(params[1]);
+                if (!Double.isFinite(median) || median <= 0 || !Double.isFinite(sigma) || sigma < 0) {
+                    throw new IllegalArgumentException("Invalid file size distribution = " + spec);
+                }
+                return new FileSizeDistribution(Type.LOGNORMAL,
+                    Math.max(1, Math.round(median * Math.exp(-MAX_SIGMAS * sigma))),
+                    Math.round(median * Math.exp(MAX_SIGMAS * sigma)), median, sigma);
+            default:
+                throw new IllegalArgumentException("Invalid file size distribution = " + spec);
+        }
+    }
+    
+    public long next(SplittableRandom random) {
+        switch (type) {
+            case FIXED:
+                return minSize;
+            case UNIFORM:
+                return minSize + random.nextLong(maxSize - minSize + 1);
+            case LOGNORMAL:
+                // The Box-Muller transform of two uniform numbers gives a normal one.
+                double normal = Math.sqrt(-2 * Math.log(1 - random.nextDouble())) *
+                    Math.cos(2 * Math.PI * random.nextDouble());
+                long size = Math.round(median * Math.exp(sigma * normal));
+                return Math.max(minSize, Math.min(maxSize, size));
+            default:
+                throw new IllegalStateException("Invalid file size distribution type = " + type);
+        }
+    }
+    
+    public static enum Type {
+        FIXED,
+        UNIFORM,
+        LOGNORMAL
+    }
+}
\ No newline at end of file
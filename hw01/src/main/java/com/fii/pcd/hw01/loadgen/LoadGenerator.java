@@ -0,0 +1,212 @@
+package com.fii.pcd.hw01.loadgen;
+
+import com.fii.pcd.hw01.metrics.Histogram;
+import com.fii.pcd.hw01.tcp.VirtualThreadServerEngine;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+// Runs many simulated clients against a TCP Server or an UDP Server. The transfers arrive at random at the given
+// mean rate (a Poisson process, seeded) for the given duration, and each one is sent by a free client, on a virtual
+// thread when the Java runtime has them. When all the clients are busy, the arrivals wait for a free one, and that
+// wait would be missing from latencies measured from the start of the sends (the coordinated omission). So every
+// transfer has two latencies: the service time, from the start of its send, and the response time, from its
+// scheduled arrival, which is the corrected one.
+@RequiredArgsConstructor
+@Slf4j
+public class LoadGenerator {
+    private static final double[] REPORTED_PERCENTILES = { 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 0.9999, 1 };
+    // The loggers of the clients, kept so their level holds while the load runs. Every transfer would log its start
+    // and its end, and the report sums them up instead. Their levels are restored once the load ends.
+    private static final Logger[] CLIENT_LOGGERS = {
+        Logger.getLogger("com.fii.pcd.hw01.tcp"), Logger.getLogger("com.fii.pcd.hw01.udp")
+    };
+    
+    private final int clientCount;
+    // The mean number of transfers started per second.
+    private final double arrivalRate;
+    private final Duration duration;
+    private final FileSizeDistribution fileSizes;
+    // The files up to this size get latencies of their own, 0 for none, so the small transfers of a mixed load are
+    // not hidden by the large ones.
+    private final long smallFileSize;
+    private final long seed;
+    // Sends the file at the given path and returns true when the server received it.
+    private final Predicate<String> transfer;
+    private final Histogram serviceTimeMicros = new Histogram();
+    private final Histogram responseTimeMicros = new Histogram();
+    private final Histogram smallServiceTimeMicros = new Histogram();
+    private final Histogram smallResponseTimeMicros = new Histogram();
+    private final LongAdder transferredBytes = new LongAdder();
+    private final LongAdder failedTransfers = new LongAdder();
+    
+    public void run() {
+        Path directory = null;
+        ExecutorService executor = null;
+        Level[] clientLogLevels = new Level[CLIENT_LOGGERS.length];
+        try {
+            log.info("The load generator is starting with clients = {} and with arrival rate = {} per second and " +
+                "with duration = {} and with file sizes = {} and with small file size = {} and with seed = {}",
+                clientCount, arrivalRate, duration, fileSizes, smallFileSize, seed);
+            directory = Files.createTempDirectory("loadgen");
+            SyntheticFiles files = new SyntheticFiles(directory);
+            files.generate(fileSizes, seed);
+            for (int i = 0; i < CLIENT_LOGGERS.length; i++) {
+                clientLogLevels[i] = CLIENT_LOGGERS[i].getLevel();
+                CLIENT_LOGGERS[i].setLevel(Level.WARNING);
+            }
+            
+            executor = newExecutor();
+            BlockingQueue<Integer> freeClients = new ArrayBlockingQueue<>(clientCount);
+            for (int i = 0; i < clientCount; i++) {
+                freeClients.add(i);
+            }
+            
+            SplittableRandom random = new SplittableRandom(seed);
+            long startTime = System.nanoTime();
+            long endTime = startTime + duration.toNanos();
+            long arrivalTime = startTime;
+            long numberOfTransfers = 0;
+            while ((arrivalTime += nextInterarrivalNanos(random)) < endTime) {
+                long now;
+                while ((now = System.nanoTime()) < arrivalTime) {
+                    LockSupport.parkNanos(arrivalTime - now);
+                }
+                // Waits for a free client when all of them are busy, the scheduled arrival time keeps the wait.
+                int client = freeClients.take();
+                long size = SyntheticFiles.classSize(fileSizes.next(random));
+                Path file = files.linkFor(client, size);
+                long scheduledTime = arrivalTime;
+                executor.execute(() -> {
+                    try {
+                        send(file, size, scheduledTime);
+                    } finally {
+                        freeClients.add(client);
+                    }
+                });
+                numberOfTransfers++;
+            }
+            // Wait for the transfers in progress, their clients are then all free.
+            for (int i = 0; i < clientCount; i++) {
+                freeClients.take();
+            }
+            
+            report(numberOfTransfers, System.nanoTime() - startTime);
+        } catch (IOException e) {
+            log.error("The load generator cannot write the files to send.", e);
+        } catch (InterruptedException e) {
+            log.error("The load generator was interrupted.", e);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            for (int i = 0; i < CLIENT_LOGGERS.length; i++) {
+                if (clientLogLevels[i] != null) {
+                    CLIENT_LOGGERS[i].setLevel(clientLogLevels[i]);
+                }
+            }
+            if (directory != null) {
+                deleteDirectory(directory);
+            }
+        }
+    }
+    
+    private void send(Path file, long size, long scheduledTime) {
+        long startTime = System.nanoTime();
+        boolean received;
+        try {
+            received = transfer.test(file.toString());
+        } catch (RuntimeException e) {
+            log.error("The transfer of the file = {} failed.", file, e);
+            received = false;
+        }
+        long endTime = System.nanoTime();
+        
+        if (!received) {
+            failedTransfers.increment();
+            return;
+        }
+        serviceTimeMicros.record((endTime - startTime) / 1000);
+        responseTimeMicros.record((endTime - scheduledTime) / 1000);
+        if (size <= smallFileSize) {
+            smallServiceTimeMicros.record((endTime - startTime) / 1000);
+            smallResponseTimeMicros.record((endTime - scheduledTime) / 1000);
+        }
+        transferredBytes.add(size);
+    }
+    
+    private long nextInterarrivalNanos(SplittableRandom random) {
+        return (long) (-Math.log(1 - random.nextDouble()) / arrivalRate * 1e9);
+    }
+    
+    private void report(long numberOfTransfers, long elapsedNanos) {
+        Histogram.Snapshot serviceTimes = serviceTimeMicros.snapshot();
+        Histogram.Snapshot responseTimes = responseTimeMicros.snapshot();
+        double elapsedSeconds = elapsedNanos / 1e9;
+        log.info("The load generator completed with execution time = {} and " +
+            "with total number of transfers = {} and " +
+            "with total number of failed transfers = {} and " +
+            "with total number of bytes = {} and " +
+            "with throughput = {} MB/s and with {} transfers/s",
+            Duration.ofNanos(elapsedNanos), numberOfTransfers, failedTransfers.sum(), transferredBytes.sum(),
+            String.format("%.2f", transferredBytes.sum() / elapsedSeconds / 1e6),
+            String.format("%.2f", serviceTimes.getCount() / elapsedSeconds));
+        
+        log.info("The latencies of the successful transfers, the response time corrected for the coordinated " +
+            "omission:{}", latencyTable(serviceTimes, responseTimes));
+        if (smallFileSize > 0) {
+            Histogram.Snapshot smallServiceTimes = smallServiceTimeMicros.snapshot();
+            log.info("The latencies of the {} successful transfers of the files up to {} bytes:{}",
+                smallServiceTimes.getCount(), smallFileSize,
+                latencyTable(smallServiceTimes, smallResponseTimeMicros.snapshot()));
+        }
+    }
+    
+    private static String latencyTable(Histogram.Snapshot serviceTimes, Histogram.Snapshot responseTimes) {
+        StringBuilder table = new StringBuilder(String.format("%n%12s %18s %18s%n", "percentile", "service time ms",
+            "response time ms"));
+        for (double percentile : REPORTED_PERCENTILES) {
+            table.append(String.format("%12s %18.3f %18.3f%n", percentile * 100,
+                serviceTimes.getPercentile(percentile) / 1000.0, responseTimes.getPercentile(percentile) / 1000.0));
+        }
+        table.append(String.format("%12s %18.3f %18.3f", "mean", serviceTimes.getMean() / 1000.0,
+            responseTimes.getMean() / 1000.0));
+        
+        return table.toString();
+    }
+    
+    private ExecutorService newExecutor() {
+        ExecutorService executor = VirtualThreadServerEngine.newVirtualThreadPerTaskExecutor();
+        if (executor != null) {
+            return executor;
+        }
+        
+        log.warn("Virtual threads are not available on Java {}, so the clients run on platform threads.",
+            Runtime.version().feature());
+        return Executors.newFixedThreadPool(clientCount);
+    }
+    
+    private static void deleteDirectory(Path directory) {
+        try (var paths = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Files.deleteIfExists(path);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            log.warn("The files of the load generator cannot be deleted from = {}", directory, e);
+        }
+    }
+}
\ No newline at end of file
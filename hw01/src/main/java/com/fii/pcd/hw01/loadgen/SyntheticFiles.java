@@ -0,0 +1,89 @@
+package com.fii.pcd.hw01.loadgen;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import lombok.extern.slf4j.Slf4j;
+
+// The files sent by the load generator, generated before the load starts. The sizes are rounded to size classes 19%
+// apart (4 per doubling), so a few files cover a whole distribution. Every simulated client sends a file through a
+// symbolic link of its own, since the servers write the files under the name they are sent with. The files are
+// read again and again, so they stay in the page cache and the disk of the load generator is not the bottleneck.
+@Slf4j
+class SyntheticFiles {
+    private static final int CLASSES_PER_DOUBLING = 4;
+    private static final int BLOCK_LENGTH = 1024 * 1024;
+    
+    private final Path directory;
+    
+    SyntheticFiles(Path directory) {
+        this.directory = directory;
+    }
+    
+    // Writes the file of every size class of the distribution.
+    void generate(FileSizeDistribution fileSizes, long seed) throws IOException {
+        byte[] block = new byte[BLOCK_LENGTH];
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < BLOCK_LENGTH; i += Long.BYTES) {
+            long value = random.nextLong();
+            for (int j = 0; j < Long.BYTES; j++) {
+                block[i + j] = (byte) (value >>> (j * 8));
+            }
+        }
+        
+        List<Long> sizes = new ArrayList<>();
+        long totalSize = 0;
+        for (int sizeClass = sizeClass(fileSizes.getMinSize()); sizeClass <= sizeClass(fileSizes.getMaxSize());
+                sizeClass++) {
+            long size = classSize(sizeClass);
+            if (!sizes.contains(size)) {
+                sizes.add(size);
+                totalSize += size;
+                writeFile(dataFile(size), size, block);
+            }
+        }
+        log.info("The load generator wrote {} files with {} bytes in = {}", sizes.size(), totalSize, directory);
+    }
+    
+    // Returns the path of the link the client sends the file of the size class of the given size through.
+    Path linkFor(int client, long size) throws IOException {
+        long classSize = classSize(sizeClass(size));
+        Path link = directory.resolve("loadgen-" + client + "-" + classSize + ".bin");
+        try {
+            Files.createSymbolicLink(link, dataFile(classSize).getFileName());
+        } catch (FileAlreadyExistsException e) {
+            // The client already sent a file of this size class.
+        }
+        
+        return link;
+    }
+    
+    static long classSize(long size) {
+        return classSize(sizeClass(size));
+    }
+    
+    private Path dataFile(long size) {
+        return directory.resolve("data-" + size + ".bin");
+    }
+    
+    private static int sizeClass(long size) {
+        return (int) Math.round(CLASSES_PER_DOUBLING * Math.log(Math.max(1, size)) / Math.log(2));
+    }
+    
+    private static long classSize(int sizeClass) {
+        return Math.round(Math.pow(2, (double) sizeClass / CLASSES_PER_DOUBLING));
+    }
+    
+    private static void writeFile(Path file, long size, byte[] block) throws IOException {
+        try (OutputStream outputStream = Files.newOutputStream(file)) {
+            for (long position = 0; position < size; position += block.length) {
+                outputStream.write(block, 0, (int) Math.min(block.length, size - position));
+            }
+        }
+    }
+}
\ No newline at end of file
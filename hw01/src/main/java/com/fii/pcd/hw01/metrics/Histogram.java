@@ -0,0 +1,109 @@
+package com.fii.pcd.hw01.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// A histogram of non negative values with buckets of about 1.6% relative width, as in HdrHistogram: the values below
+// 128 have a bucket each, and every next power of two is split in 64 buckets. The buckets are striped over several
+// arrays picked by thread, so the threads recording at once don't contend on the same cache lines, and a value is
+// recorded without a lock.
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF_SUB_BUCKET_COUNT = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKET_COUNT;
+    
+    private final AtomicLongArray[] stripes;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    
+    public Histogram() {
+        int stripeCount = Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors()));
+        stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(BUCKET_COUNT);
+        }
+    }
+    
+    public void record(long value) {
+        long clampedValue = Math.max(0, value);
+        AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        stripe.incrementAndGet(bucketIndex(clampedValue));
+        count.increment();
+        sum.add(clampedValue);
+        max.accumulate(clampedValue);
+    }
+    
+    // The counts are read while the values are recorded, so a snapshot can be off by the values recorded meanwhile.
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long totalCount = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                long bucketCount = stripe.get(i);
+                counts[i] += bucketCount;
+                totalCount += bucketCount;
+            }
+        }
+        
+        return new Snapshot(counts, totalCount, sum.sum(), max.get());
+    }
+    
+    static int bucketIndex(long value) {
+        // The number of low bits dropped, so the value keeps its SUB_BUCKET_BITS highest bits.
+        int shift = Math.max(0, Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * HALF_SUB_BUCKET_COUNT + (int) (value >>> shift);
+    }
+    
+    // The highest value that falls in the bucket.
+    static long bucketValue(int index) {
+        int shift = Math.max(0, index / HALF_SUB_BUCKET_COUNT - 1);
+        long subBucket = index - shift * HALF_SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+    
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+        
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+        
+        public long getCount() {
+            return count;
+        }
+        
+        public long getSum() {
+            return sum;
+        }
+        
+        public long getMax() {
+            return max;
+        }
+        
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+        
+        // Returns the value below which the given fraction of the values falls, within the width of its bucket.
+        public long getPercentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seenCount = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seenCount += counts[i];
+                if (seenCount >= rank && seenCount > 0) {
+                    return Math.min(bucketValue(i), max);
+                }
+            }
+            
+            return max;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,8 @@
+package com.fii.pcd.hw01.metrics;
+
+// The formats the metrics can be dumped to a file in.
+public enum MetricsFormat {
+    JSON,
+    // The text exposition format of Prometheus, as read by the textfile collector of the node exporter.
+    PROMETHEUS
+}
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.fii.pcd.hw01.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+// Exposes every value of the registry as a read only attribute, so the metrics registered after the start, by the
+// classes loaded later, show up as well.
+class MetricsMBean implements DynamicMBean {
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = MetricsRegistry.sample().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException("Invalid metric = " + attribute);
+        }
+        
+        return value;
+    }
+    
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = MetricsRegistry.sample();
+        AttributeList attributeList = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) {
+                attributeList.add(new Attribute(attribute, value));
+            }
+        }
+        
+        return attributeList;
+    }
+    
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributeInfos = new ArrayList<>();
+        for (Map.Entry<String, Number> value : MetricsRegistry.sample().entrySet()) {
+            attributeInfos.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                value.getKey(), true, false, false));
+        }
+        
+        return new MBeanInfo(getClass().getName(), "The metrics of the file transfers.",
+            attributeInfos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+    
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The metric = " + attribute.getName() + " is read only.");
+    }
+    
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+    
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        // The MBean has no operations, and the JMX clients expect an unknown one to be reported this way.
+        throw new ReflectionException(new NoSuchMethodException(actionName), "Invalid operation = " + actionName);
+    }
+}
\ No newline at end of file
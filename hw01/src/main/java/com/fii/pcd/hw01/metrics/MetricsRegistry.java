@@ -0,0 +1,199 @@
+package com.fii.pcd.hw01.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+
+// The metrics of the file transfers of this process, named as in Prometheus. The classes that record a metric look
+// it up once, into a static field, so the hot path only adds to a LongAdder or records in a Histogram, without
+// locks. The metrics are read over JMX and, when asked, dumped to a file at a fixed interval.
+@UtilityClass
+@Slf4j
+public class MetricsRegistry {
+    private static final String OBJECT_NAME = "com.fii.pcd.hw01:type=Metrics";
+    private static final long RATE_INTERVAL_MILLIS = 1000;
+    
+    private static final Map<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Meter> METERS = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService scheduler;
+    
+    // A count that only grows, named with the _total suffix.
+    public static LongAdder counter(String name, String help) {
+        return ((CounterMetric) METRICS.computeIfAbsent(name, key -> new CounterMetric(help, new LongAdder(), true)))
+            .getCounter();
+    }
+    
+    // A counter that is also reported per second, over the last second, as name_per_second.
+    public static LongAdder meter(String name, String help) {
+        Meter meter = METERS.computeIfAbsent(name, key -> new Meter(new LongAdder()));
+        METRICS.putIfAbsent(name + "_total", new CounterMetric(help, meter.counter, true));
+        METRICS.putIfAbsent(name + "_per_second", new GaugeMetric(help + " per second",
+            () -> Math.round(meter.rate)));
+        return meter.counter;
+    }
+    
+    // A count that goes up and down, such as the transfers in progress.
+    public static LongAdder upDownCounter(String name, String help) {
+        return ((CounterMetric) METRICS.computeIfAbsent(name, key -> new CounterMetric(help, new LongAdder(), false)))
+            .getCounter();
+    }
+    
+    // A value read when the metrics are read, which replaces the previous gauge of the same name.
+    public static void gauge(String name, String help, LongSupplier value) {
+        METRICS.put(name, new GaugeMetric(help, value));
+    }
+    
+    public static Histogram histogram(String name, String help) {
+        return ((HistogramMetric) METRICS.computeIfAbsent(name, key -> new HistogramMetric(help, new Histogram())))
+            .getHistogram();
+    }
+    
+    // Registers the metrics with JMX and starts computing the rates, and dumping the metrics to the given file unless
+    // it is null. Later calls are ignored.
+    public static synchronized void start(Path dumpFile, MetricsFormat format, long dumpIntervalMillis) {
+        if (scheduler != null) {
+            return;
+        }
+        
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            mBeanServer.registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.warn("The metrics cannot be registered with JMX as = {}", OBJECT_NAME, e);
+        }
+        
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(MetricsRegistry::updateRates, RATE_INTERVAL_MILLIS, RATE_INTERVAL_MILLIS,
+            TimeUnit.MILLISECONDS);
+        if (dumpFile != null) {
+            MetricsReporter reporter = new MetricsReporter(dumpFile, format);
+            scheduler.scheduleAtFixedRate(reporter::dump, dumpIntervalMillis, dumpIntervalMillis,
+                TimeUnit.MILLISECONDS);
+            // The last values are dumped as well when the process exits.
+            Runtime.getRuntime().addShutdownHook(new Thread(reporter::dump, "metrics-dump"));
+            log.info("The metrics are dumped to = {} as {} every {} ms", dumpFile, format, dumpIntervalMillis);
+        }
+        log.info("The metrics are registered with JMX as = {}", OBJECT_NAME);
+    }
+    
+    // Returns the metrics by name, in name order.
+    static Map<String, Metric> getMetrics() {
+        return METRICS;
+    }
+    
+    // Returns the value of every metric, the histograms as several values named after their statistics.
+    static Map<String, Number> sample() {
+        Map<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Metric> metric : METRICS.entrySet()) {
+            metric.getValue().sample(metric.getKey(), values);
+        }
+        
+        return values;
+    }
+    
+    private static void updateRates() {
+        long now = System.nanoTime();
+        for (Meter meter : METERS.values()) {
+            long count = meter.counter.sum();
+            if (meter.lastTime != 0) {
+                meter.rate = (count - meter.lastCount) * 1e9 / (now - meter.lastTime);
+            }
+            meter.lastCount = count;
+            meter.lastTime = now;
+        }
+    }
+    
+    @RequiredArgsConstructor
+    private static class Meter {
+        private final LongAdder counter;
+        // Only updated by the scheduler thread.
+        private long lastCount;
+        private long lastTime;
+        private volatile double rate;
+    }
+    
+    abstract static class Metric {
+        @Getter
+        private final String help;
+        
+        Metric(String help) {
+            this.help = help;
+        }
+        
+        abstract void sample(String name, Map<String, Number> values);
+    }
+    
+    @Getter
+    static class CounterMetric extends Metric {
+        private final LongAdder counter;
+        // False for a count that goes up and down, which is a gauge in Prometheus.
+        private final boolean monotonic;
+        
+        CounterMetric(String help, LongAdder counter, boolean monotonic) {
+            super(help);
+            this.counter = counter;
+            this.monotonic = monotonic;
+        }
+        
+        @Override
+        void sample(String name, Map<String, Number> values) {
+            values.put(name, counter.sum());
+        }
+    }
+    
+    @Getter
+    static class GaugeMetric extends Metric {
+        private final LongSupplier value;
+        
+        GaugeMetric(String help, LongSupplier value) {
+            super(help);
+            this.value = value;
+        }
+        
+        @Override
+        void sample(String name, Map<String, Number> values) {
+            values.put(name, value.getAsLong());
+        }
+    }
+    
+    @Getter
+    static class HistogramMetric extends Metric {
+        private final Histogram histogram;
+        
+        HistogramMetric(String help, Histogram histogram) {
+            super(help);
+            this.histogram = histogram;
+        }
+        
+        @Override
+        void sample(String name, Map<String, Number> values) {
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            values.put(name + "_count", snapshot.getCount());
+            values.put(name + "_mean", snapshot.getMean());
+            values.put(name + "_p50", snapshot.getPercentile(0.5));
+            values.put(name + "_p90", snapshot.getPercentile(0.9));
+            values.put(name + "_p99", snapshot.getPercentile(0.99));
+            values.put(name + "_p999", snapshot.getPercentile(0.999));
+            values.put(name + "_max", snapshot.getMax());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,74 @@
+package com.fii.pcd.hw01.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+// Dumps the metrics to a file, written aside and then moved over the previous dump, so a reader never sees a
+// partial one.
+@RequiredArgsConstructor
+@Slf4j
+class MetricsReporter {
+    private final Path dumpFile;
+    private final MetricsFormat format;
+    
+    synchronized void dump() {
+        Path newDumpFile = dumpFile.resolveSibling(dumpFile.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(newDumpFile)) {
+                switch (format) {
+                    case JSON:
+                        writeJson(writer);
+                        break;
+                    case PROMETHEUS:
+                        writePrometheus(writer);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid metrics format!");
+                }
+            }
+            Files.move(newDumpFile, dumpFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("The metrics cannot be dumped to = {}", dumpFile, e);
+        }
+    }
+    
+    // A flat object of the values, with the time of the dump.
+    private void writeJson(Writer writer) throws IOException {
+        writer.write("{\n  \"timestamp\": " + System.currentTimeMillis());
+        for (Map.Entry<String, Number> value : MetricsRegistry.sample().entrySet()) {
+            writer.write(",\n  \"" + value.getKey() + "\": " + value.getValue());
+        }
+        writer.write("\n}\n");
+    }
+    
+    // The counters and the gauges as such, and the histograms as summaries with their quantiles.
+    private void writePrometheus(Writer writer) throws IOException {
+        for (Map.Entry<String, MetricsRegistry.Metric> entry : MetricsRegistry.getMetrics().entrySet()) {
+            String name = entry.getKey();
+            MetricsRegistry.Metric metric = entry.getValue();
+            writer.write("# HELP " + name + " " + metric.getHelp() + "\n");
+            if (metric instanceof MetricsRegistry.CounterMetric) {
+                MetricsRegistry.CounterMetric counterMetric = (MetricsRegistry.CounterMetric) metric;
+                writer.write("# TYPE " + name + (counterMetric.isMonotonic() ? " counter\n" : " gauge\n"));
+                writer.write(name + " " + counterMetric.getCounter().sum() + "\n");
+            } else if (metric instanceof MetricsRegistry.GaugeMetric) {
+                writer.write("# TYPE " + name + " gauge\n");
+                writer.write(name + " " + ((MetricsRegistry.GaugeMetric) metric).getValue().getAsLong() + "\n");
+            } else {
+                Histogram.Snapshot snapshot = ((MetricsRegistry.HistogramMetric) metric).getHistogram().snapshot();
+                writer.write("# TYPE " + name + " summary\n");
+                for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999, 1 }) {
+                    writer.write(name + "{quantile=\"" + quantile + "\"} " + snapshot.getPercentile(quantile) + "\n");
+                }
+                writer.write(name + "_sum " + snapshot.getSum() + "\n");
+                writer.write(name + "_count " + snapshot.getCount() + "\n");
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+package com.fii.pcd.hw01.proxy;
+
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+// One direction of the link emulated by the UDP Proxy. It decides, for every datagram sent over it, whether the
+// datagram is lost and when its copies are delivered. It is used by the single thread of the UDP Proxy.
+class ImpairedLink {
+    private static final LongAdder RELAYED_DATAGRAMS = MetricsRegistry.counter("proxy_relayed_datagrams_total",
+        "The datagrams delivered by the UDP Proxy, the duplicates included.");
+    private static final LongAdder LOST_DATAGRAMS = MetricsRegistry.counter("proxy_lost_datagrams_total",
+        "The datagrams lost on purpose by the UDP Proxy.");
+    private static final LongAdder OVERFLOWED_DATAGRAMS = MetricsRegistry.counter("proxy_overflowed_datagrams_total",
+        "The datagrams dropped by the UDP Proxy because the queue of the bandwidth limited link was full.");
+    private static final LongAdder REORDERED_DATAGRAMS = MetricsRegistry.counter("proxy_reordered_datagrams_total",
+        "The datagrams held back by the UDP Proxy so the next ones overtake them.");
+    private static final LongAdder DUPLICATED_DATAGRAMS = MetricsRegistry.counter("proxy_duplicated_datagrams_total",
+        "The datagrams delivered twice by the UDP Proxy.");
+    private static final LongAdder OVERSIZED_DATAGRAMS = MetricsRegistry.counter("proxy_oversized_datagrams_total",
+        "The datagrams dropped by the UDP Proxy because they didn't fit in a packet of the link MTU.");
+    private static final int IPV4_UDP_HEADER_LENGTH = 20 + 8;
+    
+    private final ImpairmentOptions options;
+    private final SplittableRandom random;
+    // Whether the link is within a loss burst, the bad state of the Gilbert-Elliott model.
+    private boolean inBurst;
+    // The time the link is done sending the datagrams queued so far, when its bandwidth is limited.
+    private long linkFreeTime;
+    
+    ImpairedLink(ImpairmentOptions options, SplittableRandom random) {
+        this.options = options;
+        this.random = random;
+    }
+    
+    // Passes the delivery time of every copy of the datagram of the given length sent at the given time, none when
+    // it is lost.
+    void send(int length, long now, LongConsumer deliveries) {
+        if (options.getMtu() > 0 && length + IPV4_UDP_HEADER_LENGTH > options.getMtu()) {
+            OVERSIZED_DATAGRAMS.increment();
+            return;
+        }
+        if (isLost()) {
+            LOST_DATAGRAMS.increment();
+            return;
+        }
+        
+        long departureTime = now;
+        if (options.getBandwidth() > 0) {
+            linkFreeTime = Math.max(linkFreeTime, now);
+            long queuedBytes = (linkFreeTime - now) * options.getBandwidth() / 1_000_000_000L;
+            if (queuedBytes + length > options.getQueueSize()) {
+                OVERFLOWED_DATAGRAMS.increment();
+                return;
+            }
+            linkFreeTime += length * 1_000_000_000L / options.getBandwidth();
+            departureTime = linkFreeTime;
+        }
+        
+        deliveries.accept(departureTime + nextDelayNanos());
+        RELAYED_DATAGRAMS.increment();
+        if (options.getDuplicateRate() > 0 && random.nextDouble() < options.getDuplicateRate()) {
+            deliveries.accept(departureTime + nextDelayNanos());
+            RELAYED_DATAGRAMS.increment();
+            DUPLICATED_DATAGRAMS.increment();
+        }
+    }
+    
+    private boolean isLost() {
+        if (options.getBurstRate() > 0) {
+            if (inBurst) {
+                inBurst = random.nextDouble() >= 1 / options.getBurstLength();
+            } else {
+                inBurst = random.nextDouble() < options.getBurstRate();
+            }
+        }
+        
+        double lossRate = inBurst ? options.getBurstLossRate() : options.getLossRate();
+        return lossRate > 0 && random.nextDouble() < lossRate;
+    }
+    
+    private long nextDelayNanos() {
+        long delayMicros = options.getDelayMicros();
+        if (options.getJitterMicros() > 0) {
+            delayMicros += random.nextLong(-options.getJitterMicros(), options.getJitterMicros() + 1);
+        }
+        if (options.getReorderRate() > 0 && random.nextDouble() < options.getReorderRate()) {
+            delayMicros += options.getReorderDelayMicros();
+            REORDERED_DATAGRAMS.increment();
+        }
+        
+        return Math.max(0, delayMicros) * 1000;
+    }
+}
\ No newline at end of file
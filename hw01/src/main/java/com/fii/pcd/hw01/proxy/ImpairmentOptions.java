@@ -0,0 +1,36 @@
+package com.fii.pcd.hw01.proxy;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+// How the UDP Proxy impairs the datagrams it relays, the same in both directions. The defaults impair nothing.
+@AllArgsConstructor
+@Getter
+@ToString
+public class ImpairmentOptions {
+    // The probability to lose a datagram outside of the loss bursts.
+    private final double lossRate;
+    // The Gilbert-Elliott model of the bursty loss: the probability to enter a burst with each datagram, the mean
+    // number of datagrams a burst lasts, and the probability to lose a datagram within a burst.
+    private final double burstRate;
+    private final double burstLength;
+    private final double burstLossRate;
+    // Every datagram is delayed by the delay plus a uniform jitter in [-jitter, jitter], so a jitter larger than the
+    // gap between two datagrams reorders them too.
+    private final long delayMicros;
+    private final long jitterMicros;
+    // The probability to hold a datagram back for the reorder delay more, so the datagrams after it overtake it.
+    private final double reorderRate;
+    private final long reorderDelayMicros;
+    private final double duplicateRate;
+    // The bandwidth of the link in bytes per second, 0 for an unlimited one. The datagrams wait in a queue of the
+    // given size for their turn on the link, and are dropped when it is full.
+    private final long bandwidth;
+    private final int queueSize;
+    // The MTU of the link, 0 for an unlimited one. The datagrams that don't fit in an IPv4 packet of this size are
+    // dropped, as a router drops the packets it cannot forward without fragmenting them.
+    private final int mtu;
+    // The seed of the impairments, so a run with the same datagrams impairs them the same way.
+    private final long seed;
+}
\ No newline at end of file
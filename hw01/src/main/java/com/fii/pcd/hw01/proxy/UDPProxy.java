@@ -0,0 +1,236 @@
+package com.fii.pcd.hw01.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+// Relays the datagrams between UDP Clients and an UDP Server over an emulated link, which loses, delays, reorders
+// and duplicates them and limits their bandwidth as the impairment options ask. Every UDP Client gets its own socket
+// towards the UDP Server, so the UDP Server still tells the clients apart. All the work is done on a single thread,
+// which delivers the delayed datagrams when they are due, so the impairments depend only on the seed and on the
+// order the datagrams arrive in.
+@RequiredArgsConstructor
+@Slf4j
+public class UDPProxy {
+    // A client without datagrams in either direction for this long is forgotten and its socket closed.
+    private static final long SESSION_IDLE_TIMEOUT_NANOS = 60_000_000_000L;
+    // The datagrams received from one socket before the others get their turn.
+    private static final int MAX_RECEIVES_PER_SELECT = 64;
+    // Below this wait for the next delivery, the sockets are polled instead of waited for, a select sleeps at least
+    // a millisecond.
+    private static final long SPIN_WAIT_NANOS = 1_000_000L;
+    
+    private final int port;
+    private final String serverAddress;
+    private final int serverPort;
+    private final int messageSize;
+    private final ImpairmentOptions options;
+    private final Map<SocketAddress, Session> sessions = new HashMap<>();
+    // The datagrams in flight on the emulated link, by delivery time and then in the order they were sent.
+    private final PriorityQueue<DelayedDatagram> delayedDatagrams = new PriorityQueue<>();
+    private Selector selector;
+    private DatagramChannel clientChannel;
+    private InetSocketAddress serverSocketAddress;
+    private ImpairedLink upstreamLink;
+    private ImpairedLink downstreamLink;
+    private long sentDatagrams;
+    
+    public void start() {
+        try {
+            log.info("UDP Proxy is starting on port = {} with UDP Server = {}:{} and with message size = {} " +
+                "and with impairments = {}", port, serverAddress, serverPort, messageSize, options);
+            
+            serverSocketAddress = new InetSocketAddress(serverAddress, serverPort);
+            SplittableRandom random = new SplittableRandom(options.getSeed());
+            upstreamLink = new ImpairedLink(options, random.split());
+            downstreamLink = new ImpairedLink(options, random.split());
+            selector = Selector.open();
+            clientChannel = DatagramChannel.open();
+            clientChannel.bind(new InetSocketAddress(port));
+            clientChannel.configureBlocking(false);
+            clientChannel.register(selector, SelectionKey.OP_READ);
+            
+            log.info("UDP Proxy is waiting for client requests.");
+            relay();
+        } catch (Exception e) {
+            log.error("UDP Proxy failed to listen on port = {} or to relay the datagrams.", port, e);
+        } finally {
+            for (Session session : sessions.values()) {
+                session.close();
+            }
+            try {
+                if (clientChannel != null) {
+                    clientChannel.close();
+                }
+                if (selector != null) {
+                    selector.close();
+                }
+            } catch (IOException e) {
+                log.error("UDP Proxy socket cannot be closed.", e);
+            }
+        }
+    }
+    
+    private void relay() throws IOException {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(messageSize);
+        long nextExpirationTime = System.nanoTime() + 1_000_000_000L;
+        while (!Thread.currentThread().isInterrupted()) {
+            DelayedDatagram nextDatagram = delayedDatagrams.peek();
+            long waitNanos = nextDatagram == null ? 1_000_000_000L : nextDatagram.deliveryTime - System.nanoTime();
+            if (waitNanos < SPIN_WAIT_NANOS) {
+                selector.selectNow();
+            } else {
+                selector.select(waitNanos / 1_000_000L);
+            }
+            
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable()) {
+                    receive((DatagramChannel) key.channel(), (Session) key.attachment(), datagram);
+                }
+            }
+            
+            long now = System.nanoTime();
+            while ((nextDatagram = delayedDatagrams.peek()) != null && nextDatagram.deliveryTime <= now) {
+                delayedDatagrams.poll();
+                deliver(nextDatagram);
+            }
+            if (now >= nextExpirationTime) {
+                removeExpiredSessions(now);
+                nextExpirationTime = now + 1_000_000_000L;
+            }
+        }
+    }
+    
+    // The datagrams from the clients arrive on the listening socket, the ones from the UDP Server on the socket of
+    // their client.
+    private void receive(DatagramChannel channel, Session session, ByteBuffer datagram) throws IOException {
+        for (int i = 0; i < MAX_RECEIVES_PER_SELECT; i++) {
+            datagram.clear();
+            SocketAddress sourceAddress;
+            try {
+                sourceAddress = channel.receive(datagram);
+            } catch (IOException e) {
+                // The UDP Server port is not reachable yet, the datagrams of the client are lost as on a real link.
+                log.debug("UDP Proxy cannot receive from the UDP Server for the client = {}", session.clientAddress,
+                    e);
+                return;
+            }
+            if (sourceAddress == null) {
+                return;
+            }
+            datagram.flip();
+            
+            long now = System.nanoTime();
+            Session datagramSession = session != null ? session : getSession(sourceAddress);
+            datagramSession.lastActivityTime = now;
+            boolean upstream = session == null;
+            ByteBuffer copy = ByteBuffer.allocate(datagram.remaining()).put(datagram).flip();
+            (upstream ? upstreamLink : downstreamLink).send(copy.limit(), now, deliveryTime ->
+                delayedDatagrams.add(new DelayedDatagram(deliveryTime, sentDatagrams++, copy.duplicate(),
+                    datagramSession, upstream)));
+        }
+    }
+    
+    private void deliver(DelayedDatagram delayedDatagram) {
+        Session session = delayedDatagram.session;
+        if (!session.channel.isOpen()) {
+            return;
+        }
+        
+        try {
+            if (delayedDatagram.upstream) {
+                session.channel.write(delayedDatagram.data);
+            } else {
+                clientChannel.send(delayedDatagram.data, session.clientAddress);
+            }
+        } catch (IOException e) {
+            // Dropped, as a real link would when the other end is not listening.
+            log.debug("UDP Proxy cannot deliver a datagram of the client = {}", session.clientAddress, e);
+        }
+    }
+    
+    private Session getSession(SocketAddress clientAddress) throws IOException {
+        Session session = sessions.get(clientAddress);
+        if (session == null) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.connect(serverSocketAddress);
+            channel.configureBlocking(false);
+            session = new Session(clientAddress, channel);
+            channel.register(selector, SelectionKey.OP_READ, session);
+            sessions.put(clientAddress, session);
+            log.info("UDP Proxy relays the client = {} with the local address = {}", clientAddress,
+                channel.getLocalAddress());
+        }
+        
+        return session;
+    }
+    
+    private void removeExpiredSessions(long now) {
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (now - session.lastActivityTime > SESSION_IDLE_TIMEOUT_NANOS) {
+                iterator.remove();
+                session.close();
+                log.info("UDP Proxy stopped relaying the idle client = {}", session.clientAddress);
+            }
+        }
+    }
+    
+    private static class Session {
+        private final SocketAddress clientAddress;
+        // Connected to the UDP Server.
+        private final DatagramChannel channel;
+        private long lastActivityTime;
+        
+        Session(SocketAddress clientAddress, DatagramChannel channel) {
+            this.clientAddress = clientAddress;
+            this.channel = channel;
+        }
+        
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("UDP Proxy socket of the client = {} cannot be closed.", clientAddress, e);
+            }
+        }
+    }
+    
+    private static class DelayedDatagram implements Comparable<DelayedDatagram> {
+        private final long deliveryTime;
+        private final long sequence;
+        private final ByteBuffer data;
+        private final Session session;
+        // Sent by the client to the UDP Server.
+        private final boolean upstream;
+        
+        DelayedDatagram(long deliveryTime, long sequence, ByteBuffer data, Session session, boolean upstream) {
+            this.deliveryTime = deliveryTime;
+            this.sequence = sequence;
+            this.data = data;
+            this.session = session;
+            this.upstream = upstream;
+        }
+        
+        @Override
+        public int compareTo(DelayedDatagram other) {
+            int byTime = Long.compare(deliveryTime, other.deliveryTime);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,305 @@
+package com.fii.pcd.hw01.storage;
+
+import com.fii.pcd.hw01.metrics.Histogram;
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+// Writes a received file off the network thread. The network thread copies the received bytes into large buffers,
+// which coalesce the consecutive writes into sequential I/Os, and queues the filled ones for a writer thread. The
+// buffers of a file are written in order, by one writer thread at a time. In memory mapped mode, the bytes are
+// copied instead straight into the page cache at their position, which suits the writes out of order.
+// A writer is used by one network thread at a time. A network thread that must not block writes no more than the
+// writable bytes, flushes with tryFlush, and waits for a released buffer with onBufferReleased instead.
+public class AsyncFileWriter implements Closeable {
+    // The part of the file mapped at once in memory mapped mode.
+    private static final long MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+    // The bytes written between two forces with the batched durability policy.
+    private static final long FORCE_INTERVAL_BYTES = 64 * 1024 * 1024;
+    private static final LongAdder WRITTEN_BYTES = MetricsRegistry.meter("disk_written_bytes",
+        "The bytes of the received files written to the disk, or copied to the mapped regions.");
+    private static final Histogram WRITE_MICROS = MetricsRegistry.histogram("disk_write_micros",
+        "The time to write a buffer of a received file, forces included, in microseconds.");
+    
+    private final FileChannel fileChannel;
+    private final long fileSize;
+    private final DurabilityPolicy durabilityPolicy;
+    private final boolean memoryMapped;
+    private final Executor writers;
+    private final int bufferSize;
+    private final int bufferCount;
+    // The buffers not in use, put back by the writer thread once written. They are allocated on demand, so a small
+    // file costs a single small buffer.
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private int allocatedBuffers;
+    // The filled buffers, in the order they are written.
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+    // Set while a writer thread drains the pending writes of the file.
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // Run once by the writer thread when it releases the next buffer.
+    private final AtomicReference<Runnable> bufferReleaseListener = new AtomicReference<>();
+    // The buffer being filled and the file position of its first byte.
+    private ByteBuffer buffer;
+    private long bufferPosition;
+    private MappedByteBuffer mappedRegion;
+    private long mappedRegionStart = -1;
+    // Written by the writer thread, the bytes written since the last force.
+    private long unforcedBytes;
+    private volatile IOException failure;
+    
+    AsyncFileWriter(FileChannel fileChannel, long fileSize, StorageOptions options, boolean memoryMapped,
+            Executor writers) {
+        this.fileChannel = fileChannel;
+        this.fileSize = fileSize;
+        this.durabilityPolicy = options.getDurabilityPolicy();
+        this.memoryMapped = memoryMapped;
+        this.writers = writers;
+        this.bufferSize = (int) Math.max(1, Math.min(options.getWriteBufferSize(), fileSize));
+        this.bufferCount = options.getWriteBufferCount();
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+    }
+    
+    // Writes the bytes of the source, from its position to its limit, at the given file position. The source is
+    // consumed and can be reused once the call returns.
+    public void write(ByteBuffer source, long position) throws IOException {
+        checkFailure();
+        if (memoryMapped) {
+            writeMapped(source, position);
+            return;
+        }
+        
+        while (source.hasRemaining()) {
+            if (buffer != null && (!buffer.hasRemaining() || position != bufferPosition + buffer.position())) {
+                submit();
+            }
+            if (buffer == null) {
+                buffer = acquireBuffer();
+                bufferPosition = position;
+            }
+            
+            int length = Math.min(source.remaining(), buffer.remaining());
+            int limit = source.limit();
+            source.limit(source.position() + length);
+            buffer.put(source);
+            source.limit(limit);
+            position += length;
+            // A full buffer is queued right away, so a writer paused for a free buffer is not left waiting on it.
+            if (!buffer.hasRemaining()) {
+                submit();
+            }
+        }
+    }
+    
+    public void write(byte[] source, int offset, int length, long position) throws IOException {
+        write(ByteBuffer.wrap(source, offset, length), position);
+    }
+    
+    // The bytes that can be written at the next position without waiting for a buffer.
+    public long getWritableBytes() {
+        if (memoryMapped) {
+            return Long.MAX_VALUE;
+        }
+        
+        long freeBufferCount = freeBuffers.size() + bufferCount - allocatedBuffers;
+        return (buffer != null ? buffer.remaining() : 0) + freeBufferCount * bufferSize;
+    }
+    
+    // Runs the listener on the writer thread once it releases the next buffer. It replaces the previous listener
+    // when that one has not run yet.
+    public void onBufferReleased(Runnable listener) {
+        bufferReleaseListener.set(listener);
+    }
+    
+    // Queues the bytes written so far for the writer threads without waiting for them, and returns whether they
+    // are all in the file.
+    public boolean tryFlush() throws IOException {
+        submitBuffer();
+        // Every allocated buffer is back once all the pending writes are done.
+        if (freeBuffers.size() < allocatedBuffers) {
+            return false;
+        }
+        checkFailure();
+        
+        return true;
+    }
+    
+    // Waits until all the bytes written so far are in the file.
+    public void flush() throws IOException {
+        submitBuffer();
+        
+        // Every allocated buffer is back once all the pending writes are done.
+        List<ByteBuffer> buffers = new ArrayList<>(allocatedBuffers);
+        try {
+            while (buffers.size() < allocatedBuffers) {
+                buffers.add(freeBuffers.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writes of the file.");
+        } finally {
+            freeBuffers.addAll(buffers);
+        }
+        checkFailure();
+    }
+    
+    // Waits until the whole file is written and then forces it to the disk, as the durability policy asks.
+    public void finish() throws IOException {
+        flush();
+        if (durabilityPolicy != DurabilityPolicy.NONE) {
+            if (mappedRegion != null) {
+                mappedRegion.force();
+            }
+            fileChannel.force(false);
+        }
+    }
+    
+    // Waits for the pending writes, without forcing them, so the file channel can be closed after.
+    @Override
+    public void close() throws IOException {
+        flush();
+        mappedRegion = null;
+    }
+    
+    private ByteBuffer acquireBuffer() throws IOException {
+        ByteBuffer freeBuffer = freeBuffers.poll();
+        if (freeBuffer == null) {
+            if (allocatedBuffers < bufferCount) {
+                allocatedBuffers++;
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+            try {
+                freeBuffer = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a write buffer of the file.");
+            }
+        }
+        checkFailure();
+        
+        return freeBuffer;
+    }
+    
+    private void submitBuffer() {
+        if (buffer != null) {
+            if (buffer.position() > 0) {
+                submit();
+            } else {
+                freeBuffers.add(buffer);
+                buffer = null;
+            }
+        }
+    }
+    
+    private void submit() {
+        buffer.flip();
+        pendingWrites.add(new PendingWrite(buffer, bufferPosition));
+        buffer = null;
+        if (draining.compareAndSet(false, true)) {
+            writers.execute(this::drain);
+        }
+    }
+    
+    // Runs on a writer thread.
+    private void drain() {
+        do {
+            PendingWrite pendingWrite;
+            while ((pendingWrite = pendingWrites.poll()) != null) {
+                writeFully(pendingWrite);
+            }
+            draining.set(false);
+            // A write queued after the last poll and before the flag was cleared is drained here, unless another
+            // drain already took it.
+        } while (!pendingWrites.isEmpty() && draining.compareAndSet(false, true));
+    }
+    
+    private void writeFully(PendingWrite pendingWrite) {
+        ByteBuffer data = pendingWrite.buffer;
+        try {
+            // After a failure the bytes are dropped, the network thread fails at its next write.
+            if (failure == null) {
+                long startTime = System.nanoTime();
+                long position = pendingWrite.position;
+                while (data.hasRemaining()) {
+                    position += fileChannel.write(data, position);
+                }
+                unforcedBytes += data.limit();
+                if (durabilityPolicy == DurabilityPolicy.BATCHED && unforcedBytes >= FORCE_INTERVAL_BYTES) {
+                    fileChannel.force(false);
+                    unforcedBytes = 0;
+                }
+                WRITE_MICROS.record((System.nanoTime() - startTime) / 1000);
+                WRITTEN_BYTES.add(data.limit());
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            data.clear();
+            freeBuffers.add(data);
+            Runnable listener = bufferReleaseListener.getAndSet(null);
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+    
+    // The file is preallocated, so the mapped regions never extend it.
+    private void writeMapped(ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            long regionStart = position - position % MAPPED_REGION_SIZE;
+            if (regionStart != mappedRegionStart) {
+                if (regionStart >= fileSize) {
+                    throw new IOException("Invalid write at position = " + position + " past the file size = " +
+                        fileSize);
+                }
+                if (mappedRegion != null && durabilityPolicy == DurabilityPolicy.BATCHED) {
+                    mappedRegion.force();
+                }
+                // The previous region is unmapped once it is garbage collected.
+                mappedRegion = fileChannel.map(FileChannel.MapMode.READ_WRITE, regionStart,
+                    Math.min(MAPPED_REGION_SIZE, fileSize - regionStart));
+                mappedRegionStart = regionStart;
+            }
+            
+            int offset = (int) (position - regionStart);
+            int length = Math.min(source.remaining(), mappedRegion.capacity() - offset);
+            if (length == 0) {
+                throw new IOException("Invalid write at position = " + position + " past the file size = " +
+                    fileSize);
+            }
+            mappedRegion.put(offset, source, source.position(), length);
+            source.position(source.position() + length);
+            WRITTEN_BYTES.add(length);
+            position += length;
+        }
+    }
+    
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("The file cannot be written.", failure);
+        }
+    }
+    
+    private static class PendingWrite {
+        private final ByteBuffer buffer;
+        private final long position;
+        
+        PendingWrite(ByteBuffer buffer, long position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,12 @@
+package com.fii.pcd.hw01.storage;
+
+// When the received bytes are forced from the page cache to the disk.
+public enum DurabilityPolicy {
+    // Left to the operating system, a crash of the machine may lose the end of a file already acknowledged.
+    NONE,
+    // Forced every FORCE_INTERVAL_BYTES written and once the file is complete, so the disk is synced in large
+    // batches instead of once per write.
+    BATCHED,
+    // Forced once the file is complete, before the transfer status is sent.
+    END
+}
\ No newline at end of file
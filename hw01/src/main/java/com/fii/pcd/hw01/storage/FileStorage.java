@@ -0,0 +1,70 @@
+package com.fii.pcd.hw01.storage;
+
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+
+// The writer threads shared by all the files a server receives. The network threads hand their filled buffers to
+// the writer threads, so a slow disk no longer stalls the reads from the network. A file is queued for a writer
+// thread at most once at a time, so the queue is bounded by the files being received, and a network thread is
+// slowed down to the pace of the disk by the bounded buffers of its file rather than by writing it itself.
+public class FileStorage implements Closeable {
+    @Getter
+    private final StorageOptions options;
+    private final ThreadPoolExecutor writers;
+    
+    public FileStorage(StorageOptions options) {
+        this.options = options;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.writers = new ThreadPoolExecutor(options.getWriterThreadCount(), options.getWriterThreadCount(),
+            0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "disk-writer-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        MetricsRegistry.gauge("disk_writer_queue_depth", "The files waiting for a writer thread.",
+            () -> writers.getQueue().size());
+    }
+    
+    // The file is preallocated to its size when the preallocate option is set, which memory mapping requires.
+    // A file whose length must reflect the bytes written, like a resumable part file, is not preallocated.
+    public AsyncFileWriter openWriter(FileChannel fileChannel, long fileSize, boolean preallocate) throws IOException {
+        if (preallocate) {
+            preallocate(fileChannel, fileSize);
+        }
+        
+        return new AsyncFileWriter(fileChannel, fileSize, options, preallocate && options.isMemoryMapped(), writers);
+    }
+    
+    // Opens a received file to be written from its start. The name may be a hard link to a blob of the dedup store,
+    // so the file is replaced by a new one instead of being truncated in place.
+    public static FileChannel createFile(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        
+        return FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    }
+    
+    // Extends the file to its size before it is written, so the writes don't grow it one at a time. Java exposes
+    // no fallocate, so the file is extended by its last byte and stays sparse on the file systems that allow it.
+    public static void preallocate(FileChannel fileChannel, long fileSize) throws IOException {
+        if (fileSize > 0 && fileChannel.size() < fileSize) {
+            fileChannel.write(ByteBuffer.allocate(1), fileSize - 1);
+        }
+    }
+    
+    @Override
+    public void close() {
+        writers.shutdown();
+    }
+}
\ No newline at end of file
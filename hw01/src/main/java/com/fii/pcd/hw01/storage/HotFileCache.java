@@ -0,0 +1,295 @@
+package com.fii.pcd.hw01.storage;
+
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+// Keeps the content of the files downloaded often in direct buffers, outside the heap, so their downloads are
+// written to the socket from memory without reading the disk. The cache is bounded by the bytes of its files and
+// evicts with W-TinyLFU: a new file enters a small LRU window, and a file leaving the window, or too large for it,
+// enters the main segmented LRU only when it was asked more often than all the files it would evict to make room,
+// as counted by a count-min sketch that is halved as it fills, so the old popularity fades.
+@Slf4j
+public class HotFileCache {
+    // The window holds 1% of the bytes and the protected segment 80% of the main area.
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    // A file larger than this fraction of the cache is always read from the disk.
+    private static final int MAX_ENTRY_FRACTION = 4;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 1 << 16;
+    // The counters saturate at 15, as the 4 bit counters of TinyLFU.
+    private static final int MAX_FREQUENCY = 15;
+    // The sketch is halved after this many samples.
+    private static final int SKETCH_SAMPLE_SIZE = 10 * SKETCH_WIDTH;
+    private static final long[] SKETCH_SEEDS = {
+        0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+    private static final LongAdder HITS = MetricsRegistry.counter("download_cache_hits_total",
+        "The downloads served from the hot file cache.");
+    private static final LongAdder MISSES = MetricsRegistry.counter("download_cache_misses_total",
+        "The downloads read from the disk, since the hot file cache didn't have the file.");
+    private static final LongAdder EVICTIONS = MetricsRegistry.counter("download_cache_evictions_total",
+        "The files evicted from the hot file cache, or not admitted in it.");
+    
+    private final long capacity;
+    private final long maxEntrySize;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    // The LRU segments, in access order, guarded by this cache.
+    private final LinkedHashMap<Path, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Path, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Path, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    // The files being read into the cache, whose other downloads are read from the disk meanwhile.
+    private final Set<Path> loadingFiles = new HashSet<>();
+    private final byte[] sketch = new byte[SKETCH_DEPTH * SKETCH_WIDTH];
+    private int sketchSamples;
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    
+    public HotFileCache(long capacity) {
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(capacity / MAX_ENTRY_FRACTION, Integer.MAX_VALUE);
+        this.windowCapacity = capacity * WINDOW_PERCENT / 100;
+        this.protectedCapacity = (capacity - windowCapacity) * PROTECTED_PERCENT / 100;
+        MetricsRegistry.gauge("download_cache_bytes", "The bytes of the files in the hot file cache.",
+            this::getSize);
+    }
+    
+    // Returns a read only view of the content of the file, read into the cache when the file is admitted, or null
+    // when the file is to be read from the disk. A cached file that changed on the disk since is read again.
+    public ByteBuffer get(Path file) throws IOException {
+        if (capacity <= 0) {
+            return null;
+        }
+        
+        Path key = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        synchronized (this) {
+            recordAccess(key);
+            Entry entry = find(key);
+            if (entry != null && entry.matches(attributes)) {
+                HITS.increment();
+                return entry.content.asReadOnlyBuffer();
+            }
+            if (entry != null) {
+                remove(key);
+            }
+            MISSES.increment();
+            if (attributes.size() > maxEntrySize || loadingFiles.contains(key) ||
+                    (attributes.size() > windowCapacity && findVictims(key, attributes.size()) == null)) {
+                return null;
+            }
+            loadingFiles.add(key);
+        }
+        
+        // The file is read outside the lock, so the hits on the other files don't wait for the disk.
+        ByteBuffer content = null;
+        try {
+            content = load(key, attributes);
+        } finally {
+            synchronized (this) {
+                loadingFiles.remove(key);
+                if (content != null) {
+                    admit(new Entry(key, content, attributes));
+                }
+            }
+        }
+        return content == null ? null : content.asReadOnlyBuffer();
+    }
+    
+    public synchronized long getSize() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+    
+    // Reads the file into a new direct buffer. Returns null when there is no direct memory left for it, or when the
+    // file changed while it was read.
+    private ByteBuffer load(Path file, BasicFileAttributes attributes) throws IOException {
+        ByteBuffer content;
+        try {
+            content = ByteBuffer.allocateDirect((int) attributes.size());
+        } catch (OutOfMemoryError e) {
+            log.warn("The hot file cache has no direct memory left for the file = {} with size = {}",
+                file, attributes.size());
+            return null;
+        }
+        
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (fileChannel.read(content) == -1) {
+                    throw new EOFException("The file = " + file + " ended while it was read into the cache.");
+                }
+            }
+        }
+        if (!new Entry(file, content, Files.readAttributes(file, BasicFileAttributes.class)).matches(attributes)) {
+            return null;
+        }
+        return content.flip();
+    }
+    
+    // A file too large for the window goes straight to the admission of the main area.
+    private void admit(Entry entry) {
+        if (entry.size > windowCapacity) {
+            admitToMain(entry);
+            return;
+        }
+        
+        window.put(entry.file, entry);
+        windowBytes += entry.size;
+        Iterator<Entry> windowEntries = window.values().iterator();
+        while (windowBytes > windowCapacity) {
+            Entry candidate = windowEntries.next();
+            windowEntries.remove();
+            windowBytes -= candidate.size;
+            admitToMain(candidate);
+        }
+    }
+    
+    // The candidate enters the probation segment when it is more frequent than every file evicted for it.
+    private void admitToMain(Entry candidate) {
+        List<Entry> victims = findVictims(candidate.file, candidate.size);
+        if (victims == null) {
+            EVICTIONS.increment();
+            return;
+        }
+        
+        for (Entry victim : victims) {
+            remove(victim.file);
+            EVICTIONS.increment();
+        }
+        probation.put(candidate.file, candidate);
+        probationBytes += candidate.size;
+    }
+    
+    // Returns the files of the main area to evict, least recently used first, for a file of the given size to fit,
+    // or null when the file is not more frequent than all of them.
+    private List<Entry> findVictims(Path file, long size) {
+        List<Entry> victims = new ArrayList<>();
+        long neededBytes = probationBytes + protectedBytes + size - (capacity - windowCapacity);
+        int frequency = frequency(file);
+        for (LinkedHashMap<Path, Entry> segment : List.of(probation, protectedSegment)) {
+            for (Entry victim : segment.values()) {
+                if (neededBytes <= 0) {
+                    return victims;
+                }
+                if (frequency(victim.file) >= frequency) {
+                    return null;
+                }
+                victims.add(victim);
+                neededBytes -= victim.size;
+            }
+        }
+        
+        return neededBytes <= 0 ? victims : null;
+    }
+    
+    // Finds the entry in its segment and records the hit, a second hit in probation promotes it to protected.
+    private Entry find(Path file) {
+        Entry entry = window.get(file);
+        if (entry == null) {
+            entry = protectedSegment.get(file);
+        }
+        if (entry == null) {
+            entry = probation.remove(file);
+            if (entry != null) {
+                probationBytes -= entry.size;
+                protectedSegment.put(file, entry);
+                protectedBytes += entry.size;
+                // The least recently used protected files are demoted back to probation.
+                Iterator<Entry> protectedEntries = protectedSegment.values().iterator();
+                while (protectedBytes > protectedCapacity) {
+                    Entry demoted = protectedEntries.next();
+                    protectedEntries.remove();
+                    protectedBytes -= demoted.size;
+                    probation.put(demoted.file, demoted);
+                    probationBytes += demoted.size;
+                }
+            }
+        }
+        
+        return entry;
+    }
+    
+    private void remove(Path file) {
+        Entry entry;
+        if ((entry = window.remove(file)) != null) {
+            windowBytes -= entry.size;
+        } else if ((entry = probation.remove(file)) != null) {
+            probationBytes -= entry.size;
+        } else if ((entry = protectedSegment.remove(file)) != null) {
+            protectedBytes -= entry.size;
+        }
+    }
+    
+    private void recordAccess(Path file) {
+        int hash = file.hashCode();
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            int index = sketchIndex(hash, i);
+            if (sketch[index] < MAX_FREQUENCY) {
+                sketch[index]++;
+            }
+        }
+        
+        if (++sketchSamples == SKETCH_SAMPLE_SIZE) {
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] >>= 1;
+            }
+            sketchSamples /= 2;
+        }
+    }
+    
+    // The estimated number of accesses to the file, the smallest of its counters.
+    private int frequency(Path file) {
+        int hash = file.hashCode();
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            frequency = Math.min(frequency, sketch[sketchIndex(hash, i)]);
+        }
+        
+        return frequency;
+    }
+    
+    private static int sketchIndex(int hash, int row) {
+        long mixed = (hash + SKETCH_SEEDS[row]) * SKETCH_SEEDS[row];
+        mixed ^= mixed >>> 32;
+        
+        return row * SKETCH_WIDTH + (int) (mixed & (SKETCH_WIDTH - 1));
+    }
+    
+    // The content of a file, valid as long as the file keeps its size, its modification time and its identity,
+    // which an upload replacing the file changes.
+    @RequiredArgsConstructor
+    private static class Entry {
+        private final Path file;
+        private final ByteBuffer content;
+        private final long size;
+        private final long lastModifiedTime;
+        private final Object fileKey;
+        
+        Entry(Path file, ByteBuffer content, BasicFileAttributes attributes) {
+            this(file, content, attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+        }
+        
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModifiedTime == attributes.lastModifiedTime().toMillis() &&
+                Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+}
\ No newline at end of file
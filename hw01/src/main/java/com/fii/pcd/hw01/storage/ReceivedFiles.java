@@ -0,0 +1,52 @@
+package com.fii.pcd.hw01.storage;
+
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import lombok.experimental.UtilityClass;
+
+// The directory of the files the servers receive, and the checks of the names the clients send for them. Every
+// upload and download resolves its name here, so a name never reaches a file outside the directory, nor one of the
+// files the servers write next to a received file until it is complete.
+@UtilityClass
+public class ReceivedFiles {
+    public static final Path DIRECTORY = Paths.get("./FilesReceived/").normalize();
+    // The suffixes of the part files of the range, UDP and delta transfers, of the checkpoints of the range
+    // transfers and of the links being replaced.
+    private static final String[] TEMPORARY_SUFFIXES = {".part", ".delta", ".link", ".checkpoint"};
+    
+    public static Path resolve(String fileName) throws IOException {
+        return resolve(DIRECTORY, fileName);
+    }
+    
+    // Resolves a path sent by a client under the given directory, and rejects the absolute paths, the ones that
+    // climb out of it and the names of the temporary files.
+    public static Path resolve(Path directory, String relativePath) throws IOException {
+        Path path;
+        try {
+            path = directory.resolve(relativePath).normalize();
+            if (Paths.get(relativePath).isAbsolute()) {
+                throw new IOException("Invalid file path = " + relativePath + " sent by the client.");
+            }
+        } catch (InvalidPathException e) {
+            throw new IOException("Invalid file path = " + relativePath + " sent by the client.", e);
+        }
+        if (!path.startsWith(directory) || path.equals(directory) || isTemporary(path)) {
+            throw new IOException("Invalid file path = " + relativePath + " sent by the client.");
+        }
+        
+        return path;
+    }
+    
+    private static boolean isTemporary(Path path) {
+        String fileName = path.getFileName().toString();
+        for (String suffix : TEMPORARY_SUFFIXES) {
+            if (fileName.endsWith(suffix)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,21 @@
+package com.fii.pcd.hw01.storage;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+// How the servers write the received files to the disk.
+@AllArgsConstructor
+@Getter
+@ToString
+public class StorageOptions {
+    // The consecutive writes of a file are coalesced into buffers of this length before they reach the disk.
+    private final int writeBufferSize;
+    // The number of buffers of a file filled or being written at once, beyond which the network thread waits.
+    private final int writeBufferCount;
+    // The threads that write the buffers of all the files to the disk.
+    private final int writerThreadCount;
+    // Copy the received bytes straight into memory mapped regions of the preallocated file, at any position.
+    private final boolean memoryMapped;
+    private final DurabilityPolicy durabilityPolicy;
+}
\ No newline at end of file
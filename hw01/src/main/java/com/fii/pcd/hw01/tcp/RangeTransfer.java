@@ -0,0 +1,186 @@
+package com.fii.pcd.hw01.tcp;
+
+import com.fii.pcd.hw01.storage.ReceivedFiles;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+// A file received as byte ranges over several connections. The ranges are written with positional writes into
+// a part file preallocated to the file size, which is moved to its final name once all the ranges are in.
+// The received ranges are saved in a checkpoint file next to the part file, so an interrupted transfer with
+// the same transfer id resumes with the missing ranges only, even after a restart of the TCP Server.
+@Getter
+@Slf4j
+public class RangeTransfer {
+    private final long transferId;
+    private final String fileName;
+    private final long fileSize;
+    // The received file, resolved under the received files directory.
+    private final Path file;
+    private final Instant startTime = Instant.now();
+    private final File partFile;
+    private final File checkpointFile;
+    private final FileChannel fileChannel;
+    // The received ranges, merged, by start offset to end offset.
+    private final TreeMap<Long, Long> receivedRanges = new TreeMap<>();
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile long lastActivityTime = System.nanoTime();
+    
+    RangeTransfer(long transferId, String fileName, long fileSize) throws IOException {
+        this.transferId = transferId;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        // The name is checked before the part file and the checkpoint next to the file are opened.
+        this.file = ReceivedFiles.resolve(fileName);
+        String partFileName = file.getFileName() + "." + Long.toHexString(transferId);
+        this.partFile = file.resolveSibling(partFileName + ".part").toFile();
+        this.checkpointFile = file.resolveSibling(partFileName + ".checkpoint").toFile();
+        
+        if (!loadCheckpoint()) {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(partFile, "rw")) {
+                randomAccessFile.setLength(fileSize);
+            }
+        }
+        // The part file is also read when its ranges are memory mapped.
+        this.fileChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    
+    public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+        return fileChannel.transferFrom(source, position, count);
+    }
+    
+    public void checkRange(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > fileSize) {
+            throw new IOException("Invalid range with offset = " + offset + " and length = " + length +
+                " for the file = " + fileName + " with file size = " + fileSize);
+        }
+    }
+    
+    // Called once the range is written to the part file, also for the received part of an interrupted range.
+    public synchronized void addReceivedRange(long offset, long length) throws IOException {
+        lastActivityTime = System.nanoTime();
+        if (length == 0) {
+            return;
+        }
+        
+        long start = offset;
+        long end = offset + length;
+        Map.Entry<Long, Long> previous = receivedRanges.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = receivedRanges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            receivedRanges.remove(next.getKey());
+        }
+        receivedRanges.put(start, end);
+        
+        saveCheckpoint();
+    }
+    
+    public synchronized long getReceivedBytes() {
+        long receivedBytes = 0;
+        for (Map.Entry<Long, Long> range : receivedRanges.entrySet()) {
+            receivedBytes += range.getValue() - range.getKey();
+        }
+        
+        return receivedBytes;
+    }
+    
+    // Returns the offset and the length of every range not received yet.
+    public synchronized List<long[]> getMissingRanges() {
+        List<long[]> missingRanges = new ArrayList<>();
+        long offset = 0;
+        for (Map.Entry<Long, Long> range : receivedRanges.entrySet()) {
+            if (range.getKey() > offset) {
+                missingRanges.add(new long[] { offset, range.getKey() - offset });
+            }
+            offset = range.getValue();
+        }
+        if (offset < fileSize) {
+            missingRanges.add(new long[] { offset, fileSize - offset });
+        }
+        
+        return missingRanges;
+    }
+    
+    // Returns true only for the caller that completes the transfer.
+    boolean tryComplete() throws IOException {
+        if (getReceivedBytes() < fileSize || !completed.compareAndSet(false, true)) {
+            return false;
+        }
+        
+        fileChannel.close();
+        Files.move(partFile.toPath(), file, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(checkpointFile.toPath());
+        return true;
+    }
+    
+    // The part file and the checkpoint are kept, so the transfer can still be resumed.
+    void close() throws IOException {
+        fileChannel.close();
+    }
+    
+    private boolean loadCheckpoint() {
+        if (!checkpointFile.exists() || partFile.length() != fileSize) {
+            return false;
+        }
+        
+        try (DataInputStream dataInputStream = new DataInputStream(new FileInputStream(checkpointFile))) {
+            if (dataInputStream.readLong() != fileSize) {
+                return false;
+            }
+            int rangeCount = dataInputStream.readInt();
+            for (int i = 0; i < rangeCount; i++) {
+                long start = dataInputStream.readLong();
+                receivedRanges.put(start, dataInputStream.readLong());
+            }
+        } catch (IOException e) {
+            log.warn("The checkpoint of the range transfer = {} cannot be read, so the file = {} is received " +
+                "from the start.", transferId, fileName, e);
+            receivedRanges.clear();
+            return false;
+        }
+        
+        log.info("The range transfer = {} of the file = {} is resumed with {} bytes received of {}.",
+            transferId, fileName, getReceivedBytes(), fileSize);
+        return true;
+    }
+    
+    private void saveCheckpoint() throws IOException {
+        // The ranges must be on the disk before the checkpoint says they are.
+        fileChannel.force(false);
+        
+        File newCheckpointFile = new File(checkpointFile.getPath() + ".tmp");
+        try (DataOutputStream dataOutputStream = new DataOutputStream(new FileOutputStream(newCheckpointFile))) {
+            dataOutputStream.writeLong(fileSize);
+            dataOutputStream.writeInt(receivedRanges.size());
+            for (Map.Entry<Long, Long> range : receivedRanges.entrySet()) {
+                dataOutputStream.writeLong(range.getKey());
+                dataOutputStream.writeLong(range.getValue());
+            }
+        }
+        Files.move(newCheckpointFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+}
\ No newline at end of file
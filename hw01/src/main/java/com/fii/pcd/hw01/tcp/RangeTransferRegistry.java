@@ -0,0 +1,67 @@
+package com.fii.pcd.hw01.tcp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+
+// The range transfers in progress, by transfer id. The connections of a transfer find its part file here,
+// the transfers not in progress are reopened from their checkpoint.
+@Slf4j
+public class RangeTransferRegistry {
+    // A transfer without new ranges for this long is closed, its part file and checkpoint are kept for a resume.
+    private static final long IDLE_TIMEOUT_NANOS = 600_000_000_000L;
+    
+    private final Map<Long, RangeTransfer> transfers = new ConcurrentHashMap<>();
+    
+    public RangeTransfer open(long transferId, String fileName, long fileSize) throws IOException {
+        removeIdleTransfers();
+        
+        try {
+            RangeTransfer transfer = transfers.computeIfAbsent(transferId, id -> {
+                try {
+                    return new RangeTransfer(id, fileName, fileSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (!transfer.getFileName().equals(fileName) || transfer.getFileSize() != fileSize) {
+                throw new IOException("The transfer = " + transferId + " is used for the file = " +
+                    transfer.getFileName() + " with file size = " + transfer.getFileSize());
+            }
+            
+            return transfer;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    // Returns true only for the connection that completes the transfer.
+    public boolean completeIfReceived(RangeTransfer transfer) throws IOException {
+        if (!transfer.tryComplete()) {
+            return false;
+        }
+        
+        transfers.remove(transfer.getTransferId());
+        return true;
+    }
+    
+    private void removeIdleTransfers() {
+        long now = System.nanoTime();
+        for (RangeTransfer transfer : transfers.values()) {
+            if (now - transfer.getLastActivityTime() > IDLE_TIMEOUT_NANOS &&
+                    transfers.remove(transfer.getTransferId(), transfer)) {
+                log.info("The range transfer = {} of the file = {} expired after receiving {} bytes of {}.",
+                    transfer.getTransferId(), transfer.getFileName(), transfer.getReceivedBytes(),
+                    transfer.getFileSize());
+                try {
+                    transfer.close();
+                } catch (IOException e) {
+                    log.error("The part file of the range transfer = {} cannot be closed.",
+                        transfer.getTransferId(), e);
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,446 @@
+package com.fii.pcd.hw01.tcp;
+
+import com.fii.pcd.hw01.compression.CompressionType;
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import com.fii.pcd.hw01.storage.AsyncFileWriter;
+import com.fii.pcd.hw01.storage.FileStorage;
+import com.fii.pcd.hw01.storage.ReceivedFiles;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+// Runs the file transfer requests on non-blocking reactors. Every reactor thread multiplexes many connections on its
+// own Selector and every connection is a small state machine, so a connection costs a few hundred bytes of state
+// instead of a thread. The file content is read into a single buffer per reactor and written to the file right away,
+// which keeps the memory bounded whatever the number of connections. A reactor never waits for the disk: it reads no
+// more than the writer of the file can take, and stops reading the connection until the writer releases a buffer. The
+// requests other than the plain upload without compression and without integrity check are handed over to a
+// TCPClientRequestHandler, on a blocking thread, and so are all the requests when the bandwidth is limited, since a
+// request waits for its share of the bandwidth on its thread. The blocking threads are virtual when the Java runtime
+// has them, otherwise they are a bounded pool of platform threads, and the requests beyond it wait in its queue.
+@RequiredArgsConstructor
+@Slf4j
+public class SelectorServerEngine implements TCPServerEngine {
+    private static final int HAND_OVER_THREADS_PER_REACTOR = 32;
+    
+    private final TCPServerContext context;
+    private final int reactorCount;
+    private final int maxConnections;
+    
+    @Override
+    public void serve(ServerSocketChannel serverSocketChannel) throws IOException, InterruptedException {
+        Semaphore connections = new Semaphore(maxConnections);
+        ExecutorService blockingExecutor = newBlockingExecutor();
+        Reactor[] reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor(Selector.open(), ByteBuffer.allocateDirect(context.getMessageSize()),
+                connections, blockingExecutor);
+            new Thread(reactors[i], "tcp-reactor-" + i).start();
+        }
+        log.info("TCP Server is handling the client requests on {} non-blocking reactors.", reactorCount);
+        
+        try {
+            int nextReactor = 0;
+            while (true) {
+                // Stop accepting when the limit is reached, so the new TCP Clients wait in the backlog.
+                connections.acquire();
+                SocketChannel clientChannel = serverSocketChannel.accept();
+                reactors[nextReactor].register(clientChannel);
+                nextReactor = (nextReactor + 1) % reactorCount;
+            }
+        } finally {
+            for (Reactor reactor : reactors) {
+                reactor.selector.close();
+            }
+            blockingExecutor.shutdown();
+        }
+    }
+    
+    private ExecutorService newBlockingExecutor() {
+        ExecutorService executor = VirtualThreadServerEngine.newVirtualThreadPerTaskExecutor();
+        if (executor != null) {
+            log.info("TCP Server is handling the handed over client requests on virtual threads.");
+            return executor;
+        }
+        
+        // A thread per handed over request would be a platform thread per connection, up to the maximum number of
+        // connections, so the pool is bounded and its threads end when they are idle.
+        int threadCount = reactorCount * HAND_OVER_THREADS_PER_REACTOR;
+        ThreadPoolExecutor poolExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
+        poolExecutor.allowCoreThreadTimeOut(true);
+        MetricsRegistry.gauge("tcp_server_hand_over_queue_depth",
+            "The TCP Client requests handed over by the reactors and waiting for a thread.",
+            () -> poolExecutor.getQueue().size());
+        log.info("TCP Server is handling the handed over client requests on a pool of {} threads.", threadCount);
+        return poolExecutor;
+    }
+    
+    @RequiredArgsConstructor
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        // Shared by all the connections of the reactor, since they are served one at a time.
+        private final ByteBuffer buffer;
+        private final Semaphore connections;
+        private final ExecutorService blockingExecutor;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        // The connections to serve again, once the writer of their file released a buffer.
+        private final Queue<SelectionKey> resumedKeys = new ConcurrentLinkedQueue<>();
+        private final List<Connection> handedOverConnections = new ArrayList<>();
+        
+        void register(SocketChannel clientChannel) {
+            pendingChannels.add(clientChannel);
+            selector.wakeup();
+        }
+        
+        void resume(SelectionKey key) {
+            resumedKeys.add(key);
+            selector.wakeup();
+        }
+        
+        @Override
+        public void run() {
+            String threadName = Thread.currentThread().getName();
+            try {
+                while (true) {
+                    selector.select();
+                    
+                    SocketChannel clientChannel;
+                    while ((clientChannel = pendingChannels.poll()) != null) {
+                        try {
+                            clientChannel.configureBlocking(false);
+                            clientChannel.register(selector, SelectionKey.OP_READ, new Connection(this,
+                                clientChannel, context.getStorage(), context.getBandwidthScheduler().isLimited()));
+                        } catch (IOException e) {
+                            log.error("TCP Client connection cannot be registered in reactor = {}", threadName, e);
+                            closeQuietly(clientChannel);
+                            connections.release();
+                        }
+                    }
+                    
+                    SelectionKey resumedKey;
+                    while ((resumedKey = resumedKeys.poll()) != null) {
+                        // A connection closed meanwhile has its key cancelled.
+                        if (resumedKey.isValid()) {
+                            ((Connection) resumedKey.attachment()).resume(resumedKey);
+                        }
+                    }
+                    
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (connection.handle(key, buffer)) {
+                                connection.close();
+                                connections.release();
+                            } else if (connection.state == State.HAND_OVER) {
+                                key.cancel();
+                                handedOverConnections.add(connection);
+                            }
+                        } catch (Exception e) {
+                            log.error("TCP Client request failed to be processed in reactor = {}", threadName, e);
+                            connection.close();
+                            connections.release();
+                        }
+                    }
+                    
+                    if (!handedOverConnections.isEmpty()) {
+                        handOver(threadName);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                log.info("TCP Server reactor = {} was stopped.", threadName);
+            } catch (IOException e) {
+                log.error("TCP Server reactor = {} failed.", threadName, e);
+            }
+        }
+        
+        private void handOver(String threadName) throws IOException {
+            // The cancelled keys are deregistered by the next selection, only then can the channels block.
+            selector.selectNow();
+            for (Connection connection : handedOverConnections) {
+                try {
+                    connection.clientChannel.configureBlocking(true);
+                    TCPServer.TCPClientRequestHandler clientRequestHandler =
+                        new TCPServer.TCPClientRequestHandler(connection.clientChannel, context);
+                    blockingExecutor.execute(() -> {
+                        try {
+                            clientRequestHandler.handle(connection.requestHeader);
+                        } finally {
+                            connections.release();
+                        }
+                    });
+                } catch (Exception e) {
+                    log.error("TCP Client request cannot be handed over by reactor = {}", threadName, e);
+                    connection.close();
+                    connections.release();
+                }
+            }
+            handedOverConnections.clear();
+        }
+    }
+    
+    // The states of a connection, in the order of the file transfer protocol.
+    private static enum State {
+        READ_REQUEST_TYPE_AND_FILE_NAME_LENGTH,
+        READ_REQUEST_HEADER,
+        // The request is not a plain upload without compression and without integrity check, or the bandwidth is
+        // limited, so it is handled on a blocking thread.
+        HAND_OVER,
+        READ_FILE_CONTENT,
+        // Waits for the writer threads to write the rest of the file content.
+        FLUSH_FILE_CONTENT,
+        WRITE_TRANSFER_STATUS
+    }
+    
+    private static class Connection {
+        private final Reactor reactor;
+        private final SocketChannel clientChannel;
+        private final FileStorage storage;
+        // Whether every request is handed over, to wait for its share of the bandwidth on a blocking thread.
+        private final boolean bandwidthLimited;
+        private final Instant startTime = Instant.now();
+        private State state = State.READ_REQUEST_TYPE_AND_FILE_NAME_LENGTH;
+        // Holds the header fields and then the transfer status, nothing else is buffered per connection.
+        private ByteBuffer controlBuffer = ByteBuffer.allocate(Byte.BYTES + Short.BYTES);
+        private TCPRequestHeader requestHeader;
+        private String fileName;
+        private long remainingBytes;
+        private FileChannel fileChannel;
+        // The reactor hands the file content to a writer thread, so it reads the other connections meanwhile.
+        private AsyncFileWriter fileWriter;
+        private long totalNumberOfMessages;
+        private long totalNumberOfBytes;
+        // Whether the request is counted among the active ones, which a handed over request is by its handler.
+        private boolean active;
+        private boolean processed;
+        
+        Connection(Reactor reactor, SocketChannel clientChannel, FileStorage storage, boolean bandwidthLimited) {
+            this.reactor = reactor;
+            this.clientChannel = clientChannel;
+            this.storage = storage;
+            this.bandwidthLimited = bandwidthLimited;
+        }
+        
+        // Returns true when the connection is done.
+        boolean handle(SelectionKey key, ByteBuffer buffer) throws IOException {
+            switch (state) {
+                case READ_REQUEST_TYPE_AND_FILE_NAME_LENGTH:
+                    if (readControlData()) {
+                        // The file name is written with writeUTF, so its length comes first.
+                        int fileNameLength = controlBuffer.getShort(Byte.BYTES) & 0xffff;
+                        ByteBuffer headerBuffer = ByteBuffer.allocate(Byte.BYTES + Short.BYTES + fileNameLength +
+                            Long.BYTES + Byte.BYTES + Byte.BYTES);
+                        headerBuffer.put(controlBuffer.flip());
+                        controlBuffer = headerBuffer;
+                        state = State.READ_REQUEST_HEADER;
+                    }
+                    return false;
+                case READ_REQUEST_HEADER:
+                    if (readControlData()) {
+                        startRequest(key);
+                    }
+                    return false;
+                case READ_FILE_CONTENT:
+                    readFileContent(key, buffer);
+                    return false;
+                case FLUSH_FILE_CONTENT:
+                    flushFileContent(key);
+                    return false;
+                case WRITE_TRANSFER_STATUS:
+                    clientChannel.write(controlBuffer);
+                    if (controlBuffer.hasRemaining()) {
+                        return false;
+                    }
+                    
+                    Duration executionTime = Duration.between(startTime, Instant.now());
+                    processed = true;
+                    TCPServerMetrics.REQUEST_MILLIS.record(executionTime.toMillis());
+                    log.info("TCP Client request processed successfully in reactor = {} for the file = {} " +
+                        "with execution time = {} and " +
+                        "with total number of messages received = {} and " +
+                        "with total number of bytes received = {}",
+                        Thread.currentThread().getName(), fileName, executionTime, totalNumberOfMessages,
+                        totalNumberOfBytes);
+                    return true;
+                default:
+                    throw new IllegalStateException("Invalid connection state = " + state);
+            }
+        }
+        
+        // Serves the connection again once the writer of its file released a buffer.
+        void resume(SelectionKey key) {
+            if (state == State.READ_FILE_CONTENT) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else if (state == State.FLUSH_FILE_CONTENT) {
+                // The socket is writable right away, so the flush is checked again at the next selection.
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+        
+        void close() {
+            if (active) {
+                TCPServerMetrics.ACTIVE_REQUESTS.decrement();
+                (processed ? TCPServerMetrics.REQUESTS : TCPServerMetrics.FAILED_REQUESTS).increment();
+                TCPServerMetrics.RECEIVED_MESSAGES.add(totalNumberOfMessages);
+            }
+            closeQuietly(fileWriter);
+            if (fileWriter != null && remainingBytes > 0) {
+                // An interrupted file keeps the received bytes only, as it would without preallocation.
+                try {
+                    fileChannel.truncate(requestHeader.getFileSize() - remainingBytes);
+                } catch (IOException e) {
+                    log.error("TCP Server cannot truncate the interrupted file = {}", fileName, e);
+                }
+            }
+            closeQuietly(fileChannel);
+            closeQuietly(clientChannel);
+        }
+        
+        private boolean readControlData() throws IOException {
+            if (clientChannel.read(controlBuffer) == -1) {
+                throw new EOFException("The TCP Client closed the connection before sending the file.");
+            }
+            
+            return !controlBuffer.hasRemaining();
+        }
+        
+        private void startRequest(SelectionKey key) throws IOException {
+            try (DataInputStream dataInputStream =
+                new DataInputStream(new ByteArrayInputStream(controlBuffer.array()))) {
+                // Read the request type, the file name, the file size, the compression type and the integrity option.
+                requestHeader = TCPRequestHeader.read(dataInputStream);
+                totalNumberOfMessages += 5;
+            }
+            if (bandwidthLimited || requestHeader.getRequestType() != TCPRequestType.UPLOAD ||
+                    requestHeader.getCompressionType() != CompressionType.NONE || requestHeader.isIntegrity()) {
+                state = State.HAND_OVER;
+                return;
+            }
+            fileName = requestHeader.getFileName();
+            remainingBytes = requestHeader.getFileSize();
+            active = true;
+            TCPServerMetrics.ACTIVE_REQUESTS.increment();
+            
+            log.info("TCP Client request handled in reactor = {} " +
+                "for transfering the file = {} with file size = {}",
+                Thread.currentThread().getName(), fileName, remainingBytes);
+            
+            fileChannel = FileStorage.createFile(ReceivedFiles.resolve(fileName));
+            fileWriter = storage.openWriter(fileChannel, remainingBytes, true);
+            state = State.READ_FILE_CONTENT;
+            if (remainingBytes == 0) {
+                startFlush(key);
+            }
+        }
+        
+        private void readFileContent(SelectionKey key, ByteBuffer buffer) throws IOException {
+            long writableBytes = fileWriter.getWritableBytes();
+            if (writableBytes == 0) {
+                // The writer would wait for a buffer, so the connection is not read until it releases one.
+                fileWriter.onBufferReleased(() -> reactor.resume(key));
+                key.interestOps(0);
+                // A buffer released before the listener was set resumes nothing, so it is checked again.
+                writableBytes = fileWriter.getWritableBytes();
+                if (writableBytes == 0) {
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            
+            buffer.clear();
+            buffer.limit((int) Math.min(Math.min(buffer.capacity(), remainingBytes), writableBytes));
+            int receivedBytes = clientChannel.read(buffer);
+            if (receivedBytes == -1) {
+                throw new EOFException("The TCP Client closed the connection with " + remainingBytes +
+                    " bytes of the file = " + fileName + " left to send.");
+            }
+            
+            buffer.flip();
+            fileWriter.write(buffer, requestHeader.getFileSize() - remainingBytes);
+            remainingBytes -= receivedBytes;
+            totalNumberOfMessages++;
+            totalNumberOfBytes += receivedBytes;
+            TCPServerMetrics.RECEIVED_BYTES.add(receivedBytes);
+            
+            if (remainingBytes == 0) {
+                startFlush(key);
+            }
+        }
+        
+        private void startFlush(SelectionKey key) throws IOException {
+            state = State.FLUSH_FILE_CONTENT;
+            key.interestOps(0);
+            flushFileContent(key);
+        }
+        
+        private void flushFileContent(SelectionKey key) throws IOException {
+            if (!fileWriter.tryFlush()) {
+                fileWriter.onBufferReleased(() -> reactor.resume(key));
+                key.interestOps(0);
+                // A buffer released before the listener was set resumes nothing, so it is checked again.
+                if (!fileWriter.tryFlush()) {
+                    return;
+                }
+            }
+            
+            startTransferStatus(key);
+        }
+        
+        private void startTransferStatus(SelectionKey key) throws IOException {
+            // The content is in the file already, so only the force of the durability policy is left.
+            fileWriter.finish();
+            fileWriter.close();
+            fileChannel.close();
+            
+            // Send the transfer status, encoded as with writeUTF.
+            ByteArrayOutputStream statusBytes = new ByteArrayOutputStream();
+            try (DataOutputStream dataOutputStream = new DataOutputStream(statusBytes)) {
+                dataOutputStream.writeUTF("\"" + fileName + "\" was transfered successfully to the TCP Server.");
+            }
+            controlBuffer = ByteBuffer.wrap(statusBytes.toByteArray());
+            state = State.WRITE_TRANSFER_STATUS;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            log.error("TCP Server cannot close the resource = {}", closeable, e);
+        }
+    }
+}
\ No newline at end of file
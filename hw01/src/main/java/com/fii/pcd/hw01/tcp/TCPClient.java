@@ -1,63 +1,551 @@
 package com.fii.pcd.hw01.tcp;
 
+import com.fii.pcd.hw01.compression.ChunkCodec;
+import com.fii.pcd.hw01.compression.ChunkCompressionPipeline;
+import com.fii.pcd.hw01.compression.CompressionType;
+import com.fii.pcd.hw01.compression.FileChunk;
+import com.fii.pcd.hw01.dedup.ContentDefinedChunker;
+import com.fii.pcd.hw01.dedup.FileRecipe;
+import com.fii.pcd.hw01.delta.BlockSignatures;
+import com.fii.pcd.hw01.delta.DeltaEncoder;
+import com.fii.pcd.hw01.integrity.Checksums;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 @AllArgsConstructor
 @Slf4j
 public class TCPClient {
+    // A file is compressed only when a sample of it shrinks to at most this ratio of its size.
+    private static final double MAX_SAMPLED_COMPRESSION_RATIO = 0.9;
+    private static final int CHUNK_HEADER_LENGTH = 1 + Integer.BYTES + Integer.BYTES + Integer.BYTES;
+    // The number of chunks compressed ahead of the socket.
+    private static final int CHUNK_QUEUE_CAPACITY = 16;
+    // The number of times the ranges the TCP Server received corrupt are sent again before the transfer fails.
+    private static final int MAX_REPAIR_ROUNDS = 3;
+    // The files of a batch are written through a buffer, so the small ones don't cost a write each.
+    private static final int BATCH_BUFFER_LENGTH = 64 * 1024;
+    
     private final int port;
     private final String serverAddress;
     private final int messageSize;
+    // Send the file content with FileChannel.transferTo (sendfile), without copying it through the heap.
+    private final boolean zeroCopy;
+    // The number of parallel connections the file is sent on, as byte ranges when there are more than one.
+    private final int streamCount;
+    // The size of the byte ranges handed out to the parallel connections.
+    private final long rangeSize;
+    // Ask the TCP Server which ranges it already has from an interrupted transfer of the file and send the others.
+    private final boolean resume;
+    // Compress the file content in chunks, unless a sample of the file shows that it doesn't compress.
+    private final CompressionType compression;
+    private final int compressionLevel;
+    // Send the file content as chunks with a CRC32C followed by the SHA-256 of the file, which the TCP Server
+    // checks, and resend the chunks it received corrupt. The chunks go through the heap, so without zero copy.
+    private final boolean integrity;
+    // Send only the parts of the file that changed since the copy the TCP Server already has, as rsync does.
+    private final boolean delta;
+    // Send the file to the dedup store of the TCP Server, which skips the file, or the chunks of it, it already has.
+    private final boolean dedup;
     
-    public void sendFileTransferRequst(String filePath) {
-        try (Socket socket = new Socket(serverAddress, port);
+    // Returns true when the TCP Server received the file, or all the files of the directory.
+    public boolean sendFileTransferRequst(String filePath) {
+        if (new File(filePath).isDirectory()) {
+            return sendDirectory(filePath);
+        }
+        
+        if (dedup) {
+            if (sendFileDedup(filePath)) {
+                return true;
+            }
+            log.info("TCP Client sends the whole file = {}, since the TCP Server failed to store it.", filePath);
+        }
+        
+        if (delta) {
+            if (sendFileDelta(filePath)) {
+                return true;
+            }
+            log.info("TCP Client sends the whole file = {}, since the TCP Server failed to rebuild it.", filePath);
+        }
+        
+        if (streamCount > 1 || resume) {
+            return sendFileRanges(filePath);
+        }
+        
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+            Socket socket = socketChannel.socket();
             DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream())) {
             Instant startTime = Instant.now();
-            log.info("TCP Client is sending the file = {} to the TCP Server = {} on port = {} with message size = {}",
-                filePath, serverAddress, port, messageSize);
+            log.info("TCP Client is sending the file = {} to the TCP Server = {} on port = {} with message size = {} " +
+                "and with zero copy = {} and with compression = {} and with integrity = {}",
+                filePath, serverAddress, port, messageSize, zeroCopy, compression, integrity);
             
             long totalNumberOfMessages = 0;
             long totalNumberOfBytes = 0;
-
+            
             String fileName = Paths.get(filePath).getFileName().toString();
             File file = new File(filePath);
             
-            // Send the file name.
-            dataOutputStream.writeUTF(fileName);
+            // Send the request type, the file name, the file size, the compression type and the integrity option.
+            TCPRequestHeader requestHeader = new TCPRequestHeader(TCPRequestType.UPLOAD, fileName, file.length(),
+                chooseCompression(file), integrity);
+            requestHeader.write(dataOutputStream);
             dataOutputStream.flush();
-            totalNumberOfMessages++;
+            totalNumberOfMessages += 5;
+            CompressionType acceptedCompression = readAcceptedCompression(dataInputStream, requestHeader);
+            
+            // Send the file content.
+            if (acceptedCompression != CompressionType.NONE || integrity) {
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    StreamResult result = new StreamResult();
+                    byte[] fileDigest = sendChunks(socket, fileChannel, 0, fileChannel.size(), acceptedCompression,
+                        result);
+                    if (integrity) {
+                        // Send the digest of the file, then the ranges the TCP Server received corrupt until it
+                        // has none left.
+                        dataOutputStream.write(fileDigest);
+                        dataOutputStream.flush();
+                        result.totalNumberOfMessages++;
+                        List<long[]> corruptRanges;
+                        while (!(corruptRanges = readRanges(dataInputStream)).isEmpty()) {
+                            log.info("TCP Client resends {} corrupt ranges of the file = {}",
+                                corruptRanges.size(), fileName);
+                            for (long[] corruptRange : corruptRanges) {
+                                sendChunks(socket, fileChannel, corruptRange[0], corruptRange[1], acceptedCompression,
+                                    result);
+                            }
+                        }
+                    }
+                    totalNumberOfMessages += result.totalNumberOfMessages;
+                    totalNumberOfBytes += result.totalNumberOfBytes;
+                }
+            } else if (zeroCopy) {
+                // The message size is the chunk size of every transferTo call.
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long position = 0;
+                    long fileSize = fileChannel.size();
+                    while (position < fileSize) {
+                        long sentBytes = fileChannel.transferTo(position,
+                            Math.min(messageSize, fileSize - position), socketChannel);
+                        // A blocking transferTo sends nothing only when the file was truncated meanwhile.
+                        if (sentBytes == 0) {
+                            throw new EOFException("The file = " + file + " ended at " + position + " bytes of " +
+                                fileSize);
+                        }
+                        position += sentBytes;
+                        totalNumberOfMessages++;
+                        totalNumberOfBytes += sentBytes;
+                    }
+                }
+            } else {
+                try (FileInputStream fileInputStream = new FileInputStream(file)) {
+                    int sentBytes;
+                    byte[] buffer = new byte[messageSize];
+                    while ((sentBytes = fileInputStream.read(buffer)) != -1) {
+                        dataOutputStream.write(buffer, 0, sentBytes);
+                        dataOutputStream.flush();
+                        totalNumberOfMessages++;
+                        totalNumberOfBytes += sentBytes;
+                    }
+                } catch (Exception e) {
+                    throw e;
+                }
+            }
             
-            // Send the file size.
-            dataOutputStream.writeLong(file.length());
+            boolean verified = !integrity || dataInputStream.readBoolean();
+            String transferStatus = dataInputStream.readUTF();
+            if (!verified) {
+                throw new IOException(transferStatus);
+            }
+            
+            Instant endTime = Instant.now();
+            Duration executionTime = Duration.between(startTime, endTime);
+            log.info("The file transfer request was completed " +
+                "with execution time = {} and " +
+                "with total number of messages = {} and " +
+                "with total number of bytes = {} and " +
+                "with status = {}",
+                executionTime, totalNumberOfMessages, totalNumberOfBytes, transferStatus);
+            return true;
+        } catch (Exception e) {
+            log.error("The file transfer request sent to the TCP Server failed.", e);
+            return false;
+        }
+    }
+    
+    // Downloads the file the TCP Server received with the given name into ./FilesDownloaded/. Returns true when the
+    // TCP Server had the file and sent it whole.
+    public boolean downloadFile(String fileName) {
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+            Socket socket = socketChannel.socket();
+            DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
+            DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream())) {
+            Instant startTime = Instant.now();
+            log.info("TCP Client is downloading the file = {} from the TCP Server = {} on port = {} " +
+                "with message size = {} and with zero copy = {}",
+                fileName, serverAddress, port, messageSize, zeroCopy);
+            
+            // Send the request type and the file name, then read the file size.
+            TCPRequestHeader requestHeader = new TCPRequestHeader(TCPRequestType.DOWNLOAD, fileName, 0,
+                CompressionType.NONE, false);
+            requestHeader.write(dataOutputStream);
             dataOutputStream.flush();
-            totalNumberOfMessages++;
+            long fileSize = dataInputStream.readLong();
+            if (fileSize < 0) {
+                throw new IOException("The TCP Server has no file = " + fileName);
+            }
             
-            // Send the file content.
-            try (FileInputStream fileInputStream = new FileInputStream(file)) {
-                int sentBytes;
-                byte[] buffer = new byte[messageSize];
-                while ((sentBytes = fileInputStream.read(buffer)) != -1) {
-                    dataOutputStream.write(buffer, 0, sentBytes);
-                    dataOutputStream.flush();
+            long totalNumberOfMessages = 0;
+            long totalNumberOfBytes = 0;
+            Path file = Files.createDirectories(Paths.get("./FilesDownloaded/"))
+                .resolve(Paths.get(fileName).getFileName());
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = zeroCopy ? null : ByteBuffer.allocateDirect(messageSize);
+                while (totalNumberOfBytes < fileSize) {
+                    long receivedBytes;
+                    if (zeroCopy) {
+                        // The message size is the chunk size of every transferFrom call.
+                        receivedBytes = fileChannel.transferFrom(socketChannel, totalNumberOfBytes,
+                            Math.min(messageSize, fileSize - totalNumberOfBytes));
+                    } else {
+                        buffer.clear().limit((int) Math.min(messageSize, fileSize - totalNumberOfBytes));
+                        receivedBytes = socketChannel.read(buffer);
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            fileChannel.write(buffer);
+                        }
+                    }
+                    // A blocking socket reads nothing only at its end.
+                    if (receivedBytes <= 0) {
+                        throw new EOFException("The TCP Server closed the connection before sending the file.");
+                    }
                     totalNumberOfMessages++;
-                    totalNumberOfBytes += sentBytes;
+                    totalNumberOfBytes += receivedBytes;
                 }
-            } catch (Exception e) {
-                throw e;
             }
             
+            Instant endTime = Instant.now();
+            Duration executionTime = Duration.between(startTime, endTime);
+            log.info("The file download request was completed " +
+                "with execution time = {} and " +
+                "with total number of messages = {} and " +
+                "with total number of bytes = {} and " +
+                "with file = {}",
+                executionTime, totalNumberOfMessages, totalNumberOfBytes, file);
+            return true;
+        } catch (Exception e) {
+            log.error("The file download request sent to the TCP Server failed.", e);
+            return false;
+        }
+    }
+    
+    // Sends the regular files of the directory back to back on one connection, each one as its path relative to the
+    // directory, its size and its content, without waiting for the TCP Server between the files.
+    private boolean sendDirectory(String directoryPath) {
+        Path directory = Paths.get(directoryPath).toAbsolutePath().normalize();
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+            Socket socket = socketChannel.socket();
+            DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
+            DataOutputStream dataOutputStream =
+                new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BATCH_BUFFER_LENGTH))) {
+            Instant startTime = Instant.now();
+            
+            List<Path> files;
+            try (Stream<Path> paths = Files.walk(directory)) {
+                files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            long batchSize = 0;
+            for (Path file : files) {
+                batchSize += Files.size(file);
+            }
+            log.info("TCP Client is sending the {} files of the directory = {} with {} bytes to the TCP Server = {} " +
+                "on port = {} with message size = {} and with zero copy = {}",
+                files.size(), directory, batchSize, serverAddress, port, messageSize, zeroCopy);
+            
+            long totalNumberOfMessages = 0;
+            long totalNumberOfBytes = 0;
+            
+            // Send the request type, the directory name and the size of the batch.
+            String directoryName = directory.getFileName().toString();
+            TCPRequestHeader requestHeader = new TCPRequestHeader(TCPRequestType.BATCH_UPLOAD, directoryName, batchSize,
+                CompressionType.NONE, false);
+            requestHeader.write(dataOutputStream);
+            totalNumberOfMessages += 5;
+            
+            // Send the files, the buffer is flushed only when it is full or before a transferTo call.
+            byte[] buffer = new byte[messageSize];
+            for (Path file : files) {
+                try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long fileSize = fileChannel.size();
+                    dataOutputStream.writeUTF(directory.relativize(file).toString().replace(File.separatorChar, '/'));
+                    dataOutputStream.writeLong(fileSize);
+                    
+                    long position = 0;
+                    if (zeroCopy && fileSize >= messageSize) {
+                        dataOutputStream.flush();
+                        while (position < fileSize) {
+                            long sentBytes = fileChannel.transferTo(position, fileSize - position, socketChannel);
+                            if (sentBytes == 0) {
+                                throw new EOFException("The file = " + file + " ended at " + position +
+                                    " bytes of " + fileSize);
+                            }
+                            position += sentBytes;
+                        }
+                    }
+                    ByteBuffer readBuffer = ByteBuffer.wrap(buffer);
+                    while (position < fileSize) {
+                        readBuffer.clear().limit((int) Math.min(buffer.length, fileSize - position));
+                        int readBytes = fileChannel.read(readBuffer, position);
+                        if (readBytes == -1) {
+                            throw new EOFException("The file = " + file + " ended at " + position + " bytes of " +
+                                fileSize);
+                        }
+                        dataOutputStream.write(buffer, 0, readBytes);
+                        position += readBytes;
+                    }
+                    totalNumberOfMessages += 3;
+                    totalNumberOfBytes += fileSize;
+                }
+            }
+            // The empty path ends the batch.
+            dataOutputStream.writeUTF("");
+            dataOutputStream.flush();
+            totalNumberOfMessages++;
+            
+            int numberOfFilesReceived = dataInputStream.readInt();
+            String transferStatus = dataInputStream.readUTF();
+            if (numberOfFilesReceived != files.size()) {
+                throw new IOException(transferStatus);
+            }
+            
+            Instant endTime = Instant.now();
+            Duration executionTime = Duration.between(startTime, endTime);
+            log.info("The directory transfer request was completed " +
+                "with execution time = {} and " +
+                "with total number of files = {} and " +
+                "with total number of messages = {} and " +
+                "with total number of bytes = {} and " +
+                "with status = {}",
+                executionTime, files.size(), totalNumberOfMessages, totalNumberOfBytes, transferStatus);
+            return true;
+        } catch (Exception e) {
+            log.error("The directory transfer request sent to the TCP Server failed.", e);
+            return false;
+        }
+    }
+    
+    // Sends the delta of the file against the block signatures of the copy the TCP Server has and returns whether
+    // the TCP Server rebuilt the file from it.
+    private boolean sendFileDelta(String filePath) {
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+            Socket socket = socketChannel.socket();
+            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dataOutputStream = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), DeltaEncoder.MAX_LITERAL_LENGTH));
+            FileChannel fileChannel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            Instant startTime = Instant.now();
+            log.info("TCP Client is sending the delta of the file = {} to the TCP Server = {} on port = {}",
+                filePath, serverAddress, port);
+            
+            // Send the request type, the file name and the file size, the delta is neither compressed nor chunked.
+            String fileName = Paths.get(filePath).getFileName().toString();
+            TCPRequestHeader requestHeader = new TCPRequestHeader(TCPRequestType.DELTA, fileName, fileChannel.size(),
+                CompressionType.NONE, false);
+            requestHeader.write(dataOutputStream);
+            dataOutputStream.flush();
+            
+            // Read the block signatures of the copy the TCP Server has, then send the delta and the digest of the file.
+            BlockSignatures signatures = BlockSignatures.read(dataInputStream);
+            DeltaEncoder encoder = new DeltaEncoder(signatures);
+            byte[] fileDigest = encoder.encode(fileChannel, dataOutputStream);
+            dataOutputStream.write(fileDigest);
+            dataOutputStream.flush();
+            
+            boolean rebuilt = dataInputStream.readBoolean();
             String transferStatus = dataInputStream.readUTF();
             
+            Instant endTime = Instant.now();
+            Duration executionTime = Duration.between(startTime, endTime);
+            log.info("The file delta transfer request was completed " +
+                "with execution time = {} and " +
+                "with {} block signatures of {} bytes received and " +
+                "with total number of instructions = {} and " +
+                "with {} literal bytes sent and " +
+                "with {} bytes copied from the previous version and " +
+                "with status = {}",
+                executionTime, signatures.getBlockCount(), signatures.getBlockSize(),
+                encoder.getNumberOfInstructions(), encoder.getLiteralBytes(), encoder.getCopiedBytes(),
+                transferStatus);
+            return rebuilt;
+        } catch (Exception e) {
+            log.error("The file delta transfer request sent to the TCP Server failed.", e);
+            return false;
+        }
+    }
+    
+    // Sends the SHA-256 of the file, the proof that it has the file and, unless the dedup store of the TCP Server has
+    // the file already, the recipe of its chunks and then the chunks the store is missing. Returns whether the TCP
+    // Server stored the file.
+    private boolean sendFileDedup(String filePath) {
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+            Socket socket = socketChannel.socket();
+            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dataOutputStream =
+                new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BATCH_BUFFER_LENGTH));
+            FileChannel fileChannel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            Instant startTime = Instant.now();
+            log.info("TCP Client is sending the file = {} to the dedup store of the TCP Server = {} on port = {}",
+                filePath, serverAddress, port);
+            
+            if (fileChannel.size() > FileRecipe.MAX_FILE_SIZE) {
+                log.info("The file = {} is larger than the dedup store of the TCP Server accepts.", filePath);
+                return false;
+            }
+            FileRecipe recipe = FileRecipe.compute(fileChannel);
+            
+            // Send the request type, the file name and the file size, then the digest of the file.
+            String fileName = Paths.get(filePath).getFileName().toString();
+            TCPRequestHeader requestHeader = new TCPRequestHeader(TCPRequestType.DEDUP_UPLOAD, fileName,
+                recipe.getFileSize(), CompressionType.NONE, false);
+            requestHeader.write(dataOutputStream);
+            dataOutputStream.write(recipe.getFileDigest());
+            dataOutputStream.flush();
+            
+            int numberOfChunksSent = 0;
+            long totalNumberOfBytes = 0;
+            // Answer the challenge of the TCP Server with the SHA-256 of the challenge followed by the file, which
+            // proves the TCP Client has the content the dedup store reuses.
+            boolean alreadyStored = dataInputStream.readBoolean();
+            byte[] challenge = new byte[Checksums.FILE_DIGEST_LENGTH];
+            dataInputStream.readFully(challenge);
+            MessageDigest proofDigest = Checksums.newFileDigest();
+            proofDigest.update(challenge);
+            Checksums.updateFromFile(proofDigest, fileChannel, 0, recipe.getFileSize());
+            dataOutputStream.write(proofDigest.digest());
+            dataOutputStream.flush();
+            if (!alreadyStored) {
+                // Send the recipe, then the chunks the TCP Server asks for, in its order.
+                recipe.write(dataOutputStream);
+                dataOutputStream.flush();
+                long[] chunkOffsets = new long[recipe.getChunkCount()];
+                for (int i = 1; i < chunkOffsets.length; i++) {
+                    chunkOffsets[i] = chunkOffsets[i - 1] + recipe.getChunkLength(i - 1);
+                }
+                
+                byte[] buffer = new byte[ContentDefinedChunker.MAX_CHUNK_LENGTH];
+                for (long[] missingChunk : readRanges(dataInputStream)) {
+                    int chunk = (int) missingChunk[0];
+                    if (chunk < 0 || chunk >= chunkOffsets.length || missingChunk[1] != recipe.getChunkLength(chunk)) {
+                        throw new IOException("Invalid chunk = " + chunk + " asked by the TCP Server.");
+                    }
+                    ByteBuffer chunkBuffer = ByteBuffer.wrap(buffer, 0, recipe.getChunkLength(chunk));
+                    while (chunkBuffer.hasRemaining()) {
+                        if (fileChannel.read(chunkBuffer, chunkOffsets[chunk] + chunkBuffer.position()) == -1) {
+                            throw new EOFException("The file = " + filePath + " ended in the chunk = " + chunk);
+                        }
+                    }
+                    dataOutputStream.write(buffer, 0, chunkBuffer.limit());
+                    numberOfChunksSent++;
+                    totalNumberOfBytes += chunkBuffer.limit();
+                }
+                dataOutputStream.flush();
+            }
+            
+            boolean stored = dataInputStream.readBoolean();
+            String transferStatus = dataInputStream.readUTF();
+            
+            Instant endTime = Instant.now();
+            Duration executionTime = Duration.between(startTime, endTime);
+            log.info("The file dedup transfer request was completed " +
+                "with execution time = {} and " +
+                "with file already stored = {} and " +
+                "with {} chunks of {} sent and " +
+                "with total number of bytes = {} and " +
+                "with status = {}",
+                executionTime, alreadyStored, numberOfChunksSent, recipe.getChunkCount(), totalNumberOfBytes,
+                transferStatus);
+            return stored;
+        } catch (Exception e) {
+            log.error("The file dedup transfer request sent to the TCP Server failed.", e);
+            return false;
+        }
+    }
+    
+    private boolean sendFileRanges(String filePath) {
+        Instant startTime = Instant.now();
+        log.info("TCP Client is sending the file = {} to the TCP Server = {} on port = {} with message size = {} " +
+            "and with zero copy = {} and with {} streams of ranges of {} bytes and with resume = {} " +
+            "and with compression = {} and with integrity = {}",
+            filePath, serverAddress, port, messageSize, zeroCopy, streamCount, rangeSize, resume, compression,
+            integrity);
+        
+        String fileName = Paths.get(filePath).getFileName().toString();
+        File file = new File(filePath);
+        long fileSize = file.length();
+        // The TCP Server puts together the ranges of the connections with the same transfer id. A resumed
+        // transfer must have the same transfer id as the interrupted one, so it is derived from the file.
+        long transferId = resume ?
+            UUID.nameUUIDFromBytes((fileName + "/" + fileSize + "/" + file.lastModified()).getBytes())
+                .getMostSignificantBits() :
+            ThreadLocalRandom.current().nextLong();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(streamCount);
+        try {
+            List<long[]> missingRanges = resume ?
+                queryMissingRanges(fileName, fileSize, transferId) :
+                List.of(new long[] { 0, fileSize });
+            
+            CompressionType requestedCompression = chooseCompression(file);
+            StreamResult totalResult = new StreamResult();
+            String transferStatus = sendRangesInParallel(executor, file, fileName, transferId, missingRanges,
+                requestedCompression, totalResult);
+            // The TCP Server doesn't keep the ranges that arrived corrupt, so they are missing and sent again.
+            for (int repairRound = 0; transferStatus == null && integrity && repairRound < MAX_REPAIR_ROUNDS;
+                    repairRound++) {
+                missingRanges = queryMissingRanges(fileName, fileSize, transferId);
+                transferStatus = sendRangesInParallel(executor, file, fileName, transferId, missingRanges,
+                    requestedCompression, totalResult);
+            }
+            long totalNumberOfMessages = totalResult.totalNumberOfMessages;
+            long totalNumberOfBytes = totalResult.totalNumberOfBytes;
+            if (transferStatus == null) {
+                throw new IOException("The TCP Server didn't complete the file = " + fileName +
+                    " after receiving all the ranges.");
+            }
+            
             Instant endTime = Instant.now();
             Duration executionTime = Duration.between(startTime, endTime);
             log.info("The file transfer request was completed " +
@@ -66,8 +554,233 @@ public class TCPClient {
                 "with total number of bytes = {} and " +
                 "with status = {}",
                 executionTime, totalNumberOfMessages, totalNumberOfBytes, transferStatus);
+            return true;
         } catch (Exception e) {
             log.error("The file transfer request sent to the TCP Server failed.", e);
+            return false;
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    // Sends the ranges on the parallel connections and adds their counters to the total result. Returns the
+    // transfer status when a connection completed the file, null otherwise.
+    private String sendRangesInParallel(ExecutorService executor, File file, String fileName, long transferId,
+            List<long[]> missingRanges, CompressionType requestedCompression, StreamResult totalResult)
+            throws InterruptedException, ExecutionException {
+        // The connections take the next range to send until there is none left, so a slow connection sends less.
+        Queue<long[]> ranges = new ConcurrentLinkedQueue<>();
+        for (long[] missingRange : missingRanges) {
+            for (long offset = missingRange[0]; offset < missingRange[0] + missingRange[1]; offset += rangeSize) {
+                ranges.add(new long[] { offset, Math.min(rangeSize, missingRange[0] + missingRange[1] - offset) });
+            }
+        }
+        
+        List<Future<StreamResult>> streamResults = new ArrayList<>();
+        for (int i = 0; i < streamCount; i++) {
+            streamResults.add(executor.submit(() ->
+                sendRanges(file, fileName, transferId, ranges, requestedCompression)));
+        }
+        
+        String transferStatus = null;
+        for (Future<StreamResult> streamResult : streamResults) {
+            StreamResult result = streamResult.get();
+            totalResult.totalNumberOfMessages += result.totalNumberOfMessages;
+            totalResult.totalNumberOfBytes += result.totalNumberOfBytes;
+            if (result.transferCompleted) {
+                transferStatus = result.transferStatus;
+            }
+        }
+        
+        return transferStatus;
+    }
+    
+    private List<long[]> queryMissingRanges(String fileName, long fileSize, long transferId) throws IOException {
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+            Socket socket = socketChannel.socket();
+            DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
+            DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream())) {
+            // Send the request type, the file name, the file size, the compression type and the transfer id.
+            new TCPRequestHeader(TCPRequestType.RESUME_QUERY, fileName, fileSize, CompressionType.NONE, false)
+                .write(dataOutputStream);
+            dataOutputStream.writeLong(transferId);
+            dataOutputStream.flush();
+            
+            // Read the offset and the length of the missing ranges.
+            List<long[]> missingRanges = readRanges(dataInputStream);
+            long missingBytes = 0;
+            for (long[] missingRange : missingRanges) {
+                missingBytes += missingRange[1];
+            }
+            log.info("TCP Client resumes the transfer = {} of the file = {} with {} bytes left to send of {}",
+                transferId, fileName, missingBytes, fileSize);
+            
+            return missingRanges;
+        }
+    }
+    
+    private List<long[]> readRanges(DataInputStream dataInputStream) throws IOException {
+        int rangeCount = dataInputStream.readInt();
+        List<long[]> ranges = new ArrayList<>(rangeCount);
+        for (int i = 0; i < rangeCount; i++) {
+            ranges.add(new long[] { dataInputStream.readLong(), dataInputStream.readLong() });
+        }
+        
+        return ranges;
+    }
+    
+    private StreamResult sendRanges(File file, String fileName, long transferId, Queue<long[]> ranges,
+            CompressionType requestedCompression) throws IOException, InterruptedException {
+        StreamResult result = new StreamResult();
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+            Socket socket = socketChannel.socket();
+            DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
+            DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            
+            // Send the request type, the file name, the file size, the compression type, the integrity option and
+            // the transfer id.
+            TCPRequestHeader requestHeader = new TCPRequestHeader(TCPRequestType.RANGE_UPLOAD, fileName, fileSize,
+                requestedCompression, integrity);
+            requestHeader.write(dataOutputStream);
+            dataOutputStream.writeLong(transferId);
+            dataOutputStream.flush();
+            result.totalNumberOfMessages += 6;
+            CompressionType acceptedCompression = readAcceptedCompression(dataInputStream, requestHeader);
+            
+            ByteBuffer buffer = zeroCopy ? null : ByteBuffer.allocate(messageSize);
+            long[] range;
+            while ((range = ranges.poll()) != null) {
+                long offset = range[0];
+                long length = range[1];
+                
+                // Send the range offset and length.
+                dataOutputStream.writeLong(offset);
+                dataOutputStream.writeLong(length);
+                dataOutputStream.flush();
+                result.totalNumberOfMessages++;
+                
+                // Send the range content.
+                if (acceptedCompression != CompressionType.NONE || integrity) {
+                    byte[] rangeDigest = sendChunks(socket, fileChannel, offset, length, acceptedCompression, result);
+                    if (integrity) {
+                        // Send the digest of the range.
+                        dataOutputStream.write(rangeDigest);
+                        dataOutputStream.flush();
+                        result.totalNumberOfMessages++;
+                    }
+                    continue;
+                }
+                long position = offset;
+                while (position < offset + length) {
+                    int chunkSize = (int) Math.min(messageSize, offset + length - position);
+                    long sentBytes;
+                    if (zeroCopy) {
+                        sentBytes = fileChannel.transferTo(position, chunkSize, socketChannel);
+                        if (sentBytes == 0) {
+                            throw new EOFException("The file = " + fileName + " ended at " + position +
+                                " bytes of " + fileSize);
+                        }
+                    } else {
+                        buffer.clear().limit(chunkSize);
+                        sentBytes = fileChannel.read(buffer, position);
+                        if (sentBytes == -1) {
+                            throw new EOFException("The file = " + fileName + " ended at " + position +
+                                " bytes of " + fileSize);
+                        }
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            socketChannel.write(buffer);
+                        }
+                    }
+                    position += sentBytes;
+                    result.totalNumberOfMessages++;
+                    result.totalNumberOfBytes += sentBytes;
+                }
+            }
+            
+            // Send the end of the ranges.
+            dataOutputStream.writeLong(-1);
+            dataOutputStream.writeLong(0);
+            dataOutputStream.flush();
+            result.totalNumberOfMessages++;
+            
+            result.transferCompleted = dataInputStream.readBoolean();
+            result.transferStatus = dataInputStream.readUTF();
+            log.info("TCP Client range stream of the transfer = {} ended with status = {}",
+                transferId, result.transferStatus);
         }
+        
+        return result;
+    }
+    
+    private CompressionType chooseCompression(File file) throws IOException {
+        if (compression == CompressionType.NONE) {
+            return CompressionType.NONE;
+        }
+        
+        double compressionRatio;
+        try (ChunkCodec codec = new ChunkCodec(compression, compressionLevel);
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            compressionRatio = codec.sampleCompressionRatio(fileChannel, 0, fileChannel.size(), messageSize);
+        }
+        if (compressionRatio > MAX_SAMPLED_COMPRESSION_RATIO) {
+            log.info("TCP Client sends the file = {} without compression, since a sample of it compresses " +
+                "with ratio = {}", file, compressionRatio);
+            return CompressionType.NONE;
+        }
+        
+        return compression;
+    }
+    
+    private CompressionType readAcceptedCompression(DataInputStream dataInputStream, TCPRequestHeader requestHeader)
+            throws IOException {
+        if (requestHeader.getCompressionType() == CompressionType.NONE) {
+            return CompressionType.NONE;
+        }
+        
+        // The TCP Server replies with the compression it accepts, NONE when it doesn't support the one asked.
+        return CompressionType.fromCode(dataInputStream.readByte());
+    }
+    
+    // Sends the file range as chunks, compressed ahead on the pipeline thread. Every chunk is sent as its compressed
+    // flag, raw length, length, CRC32C when the integrity is checked, and data. Returns the digest of the range,
+    // computed on the pipeline thread, when the integrity is checked.
+    private byte[] sendChunks(Socket socket, FileChannel fileChannel, long offset, long length,
+            CompressionType compressionType, StreamResult result) throws IOException, InterruptedException {
+        DataOutputStream chunkOutputStream =
+            new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), messageSize + CHUNK_HEADER_LENGTH));
+        byte[] rangeDigest = null;
+        try (ChunkCompressionPipeline pipeline = new ChunkCompressionPipeline(fileChannel, offset, length,
+            messageSize, messageSize, new ChunkCodec(compressionType, compressionLevel), CHUNK_QUEUE_CAPACITY,
+            integrity ? Checksums.newFileDigest() : null)) {
+            FileChunk chunk;
+            while ((chunk = pipeline.next()) != null) {
+                chunkOutputStream.writeBoolean(chunk.isCompressed());
+                chunkOutputStream.writeInt(chunk.getRawLength());
+                chunkOutputStream.writeInt(chunk.getLength());
+                if (integrity) {
+                    chunkOutputStream.writeInt(chunk.getChecksum());
+                }
+                chunkOutputStream.write(chunk.getData(), 0, chunk.getLength());
+                result.totalNumberOfMessages++;
+                result.totalNumberOfBytes += chunk.getLength();
+            }
+            if (integrity) {
+                rangeDigest = pipeline.digest();
+            }
+        }
+        chunkOutputStream.flush();
+        
+        return rangeDigest;
+    }
+    
+    // The counters and the transfer status of a connection.
+    private static class StreamResult {
+        private long totalNumberOfMessages;
+        private long totalNumberOfBytes;
+        private boolean transferCompleted;
+        private String transferStatus;
     }
 }
\ No newline at end of file
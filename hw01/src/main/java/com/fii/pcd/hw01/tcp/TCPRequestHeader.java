@@ -0,0 +1,39 @@
+package com.fii.pcd.hw01.tcp;
+
+import com.fii.pcd.hw01.compression.CompressionType;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// The header every TCP request starts with. The fields specific to a request type follow it.
+@AllArgsConstructor
+@Getter
+public class TCPRequestHeader {
+    private final TCPRequestType requestType;
+    private final String fileName;
+    private final long fileSize;
+    // The compression asked by the TCP Client, the TCP Server replies with the one it accepts unless it is NONE.
+    private final CompressionType compressionType;
+    // The chunks carry a CRC32C and the file or range content is followed by its SHA-256, checked by the TCP Server.
+    private final boolean integrity;
+    
+    public static TCPRequestHeader read(DataInputStream dataInputStream) throws IOException {
+        TCPRequestType requestType = TCPRequestType.fromCode(dataInputStream.readByte());
+        String fileName = dataInputStream.readUTF();
+        long fileSize = dataInputStream.readLong();
+        CompressionType compressionType = CompressionType.fromCode(dataInputStream.readByte());
+        boolean integrity = dataInputStream.readBoolean();
+        
+        return new TCPRequestHeader(requestType, fileName, fileSize, compressionType, integrity);
+    }
+    
+    public void write(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeByte(requestType.getCode());
+        dataOutputStream.writeUTF(fileName);
+        dataOutputStream.writeLong(fileSize);
+        dataOutputStream.writeByte(compressionType.getCode());
+        dataOutputStream.writeBoolean(integrity);
+    }
+}
\ No newline at end of file
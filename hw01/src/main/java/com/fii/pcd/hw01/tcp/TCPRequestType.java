@@ -0,0 +1,41 @@
+package com.fii.pcd.hw01.tcp;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// The first byte sent by the TCP Client on a connection tells the TCP Server what the connection is for.
+@AllArgsConstructor
+@Getter
+public enum TCPRequestType {
+    // The whole file is sent on the connection.
+    UPLOAD((byte) 1),
+    // Byte ranges of a file are sent on the connection, while other connections send the other ranges.
+    RANGE_UPLOAD((byte) 2),
+    // The TCP Server replies with the ranges of the file it doesn't have yet, for the transfer to be resumed.
+    RESUME_QUERY((byte) 3),
+    // The TCP Server replies with the block signatures of its copy of the file and rebuilds the new version from
+    // the literal bytes and block references sent by the TCP Client.
+    DELTA((byte) 4),
+    // The files of a directory are sent back to back on the connection, each one as its relative path, its size and
+    // its content, up to an empty path. The TCP Server acknowledges the whole batch once, at the end.
+    BATCH_UPLOAD((byte) 5),
+    // The SHA-256 of the file is sent first and the TCP Server replies whether its dedup store has the file already.
+    // When it doesn't, the content defined chunks of the file are listed and only the ones missing from the store
+    // are sent.
+    DEDUP_UPLOAD((byte) 6),
+    // The TCP Server replies with the size of the received file with the given name, -1 when it has none, and then
+    // with its content.
+    DOWNLOAD((byte) 7);
+    
+    private final byte code;
+    
+    public static TCPRequestType fromCode(byte code) {
+        for (TCPRequestType requestType : values()) {
+            if (requestType.code == code) {
+                return requestType;
+            }
+        }
+        
+        throw new IllegalArgumentException("Invalid TCP request type = " + code);
+    }
+}
\ No newline at end of file
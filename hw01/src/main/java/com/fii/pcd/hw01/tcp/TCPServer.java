@@ -1,101 +1,250 @@
 package com.fii.pcd.hw01.tcp;
 
+import com.fii.pcd.hw01.bandwidth.BandwidthOptions;
+import com.fii.pcd.hw01.bandwidth.BandwidthScheduler;
+import com.fii.pcd.hw01.compression.ChunkCodec;
+import com.fii.pcd.hw01.compression.CompressionType;
+import com.fii.pcd.hw01.dedup.ChunkLocation;
+import com.fii.pcd.hw01.dedup.ContentDefinedChunker;
+import com.fii.pcd.hw01.dedup.DedupStore;
+import com.fii.pcd.hw01.dedup.FileRecipe;
+import com.fii.pcd.hw01.delta.BlockSignatures;
+import com.fii.pcd.hw01.delta.DeltaDecoder;
+import com.fii.pcd.hw01.delta.DeltaEncoder;
+import com.fii.pcd.hw01.integrity.Checksums;
+import com.fii.pcd.hw01.integrity.OverlappedDigest;
+import com.fii.pcd.hw01.storage.AsyncFileWriter;
+import com.fii.pcd.hw01.storage.FileStorage;
+import com.fii.pcd.hw01.storage.HotFileCache;
+import com.fii.pcd.hw01.storage.ReceivedFiles;
+import com.fii.pcd.hw01.storage.StorageOptions;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
 import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+import static com.fii.pcd.hw01.integrity.Checksums.FILE_DIGEST_LENGTH;
+import static com.fii.pcd.hw01.integrity.Checksums.crc32c;
+
 @AllArgsConstructor
 @Slf4j
 public class TCPServer {
+    // The connections waiting to be accepted when many TCP Clients connect at once.
+    private static final int ACCEPT_BACKLOG = 1024;
+    // Bounds the buffers of a connection whatever the chunk lengths sent by a TCP Client.
+    private static final int MAX_CHUNK_LENGTH = 64 * 1024 * 1024;
+    // The number of received chunks queued for the digest thread.
+    private static final int DIGEST_QUEUE_CAPACITY = 16;
+    // The number of times the corrupt chunks of a file are asked again before the transfer fails.
+    private static final int MAX_REPAIR_ROUNDS = 3;
+    // The files of a batch are read through a buffer, so the small ones don't cost a read each.
+    private static final int BATCH_BUFFER_LENGTH = 64 * 1024;
+    // The downloads read from the disk without zero copy are memory mapped this many bytes at a time.
+    private static final long MAX_MAPPED_REGION_LENGTH = 64 * 1024 * 1024;
+    // Draws the challenges the TCP Clients answer to prove they have the content the dedup store reuses.
+    private static final SecureRandom DEDUP_CHALLENGES = new SecureRandom();
+    // The dedup store is kept out of the received files, so no name a TCP Client sends reaches its blobs or its
+    // index. It stays on the same file system, since the received files are hard links to its blobs.
+    private static final Path DEDUP_DIRECTORY = Paths.get("./FilesDedup/");
+    
     private final int port;
     private final int messageSize;
+    private final boolean zeroCopy;
+    private final TCPServerEngine.Type engineType;
+    // The number of threads of the pool, or the number of reactors of the selector engine.
+    private final int threadCount;
+    // The maximum number of connections handled at once by the virtual thread and selector engines.
+    private final int maxConnections;
+    private final StorageOptions storageOptions;
+    // The number of blobs, and of chunks, the dedup store keeps in memory.
+    private final int dedupCacheSize;
+    // The bytes of the downloaded files kept in memory, 0 to read every download from the disk.
+    private final long downloadCacheSize;
+    // How the bandwidth is shared between the TCP Clients.
+    private final BandwidthOptions bandwidthOptions;
     
     public void start() {
-        ExecutorService executor = null;
-
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            log.info("TCP Server is starting on port = {} with message size = {}",
-                port, messageSize);
+        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+            FileStorage storage = new FileStorage(storageOptions)) {
+            serverSocketChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            log.info("TCP Server is starting on port = {} with message size = {} and with zero copy = {} " +
+                "and with engine = {} and with storage = {} and with dedup cache size = {} " +
+                "and with download cache size = {} and with bandwidth = {}",
+                port, messageSize, zeroCopy, engineType, storageOptions, dedupCacheSize, downloadCacheSize,
+                bandwidthOptions);
             
             // Create the directory where all received files will be stored.
             File file = new File("./FilesReceived/");
             file.mkdirs();
             
-            executor = Executors.newFixedThreadPool(10);
+            TCPServerContext context = new TCPServerContext(messageSize, zeroCopy, new RangeTransferRegistry(),
+                storage, new DedupStore(DEDUP_DIRECTORY, dedupCacheSize),
+                new HotFileCache(downloadCacheSize), new BandwidthScheduler(bandwidthOptions));
+            TCPServerEngine engine = TCPServerEngine.create(engineType, context, threadCount, maxConnections);
             log.info("TCP Server is waiting for client requests.");
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                Runnable clientRequestHandler = new TCPClientRequestHandler(clientSocket, messageSize);
-                executor.execute(clientRequestHandler);
-            }
+            engine.serve(serverSocketChannel);
         } catch (Exception e) {
             log.error("TCP Server failed to listen on port = {} or to accept connections.", port, e);
-        } finally {
-            if (executor != null) {
-                executor.shutdown();
-            }
         }
     }
     
-    @AllArgsConstructor
+    @RequiredArgsConstructor
     @Slf4j
     public static class TCPClientRequestHandler implements Runnable {
-        private final Socket clientSocket;
-        private final int messageSize;
+        private final SocketChannel clientChannel;
+        private final TCPServerContext context;
+        private long totalNumberOfMessages;
+        private long totalNumberOfBytes;
+        // Decompresses the chunks of the file, null when the file content is not compressed.
+        private ChunkCodec codec;
+        private byte[] compressedBuffer = new byte[0];
+        private byte[] rawBuffer = new byte[0];
+        // The chunks carry a CRC32C and the content is followed by its SHA-256, computed here on the digest thread.
+        private boolean integrity;
+        private OverlappedDigest digest;
+        // Set by readChunk when the CRC32C of the chunk doesn't match its data.
+        private boolean corruptChunk;
+        // Paces the bytes received and sent by the request to its share of the bandwidth.
+        private BandwidthScheduler.Session bandwidthSession;
         
         @Override
         public void run() {
+            handle(null);
+        }
+        
+        // The request header is already read when the connection is handed over by a selector reactor.
+        void handle(TCPRequestHeader requestHeader) {
             Instant startTime = Instant.now();
             String threadName = Thread.currentThread().getName();
-            log.info("TCP Client request is handled in thread = {}", threadName);
-            
-            long totalNumberOfMessages = 0;
-            long totalNumberOfBytes = 0;
-            try (DataInputStream dataInputStream = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream dataOutputStream = new DataOutputStream(clientSocket.getOutputStream())) {
-                // Read the file name.
-                String fileName = dataInputStream.readUTF();
-                totalNumberOfMessages++;
-                
-                // Read the file size.
-                long fileSize = dataInputStream.readLong();
-                totalNumberOfMessages++;
+            log.debug("TCP Client request is handled in thread = {}", threadName);
+            TCPServerMetrics.ACTIVE_REQUESTS.increment();
+            boolean processed = false;
+            
+            try (DataInputStream dataInputStream = new DataInputStream(clientChannel.socket().getInputStream());
+                DataOutputStream dataOutputStream = new DataOutputStream(clientChannel.socket().getOutputStream())) {
+                // Read the request type, the file name, the file size, the compression type and the integrity option.
+                if (requestHeader == null) {
+                    requestHeader = TCPRequestHeader.read(dataInputStream);
+                }
+                totalNumberOfMessages += 5;
+                TCPRequestType requestType = requestHeader.getRequestType();
+                String fileName = requestHeader.getFileName();
+                long fileSize = requestHeader.getFileSize();
                 
                 log.info("TCP Client request handled in thread = {} " +
-                    "for transfering the file = {} with file size = {}",
-                    threadName, fileName, fileSize);
+                    "for transfering the file = {} with file size = {} and with request type = {} " +
+                    "and with compression = {} and with integrity = {}",
+                    threadName, fileName, fileSize, requestType, requestHeader.getCompressionType(),
+                    requestHeader.isIntegrity());
                 
-                // Read the file content.
-                File file = new File("./FilesReceived/" + fileName);
-                try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-                    int receivedBytes;
-                    byte[] buffer = new byte[messageSize];
-                    while (fileSize > 0 && (receivedBytes =
-                        dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, fileSize))) != -1) {
-                        fileOutputStream.write(buffer, 0, receivedBytes);
-                        fileSize -= receivedBytes;
-                        totalNumberOfMessages++;
-                        totalNumberOfBytes += receivedBytes;
-                    }
-                } catch (Exception e) {
-                    throw e;
+                // Accept the compression, every codec is supported.
+                if (requestHeader.getCompressionType() != CompressionType.NONE) {
+                    codec = new ChunkCodec(requestHeader.getCompressionType(), Deflater.DEFAULT_COMPRESSION);
+                    dataOutputStream.writeByte(requestHeader.getCompressionType().getCode());
+                }
+                integrity = requestHeader.isIntegrity();
+                if (integrity) {
+                    digest = new OverlappedDigest(DIGEST_QUEUE_CAPACITY);
+                }
+                // The size of a download is known once its file is found.
+                if (requestType != TCPRequestType.DOWNLOAD) {
+                    openBandwidthSession(fileSize);
                 }
                 
-                // Send the transfer status.
-                dataOutputStream.writeUTF("\"" + fileName + "\" was transfered successfully to the TCP Server.");
+                switch (requestType) {
+                    case UPLOAD:
+                        if (integrity) {
+                            boolean verified = receiveVerifiedFile(dataInputStream, dataOutputStream, fileName, fileSize);
+                            
+                            // Send the transfer status, the file is kept only when its digest matches.
+                            dataOutputStream.writeBoolean(verified);
+                            dataOutputStream.writeUTF(verified ?
+                                "\"" + fileName + "\" was transfered and verified successfully by the TCP Server." :
+                                "\"" + fileName + "\" failed the integrity check of the TCP Server.");
+                            break;
+                        }
+                        receiveFile(dataInputStream, fileName, fileSize);
+                        
+                        // Send the transfer status.
+                        dataOutputStream.writeUTF("\"" + fileName + "\" was transfered successfully to the TCP Server.");
+                        break;
+                    case RANGE_UPLOAD:
+                        boolean transferCompleted = receiveRanges(dataInputStream, fileName, fileSize);
+                        
+                        // Send the transfer status, the connection that receives the last range completes the file.
+                        dataOutputStream.writeBoolean(transferCompleted);
+                        dataOutputStream.writeUTF(transferCompleted ?
+                            "\"" + fileName + "\" was transfered successfully to the TCP Server." :
+                            "The ranges of \"" + fileName + "\" were received by the TCP Server.");
+                        break;
+                    case RESUME_QUERY:
+                        sendMissingRanges(dataInputStream, dataOutputStream, fileName, fileSize);
+                        break;
+                    case BATCH_UPLOAD:
+                        int numberOfFiles = receiveBatch(dataInputStream, fileName);
+                        
+                        // Send a single transfer status for the whole batch.
+                        dataOutputStream.writeInt(numberOfFiles);
+                        dataOutputStream.writeUTF("The " + numberOfFiles + " files of \"" + fileName +
+                            "\" were transfered successfully to the TCP Server.");
+                        break;
+                    case DEDUP_UPLOAD:
+                        boolean stored = receiveDedupFile(dataInputStream, dataOutputStream, fileName, fileSize);
+                        
+                        // Send the transfer status, the file is linked to its blob only when its digest matches.
+                        dataOutputStream.writeBoolean(stored);
+                        dataOutputStream.writeUTF(stored ?
+                            "\"" + fileName + "\" was stored successfully by the TCP Server." :
+                            "\"" + fileName + "\" failed to be stored by the TCP Server.");
+                        break;
+                    case DOWNLOAD:
+                        sendFile(dataOutputStream, fileName);
+                        break;
+                    case DELTA:
+                        boolean rebuilt = receiveDelta(dataInputStream, dataOutputStream, fileName, fileSize);
+                        
+                        // Send the transfer status, the previous version is replaced only when the digest matches.
+                        dataOutputStream.writeBoolean(rebuilt);
+                        dataOutputStream.writeUTF(rebuilt ?
+                            "\"" + fileName + "\" was rebuilt successfully by the TCP Server from its previous version." :
+                            "\"" + fileName + "\" failed to be rebuilt by the TCP Server from its previous version.");
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid TCP request type = " + requestType);
+                }
                 
                 Instant endTime = Instant.now();
                 Duration executionTime = Duration.between(startTime, endTime);
+                processed = true;
+                TCPServerMetrics.REQUEST_MILLIS.record(executionTime.toMillis());
                 log.info("TCP Client request processed successfully in thread = {} " +
                     "with execution time = {} and " +
                     "with total number of messages received = {} and " +
@@ -104,12 +253,664 @@ public class TCPServer {
             } catch (Exception e) {
                 log.error("TCP Client request failed to be processed in thread = {}", threadName, e);
             } finally {
+                TCPServerMetrics.ACTIVE_REQUESTS.decrement();
+                (processed ? TCPServerMetrics.REQUESTS : TCPServerMetrics.FAILED_REQUESTS).increment();
+                TCPServerMetrics.RECEIVED_MESSAGES.add(totalNumberOfMessages);
+                if (codec != null) {
+                    codec.close();
+                }
+                if (digest != null) {
+                    digest.close();
+                }
+                if (bandwidthSession != null) {
+                    bandwidthSession.close();
+                }
                 try {
-                    clientSocket.close();
+                    clientChannel.close();
                 } catch (IOException e) {
                     log.error("TCP Client socket cannot be closed in thread = {}", threadName, e);
                 }
             }
         }
+        
+        private void receiveFile(DataInputStream dataInputStream, String fileName, long fileSize)
+                throws IOException {
+            int messageSize = context.getMessageSize();
+            
+            // Read the file content.
+            Path file = ReceivedFiles.resolve(fileName);
+            if (codec != null || !context.isZeroCopy()) {
+                receiveFileContent(dataInputStream, file, fileSize);
+            } else {
+                // The data stream doesn't buffer, so the file content is the next thing to read from the socket.
+                try (FileChannel fileChannel = FileStorage.createFile(file)) {
+                    long position = 0;
+                    while (position < fileSize) {
+                        long receivedBytes = fileChannel.transferFrom(clientChannel, position,
+                            Math.min(messageSize, fileSize - position));
+                        if (receivedBytes == 0) {
+                            throw new EOFException("The TCP Client closed the connection after " + position +
+                                " bytes of " + fileSize);
+                        }
+                        position += receivedBytes;
+                        totalNumberOfMessages++;
+                        countReceivedBytes(receivedBytes);
+                    }
+                }
+            }
+        }
+        
+        // The file content is read on this thread and written to the preallocated file by a writer thread.
+        private void receiveFileContent(DataInputStream dataInputStream, Path file, long fileSize)
+                throws IOException {
+            try (FileChannel fileChannel = FileStorage.createFile(file)) {
+                long position = 0;
+                try (AsyncFileWriter fileWriter = context.getStorage().openWriter(fileChannel, fileSize, true)) {
+                    if (codec != null) {
+                        while (position < fileSize) {
+                            int rawLength = readChunk(dataInputStream, fileSize - position);
+                            fileWriter.write(rawBuffer, 0, rawLength, position);
+                            position += rawLength;
+                        }
+                    } else {
+                        int receivedBytes;
+                        byte[] buffer = new byte[context.getMessageSize()];
+                        while (position < fileSize && (receivedBytes = dataInputStream.read(buffer, 0,
+                            (int) Math.min(buffer.length, fileSize - position))) != -1) {
+                            fileWriter.write(buffer, 0, receivedBytes, position);
+                            position += receivedBytes;
+                            totalNumberOfMessages++;
+                            countReceivedBytes(receivedBytes);
+                        }
+                    }
+                    fileWriter.finish();
+                } finally {
+                    if (position < fileSize) {
+                        // An interrupted file keeps the received bytes only, as it would without preallocation.
+                        fileChannel.truncate(position);
+                    }
+                }
+            }
+        }
+        
+        // The file content is sent as chunks that carry a CRC32C, followed by the SHA-256 of the file. The ranges of
+        // the chunks that arrived corrupt are then asked again, until there is none left. Returns true when the
+        // digest of the received file matches the one of the TCP Client, the file is deleted otherwise.
+        private boolean receiveVerifiedFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream,
+                String fileName, long fileSize) throws IOException, InterruptedException {
+            Path file = ReceivedFiles.resolve(fileName);
+            boolean verified;
+            try (FileChannel fileChannel = FileStorage.createFile(file)) {
+                // The chunks are hashed as they arrive, up to the first corrupt one.
+                List<long[]> corruptRanges = receiveChunks(dataInputStream, fileChannel, 0, fileSize, true);
+                boolean hashedInOrder = corruptRanges.isEmpty();
+                
+                // Read the digest of the file.
+                byte[] expectedDigest = new byte[FILE_DIGEST_LENGTH];
+                dataInputStream.readFully(expectedDigest);
+                totalNumberOfMessages++;
+                
+                // Send the corrupt ranges to resend, the transfer is done when there is none.
+                int repairRound = 0;
+                while (true) {
+                    if (!corruptRanges.isEmpty() && repairRound == MAX_REPAIR_ROUNDS) {
+                        throw new IOException("The file = " + fileName + " still has " + corruptRanges.size() +
+                            " corrupt ranges after " + MAX_REPAIR_ROUNDS + " repair rounds.");
+                    }
+                    writeRanges(dataOutputStream, corruptRanges);
+                    if (corruptRanges.isEmpty()) {
+                        break;
+                    }
+                    
+                    log.info("TCP Client is asked to resend {} corrupt ranges of the file = {}",
+                        corruptRanges.size(), fileName);
+                    List<long[]> resentRanges = corruptRanges;
+                    corruptRanges = new ArrayList<>();
+                    for (long[] resentRange : resentRanges) {
+                        corruptRanges.addAll(
+                            receiveChunks(dataInputStream, fileChannel, resentRange[0], resentRange[1], false));
+                    }
+                    repairRound++;
+                }
+                
+                byte[] receivedDigest = digest.digest();
+                if (!hashedInOrder) {
+                    // The repaired chunks filled holes in the file, so it is hashed again from the disk.
+                    MessageDigest fileDigest = Checksums.newFileDigest();
+                    Checksums.updateFromFile(fileDigest, fileChannel, 0, fileSize);
+                    receivedDigest = fileDigest.digest();
+                }
+                verified = MessageDigest.isEqual(expectedDigest, receivedDigest);
+            }
+            
+            if (!verified) {
+                log.error("The SHA-256 of the received file = {} doesn't match the one of the TCP Client, " +
+                    "so the file is deleted.", fileName);
+                Files.deleteIfExists(file);
+            }
+            return verified;
+        }
+        
+        // Receives the files of a batch in a directory named after the one of the TCP Client, until the empty path
+        // that ends the batch, and returns the number of files received.
+        private int receiveBatch(DataInputStream dataInputStream, String directoryName) throws IOException {
+            Path batchDirectory = ReceivedFiles.resolve(directoryName);
+            DataInputStream batchInputStream =
+                new DataInputStream(new BufferedInputStream(dataInputStream, BATCH_BUFFER_LENGTH));
+            byte[] buffer = new byte[context.getMessageSize()];
+            int numberOfFiles = 0;
+            String relativePath;
+            while (!(relativePath = batchInputStream.readUTF()).isEmpty()) {
+                long fileSize = batchInputStream.readLong();
+                Path path = ReceivedFiles.resolve(batchDirectory, relativePath);
+                Files.createDirectories(path.getParent());
+                // The file may be a hard link to a blob of the dedup store, so it is replaced instead of truncated.
+                try (OutputStream fileOutputStream = Channels.newOutputStream(FileStorage.createFile(path))) {
+                    long remainingBytes = fileSize;
+                    while (remainingBytes > 0) {
+                        int receivedBytes =
+                            batchInputStream.read(buffer, 0, (int) Math.min(buffer.length, remainingBytes));
+                        if (receivedBytes == -1) {
+                            throw new EOFException("The batch ended with " + remainingBytes + " bytes missing from " +
+                                "the file = " + relativePath);
+                        }
+                        fileOutputStream.write(buffer, 0, receivedBytes);
+                        remainingBytes -= receivedBytes;
+                    }
+                }
+                numberOfFiles++;
+                totalNumberOfMessages += 3;
+                countReceivedBytes(fileSize);
+            }
+            
+            return numberOfFiles;
+        }
+        
+        // Sends the size of the received file with the given name, -1 when there is none, then its content: from the
+        // hot file cache when the file is in it, otherwise straight from the file with transferTo (sendfile) on zero
+        // copy, or from a memory mapping of it, so the content is never copied through the heap.
+        private void sendFile(DataOutputStream dataOutputStream, String fileName) throws IOException {
+            Path file = null;
+            try {
+                file = ReceivedFiles.resolve(fileName);
+            } catch (IOException e) {
+                log.info("TCP Client asked for an invalid file path = {}", fileName);
+            }
+            if (file == null || !Files.isRegularFile(file)) {
+                dataOutputStream.writeLong(-1);
+                dataOutputStream.flush();
+                throw new IOException("The file = " + fileName + " asked by the TCP Client was not received.");
+            }
+            
+            ByteBuffer content = context.getDownloadCache().get(file);
+            if (content != null) {
+                openBandwidthSession(content.remaining());
+                dataOutputStream.writeLong(content.remaining());
+                dataOutputStream.flush();
+                writeContent(content);
+                return;
+            }
+            
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long fileSize = fileChannel.size();
+                openBandwidthSession(fileSize);
+                dataOutputStream.writeLong(fileSize);
+                dataOutputStream.flush();
+                long position = 0;
+                while (position < fileSize) {
+                    if (!context.isZeroCopy()) {
+                        ByteBuffer region = fileChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAX_MAPPED_REGION_LENGTH, fileSize - position));
+                        position += region.remaining();
+                        writeContent(region);
+                        continue;
+                    }
+                    
+                    // The message size is the chunk size of every transferTo call.
+                    long sentBytes = fileChannel.transferTo(position,
+                        Math.min(context.getMessageSize(), fileSize - position), clientChannel);
+                    if (sentBytes == 0) {
+                        throw new EOFException("The file = " + fileName + " was truncated while it was sent.");
+                    }
+                    position += sentBytes;
+                    totalNumberOfMessages++;
+                    countSentBytes(sentBytes);
+                }
+            }
+        }
+        
+        // A blocking write sends the whole buffer at once, so with a limited bandwidth the buffer is written a
+        // message at a time, each one paced to the share of the request.
+        private void writeContent(ByteBuffer content) throws IOException {
+            int limit = content.limit();
+            int maxWriteLength = context.getBandwidthScheduler().isLimited() ? context.getMessageSize() : limit;
+            while (content.hasRemaining()) {
+                content.limit((int) Math.min((long) content.position() + maxWriteLength, limit));
+                int sentBytes = clientChannel.write(content);
+                content.limit(limit);
+                totalNumberOfMessages++;
+                countSentBytes(sentBytes);
+            }
+        }
+        
+        private void openBandwidthSession(long transferSize) throws IOException {
+            String clientAddress = ((InetSocketAddress) clientChannel.getRemoteAddress()).getHostString();
+            bandwidthSession = context.getBandwidthScheduler().open(clientAddress, transferSize);
+        }
+        
+        // Sends the block signatures of the copy of the file already received, then rebuilds the new version from the
+        // delta sent by the TCP Client in a part file, which replaces the copy once its SHA-256 matches.
+        private boolean receiveDelta(DataInputStream dataInputStream, DataOutputStream dataOutputStream,
+                String fileName, long fileSize) throws IOException {
+            // The name is checked before the previous version is read or replaced.
+            Path previousFile = ReceivedFiles.resolve(fileName);
+            Path partFile = previousFile.resolveSibling(previousFile.getFileName() + "." +
+                Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".delta");
+            boolean rebuilt;
+            try (FileChannel previousFileChannel = Files.isRegularFile(previousFile) ?
+                    FileChannel.open(previousFile, StandardOpenOption.READ) : null;
+                FileChannel partFileChannel = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                BlockSignatures signatures = previousFileChannel != null ?
+                    BlockSignatures.compute(previousFileChannel,
+                        BlockSignatures.chooseBlockSize(previousFileChannel.size())) :
+                    BlockSignatures.none();
+                // The signatures are many small writes, so they are buffered.
+                DataOutputStream signaturesOutputStream =
+                    new DataOutputStream(new BufferedOutputStream(dataOutputStream, context.getMessageSize()));
+                signatures.write(signaturesOutputStream);
+                signaturesOutputStream.flush();
+                log.info("TCP Client is sent {} block signatures of the file = {} with block size = {}",
+                    signatures.getBlockCount(), fileName, signatures.getBlockSize());
+                
+                // The instructions are read through a buffer, along with the digest that follows them.
+                DataInputStream deltaInputStream = new DataInputStream(
+                    new BufferedInputStream(dataInputStream, DeltaEncoder.MAX_LITERAL_LENGTH));
+                DeltaDecoder decoder = new DeltaDecoder(previousFileChannel, signatures.getBlockSize());
+                byte[] receivedDigest = decoder.decode(deltaInputStream, partFileChannel, fileSize);
+                byte[] expectedDigest = new byte[FILE_DIGEST_LENGTH];
+                deltaInputStream.readFully(expectedDigest);
+                totalNumberOfMessages += decoder.getNumberOfInstructions() + 1;
+                countReceivedBytes(decoder.getLiteralBytes());
+                rebuilt = MessageDigest.isEqual(expectedDigest, receivedDigest);
+                
+                log.info("TCP Client sent the delta of the file = {} with {} literal bytes and " +
+                    "with {} bytes copied from the previous version",
+                    fileName, decoder.getLiteralBytes(), decoder.getCopiedBytes());
+            } catch (IOException e) {
+                Files.deleteIfExists(partFile);
+                throw e;
+            }
+            
+            if (!rebuilt) {
+                log.error("The SHA-256 of the rebuilt file = {} doesn't match the one of the TCP Client, " +
+                    "so the previous version is kept.", fileName);
+                Files.deleteIfExists(partFile);
+                return false;
+            }
+            Files.move(partFile, previousFile, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+        
+        // Links the file to the blob of the dedup store with the same SHA-256 when there is one and the TCP Client
+        // proves it has its content. Otherwise asks for the chunks of the file missing from the store, rebuilds the
+        // file in a part file from them and from the stored ones, and adds it to the store once its SHA-256 and the
+        // proof match.
+        private boolean receiveDedupFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream,
+                String fileName, long fileSize) throws IOException {
+            DedupStore store = context.getDedupStore();
+            Path file = ReceivedFiles.resolve(fileName);
+            if (fileSize > FileRecipe.MAX_FILE_SIZE) {
+                throw new IOException("The file = " + fileName + " with file size = " + fileSize +
+                    " is larger than the dedup store accepts.");
+            }
+            
+            // Read the digest of the file and reply whether the store has it already, with a random challenge. The
+            // digest of a file may be known without its content, so the content stored is reused only once the TCP
+            // Client proves it has it, with the SHA-256 of the challenge followed by the content.
+            byte[] fileDigest = new byte[FILE_DIGEST_LENGTH];
+            dataInputStream.readFully(fileDigest);
+            boolean alreadyStored = store.hasBlob(fileDigest);
+            byte[] challenge = new byte[FILE_DIGEST_LENGTH];
+            DEDUP_CHALLENGES.nextBytes(challenge);
+            dataOutputStream.writeBoolean(alreadyStored);
+            dataOutputStream.write(challenge);
+            dataOutputStream.flush();
+            byte[] proof = new byte[FILE_DIGEST_LENGTH];
+            dataInputStream.readFully(proof);
+            totalNumberOfMessages += 2;
+            if (alreadyStored) {
+                byte[] expectedProof = store.digestBlob(fileDigest, challenge);
+                if (expectedProof == null || !MessageDigest.isEqual(expectedProof, proof) ||
+                        !store.linkBlob(fileDigest, file)) {
+                    log.error("The TCP Client didn't prove it has the content of the file = {}, so it is not linked " +
+                        "to the dedup store.", fileName);
+                    return false;
+                }
+                TCPServerMetrics.DEDUP_REUSED_BYTES.add(fileSize);
+                log.info("The file = {} with file size = {} is already in the dedup store, so it is linked to it " +
+                    "without being transfered.", fileName, fileSize);
+                return true;
+            }
+            
+            // The recipe is many small reads, so it is read through a buffer, along with the chunks that follow it.
+            DataInputStream recipeInputStream =
+                new DataInputStream(new BufferedInputStream(dataInputStream, BATCH_BUFFER_LENGTH));
+            FileRecipe recipe = FileRecipe.read(recipeInputStream, fileDigest, fileSize);
+            totalNumberOfMessages += recipe.getChunkCount() + 1;
+            
+            // The chunks repeated within the file are asked once and copied from the part file after.
+            ChunkLocation[] locations = new ChunkLocation[recipe.getChunkCount()];
+            boolean[] newChunks = new boolean[recipe.getChunkCount()];
+            Map<ByteBuffer, ChunkLocation> receivedChunks = new HashMap<>();
+            List<long[]> missingChunks = new ArrayList<>();
+            long offset = 0;
+            for (int i = 0; i < recipe.getChunkCount(); i++) {
+                ByteBuffer chunkDigest = ByteBuffer.wrap(recipe.getChunkDigest(i));
+                locations[i] = receivedChunks.get(chunkDigest);
+                if (locations[i] == null) {
+                    locations[i] = store.findChunk(recipe.getChunkDigest(i));
+                }
+                if (locations[i] == null) {
+                    newChunks[i] = true;
+                    receivedChunks.put(chunkDigest, new ChunkLocation(null, offset, recipe.getChunkLength(i)));
+                    missingChunks.add(new long[] { i, recipe.getChunkLength(i) });
+                }
+                offset += recipe.getChunkLength(i);
+            }
+            
+            // Send the index and the length of every missing chunk, which the TCP Client sends in this order.
+            DataOutputStream missingChunksOutputStream =
+                new DataOutputStream(new BufferedOutputStream(dataOutputStream, context.getMessageSize()));
+            writeRanges(missingChunksOutputStream, missingChunks);
+            missingChunksOutputStream.flush();
+            
+            Path partFile = store.createPartFile();
+            long reusedBytes = 0;
+            boolean verified;
+            try (FileChannel partFileChannel = FileChannel.open(partFile, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+                DedupStore.BlobReader blobReader = store.openBlobReader()) {
+                MessageDigest receivedDigest = Checksums.newFileDigest();
+                MessageDigest proofDigest = Checksums.newFileDigest();
+                proofDigest.update(challenge);
+                MessageDigest chunkDigest = Checksums.newFileDigest();
+                byte[] buffer = new byte[ContentDefinedChunker.MAX_CHUNK_LENGTH];
+                long position = 0;
+                for (int i = 0; i < recipe.getChunkCount(); i++) {
+                    int length = recipe.getChunkLength(i);
+                    if (newChunks[i]) {
+                        recipeInputStream.readFully(buffer, 0, length);
+                        totalNumberOfMessages++;
+                        countReceivedBytes(length);
+                        // A chunk is indexed by its digest, so a chunk that doesn't match it would poison the store.
+                        chunkDigest.update(buffer, 0, length);
+                        if (!MessageDigest.isEqual(chunkDigest.digest(), recipe.getChunkDigest(i))) {
+                            throw new IOException("The chunk = " + i + " of the file = " + fileName +
+                                " doesn't match its SHA-256.");
+                        }
+                    } else {
+                        if (locations[i].getBlobDigest() != null) {
+                            blobReader.read(locations[i], buffer);
+                        } else {
+                            readFully(partFileChannel, locations[i].getOffset(), buffer, length);
+                        }
+                        reusedBytes += length;
+                    }
+                    
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+                    while (chunk.hasRemaining()) {
+                        partFileChannel.write(chunk, position + chunk.position());
+                    }
+                    receivedDigest.update(buffer, 0, length);
+                    proofDigest.update(buffer, 0, length);
+                    position += length;
+                }
+                // The chunks reused from the store need the proof as well, the received ones are proven by the data.
+                verified = MessageDigest.isEqual(fileDigest, receivedDigest.digest()) &&
+                    (reusedBytes == 0 || MessageDigest.isEqual(proof, proofDigest.digest()));
+            } catch (IOException e) {
+                Files.deleteIfExists(partFile);
+                throw e;
+            }
+            
+            if (!verified) {
+                log.error("The SHA-256 of the rebuilt file = {} doesn't match the one of the TCP Client, or the TCP " +
+                    "Client didn't prove it has the content reused from the dedup store, so it is not stored.",
+                    fileName);
+                Files.deleteIfExists(partFile);
+                return false;
+            }
+            store.addBlob(partFile, recipe, newChunks, file);
+            TCPServerMetrics.DEDUP_REUSED_BYTES.add(reusedBytes);
+            log.info("TCP Client sent {} chunks of {} of the file = {} with {} bytes reused from the dedup store",
+                missingChunks.size(), recipe.getChunkCount(), fileName, reusedBytes);
+            return true;
+        }
+        
+        private static void readFully(FileChannel fileChannel, long position, byte[] buffer, int length)
+                throws IOException {
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+            while (data.hasRemaining()) {
+                if (fileChannel.read(data, position + data.position()) == -1) {
+                    throw new EOFException("The file ended at " + (position + data.position()) + " bytes.");
+                }
+            }
+        }
+        
+        // Receives the chunks of the given range of the file and returns the ranges of the corrupt ones, which are
+        // not written. The chunks are hashed when asked, up to the first corrupt one.
+        private List<long[]> receiveChunks(DataInputStream dataInputStream, FileChannel fileChannel, long offset,
+                long length, boolean hashed) throws IOException, InterruptedException {
+            List<long[]> corruptRanges = new ArrayList<>();
+            long position = offset;
+            while (position < offset + length) {
+                int rawLength = readChunk(dataInputStream, offset + length - position);
+                if (corruptChunk) {
+                    corruptRanges.add(new long[] { position, rawLength });
+                } else {
+                    ByteBuffer buffer = ByteBuffer.wrap(rawBuffer, 0, rawLength);
+                    while (buffer.hasRemaining()) {
+                        fileChannel.write(buffer, position + buffer.position());
+                    }
+                    if (hashed && corruptRanges.isEmpty()) {
+                        digest.update(rawBuffer, 0, rawLength);
+                    }
+                }
+                position += rawLength;
+            }
+            
+            return corruptRanges;
+        }
+        
+        // Every range is an offset and a length followed by the range content, until a range with a negative offset.
+        // Returns true when this connection completed the file.
+        private boolean receiveRanges(DataInputStream dataInputStream, String fileName, long fileSize)
+                throws IOException, InterruptedException {
+            int messageSize = context.getMessageSize();
+            
+            // Read the transfer id, shared by all the connections of the transfer.
+            long transferId = dataInputStream.readLong();
+            totalNumberOfMessages++;
+            
+            RangeTransfer transfer = context.getRangeTransfers().open(transferId, fileName, fileSize);
+            ByteBuffer buffer = context.isZeroCopy() ? null : ByteBuffer.allocate(messageSize);
+            // The part file is already preallocated by the range transfer.
+            try (AsyncFileWriter fileWriter =
+                context.getStorage().openWriter(transfer.getFileChannel(), fileSize, true)) {
+                while (true) {
+                    // Read the range offset and length.
+                    long offset = dataInputStream.readLong();
+                    long length = dataInputStream.readLong();
+                    totalNumberOfMessages++;
+                    if (offset < 0) {
+                        break;
+                    }
+                    transfer.checkRange(offset, length);
+                    
+                    if (integrity) {
+                        receiveVerifiedRange(dataInputStream, transfer, fileWriter, offset, length);
+                    } else {
+                        receiveRange(dataInputStream, transfer, fileWriter, offset, length, buffer);
+                    }
+                }
+            }
+            
+            return context.getRangeTransfers().completeIfReceived(transfer);
+        }
+        
+        private void receiveRange(DataInputStream dataInputStream, RangeTransfer transfer,
+                AsyncFileWriter fileWriter, long offset, long length, ByteBuffer buffer) throws IOException {
+            int messageSize = context.getMessageSize();
+            
+            // Read the range content.
+            long position = offset;
+            try {
+                while (position < offset + length) {
+                    int chunkSize = (int) Math.min(messageSize, offset + length - position);
+                    long receivedBytes;
+                    if (codec != null) {
+                        // The chunk is counted with its compressed length by readChunk.
+                        receivedBytes = readChunk(dataInputStream, offset + length - position);
+                        fileWriter.write(rawBuffer, 0, (int) receivedBytes, position);
+                    } else if (context.isZeroCopy()) {
+                        receivedBytes = transfer.transferFrom(clientChannel, position, chunkSize);
+                        if (receivedBytes == 0) {
+                            throw new EOFException("The TCP Client closed the connection with " +
+                                (offset + length - position) + " bytes of the range left to send.");
+                        }
+                        totalNumberOfMessages++;
+                        countReceivedBytes(receivedBytes);
+                    } else {
+                        buffer.clear().limit(chunkSize);
+                        receivedBytes = clientChannel.read(buffer);
+                        if (receivedBytes == -1) {
+                            throw new EOFException("The TCP Client closed the connection with " +
+                                (offset + length - position) + " bytes of the range left to send.");
+                        }
+                        buffer.flip();
+                        fileWriter.write(buffer, position);
+                        totalNumberOfMessages++;
+                        countReceivedBytes(receivedBytes);
+                    }
+                    position += receivedBytes;
+                }
+            } finally {
+                // The received part of an interrupted range is kept in the checkpoint as well, once it is written.
+                fileWriter.flush();
+                transfer.addReceivedRange(offset, position - offset);
+            }
+        }
+        
+        // The range content is sent as chunks that carry a CRC32C, followed by the SHA-256 of the range. The range
+        // is kept in the checkpoint only when all its chunks and its digest match, otherwise the TCP Client finds it
+        // among the missing ranges and sends it again.
+        private void receiveVerifiedRange(DataInputStream dataInputStream, RangeTransfer transfer,
+                AsyncFileWriter fileWriter, long offset, long length) throws IOException, InterruptedException {
+            boolean rangeCorrupt = false;
+            long position = offset;
+            while (position < offset + length) {
+                int rawLength = readChunk(dataInputStream, offset + length - position);
+                if (corruptChunk) {
+                    rangeCorrupt = true;
+                } else {
+                    fileWriter.write(rawBuffer, 0, rawLength, position);
+                    digest.update(rawBuffer, 0, rawLength);
+                }
+                position += rawLength;
+            }
+            
+            // Read the digest of the range.
+            byte[] expectedDigest = new byte[FILE_DIGEST_LENGTH];
+            dataInputStream.readFully(expectedDigest);
+            totalNumberOfMessages++;
+            
+            if (!MessageDigest.isEqual(expectedDigest, digest.digest()) || rangeCorrupt) {
+                log.warn("The range with offset = {} and with length = {} of the file = {} arrived corrupt, " +
+                    "so it is left for the TCP Client to resend.", offset, length, transfer.getFileName());
+                return;
+            }
+            fileWriter.flush();
+            transfer.addReceivedRange(offset, length);
+        }
+        
+        // Reads a chunk sent as its compressed flag, raw length, length, CRC32C when the integrity is checked, and
+        // data, and returns its raw length. The file bytes of the chunk are then at the start of the raw buffer,
+        // unless the chunk arrived corrupt, which readChunk flags in corruptChunk.
+        private int readChunk(DataInputStream dataInputStream, long remainingBytes) throws IOException {
+            boolean compressed = dataInputStream.readBoolean();
+            int rawLength = dataInputStream.readInt();
+            int length = dataInputStream.readInt();
+            int checksum = integrity ? dataInputStream.readInt() : 0;
+            if (rawLength <= 0 || rawLength > remainingBytes || rawLength > MAX_CHUNK_LENGTH || length <= 0 ||
+                    (compressed ? codec == null || length > rawLength : length != rawLength)) {
+                throw new IOException("Invalid chunk with raw length = " + rawLength + " and length = " + length +
+                    " with " + remainingBytes + " bytes left to receive.");
+            }
+            
+            if (rawBuffer.length < rawLength) {
+                rawBuffer = new byte[rawLength];
+            }
+            if (compressed) {
+                if (compressedBuffer.length < length) {
+                    compressedBuffer = new byte[length];
+                }
+                dataInputStream.readFully(compressedBuffer, 0, length);
+                corruptChunk = integrity && crc32c(compressedBuffer, 0, length) != checksum;
+                if (!corruptChunk) {
+                    codec.decompress(compressedBuffer, 0, length, rawBuffer, 0, rawLength);
+                }
+            } else {
+                dataInputStream.readFully(rawBuffer, 0, rawLength);
+                corruptChunk = integrity && crc32c(rawBuffer, 0, rawLength) != checksum;
+            }
+            totalNumberOfMessages++;
+            countReceivedBytes(length);
+            if (corruptChunk) {
+                TCPServerMetrics.CORRUPT_CHUNKS.increment();
+                log.warn("TCP Client sent a corrupt chunk with raw length = {} and with length = {} " +
+                    "with {} bytes left to receive.", rawLength, length, remainingBytes);
+            }
+            
+            return rawLength;
+        }
+        
+        // Sends the offset and the length of every range of the file the TCP Server doesn't have yet.
+        private void sendMissingRanges(DataInputStream dataInputStream, DataOutputStream dataOutputStream,
+                String fileName, long fileSize) throws IOException {
+            // Read the transfer id of the transfer to resume.
+            long transferId = dataInputStream.readLong();
+            totalNumberOfMessages++;
+            
+            RangeTransfer transfer = context.getRangeTransfers().open(transferId, fileName, fileSize);
+            List<long[]> missingRanges = transfer.getMissingRanges();
+            log.info("TCP Client resumes the transfer = {} of the file = {} with {} bytes received of {} " +
+                "and with {} missing ranges",
+                transferId, fileName, transfer.getReceivedBytes(), fileSize, missingRanges.size());
+            
+            writeRanges(dataOutputStream, missingRanges);
+        }
+        
+        // The received bytes are counted as they arrive, so the rate of the metrics follows the long transfers, and
+        // charged to the bandwidth share of the request. While the request waits for its share, the TCP Client is
+        // held back by the flow control of TCP.
+        private void countReceivedBytes(long receivedBytes) throws IOException {
+            totalNumberOfBytes += receivedBytes;
+            TCPServerMetrics.RECEIVED_BYTES.add(receivedBytes);
+            bandwidthSession.charge(receivedBytes);
+        }
+        
+        private void countSentBytes(long sentBytes) throws IOException {
+            TCPServerMetrics.SENT_BYTES.add(sentBytes);
+            bandwidthSession.charge(sentBytes);
+        }
+        
+        private void writeRanges(DataOutputStream dataOutputStream, List<long[]> ranges) throws IOException {
+            dataOutputStream.writeInt(ranges.size());
+            for (long[] range : ranges) {
+                dataOutputStream.writeLong(range[0]);
+                dataOutputStream.writeLong(range[1]);
+            }
+        }
     }
 }
\ No newline at end of file
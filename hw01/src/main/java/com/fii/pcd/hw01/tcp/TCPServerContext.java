@@ -0,0 +1,27 @@
+package com.fii.pcd.hw01.tcp;
+
+import com.fii.pcd.hw01.bandwidth.BandwidthScheduler;
+import com.fii.pcd.hw01.dedup.DedupStore;
+import com.fii.pcd.hw01.storage.FileStorage;
+import com.fii.pcd.hw01.storage.HotFileCache;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// The settings and the state shared by all the connections of the TCP Server.
+@AllArgsConstructor
+@Getter
+public class TCPServerContext {
+    private final int messageSize;
+    // Receive the file content straight from the socket into the file with FileChannel.transferFrom.
+    private final boolean zeroCopy;
+    // The files received as byte ranges over several connections.
+    private final RangeTransferRegistry rangeTransfers;
+    // Writes the received files off the connection threads.
+    private final FileStorage storage;
+    // Stores the files uploaded for deduplication once per content.
+    private final DedupStore dedupStore;
+    // Keeps the files downloaded often in memory.
+    private final HotFileCache downloadCache;
+    // Shares the bandwidth between the TCP Clients, the small transfers first.
+    private final BandwidthScheduler bandwidthScheduler;
+}
\ No newline at end of file
@@ -0,0 +1,31 @@
+package com.fii.pcd.hw01.tcp;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+
+// Accepts the TCP Client connections of the TCP Server and runs their file transfer requests.
+public interface TCPServerEngine {
+    void serve(ServerSocketChannel serverSocketChannel) throws IOException, InterruptedException;
+    
+    static TCPServerEngine create(Type type, TCPServerContext context, int threadCount, int maxConnections) {
+        switch (type) {
+            case THREAD_POOL:
+                return new ThreadPoolServerEngine(context, threadCount);
+            case VIRTUAL_THREAD:
+                return new VirtualThreadServerEngine(context, threadCount, maxConnections);
+            case SELECTOR:
+                return new SelectorServerEngine(context, threadCount, maxConnections);
+            default:
+                throw new IllegalArgumentException("Invalid TCP Server engine type!");
+        }
+    }
+    
+    static enum Type {
+        // A fixed pool of threads, each one handling a connection at a time.
+        THREAD_POOL,
+        // A thread per connection, on virtual threads when the Java runtime has them, else on a pool of threads.
+        VIRTUAL_THREAD,
+        // Non-blocking reactors, each one multiplexing many connections on a Selector.
+        SELECTOR
+    }
+}
\ No newline at end of file
@@ -0,0 +1,29 @@
+package com.fii.pcd.hw01.tcp;
+
+import com.fii.pcd.hw01.metrics.Histogram;
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.experimental.UtilityClass;
+
+// The metrics of the TCP Server, shared by all its engines.
+@UtilityClass
+class TCPServerMetrics {
+    static final LongAdder ACTIVE_REQUESTS = MetricsRegistry.upDownCounter("tcp_server_active_requests",
+        "The TCP Client requests in progress.");
+    static final LongAdder REQUESTS = MetricsRegistry.counter("tcp_server_requests_total",
+        "The TCP Client requests processed successfully.");
+    static final LongAdder FAILED_REQUESTS = MetricsRegistry.counter("tcp_server_failed_requests_total",
+        "The TCP Client requests that failed to be processed.");
+    static final LongAdder RECEIVED_BYTES = MetricsRegistry.meter("tcp_server_received_bytes",
+        "The bytes of file content received, as sent over the network.");
+    static final LongAdder SENT_BYTES = MetricsRegistry.meter("tcp_server_sent_bytes",
+        "The bytes of file content sent to the TCP Clients that download it.");
+    static final LongAdder RECEIVED_MESSAGES = MetricsRegistry.counter("tcp_server_received_messages_total",
+        "The messages received, counted when their request ends.");
+    static final LongAdder CORRUPT_CHUNKS = MetricsRegistry.counter("tcp_server_corrupt_chunks_total",
+        "The chunks received with a CRC32C that doesn't match, which are asked again.");
+    static final LongAdder DEDUP_REUSED_BYTES = MetricsRegistry.counter("tcp_server_dedup_reused_bytes_total",
+        "The bytes of file content the TCP Clients didn't send, since the dedup store had them.");
+    static final Histogram REQUEST_MILLIS = MetricsRegistry.histogram("tcp_server_request_millis",
+        "The time to process a TCP Client request, in milliseconds.");
+}
\ No newline at end of file
@@ -0,0 +1,39 @@
+package com.fii.pcd.hw01.tcp;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+@AllArgsConstructor
+@Slf4j
+public class ThreadPoolServerEngine implements TCPServerEngine {
+    private final TCPServerContext context;
+    private final int threadCount;
+    
+    @Override
+    public void serve(ServerSocketChannel serverSocketChannel) throws IOException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>());
+        // The accepted connections waiting for a thread of the pool.
+        MetricsRegistry.gauge("tcp_server_executor_queue_depth", "The TCP Client requests waiting for a thread.",
+            () -> executor.getQueue().size());
+        log.info("TCP Server is handling the client requests on a pool of {} threads.", threadCount);
+        
+        try {
+            while (true) {
+                SocketChannel clientChannel = serverSocketChannel.accept();
+                Runnable clientRequestHandler =
+                    new TCPServer.TCPClientRequestHandler(clientChannel, context);
+                executor.execute(clientRequestHandler);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
\ No newline at end of file
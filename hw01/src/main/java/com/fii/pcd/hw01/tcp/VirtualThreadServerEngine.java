@@ -0,0 +1,83 @@
+package com.fii.pcd.hw01.tcp;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+@AllArgsConstructor
+@Slf4j
+public class VirtualThreadServerEngine implements TCPServerEngine {
+    private final TCPServerContext context;
+    // The platform threads handling the connections when the Java runtime has no virtual threads.
+    private final int threadCount;
+    // Bounds the memory used by the connections (a message buffer and a thread stack each).
+    private final int maxConnections;
+    
+    @Override
+    public void serve(ServerSocketChannel serverSocketChannel) throws IOException, InterruptedException {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        int connectionLimit = maxConnections;
+        if (executor != null) {
+            log.info("TCP Server is handling the client requests on virtual threads.");
+        } else {
+            // A thread per connection would be a platform thread per connection, up to the maximum number of
+            // connections, so the connections are bounded by a pool of platform threads instead.
+            connectionLimit = Math.min(maxConnections, threadCount);
+            executor = newPlatformThreadExecutor(connectionLimit);
+            log.warn("Virtual threads are not available on Java {}, so the client requests are handled " +
+                "on a pool of {} platform threads.", Runtime.version().feature(), connectionLimit);
+        }
+        Semaphore connections = new Semaphore(connectionLimit);
+        
+        try {
+            while (true) {
+                // Stop accepting when the limit is reached, so the new TCP Clients wait in the backlog.
+                connections.acquire();
+                SocketChannel clientChannel = serverSocketChannel.accept();
+                Runnable clientRequestHandler =
+                    new TCPServer.TCPClientRequestHandler(clientChannel, context);
+                try {
+                    executor.execute(() -> {
+                        try {
+                            clientRequestHandler.run();
+                        } finally {
+                            connections.release();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    connections.release();
+                    clientChannel.close();
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    private static ExecutorService newPlatformThreadExecutor(int threadCount) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
+    // Returns null when the Java runtime has no virtual threads. Shared by everything that runs a virtual thread
+    // per task, so the runtime lookup is in one place.
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            // Virtual threads are available from Java 21 on, so they are looked up at runtime.
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,43 @@
+package com.fii.pcd.hw01.udp;
+
+// Additive increase / multiplicative decrease with slow start, as in TCP Reno.
+public class AimdCongestionController implements CongestionController {
+    private static final double MIN_WINDOW = 2;
+    
+    private double congestionWindow = INITIAL_WINDOW;
+    private double slowStartThreshold = Double.MAX_VALUE;
+    // The losses of the messages sent before this sequence number belong to the same congestion event.
+    private long recoverySeqNumber;
+    
+    @Override
+    public double getCongestionWindow() {
+        return congestionWindow;
+    }
+    
+    @Override
+    public void onAcknowledged(int numberOfMessagesAcknowledged, long rttNanos, RttEstimator rttEstimator) {
+        if (congestionWindow < slowStartThreshold) {
+            // Slow start: the window doubles every round trip.
+            congestionWindow += numberOfMessagesAcknowledged;
+        } else {
+            // Congestion avoidance: the window grows with one message every round trip.
+            congestionWindow += numberOfMessagesAcknowledged / congestionWindow;
+        }
+    }
+    
+    @Override
+    public void onLoss(long seqNumber, long highestSentSeqNumber) {
+        if (seqNumber < recoverySeqNumber) {
+            return;
+        }
+        
+        slowStartThreshold = Math.max(congestionWindow / 2, MIN_WINDOW);
+        congestionWindow = slowStartThreshold;
+        recoverySeqNumber = highestSentSeqNumber + 1;
+    }
+    
+    @Override
+    public String toString() {
+        return "AIMD";
+    }
+}
\ No newline at end of file
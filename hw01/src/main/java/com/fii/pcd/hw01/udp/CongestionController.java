@@ -0,0 +1,61 @@
+package com.fii.pcd.hw01.udp;
+
+// Decides how many messages the UDP Client may have in flight (the congestion window).
+public interface CongestionController {
+    // The initial congestion window, in messages (RFC 6928).
+    int INITIAL_WINDOW = 10;
+    
+    double getCongestionWindow();
+    
+    void onAcknowledged(int numberOfMessagesAcknowledged, long rttNanos, RttEstimator rttEstimator);
+    
+    // Called when the retransmit timer of the given sequence number expired, while the highest sent
+    // sequence number was the given one.
+    void onLoss(long seqNumber, long highestSentSeqNumber);
+    
+    static CongestionController create(Type type, int windowSize) {
+        switch (type) {
+            case AIMD:
+                return new AimdCongestionController();
+            case DELAY:
+                return new DelayBasedCongestionController();
+            case NONE:
+                return new FixedWindowController(windowSize);
+            default:
+                throw new IllegalArgumentException("Invalid congestion control type!");
+        }
+    }
+    
+    static enum Type {
+        AIMD,
+        DELAY,
+        NONE
+    }
+    
+    // Keeps the whole window in flight, as the UDP Client did before the congestion control.
+    static class FixedWindowController implements CongestionController {
+        private final int windowSize;
+        
+        FixedWindowController(int windowSize) {
+            this.windowSize = windowSize;
+        }
+        
+        @Override
+        public double getCongestionWindow() {
+            return windowSize;
+        }
+        
+        @Override
+        public void onAcknowledged(int numberOfMessagesAcknowledged, long rttNanos, RttEstimator rttEstimator) {
+        }
+        
+        @Override
+        public void onLoss(long seqNumber, long highestSentSeqNumber) {
+        }
+        
+        @Override
+        public String toString() {
+            return "NONE";
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,66 @@
+package com.fii.pcd.hw01.udp;
+
+// Delay based congestion control in the spirit of TCP Vegas: the window is adjusted once per round trip
+// by comparing the expected throughput (window / minimum RTT) with the actual one (window / RTT), so the
+// queues along the path are kept short instead of being filled until a message is lost.
+public class DelayBasedCongestionController implements CongestionController {
+    private static final double MIN_WINDOW = 2;
+    // Lower and upper bounds for the number of messages queued along the path.
+    private static final double ALPHA = 2;
+    private static final double BETA = 4;
+    
+    private double congestionWindow = INITIAL_WINDOW;
+    private boolean slowStart = true;
+    private int acknowledgedInRound;
+    private long minRttInRoundNanos = Long.MAX_VALUE;
+    private long recoverySeqNumber;
+    
+    @Override
+    public double getCongestionWindow() {
+        return congestionWindow;
+    }
+    
+    @Override
+    public void onAcknowledged(int numberOfMessagesAcknowledged, long rttNanos, RttEstimator rttEstimator) {
+        acknowledgedInRound += numberOfMessagesAcknowledged;
+        minRttInRoundNanos = Math.min(minRttInRoundNanos, rttNanos);
+        if (acknowledgedInRound < congestionWindow) {
+            return;
+        }
+        
+        // A round trip worth of messages was acknowledged, so estimate the queued messages.
+        double baseRtt = rttEstimator.getMinRttNanos();
+        double queuedMessages = congestionWindow * (1 - baseRtt / Math.max(minRttInRoundNanos, 1));
+        if (slowStart) {
+            if (queuedMessages > ALPHA) {
+                slowStart = false;
+                congestionWindow = Math.max(congestionWindow - queuedMessages, MIN_WINDOW);
+            } else {
+                congestionWindow *= 2;
+            }
+        } else if (queuedMessages < ALPHA) {
+            congestionWindow++;
+        } else if (queuedMessages > BETA) {
+            congestionWindow = Math.max(congestionWindow - 1, MIN_WINDOW);
+        }
+        
+        acknowledgedInRound = 0;
+        minRttInRoundNanos = Long.MAX_VALUE;
+    }
+    
+    @Override
+    public void onLoss(long seqNumber, long highestSentSeqNumber) {
+        if (seqNumber < recoverySeqNumber) {
+            return;
+        }
+        
+        slowStart = false;
+        congestionWindow = Math.max(congestionWindow * 3 / 4, MIN_WINDOW);
+        recoverySeqNumber = highestSentSeqNumber + 1;
+    }
+    
+    @Override
+    public String toString() {
+        return "DELAY";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,65 @@
+package com.fii.pcd.hw01.udp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import lombok.experimental.UtilityClass;
+
+import static com.fii.pcd.hw01.udp.UDPUtils.CONTROL_DATA_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.FLAGS_OFFSET;
+
+// The layout and the code of the parity messages. A parity message has the sequence number of the first data
+// message of its block, the PARITY flag, the block length, the parity count and the parity index, followed by the
+// parity of the payloads of the block. The payload of a data message is its flags, its data length and its data,
+// padded with zeros, so the parity rebuilds the whole message.
+// The parity j of a block is the sum of the payloads multiplied by the Cauchy coefficients 1 / (x_j + y_i), with
+// x_j = MAX_BLOCK_LENGTH + j and y_i = i, since every square sub matrix of a Cauchy matrix is invertible. A block
+// with a single parity uses the coefficient 1, which makes it the XOR of the payloads.
+@UtilityClass
+class FecCode {
+    static final int MAX_BLOCK_LENGTH = 64;
+    static final int MAX_PARITY_COUNT = 16;
+    // The block length, the parity count and the parity index.
+    static final int PARITY_HEADER_LENGTH = 3;
+    // The flags and the data length of a data message, protected along with its data.
+    static final int PAYLOAD_HEADER_LENGTH = 1 + Short.BYTES;
+    // The data messages give up this many bytes, so their parity fits in a message as well.
+    static final int DATA_OVERHEAD = PARITY_HEADER_LENGTH + PAYLOAD_HEADER_LENGTH;
+    
+    static int payloadLength(int messageSize) {
+        return messageSize - CONTROL_DATA_LENGTH - PARITY_HEADER_LENGTH;
+    }
+    
+    static int coefficient(int parityCount, int parityIndex, int blockIndex) {
+        if (parityCount == 1) {
+            return 1;
+        }
+        
+        return GaloisField.inverse((MAX_BLOCK_LENGTH + parityIndex) ^ blockIndex);
+    }
+    
+    // Copies the flags, the data length and the data of the message into the payload, padded with zeros.
+    static void readPayload(ByteBuffer message, byte[] payload) {
+        int dataLength = message.limit() - CONTROL_DATA_LENGTH;
+        payload[0] = message.get(FLAGS_OFFSET);
+        payload[1] = (byte) (dataLength >> 8);
+        payload[2] = (byte) dataLength;
+        message.get(CONTROL_DATA_LENGTH, payload, PAYLOAD_HEADER_LENGTH, dataLength);
+        Arrays.fill(payload, PAYLOAD_HEADER_LENGTH + dataLength, payload.length, (byte) 0);
+    }
+    
+    // Encodes the message rebuilt from the payload, without a timestamp and without a checksum, since it was not
+    // received. Returns false when the payload is not the one of a data message.
+    static boolean writeMessage(byte[] payload, ByteBuffer message, long sessionId, long seqNumber) {
+        int dataLength = ((payload[1] & 0xff) << 8) | (payload[2] & 0xff);
+        if (PAYLOAD_HEADER_LENGTH + dataLength > payload.length ||
+                CONTROL_DATA_LENGTH + dataLength > message.capacity()) {
+            return false;
+        }
+        
+        message.clear();
+        UDPUtils.setUDPControlData(message, sessionId, seqNumber, payload[0], 0);
+        message.put(CONTROL_DATA_LENGTH, payload, PAYLOAD_HEADER_LENGTH, dataLength);
+        message.limit(CONTROL_DATA_LENGTH + dataLength);
+        return true;
+    }
+}
\ No newline at end of file
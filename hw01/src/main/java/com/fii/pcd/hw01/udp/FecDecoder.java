@@ -0,0 +1,190 @@
+package com.fii.pcd.hw01.udp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.Getter;
+
+import static com.fii.pcd.hw01.udp.FecCode.MAX_BLOCK_LENGTH;
+import static com.fii.pcd.hw01.udp.FecCode.MAX_PARITY_COUNT;
+import static com.fii.pcd.hw01.udp.FecCode.PARITY_HEADER_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.CONTROL_DATA_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.getSequenceNumber;
+
+// Rebuilds the data messages lost by an UDP receive session from the parity messages of their block. The payloads
+// of the last data messages are kept in a ring, indexed by (sequence number % ring length), which spans the receive
+// window and the longest block before it. The parities are kept per block until the block is complete.
+class FecDecoder {
+    private final int payloadLength;
+    private final byte[][] payloads;
+    private final long[] payloadSeqNumbers;
+    // The blocks with parities, by their first sequence number.
+    private final TreeMap<Long, Block> blocks = new TreeMap<>();
+    private final ArrayDeque<byte[]> freeParities = new ArrayDeque<>();
+    private final int[] lostIndexes = new int[MAX_BLOCK_LENGTH];
+    // The data messages rebuilt by the last recovery.
+    private final long[] recoveredSeqNumbers = new long[MAX_PARITY_COUNT];
+    private final byte[][] recoveredPayloads = new byte[MAX_PARITY_COUNT][];
+    @Getter
+    private int numberOfRecoveredMessages;
+    
+    FecDecoder(int windowSize, int messageSize) {
+        this.payloadLength = FecCode.payloadLength(messageSize);
+        this.payloads = new byte[windowSize + MAX_BLOCK_LENGTH][];
+        this.payloadSeqNumbers = new long[payloads.length];
+        Arrays.fill(payloadSeqNumbers, -1);
+    }
+    
+    // Keeps the payload of a data message accepted by the session.
+    void onDataMessage(long seqNumber, ByteBuffer message) {
+        int slot = slot(seqNumber);
+        if (payloads[slot] == null) {
+            payloads[slot] = new byte[payloadLength];
+        }
+        FecCode.readPayload(message, payloads[slot]);
+        payloadSeqNumbers[slot] = seqNumber;
+    }
+    
+    // Keeps the parity of the message, unless its block is already received in order or doesn't fit in the receive
+    // window. Returns the first sequence number of the block, or -1 when the parity is dropped.
+    long onParityMessage(ByteBuffer message, long lastAckSeq, int windowSize) {
+        long firstSeqNumber = getSequenceNumber(message);
+        int blockLength = message.get(CONTROL_DATA_LENGTH) & 0xff;
+        int parityCount = message.get(CONTROL_DATA_LENGTH + 1) & 0xff;
+        int parityIndex = message.get(CONTROL_DATA_LENGTH + 2) & 0xff;
+        long lastSeqNumber = firstSeqNumber + blockLength - 1;
+        if (message.limit() != CONTROL_DATA_LENGTH + PARITY_HEADER_LENGTH + payloadLength || blockLength < 1 ||
+                blockLength > MAX_BLOCK_LENGTH || parityCount < 1 || parityCount > MAX_PARITY_COUNT ||
+                parityIndex >= parityCount || firstSeqNumber < 1 || lastSeqNumber <= lastAckSeq ||
+                lastSeqNumber > lastAckSeq + windowSize) {
+            return -1;
+        }
+        
+        Block block = blocks.get(firstSeqNumber);
+        if (block == null) {
+            block = new Block(blockLength, parityCount);
+            blocks.put(firstSeqNumber, block);
+        } else if (block.length != blockLength || block.parityCount != parityCount ||
+                block.parities[parityIndex] != null) {
+            return -1;
+        }
+        
+        byte[] parity = freeParities.isEmpty() ? new byte[payloadLength] : freeParities.poll();
+        message.get(CONTROL_DATA_LENGTH + PARITY_HEADER_LENGTH, parity, 0, payloadLength);
+        block.parities[parityIndex] = parity;
+        block.numberOfParities++;
+        
+        return firstSeqNumber;
+    }
+    
+    // Returns the first sequence number of the block with parities that holds the sequence number, or -1.
+    long findBlock(long seqNumber) {
+        Map.Entry<Long, Block> block = blocks.floorEntry(seqNumber);
+        
+        return block != null && seqNumber < block.getKey() + block.getValue().length ? block.getKey() : -1;
+    }
+    
+    // Rebuilds the lost data messages of the block once it has as many parities as lost data messages, which are
+    // then read with writeRecoveredMessage. Returns the number of data messages rebuilt.
+    int recover(long firstSeqNumber) {
+        Block block = blocks.get(firstSeqNumber);
+        if (block == null) {
+            return 0;
+        }
+        
+        int lostCount = 0;
+        for (int i = 0; i < block.length; i++) {
+            if (payloadSeqNumbers[slot(firstSeqNumber + i)] != firstSeqNumber + i) {
+                lostIndexes[lostCount++] = i;
+            }
+        }
+        if (lostCount == 0) {
+            release(firstSeqNumber);
+            return 0;
+        }
+        if (lostCount > block.numberOfParities) {
+            return 0;
+        }
+        
+        // The parities minus the received payloads are the lost payloads multiplied by a square Cauchy matrix.
+        int[] parityIndexes = new int[lostCount];
+        for (int j = 0, row = 0; row < lostCount; j++) {
+            if (block.parities[j] != null) {
+                parityIndexes[row++] = j;
+            }
+        }
+        int[][] matrix = new int[lostCount][lostCount];
+        for (int row = 0; row < lostCount; row++) {
+            byte[] syndrome = block.parities[parityIndexes[row]];
+            for (int i = 0, lost = 0; i < block.length; i++) {
+                int coefficient = FecCode.coefficient(block.parityCount, parityIndexes[row], i);
+                if (lost < lostCount && lostIndexes[lost] == i) {
+                    matrix[row][lost++] = coefficient;
+                } else {
+                    GaloisField.multiplyAdd(coefficient, payloads[slot(firstSeqNumber + i)], syndrome,
+                        payloadLength);
+                }
+            }
+        }
+        int[][] inverse = GaloisField.invert(matrix);
+        for (int lost = 0; lost < lostCount; lost++) {
+            if (recoveredPayloads[lost] == null) {
+                recoveredPayloads[lost] = new byte[payloadLength];
+            }
+            Arrays.fill(recoveredPayloads[lost], (byte) 0);
+            for (int row = 0; row < lostCount; row++) {
+                GaloisField.multiplyAdd(inverse[lost][row], block.parities[parityIndexes[row]],
+                    recoveredPayloads[lost], payloadLength);
+            }
+            recoveredSeqNumbers[lost] = firstSeqNumber + lostIndexes[lost];
+        }
+        release(firstSeqNumber);
+        numberOfRecoveredMessages += lostCount;
+        
+        return lostCount;
+    }
+    
+    long getRecoveredSeqNumber(int index) {
+        return recoveredSeqNumbers[index];
+    }
+    
+    // Encodes the data message rebuilt by the last recovery. Returns false when the parities were inconsistent.
+    boolean writeRecoveredMessage(int index, ByteBuffer message, long sessionId) {
+        return FecCode.writeMessage(recoveredPayloads[index], message, sessionId, recoveredSeqNumbers[index]);
+    }
+    
+    // Drops the blocks whose data messages were all received in order.
+    void removeCompletedBlocks(long lastAckSeq) {
+        while (!blocks.isEmpty() && blocks.firstKey() + blocks.firstEntry().getValue().length - 1 <= lastAckSeq) {
+            release(blocks.firstKey());
+        }
+    }
+    
+    private void release(long firstSeqNumber) {
+        Block block = blocks.remove(firstSeqNumber);
+        for (byte[] parity : block.parities) {
+            if (parity != null) {
+                freeParities.add(parity);
+            }
+        }
+    }
+    
+    private int slot(long seqNumber) {
+        return (int) (seqNumber % payloads.length);
+    }
+    
+    private static class Block {
+        private final int length;
+        private final int parityCount;
+        private final byte[][] parities;
+        private int numberOfParities;
+        
+        Block(int length, int parityCount) {
+            this.length = length;
+            this.parityCount = parityCount;
+            this.parities = new byte[parityCount][];
+        }
+    }
+}
\ No newline at end of file
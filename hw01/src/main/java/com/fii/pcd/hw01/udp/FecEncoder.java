@@ -0,0 +1,129 @@
+package com.fii.pcd.hw01.udp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import static com.fii.pcd.hw01.udp.FecCode.MAX_BLOCK_LENGTH;
+import static com.fii.pcd.hw01.udp.FecCode.MAX_PARITY_COUNT;
+import static com.fii.pcd.hw01.udp.UDPUtils.CONTROL_DATA_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.PARITY_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.setChecksum;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPControlData;
+
+// Computes the parity messages of the blocks of data messages sent by the UDP Client, as the data messages are
+// sent. The redundancy follows the loss rate of the transfer, which counts the messages resent by the UDP Client
+// and the ones the UDP Server rebuilt.
+@Slf4j
+class FecEncoder {
+    // The loss rate is sampled over at least this many data messages.
+    private static final int LOSS_SAMPLE_MESSAGES = 256;
+    // The losses come in bursts, so the redundancy is kept at twice the loss rate.
+    private static final double REDUNDANCY_PER_LOSS = 2;
+    private static final int MIN_XOR_BLOCK_LENGTH = 4;
+    private static final int RS_BLOCK_LENGTH = 32;
+    
+    private final FecMode mode;
+    private final byte[] payload;
+    private final byte[][] parities;
+    @Getter
+    private long firstSeqNumber;
+    // The data messages added to the current block.
+    private int blockLength;
+    @Getter
+    private int maxBlockLength;
+    @Getter
+    private int parityCount;
+    private double lossRate;
+    private long numberOfDataMessages;
+    private long numberOfRecoveredMessages;
+    private long sampleStartMessages;
+    private long sampleStartLosses;
+    
+    FecEncoder(FecMode mode, int messageSize) {
+        this.mode = mode;
+        this.payload = new byte[FecCode.payloadLength(messageSize)];
+        this.parities = new byte[MAX_PARITY_COUNT][payload.length];
+        adaptRedundancy();
+    }
+    
+    // The message is encoded and limited, and keeps its position.
+    void add(long seqNumber, ByteBuffer message) {
+        if (blockLength == 0) {
+            firstSeqNumber = seqNumber;
+            for (int j = 0; j < parityCount; j++) {
+                Arrays.fill(parities[j], (byte) 0);
+            }
+        }
+        
+        FecCode.readPayload(message, payload);
+        for (int j = 0; j < parityCount; j++) {
+            GaloisField.multiplyAdd(FecCode.coefficient(parityCount, j, blockLength), payload, parities[j],
+                payload.length);
+        }
+        blockLength++;
+        numberOfDataMessages++;
+    }
+    
+    boolean isBlockFull() {
+        return blockLength == maxBlockLength;
+    }
+    
+    boolean hasBlock() {
+        return blockLength > 0;
+    }
+    
+    // Encodes the parity message with the given index of the current block, ready to be sent.
+    void writeParityMessage(int parityIndex, ByteBuffer message, long sessionId, long timestamp) {
+        message.clear();
+        setUDPControlData(message, sessionId, firstSeqNumber, PARITY_FLAG, timestamp);
+        message.position(CONTROL_DATA_LENGTH);
+        message.put((byte) blockLength).put((byte) parityCount).put((byte) parityIndex);
+        message.put(parities[parityIndex]);
+        int messageLength = message.position();
+        message.limit(messageLength);
+        setChecksum(message, messageLength);
+    }
+    
+    // Called once the parity messages of the block are sent, with the number of messages resent so far.
+    void endBlock(long numberOfResentMessages) {
+        blockLength = 0;
+        
+        long losses = numberOfResentMessages + numberOfRecoveredMessages;
+        long sampleMessages = numberOfDataMessages - sampleStartMessages;
+        if (sampleMessages < LOSS_SAMPLE_MESSAGES) {
+            return;
+        }
+        double sampleLossRate = Math.min(1, (double) (losses - sampleStartLosses) / sampleMessages);
+        lossRate = 0.75 * lossRate + 0.25 * sampleLossRate;
+        sampleStartMessages = numberOfDataMessages;
+        sampleStartLosses = losses;
+        
+        int previousBlockLength = maxBlockLength;
+        int previousParityCount = parityCount;
+        adaptRedundancy();
+        if (maxBlockLength != previousBlockLength || parityCount != previousParityCount) {
+            log.info("UDP Client adapts the forward error correction to block length = {} and " +
+                "parity count = {} with loss rate = {}", maxBlockLength, parityCount, lossRate);
+        }
+    }
+    
+    // The UDP Server reports the total number of messages it rebuilt.
+    void onRecoveredMessages(long numberOfRecoveredMessages) {
+        this.numberOfRecoveredMessages = Math.max(this.numberOfRecoveredMessages, numberOfRecoveredMessages);
+    }
+    
+    private void adaptRedundancy() {
+        double redundancy = REDUNDANCY_PER_LOSS * lossRate;
+        if (mode == FecMode.XOR) {
+            parityCount = 1;
+            maxBlockLength = redundancy > 0 ?
+                (int) Math.max(MIN_XOR_BLOCK_LENGTH, Math.min(MAX_BLOCK_LENGTH, 1 / redundancy)) :
+                MAX_BLOCK_LENGTH;
+        } else {
+            maxBlockLength = RS_BLOCK_LENGTH;
+            parityCount = (int) Math.max(1, Math.min(MAX_PARITY_COUNT, Math.ceil(redundancy * RS_BLOCK_LENGTH)));
+        }
+    }
+}
\ No newline at end of file
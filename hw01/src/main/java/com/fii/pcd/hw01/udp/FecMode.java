@@ -0,0 +1,12 @@
+package com.fii.pcd.hw01.udp;
+
+// The forward error correction of the UDP transfers. Every block of data messages is followed by parity messages,
+// from which the UDP Server rebuilds the lost data messages of the block without waiting for a retransmission.
+public enum FecMode {
+    NONE,
+    // One parity message per block, the XOR of its data messages. The block gets shorter as the losses grow.
+    XOR,
+    // Reed-Solomon parity messages, as many as the losses of the block they can rebuild. The number of parity
+    // messages per block grows with the losses.
+    RS
+}
\ No newline at end of file
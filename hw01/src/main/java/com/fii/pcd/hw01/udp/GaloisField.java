@@ -0,0 +1,102 @@
+package com.fii.pcd.hw01.udp;
+
+import lombok.experimental.UtilityClass;
+
+// The arithmetic of GF(2^8) with the polynomial x^8 + x^4 + x^3 + x^2 + 1, in which the Reed-Solomon parity is
+// computed. Adding is a XOR and multiplying goes through a table of all the products.
+@UtilityClass
+class GaloisField {
+    private static final int POLYNOMIAL = 0x11d;
+    private static final int[] EXP = new int[2 * 255];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] PRODUCTS = new byte[256][256];
+    
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            EXP[i + 255] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                PRODUCTS[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+    
+    static int multiply(int a, int b) {
+        return PRODUCTS[a][b] & 0xff;
+    }
+    
+    static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+    
+    // Adds the source multiplied by the coefficient to the destination, byte by byte.
+    static void multiplyAdd(int coefficient, byte[] source, byte[] destination, int length) {
+        if (coefficient == 0) {
+            return;
+        }
+        if (coefficient == 1) {
+            for (int i = 0; i < length; i++) {
+                destination[i] ^= source[i];
+            }
+            return;
+        }
+        
+        byte[] products = PRODUCTS[coefficient];
+        for (int i = 0; i < length; i++) {
+            destination[i] ^= products[source[i] & 0xff];
+        }
+    }
+    
+    // Returns the inverse of the square matrix, which is reduced to the identity by the Gauss-Jordan elimination.
+    static int[][] invert(int[][] matrix) {
+        int size = matrix.length;
+        int[][] inverse = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            inverse[i][i] = 1;
+        }
+        
+        for (int column = 0; column < size; column++) {
+            int pivotRow = column;
+            while (matrix[pivotRow][column] == 0) {
+                pivotRow++;
+                if (pivotRow == size) {
+                    throw new ArithmeticException("The matrix is not invertible.");
+                }
+            }
+            swapRows(matrix, pivotRow, column);
+            swapRows(inverse, pivotRow, column);
+            
+            int pivotInverse = inverse(matrix[column][column]);
+            for (int i = 0; i < size; i++) {
+                matrix[column][i] = multiply(matrix[column][i], pivotInverse);
+                inverse[column][i] = multiply(inverse[column][i], pivotInverse);
+            }
+            for (int row = 0; row < size; row++) {
+                int factor = matrix[row][column];
+                if (row == column || factor == 0) {
+                    continue;
+                }
+                for (int i = 0; i < size; i++) {
+                    matrix[row][i] ^= multiply(factor, matrix[column][i]);
+                    inverse[row][i] ^= multiply(factor, inverse[column][i]);
+                }
+            }
+        }
+        
+        return inverse;
+    }
+    
+    private static void swapRows(int[][] matrix, int a, int b) {
+        int[] row = matrix[a];
+        matrix[a] = matrix[b];
+        matrix[b] = row;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+package com.fii.pcd.hw01.udp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+
+import static com.fii.pcd.hw01.udp.UDPUtils.ACK_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.CONTROL_DATA_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.PROBE_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.getSequenceNumber;
+import static com.fii.pcd.hw01.udp.UDPUtils.getSessionId;
+import static com.fii.pcd.hw01.udp.UDPUtils.getTimestamp;
+import static com.fii.pcd.hw01.udp.UDPUtils.hasFlag;
+import static com.fii.pcd.hw01.udp.UDPUtils.hasValidChecksum;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPProbeData;
+
+// Finds the largest datagram that reaches the UDP Server whole, as the packetization layer path MTU discovery of
+// RFC 8899 does, since Java cannot set the don't fragment bit to learn the path MTU from the network. A fragmented
+// datagram is lost when any of its fragments is, so the datagrams are kept to the size the path carries in one
+// packet. Probes of the common sizes up to the MTU of the network interface are sent at once, padded to their size,
+// and the UDP Server acknowledges the ones it received whole. The ones lost are sent again a few times before the
+// largest acknowledged size is kept.
+@UtilityClass
+@Slf4j
+class PathMtuProber {
+    // Every IPv6 path carries 1280 byte packets, so the datagrams up to this size are never probed, and the
+    // transfer falls back to it when no probe is acknowledged.
+    static final int BASE_DATAGRAM_SIZE = 1280 - 40 - 8;
+    private static final int MAX_DATAGRAM_SIZE = 65535 - 20 - 8;
+    // The datagrams that fill the packets of IPv6 and IPv4 over Ethernet, of jumbo frames, and of loopbacks.
+    private static final int[] PROBE_SIZES = { 1452, 1472, 4052, 8952, 8972, 16384, 32768, MAX_DATAGRAM_SIZE };
+    private static final int MAX_PROBE_ROUNDS = 3;
+    private static final long PROBE_TIMEOUT_NANOS = 200_000_000L;
+    // Once a probe is acknowledged, the others of its round are waited for this many of its round trips more.
+    private static final int PROBE_WAIT_RTTS = 4;
+    private static final long MIN_PROBE_WAIT_NANOS = 2_000_000L;
+    
+    // Returns the size of the datagrams to send to the UDP Server, at most the given one.
+    static int probe(UDPClientChannel channel, int maxDatagramSize) throws IOException {
+        int limit = Math.min(Math.min(maxDatagramSize, MAX_DATAGRAM_SIZE), channel.getInterfaceMaxDatagramSize());
+        if (limit <= BASE_DATAGRAM_SIZE) {
+            return limit;
+        }
+        
+        int[] probeSizes = new int[PROBE_SIZES.length + 1];
+        int probeCount = 0;
+        for (int probeSize : PROBE_SIZES) {
+            if (probeSize > BASE_DATAGRAM_SIZE && probeSize < limit) {
+                probeSizes[probeCount++] = probeSize;
+            }
+        }
+        probeSizes[probeCount++] = limit;
+        
+        long probeId = ThreadLocalRandom.current().nextLong();
+        ByteBuffer probe = ByteBuffer.allocateDirect(limit);
+        ByteBuffer ack = ByteBuffer.allocateDirect(CONTROL_DATA_LENGTH);
+        int datagramSize = 0;
+        for (int round = 0; round < MAX_PROBE_ROUNDS && datagramSize < limit; round++) {
+            // Only the sizes above the largest one acknowledged are probed again.
+            long now = System.nanoTime();
+            for (int i = 0; i < probeCount; i++) {
+                if (probeSizes[i] > datagramSize) {
+                    setUDPProbeData(probe, probeId, probeSizes[i], now);
+                    channel.send(probe);
+                }
+            }
+            
+            long deadline = now + PROBE_TIMEOUT_NANOS;
+            while (now < deadline && datagramSize < limit) {
+                int ackLength = channel.receive(ack, deadline - now);
+                now = System.nanoTime();
+                if (ackLength < 0 || !hasValidChecksum(ack, ackLength) || !hasFlag(ack, ACK_FLAG) ||
+                        !hasFlag(ack, PROBE_FLAG) || getSessionId(ack) != probeId) {
+                    continue;
+                }
+                int probeSize = (int) getSequenceNumber(ack);
+                if (probeSize > datagramSize && probeSize <= limit) {
+                    datagramSize = probeSize;
+                }
+                deadline = Math.min(deadline,
+                    now + Math.max(PROBE_WAIT_RTTS * (now - getTimestamp(ack)), MIN_PROBE_WAIT_NANOS));
+            }
+        }
+        
+        if (datagramSize == 0) {
+            log.info("UDP Client got no probe acknowledged, so it sends datagrams of {} bytes.", BASE_DATAGRAM_SIZE);
+            return BASE_DATAGRAM_SIZE;
+        }
+        log.info("UDP Client sends datagrams of {} bytes, the largest of the probed sizes up to {} bytes " +
+            "that reached the UDP Server.", datagramSize, limit);
+        return datagramSize;
+    }
+}
\ No newline at end of file
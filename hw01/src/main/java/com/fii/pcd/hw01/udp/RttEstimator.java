@@ -0,0 +1,48 @@
+package com.fii.pcd.hw01.udp;
+
+import lombok.Getter;
+
+// Round trip time estimator based on the Jacobson/Karels algorithm (RFC 6298).
+// The samples come from the send timestamps echoed by the UDP Server. A retransmitted message
+// is stamped again with the time of its resend, so its acknowledge doesn't count the time of the
+// lost copy and the retransmit timeout it waited for.
+@Getter
+public class RttEstimator {
+    private static final long INITIAL_RTO_NANOS = 150_000_000L;
+    private static final long MIN_RTO_NANOS = 5_000_000L;
+    private static final long MAX_RTO_NANOS = 10_000_000_000L;
+    // The granularity of the socket timeout used for waiting the acknowledges.
+    private static final long CLOCK_GRANULARITY_NANOS = 1_000_000L;
+    
+    private long smoothedRttNanos = -1;
+    private long rttVariationNanos;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long lastRttNanos;
+    private long rtoNanos = INITIAL_RTO_NANOS;
+    
+    public void addSample(long rttNanos) {
+        lastRttNanos = rttNanos;
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        
+        if (smoothedRttNanos < 0) {
+            smoothedRttNanos = rttNanos;
+            rttVariationNanos = rttNanos / 2;
+        } else {
+            // RTTVAR = 3/4 * RTTVAR + 1/4 * |SRTT - R| and SRTT = 7/8 * SRTT + 1/8 * R
+            rttVariationNanos += (Math.abs(smoothedRttNanos - rttNanos) - rttVariationNanos) / 4;
+            smoothedRttNanos += (rttNanos - smoothedRttNanos) / 8;
+        }
+        
+        long rto = smoothedRttNanos + Math.max(CLOCK_GRANULARITY_NANOS, 4 * rttVariationNanos);
+        rtoNanos = Math.min(Math.max(rto, MIN_RTO_NANOS), MAX_RTO_NANOS);
+    }
+    
+    public void backOff() {
+        // Exponential back off until a new sample is received.
+        rtoNanos = Math.min(rtoNanos * 2, MAX_RTO_NANOS);
+    }
+    
+    public boolean hasSamples() {
+        return smoothedRttNanos >= 0;
+    }
+}
\ No newline at end of file
@@ -1,81 +1,336 @@
 package com.fii.pcd.hw01.udp;
 
+import com.fii.pcd.hw01.compression.ChunkCodec;
+import com.fii.pcd.hw01.compression.ChunkCompressionPipeline;
+import com.fii.pcd.hw01.compression.CompressionType;
+import com.fii.pcd.hw01.compression.FileChunk;
+import com.fii.pcd.hw01.integrity.Checksums;
+import com.fii.pcd.hw01.storage.DurabilityPolicy;
+import com.fii.pcd.hw01.storage.FileStorage;
+import com.fii.pcd.hw01.storage.StorageOptions;
 import java.io.File;
-import java.io.FileInputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.time.Instant;
-import lombok.AllArgsConstructor;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
-import static com.fii.pcd.hw01.udp.UDPUtils.byteArrayToLong;
+import static com.fii.pcd.hw01.udp.UDPUtils.ACK_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.COMPRESSED_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.CONTROL_DATA_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.DOWNLOAD_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.EOF_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.NAK_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.PROBE_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.START_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.getSequenceNumber;
+import static com.fii.pcd.hw01.udp.UDPUtils.getSessionId;
+import static com.fii.pcd.hw01.udp.UDPUtils.getTimestamp;
+import static com.fii.pcd.hw01.udp.UDPUtils.hasFlag;
+import static com.fii.pcd.hw01.udp.UDPUtils.hasValidChecksum;
+import static com.fii.pcd.hw01.udp.UDPUtils.isSelectivelyAcknowledged;
+import static com.fii.pcd.hw01.udp.UDPUtils.setChecksum;
 import static com.fii.pcd.hw01.udp.UDPUtils.setUDPControlData;
-import java.io.IOException;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPDownloadRequestData;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPProbeAcknowledgeData;
 import java.time.Duration;
 
-@AllArgsConstructor
+@RequiredArgsConstructor
 @Slf4j
 public class UDPClient {
+    private static final long STATUS_LOG_INTERVAL_NANOS = 1_000_000_000L;
+    // Sends that are late by at most this much are allowed to go out in a burst.
+    private static final long MAX_PACING_BURST_NANOS = 1_000_000L;
+    // A file is compressed only when a sample of it shrinks to at most this ratio of its size.
+    private static final double MAX_SAMPLED_COMPRESSION_RATIO = 0.9;
+    // The file bytes a compressed datagram can hold, which the UDP Server allocates when it decompresses it.
+    static final int MAX_RAW_CHUNK_LENGTH = 64 * 1024;
+    // The number of datagrams prepared ahead of the send loop.
+    private static final int CHUNK_QUEUE_CAPACITY = 256;
+    private static final Path DOWNLOAD_DIRECTORY = Paths.get("./FilesDownloaded/").normalize();
+    // The download request is resent at this interval until the file starts to arrive, at most this many times.
+    private static final long DOWNLOAD_REQUEST_INTERVAL_NANOS = 200_000_000L;
+    private static final int MAX_DOWNLOAD_REQUESTS = 25;
+    // A download without messages for this long fails, and a complete one stops repeating its last acknowledge.
+    private static final long DOWNLOAD_IDLE_TIMEOUT_NANOS = 30_000_000_000L;
+    private static final long DOWNLOAD_LINGER_NANOS = 2_000_000_000L;
+    private static final long DOWNLOAD_POLL_MILLIS = 10;
+    // The downloaded file is written by a single writer thread, and left to the operating system to sync.
+    private static final StorageOptions DOWNLOAD_STORAGE_OPTIONS =
+        new StorageOptions(1024 * 1024, 4, 1, false, DurabilityPolicy.NONE);
+    
     private final int port;
     private final String serverAddress;
     private final int messageSize;
+    // The number of messages that can be sent without being acknowledged (1 means stop-and-wait).
+    private final int windowSize;
+    private final CongestionController.Type congestionControl;
+    // Send the file from the offset the UDP Server reached in an interrupted transfer of the file.
+    private final boolean resume;
+    // Compress every datagram on its own, unless a sample of the file shows that it doesn't compress.
+    private final CompressionType compression;
+    private final int compressionLevel;
+    // Send the SHA-256 of the file in the end of file message, so the UDP Server checks the file it received.
+    private final boolean integrity;
+    // Follow every block of data messages with parity messages, from which the UDP Server rebuilds the lost ones.
+    private final FecMode fecMode;
+    // Probe the largest datagram that reaches the UDP Server without being fragmented, up to the message size, and
+    // send the file in datagrams of that size.
+    private final boolean pathMtuDiscovery;
+    // The congestion control state of the running transfer.
+    @Getter
+    private volatile UDPTransferStatus transferStatus;
+    
+    // Returns true when the UDP Server received the file.
+    public boolean sendFileTransferRequst(String filePath) {
+        return sendFile(filePath, null);
+    }
     
-    public void sendFileTransferRequst(String filePath) {
-        try (DatagramSocket socket = new DatagramSocket()) {
+    // Sends the file from the given content when it is not null, as the UDP Server does with the downloads it
+    // serves from its hot file cache. The content is sent uncompressed.
+    boolean sendFile(String filePath, ByteBuffer content) {
+        UDPMetrics.CLIENT_ACTIVE_TRANSFERS.increment();
+        try (UDPClientChannel channel = new UDPClientChannel(new InetSocketAddress(serverAddress, port))) {
             Instant startTime = Instant.now();
-            log.info("UDP Client is sending the file = {} to the UDP Server = {} on port = {} with message size = {}",
-                filePath, serverAddress, port, messageSize);
+            log.info("UDP Client is sending the file = {} to the UDP Server = {} on port = {} " +
+                "with message size = {} and with window size = {} and with congestion control = {} " +
+                "and with resume = {} and with compression = {} and with integrity = {} " +
+                "and with forward error correction = {}",
+                filePath, serverAddress, port, messageSize, windowSize, congestionControl, resume, compression,
+                integrity, fecMode);
             
-            InetAddress address = InetAddress.getByName(serverAddress);
             long totalNumberOfMessages = 0;
             long totalNumberOfBytes = 0;
+            long totalNumberOfMessagesResent = 0;
             
             String fileName = Paths.get(filePath).getFileName().toString();
             File file = new File(filePath);
+            // The session id tells apart the concurrent transfers handled by the UDP Server.
+            long sessionId = ThreadLocalRandom.current().nextLong();
+            // The resume key tells the UDP Server which interrupted transfer to resume, so it is derived from
+            // the file.
+            long resumeKey = resume ?
+                UUID.nameUUIDFromBytes((fileName + "/" + file.length() + "/" + file.lastModified()).getBytes())
+                    .getMostSignificantBits() | 1 :
+                0;
             
-            // Send the file name.
-            byte[] fileNameBytes = fileName.getBytes();
-            DatagramPacket packet = new DatagramPacket(fileNameBytes, fileNameBytes.length, address, port);
-            socket.send(packet);
-            totalNumberOfMessages++;
+            RttEstimator rttEstimator = new RttEstimator();
+            CongestionController congestionController = CongestionController.create(congestionControl, windowSize);
+            transferStatus = new UDPTransferStatus(fileName, congestionController.toString());
+            // Every datagram of the transfer, the parity ones included, has at most the probed size.
+            int datagramSize = pathMtuDiscovery ? PathMtuProber.probe(channel, messageSize) : messageSize;
+            // The data messages leave room for the parity header, so their parity fits in a message.
+            FecEncoder fecEncoder = fecMode != FecMode.NONE ? new FecEncoder(fecMode, datagramSize) : null;
+            ByteBuffer parityMessage = fecEncoder != null ? ByteBuffer.allocateDirect(datagramSize) : null;
+            int dataMessageSize = fecEncoder != null ? datagramSize - FecCode.DATA_OVERHEAD : datagramSize;
             
-            // Send the file content.
-            try (FileInputStream fileInputStream = new FileInputStream(file)) {
-                long seqNumber = 1;
+            // Send the file content. The uncompressed datagrams are read from the file right into their buffer, the
+            // compressed ones come from the compression pipeline.
+            ChunkCompressionPipeline pipeline = null;
+            long nextFileOffset = 0;
+            MessageDigest fileDigest = null;
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long fileSize = content != null ? content.remaining() : fileChannel.size();
+                CompressionType requestedCompression = content != null ? CompressionType.NONE :
+                    chooseCompression(fileChannel);
+                // The start message with the sequence number 0 carries the file size, the resume key, the
+                // compression type, the integrity option, the forward error correction option, followed by the
+                // size of the parity messages when it is set, and the file name.
+                UDPSendWindow sendWindow = new UDPSendWindow(windowSize, datagramSize, 0);
+                ByteBuffer ack = ByteBuffer.allocateDirect(messageSize);
+                long nextSeqNumber = 0;
+                long nextSendTime = System.nanoTime();
+                long nextStatusLogTime = nextSendTime + STATUS_LOG_INTERVAL_NANOS;
+                // The retransmit timeout backs off once per loss episode, which ends with the messages sent
+                // before the last back off, or once per timeout when the resent messages are lost again.
+                long backOffSeqNumber = 0;
+                long lastBackOffTime = nextSendTime;
+                boolean eofSent = false;
+                boolean startAcknowledged = false;
+                boolean integrityFailed = false;
                 
-                byte[] message = new byte[messageSize];
-                // First 9 bytes of data are for control (sequence number and end of file flag)
-                int maxReadLength = message.length - (Long.BYTES + 1);
-                int readBytes;
-                long numberOfMessagesResent;
-                while ((readBytes = fileInputStream.read(message, 9, maxReadLength)) != -1) {
-                    setUDPControlData(message, seqNumber, false);        
-                    packet = new DatagramPacket(message, message.length, address, port);
-                    socket.send(packet);
+                while (!eofSent || !sendWindow.isEmpty()) {
+                    // Fill the window with new messages, paced over the smoothed round trip time.
+                    long now = System.nanoTime();
+                    while (!eofSent && canSend(nextSeqNumber, sendWindow, congestionController)
+                            && now >= nextSendTime) {
+                        ByteBuffer message = sendWindow.messageBuffer(nextSeqNumber).position(CONTROL_DATA_LENGTH);
+                        if (nextSeqNumber == 0) {
+                            message.putLong(fileSize).putLong(resumeKey).put(requestedCompression.getCode())
+                                .put((byte) (integrity ? 1 : 0)).put((byte) (fecEncoder != null ? 1 : 0));
+                            if (fecEncoder != null) {
+                                message.putInt(datagramSize);
+                            }
+                            message.put(fileName.getBytes());
+                            setUDPControlData(message, sessionId, nextSeqNumber, START_FLAG, now);
+                        } else if (pipeline == null) {
+                            eofSent = nextFileOffset == fileSize;
+                            if (!eofSent) {
+                                nextFileOffset += readFileData(fileChannel, content, nextFileOffset, fileSize,
+                                    message, dataMessageSize, fileDigest);
+                            } else if (integrity) {
+                                // The end of file message carries the digest of the file.
+                                message.put(fileDigest.digest());
+                            }
+                            setUDPControlData(message, sessionId, nextSeqNumber, eofSent ? EOF_FLAG : 0, now);
+                        } else {
+                            FileChunk chunk = pipeline.next();
+                            eofSent = chunk == null;
+                            byte flags = eofSent ? EOF_FLAG : 0;
+                            if (chunk != null && chunk.isCompressed()) {
+                                // The UDP Server needs the raw length to decompress the chunk.
+                                message.putInt(chunk.getRawLength());
+                                flags |= COMPRESSED_FLAG;
+                            }
+                            if (chunk != null) {
+                                message.put(chunk.getData(), 0, chunk.getLength());
+                            } else if (integrity) {
+                                // The end of file message carries the digest of the file.
+                                message.put(pipeline.digest());
+                            }
+                            setUDPControlData(message, sessionId, nextSeqNumber, flags, now);
+                        }
+                        int messageLength = message.position();
+                        message.limit(messageLength);
+                        setChecksum(message, messageLength);
+                        if (fecEncoder != null && nextSeqNumber > 0 && !eofSent) {
+                            fecEncoder.add(nextSeqNumber, message);
+                        }
+                        
+                        channel.send(message);
+                        sendWindow.add(nextSeqNumber, now);
+                        countSentMessages(1, 0, messageLength);
+                        
+                        totalNumberOfMessages++;
+                        totalNumberOfBytes += messageLength;
+                        nextSeqNumber++;
+                        nextSendTime = Math.max(nextSendTime, now - MAX_PACING_BURST_NANOS) +
+                            pacingIntervalNanos(congestionController, rttEstimator);
+                        
+                        if (fecEncoder != null && (fecEncoder.isBlockFull() || (eofSent && fecEncoder.hasBlock()))) {
+                            // The parity messages follow the last data message of their block. They are neither
+                            // acknowledged nor resent, but they are paced as the data messages.
+                            for (int j = 0; j < fecEncoder.getParityCount(); j++) {
+                                fecEncoder.writeParityMessage(j, parityMessage, sessionId, now);
+                                channel.send(parityMessage);
+                                countSentMessages(1, 0, parityMessage.limit());
+                                totalNumberOfMessages++;
+                                totalNumberOfBytes += parityMessage.limit();
+                                nextSendTime += pacingIntervalNanos(congestionController, rttEstimator);
+                            }
+                            sendWindow.restartTimers(fecEncoder.getFirstSeqNumber(), nextSeqNumber - 1, now);
+                            fecEncoder.endBlock(totalNumberOfMessagesResent);
+                        }
+                    }
                     
-                    numberOfMessagesResent =
-                        acknowledgeMessageSent(seqNumber, packet, socket);
+                    // Wait for an acknowledge until the earliest retransmit timer expires or the next message
+                    // can be sent.
+                    long waitNanos = sendWindow.nanosUntilNextTimeout(rttEstimator.getRtoNanos(), now);
+                    if (!eofSent && canSend(nextSeqNumber, sendWindow, congestionController)) {
+                        waitNanos = Math.min(waitNanos, Math.max(nextSendTime - now, 0));
+                    }
+                    // Without an acknowledge in time, the retransmit timers that expired are handled below.
+                    int ackLength = channel.receive(ack, waitNanos);
+                    // The acknowledges that arrived meanwhile are handled in one batch, so the retransmit timers
+                    // are scanned once per batch instead of once per acknowledge.
+                    if (ackLength >= 0) {
+                        do {
+                            if (!hasValidChecksum(ack, ackLength)) {
+                                // A corrupt acknowledge is dropped, the next ones acknowledge the same messages.
+                                continue;
+                            }
+                            if (isNegativeAcknowledge(sessionId, ack)) {
+                                // The UDP Server received the message corrupt, so it is resent without waiting for
+                                // its retransmit timer. A corruption is not a sign of congestion, so the congestion
+                                // window is kept.
+                                int resentBytes = sendWindow.resend(getSequenceNumber(ack), channel, System.nanoTime());
+                                if (resentBytes > 0) {
+                                    countSentMessages(1, 1, resentBytes);
+                                    totalNumberOfMessages++;
+                                    totalNumberOfMessagesResent++;
+                                    totalNumberOfBytes += resentBytes;
+                                }
+                                continue;
+                            }
+                            if (!startAcknowledged && isStartAcknowledge(sessionId, ack, ackLength)) {
+                                // Skip the bytes the UDP Server already has from an interrupted transfer and
+                                // compress the datagrams if the UDP Server accepted the compression. The digest of the
+                                // file starts with the bytes the UDP Server already has.
+                                long resumeOffset = ack.getLong(CONTROL_DATA_LENGTH);
+                                CompressionType acceptedCompression =
+                                    CompressionType.fromCode(ack.get(CONTROL_DATA_LENGTH + Long.BYTES));
+                                if (integrity) {
+                                    fileDigest = Checksums.newFileDigest();
+                                    Checksums.updateFromFile(fileDigest, fileChannel, 0, resumeOffset);
+                                }
+                                if (acceptedCompression != CompressionType.NONE) {
+                                    pipeline = createPipeline(fileChannel, resumeOffset, acceptedCompression,
+                                        dataMessageSize, fileDigest);
+                                }
+                                nextFileOffset = resumeOffset;
+                                startAcknowledged = true;
+                                if (resumeOffset > 0) {
+                                    log.info("UDP Client resumes the transfer of the file = {} from the offset = {}",
+                                        fileName, resumeOffset);
+                                }
+                            }
+                            acknowledgeMessageSent(sessionId, sendWindow, ack, ackLength, rttEstimator,
+                                congestionController, fecEncoder);
+                            if (hasFlag(ack, EOF_FLAG) && getSessionId(ack) == sessionId) {
+                                // The UDP Server completed the file, and flags it when it failed the integrity check.
+                                integrityFailed = hasFlag(ack, NAK_FLAG);
+                            }
+                        } while ((ackLength = channel.receive(ack, 0)) >= 0);
+                    }
                     
-                    totalNumberOfMessages += (numberOfMessagesResent + 1);
-                    totalNumberOfBytes += ((numberOfMessagesResent + 1) * message.length);
+                    // Resend the messages whose retransmit timer expired.
+                    now = System.nanoTime();
+                    long numberOfMessagesResent = sendWindow.resendExpired(channel, rttEstimator.getRtoNanos(), now);
+                    if (numberOfMessagesResent > 0) {
+                        congestionController.onLoss(sendWindow.getLowestResentSeqNumber(), nextSeqNumber - 1);
+                        if (sendWindow.getLowestResentSeqNumber() >= backOffSeqNumber ||
+                                now - lastBackOffTime >= rttEstimator.getRtoNanos()) {
+                            rttEstimator.backOff();
+                            backOffSeqNumber = nextSeqNumber;
+                            lastBackOffTime = now;
+                        }
+                        totalNumberOfMessages += numberOfMessagesResent;
+                        totalNumberOfMessagesResent += numberOfMessagesResent;
+                        totalNumberOfBytes += sendWindow.getLastResentBytes();
+                        countSentMessages(numberOfMessagesResent, numberOfMessagesResent,
+                            sendWindow.getLastResentBytes());
+                    }
                     
-                    seqNumber++;
-                    message = new byte[messageSize];
+                    transferStatus.update(congestionController, rttEstimator,
+                        totalNumberOfMessages, totalNumberOfMessagesResent);
+                    if (now >= nextStatusLogTime) {
+                        log.info("UDP Client transfer status = {}", transferStatus);
+                        nextStatusLogTime = now + STATUS_LOG_INTERVAL_NANOS;
+                    }
+                }
+                if (integrityFailed) {
+                    throw new IOException("The file = " + fileName + " failed the integrity check of the UDP Server.");
                 }
-                
-                setUDPControlData(message, seqNumber, true);
-                packet = new DatagramPacket(message, message.length, address, port);
-                socket.send(packet);
-                
-                numberOfMessagesResent =
-                    acknowledgeMessageSent(seqNumber, packet, socket);
-                
-                totalNumberOfMessages += (numberOfMessagesResent + 1);
-                totalNumberOfBytes += ((numberOfMessagesResent + 1) * message.length);
             } catch (Exception e) {
                 throw e;
+            } finally {
+                if (pipeline != null) {
+                    pipeline.close();
+                }
             }
             
             Instant endTime = Instant.now();
@@ -83,42 +338,242 @@ public class UDPClient {
             log.info("The file transfer request was completed " +
                 "with execution time = {} and " +
                 "with total number of messages = {} and " +
-                "with total number of bytes = {}",
-                executionTime, totalNumberOfMessages, totalNumberOfBytes);
+                "with total number of bytes = {} and " +
+                "with total number of messages resent = {} and " +
+                "with transfer status = {}",
+                executionTime, totalNumberOfMessages, totalNumberOfBytes, totalNumberOfMessagesResent,
+                transferStatus);
+            UDPMetrics.CLIENT_TRANSFERS.increment();
+            return true;
         } catch (Exception e) {
             log.error("The file transfer request sent to the UDP Server failed.", e);
+            UDPMetrics.CLIENT_FAILED_TRANSFERS.increment();
+            return false;
+        } finally {
+            UDPMetrics.CLIENT_ACTIVE_TRANSFERS.decrement();
         }
     }
     
-    private long acknowledgeMessageSent(long sequenceNumber, DatagramPacket messagePacket, DatagramSocket socket)
-            throws IOException {
-        long numberOfMessagesResent = 0;
-        
-        while (true) {
-            long ackSeqNumber = -1;
-            byte[] ack = new byte[Long.BYTES];
-            DatagramPacket ackPacket = new DatagramPacket(ack, ack.length);
+    // Asks the UDP Server for the file it received with the given name and receives it in ./FilesDownloaded/, as the
+    // UDP Server receives the uploads, while the UDP Server sends it as an UDP Client would. The request is resent
+    // until the file starts to arrive. Returns true when the file was received and passed the integrity check.
+    public boolean downloadFile(String fileName) {
+        UDPReceiveSession session = null;
+        try (DatagramChannel channel = DatagramChannel.open();
+            Selector selector = Selector.open();
+            FileStorage storage = new FileStorage(DOWNLOAD_STORAGE_OPTIONS)) {
+            Instant startTime = Instant.now();
+            log.info("UDP Client is downloading the file = {} from the UDP Server = {} on port = {} " +
+                "with message size = {} and with window size = {}",
+                fileName, serverAddress, port, messageSize, windowSize);
             
-            try {
-                socket.setSoTimeout(150);
-                socket.receive(ackPacket);
-                ackSeqNumber = byteArrayToLong(ack);
-            } catch (IOException e) {
-                log.error("UDP Client timed out waiting for acknowledging sequence numer = {}",
-                    sequenceNumber, e);
+            DOWNLOAD_DIRECTORY.toFile().mkdirs();
+            InetSocketAddress serverSocketAddress = new InetSocketAddress(serverAddress, port);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            long downloadId = ThreadLocalRandom.current().nextLong();
+            ByteBuffer request = ByteBuffer.allocateDirect(messageSize);
+            ByteBuffer message = ByteBuffer.allocateDirect(messageSize);
+            ByteBuffer probeAck = ByteBuffer.allocateDirect(CONTROL_DATA_LENGTH);
+            setUDPDownloadRequestData(request, downloadId, windowSize, messageSize, fileName.getBytes(),
+                System.nanoTime());
+            
+            int numberOfRequests = 0;
+            Duration executionTime = null;
+            long nextRequestTime = System.nanoTime();
+            long lastMessageTime = nextRequestTime;
+            while (true) {
+                long now = System.nanoTime();
+                if (session == null && now >= nextRequestTime) {
+                    if (numberOfRequests++ == MAX_DOWNLOAD_REQUESTS) {
+                        throw new IOException("The UDP Server didn't answer the download request of the file = " +
+                            fileName);
+                    }
+                    channel.send(request.rewind(), serverSocketAddress);
+                    nextRequestTime = now + DOWNLOAD_REQUEST_INTERVAL_NANOS;
+                }
+                // The last acknowledge is repeated for a while after the file is complete, in case it was lost.
+                if (session != null && now - lastMessageTime >
+                        (session.isCompleted() ? DOWNLOAD_LINGER_NANOS : DOWNLOAD_IDLE_TIMEOUT_NANOS)) {
+                    break;
+                }
+                selector.select(DOWNLOAD_POLL_MILLIS);
+                selector.selectedKeys().clear();
+                
+                SocketAddress senderAddress;
+                while ((senderAddress = channel.receive(message.clear())) != null) {
+                    message.flip();
+                    if (!hasValidChecksum(message, message.limit())) {
+                        if (session != null) {
+                            session.onCorruptMessage(message, senderAddress, channel);
+                        }
+                        continue;
+                    }
+                    if (hasFlag(message, DOWNLOAD_FLAG) && getSessionId(message) == downloadId) {
+                        throw new IOException("The UDP Server has no file = " + fileName);
+                    }
+                    if (hasFlag(message, PROBE_FLAG)) {
+                        // The UDP Server probes the path before it sends the file, the probes larger than the
+                        // messages of this UDP Client arrive truncated and are not acknowledged.
+                        setUDPProbeAcknowledgeData(probeAck, getSessionId(message), message.limit(),
+                            getTimestamp(message));
+                        channel.send(probeAck, senderAddress);
+                        continue;
+                    }
+                    if (session == null && hasFlag(message, START_FLAG) && !hasFlag(message, ACK_FLAG)) {
+                        session = new UDPReceiveSession(getSessionId(message), windowSize, messageSize, storage,
+                            DOWNLOAD_DIRECTORY);
+                    }
+                    if (session != null && getSessionId(message) == session.getSessionId()) {
+                        lastMessageTime = System.nanoTime();
+                        session.onMessage(message, senderAddress, channel);
+                        if (executionTime == null && session.isCompleted()) {
+                            executionTime = Duration.between(startTime, Instant.now());
+                        }
+                    }
+                }
+            }
+            if (!session.isCompleted()) {
+                throw new IOException("The UDP Server stopped sending the file = " + fileName);
+            }
+            if (session.isIntegrityFailed()) {
+                throw new IOException("The file = " + fileName + " failed the integrity check of the UDP Client.");
             }
             
-            if (ackSeqNumber == sequenceNumber) {
-                // log.info("UDP Client received the acknowledge for the sequence number = {}", sequenceNumber);
-                break;
-            } else {
-                // The package was not received, so it must be resent.
-                socket.send(messagePacket);
-                log.info("UDP Client is resending the message for the sequence number = {}", sequenceNumber);
-                numberOfMessagesResent++;
+            log.info("The file download request was completed " +
+                "with execution time = {} and " +
+                "with file = {}",
+                executionTime, DOWNLOAD_DIRECTORY.resolve(fileName));
+            return true;
+        } catch (Exception e) {
+            log.error("The file download request sent to the UDP Server failed.", e);
+            if (session != null && !session.isCompleted()) {
+                session.expire();
+            }
+            return false;
+        }
+    }
+    
+    private static void countSentMessages(long numberOfMessages, long numberOfMessagesResent, long numberOfBytes) {
+        UDPMetrics.CLIENT_SENT_MESSAGES.add(numberOfMessages);
+        UDPMetrics.CLIENT_RESENT_MESSAGES.add(numberOfMessagesResent);
+        UDPMetrics.CLIENT_SENT_BYTES.add(numberOfBytes);
+    }
+    
+    private boolean canSend(long nextSeqNumber, UDPSendWindow sendWindow, CongestionController congestionController) {
+        // The window bounds the buffer of the UDP Server and the congestion window bounds the messages in flight.
+        // The file is sent once the start message is acknowledged with the offset to send it from.
+        return (nextSeqNumber == 0 || sendWindow.getBase() > 0) &&
+            nextSeqNumber < sendWindow.getBase() + windowSize &&
+            sendWindow.getUnacknowledgedCount() < congestionController.getCongestionWindow();
+    }
+    
+    private long pacingIntervalNanos(CongestionController congestionController, RttEstimator rttEstimator) {
+        if (!rttEstimator.hasSamples()) {
+            return 0;
+        }
+        
+        // Spread a congestion window worth of messages over a round trip.
+        return (long) (rttEstimator.getSmoothedRttNanos() / congestionController.getCongestionWindow());
+    }
+    
+    private CompressionType chooseCompression(FileChannel fileChannel) throws IOException {
+        if (compression == CompressionType.NONE) {
+            return CompressionType.NONE;
+        }
+        
+        double compressionRatio;
+        try (ChunkCodec codec = new ChunkCodec(compression, compressionLevel)) {
+            compressionRatio = codec.sampleCompressionRatio(fileChannel, 0, fileChannel.size(), messageSize);
+        }
+        if (compressionRatio > MAX_SAMPLED_COMPRESSION_RATIO) {
+            log.info("UDP Client sends the file without compression, since a sample of it compresses " +
+                "with ratio = {}", compressionRatio);
+            return CompressionType.NONE;
+        }
+        
+        return compression;
+    }
+    
+    // Reads the next file bytes right into the message, as many as fit, from the content when it is not null, and
+    // hashes them when the digest is not null. Returns the number of bytes read.
+    private int readFileData(FileChannel fileChannel, ByteBuffer content, long offset, long fileSize,
+            ByteBuffer message, int dataMessageSize, MessageDigest fileDigest) throws IOException {
+        int dataPosition = message.position();
+        message.limit((int) Math.min(dataMessageSize, dataPosition + (fileSize - offset)));
+        if (content != null) {
+            message.put(content.slice((int) offset, message.remaining()));
+        }
+        while (message.hasRemaining()) {
+            if (fileChannel.read(message, offset + message.position() - dataPosition) == -1) {
+                throw new EOFException("The file ended at the offset = " +
+                    (offset + message.position() - dataPosition));
+            }
+        }
+        int dataLength = message.position() - dataPosition;
+        if (fileDigest != null) {
+            fileDigest.update(message.position(dataPosition));
+        }
+        message.limit(message.capacity()).position(dataPosition + dataLength);
+        
+        return dataLength;
+    }
+    
+    private ChunkCompressionPipeline createPipeline(FileChannel fileChannel, long offset,
+            CompressionType compressionType, int dataMessageSize, MessageDigest fileDigest) throws IOException {
+        // A compressed datagram holds as many file bytes as fit in it, so compression saves datagrams and not only
+        // bytes.
+        // The digest of the file is computed on the pipeline thread.
+        int maxDataLength = dataMessageSize - CONTROL_DATA_LENGTH;
+        return new ChunkCompressionPipeline(fileChannel, offset, fileChannel.size() - offset, MAX_RAW_CHUNK_LENGTH,
+            maxDataLength - Integer.BYTES, new ChunkCodec(compressionType, compressionLevel), CHUNK_QUEUE_CAPACITY,
+            fileDigest);
+    }
+    
+    private boolean isStartAcknowledge(long sessionId, ByteBuffer ack, int ackLength) {
+        return ackLength >= CONTROL_DATA_LENGTH + Long.BYTES + 1 && hasFlag(ack, ACK_FLAG) &&
+            hasFlag(ack, START_FLAG) && getSessionId(ack) == sessionId;
+    }
+    
+    private boolean isNegativeAcknowledge(long sessionId, ByteBuffer ack) {
+        return hasFlag(ack, ACK_FLAG) && hasFlag(ack, NAK_FLAG) && !hasFlag(ack, EOF_FLAG) &&
+            getSessionId(ack) == sessionId;
+    }
+    
+    private void acknowledgeMessageSent(long sessionId, UDPSendWindow sendWindow, ByteBuffer ack, int ackLength,
+            RttEstimator rttEstimator, CongestionController congestionController, FecEncoder fecEncoder) {
+        if (ackLength < CONTROL_DATA_LENGTH || !hasFlag(ack, ACK_FLAG) || getSessionId(ack) != sessionId) {
+            return;
+        }
+        
+        // The UDP Server echoes the send timestamp of the message that triggered the acknowledge.
+        long rttNanos = System.nanoTime() - getTimestamp(ack);
+        rttEstimator.addSample(rttNanos);
+        UDPMetrics.CLIENT_ACK_RTT_MICROS.record(rttNanos / 1000);
+        
+        // Everything up to the cumulative sequence number was received by the UDP Server.
+        long ackSeqNumber = getSequenceNumber(ack);
+        int numberOfMessagesAcknowledged = sendWindow.acknowledgeUpTo(ackSeqNumber);
+        
+        // The acknowledges of a transfer with forward error correction end with the number of messages the
+        // UDP Server rebuilt.
+        int bitmapEnd = ackLength;
+        if (fecEncoder != null && !hasFlag(ack, START_FLAG) && ackLength >= CONTROL_DATA_LENGTH + Integer.BYTES) {
+            bitmapEnd -= Integer.BYTES;
+            fecEncoder.onRecoveredMessages(ack.getInt(bitmapEnd));
+        }
+        
+        // The bitmap flags the messages received out of order after the cumulative sequence number. The
+        // acknowledge of the start message holds the resume offset and the compression type instead.
+        int bitmapLength = hasFlag(ack, START_FLAG) ? 0 : (bitmapEnd - CONTROL_DATA_LENGTH) * 8;
+        for (int i = 0; i < bitmapLength; i++) {
+            if (isSelectivelyAcknowledged(ack, bitmapEnd, i)) {
+                numberOfMessagesAcknowledged += sendWindow.acknowledge(ackSeqNumber + 1 + i);
             }
         }
         
-        return numberOfMessagesResent;
+        if (numberOfMessagesAcknowledged > 0) {
+            congestionController.onAcknowledged(numberOfMessagesAcknowledged, rttNanos, rttEstimator);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,110 @@
+package com.fii.pcd.hw01.udp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.function.Consumer;
+
+// The socket of the UDP Client, connected to the UDP Server. It is non blocking, so the acknowledges are waited for
+// on a selector, and the messages are sent from and received in direct buffers, so neither allocates.
+class UDPClientChannel implements Closeable {
+    // How long a send waits for room in the socket send buffer before trying again.
+    private static final long SEND_WAIT_MILLIS = 1;
+    // A large send buffer takes a whole paced burst of datagrams at once, so the send loop rarely waits for room.
+    private static final int SEND_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int IPV4_UDP_HEADER_LENGTH = 20 + 8;
+    private static final int IPV6_UDP_HEADER_LENGTH = 40 + 8;
+    // The ready keys are not collected in the selected key set, which would allocate.
+    private static final Consumer<SelectionKey> IGNORE_READY_KEY = readyKey -> { };
+    
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    
+    UDPClientChannel(InetSocketAddress serverAddress) throws IOException {
+        channel = DatagramChannel.open();
+        selector = Selector.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+            channel.connect(serverAddress);
+            channel.configureBlocking(false);
+            key = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    // Sends the message from its start up to its limit, so a message is resent the same way.
+    void send(ByteBuffer message) throws IOException {
+        message.rewind();
+        while (channel.write(message) == 0) {
+            // The socket send buffer is full.
+            key.interestOps(SelectionKey.OP_WRITE);
+            selector.select(IGNORE_READY_KEY, SEND_WAIT_MILLIS);
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+    
+    // Receives a datagram in the buffer, from its start up to its limit, waiting for it at most the given time.
+    // Returns its length, or -1 when none arrived in time.
+    int receive(ByteBuffer datagram, long timeoutNanos) throws IOException {
+        int length = read(datagram);
+        if (length < 0 && timeoutNanos > 0) {
+            selector.select(IGNORE_READY_KEY, Math.max(timeoutNanos / 1_000_000, 1));
+            length = read(datagram);
+        }
+        
+        return length;
+    }
+    
+    // The largest datagram the network interface towards the UDP Server sends in a single packet, or
+    // Integer.MAX_VALUE when the interface is not known.
+    int getInterfaceMaxDatagramSize() {
+        try {
+            InetAddress localAddress = ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(localAddress);
+            if (networkInterface == null || networkInterface.getMTU() <= 0) {
+                return Integer.MAX_VALUE;
+            }
+            
+            return networkInterface.getMTU() -
+                (localAddress instanceof Inet6Address ? IPV6_UDP_HEADER_LENGTH : IPV4_UDP_HEADER_LENGTH);
+        } catch (IOException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+    
+    private int read(ByteBuffer datagram) throws IOException {
+        datagram.clear();
+        try {
+            if (channel.read(datagram) <= 0) {
+                return -1;
+            }
+        } catch (PortUnreachableException e) {
+            // The UDP Server is not listening yet, the messages are resent when their retransmit timer expires.
+            return -1;
+        }
+        datagram.flip();
+        
+        return datagram.limit();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            selector.close();
+        } finally {
+            channel.close();
+        }
+    }
+}
\ No newline at end of file
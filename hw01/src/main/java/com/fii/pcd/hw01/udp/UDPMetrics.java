@@ -0,0 +1,44 @@
+package com.fii.pcd.hw01.udp;
+
+import com.fii.pcd.hw01.metrics.Histogram;
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.experimental.UtilityClass;
+
+// The metrics of the UDP Client and of the UDP Server.
+@UtilityClass
+class UDPMetrics {
+    static final LongAdder CLIENT_ACTIVE_TRANSFERS = MetricsRegistry.upDownCounter("udp_client_active_transfers",
+        "The file transfers in progress.");
+    static final LongAdder CLIENT_TRANSFERS = MetricsRegistry.counter("udp_client_transfers_total",
+        "The file transfers completed successfully.");
+    static final LongAdder CLIENT_FAILED_TRANSFERS = MetricsRegistry.counter("udp_client_failed_transfers_total",
+        "The file transfers that failed.");
+    static final LongAdder CLIENT_SENT_BYTES = MetricsRegistry.meter("udp_client_sent_bytes",
+        "The bytes of the messages sent, resent and parity messages included.");
+    static final LongAdder CLIENT_SENT_MESSAGES = MetricsRegistry.counter("udp_client_sent_messages_total",
+        "The messages sent, resent and parity messages included.");
+    static final LongAdder CLIENT_RESENT_MESSAGES = MetricsRegistry.counter("udp_client_resent_messages_total",
+        "The messages resent after their retransmit timer expired or the UDP Server received them corrupt.");
+    static final Histogram CLIENT_ACK_RTT_MICROS = MetricsRegistry.histogram("udp_client_ack_rtt_micros",
+        "The round trip time of the messages, measured on their acknowledges, in microseconds.");
+    
+    static final LongAdder SERVER_SESSIONS = MetricsRegistry.counter("udp_server_sessions_total",
+        "The sessions that received their file successfully.");
+    static final LongAdder SERVER_FAILED_SESSIONS = MetricsRegistry.counter("udp_server_failed_sessions_total",
+        "The sessions that expired or whose file failed the integrity check.");
+    static final LongAdder SERVER_RECEIVED_BYTES = MetricsRegistry.meter("udp_server_received_bytes",
+        "The bytes of the messages received with a valid checksum.");
+    static final LongAdder SERVER_RECEIVED_MESSAGES = MetricsRegistry.counter("udp_server_received_messages_total",
+        "The messages received with a valid checksum.");
+    static final LongAdder SERVER_CORRUPT_MESSAGES = MetricsRegistry.counter("udp_server_corrupt_messages_total",
+        "The messages received with a checksum that doesn't match.");
+    static final LongAdder SERVER_DUPLICATE_MESSAGES = MetricsRegistry.counter("udp_server_duplicate_messages_total",
+        "The messages received again after they were acknowledged.");
+    static final LongAdder SERVER_OUT_OF_ORDER_DISCARDS = MetricsRegistry.counter(
+        "udp_server_out_of_order_discards_total", "The messages received ahead of the receive window.");
+    static final LongAdder SERVER_RECOVERED_MESSAGES = MetricsRegistry.counter("udp_server_recovered_messages_total",
+        "The lost messages rebuilt from the parity messages.");
+    static final Histogram SERVER_SESSION_MILLIS = MetricsRegistry.histogram("udp_server_session_millis",
+        "The time to receive a file, in milliseconds.");
+}
\ No newline at end of file
@@ -0,0 +1,390 @@
+package com.fii.pcd.hw01.udp;
+
+import com.fii.pcd.hw01.compression.ChunkCodec;
+import com.fii.pcd.hw01.compression.CompressionType;
+import com.fii.pcd.hw01.integrity.Checksums;
+import com.fii.pcd.hw01.storage.AsyncFileWriter;
+import com.fii.pcd.hw01.storage.FileStorage;
+import com.fii.pcd.hw01.storage.ReceivedFiles;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.zip.Deflater;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import static com.fii.pcd.hw01.udp.UDPUtils.COMPRESSED_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.CONTROL_DATA_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.EOF_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.NAK_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.PARITY_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.appendRecoveredMessageCount;
+import static com.fii.pcd.hw01.udp.UDPUtils.getSequenceNumber;
+import static com.fii.pcd.hw01.udp.UDPUtils.getTimestamp;
+import static com.fii.pcd.hw01.udp.UDPUtils.hasFlag;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPAcknowledgeData;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPNegativeAcknowledgeData;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPStartAcknowledgeData;
+
+// The receive state of one file transfer handled by the UDP Server, or of a file downloaded by the UDP Client. All
+// the messages of a session are processed by the same thread, so the state is not shared between threads. The buffers of the session are
+// allocated once and reused for every message.
+@Slf4j
+class UDPReceiveSession {
+    @Getter
+    private final long sessionId;
+    private final int windowSize;
+    private final int messageSize;
+    private final FileStorage storage;
+    // The directory the file is received in.
+    private final Path directory;
+    private final Instant startTime = Instant.now();
+    // The messages received out of order, indexed by (sequence number % window size). The buffer of a slot is
+    // allocated the first time a message is buffered in it.
+    private final ByteBuffer[] receiveWindow;
+    private final boolean[] received;
+    // The bitmap of the next acknowledge and the buffer it is encoded in.
+    private final boolean[] receivedAfterLastAck;
+    private final ByteBuffer ackBuffer;
+    // The start message of the session has the sequence number 0.
+    private long lastAckSeq = -1;
+    private String fileName;
+    // The received file, resolved under the directory.
+    private Path file;
+    // Set by the UDP Client for a transfer that can be resumed, 0 otherwise.
+    private long resumeKey;
+    // The bytes of the file already received by an interrupted session, the UDP Client sends the rest.
+    private long resumeOffset;
+    // Decompresses the compressed datagrams, null when the UDP Client doesn't compress them.
+    private ChunkCodec codec;
+    private byte[] compressedData;
+    private ByteBuffer rawData;
+    // The SHA-256 of the file, updated as the messages are written in order, null when the UDP Client doesn't
+    // send the digest of the file.
+    private MessageDigest fileDigest;
+    @Getter
+    private boolean integrityFailed;
+    // Rebuilds the lost data messages from the parity messages, null without forward error correction. The rebuilt
+    // messages are encoded in their own buffer.
+    private FecDecoder fecDecoder;
+    private ByteBuffer recoveredMessage;
+    private File partFile;
+    private FileChannel fileChannel;
+    // Writes the file on a writer thread, so the worker goes on with the next messages meanwhile.
+    private AsyncFileWriter fileWriter;
+    private long filePosition;
+    @Getter
+    private volatile boolean completed;
+    @Getter
+    private volatile long lastActivityTime = System.nanoTime();
+    private long totalNumberOfMessages;
+    private long totalNumberOfBytes;
+    
+    UDPReceiveSession(long sessionId, int windowSize, int messageSize, FileStorage storage, Path directory) {
+        this.sessionId = sessionId;
+        this.windowSize = windowSize;
+        this.messageSize = messageSize;
+        this.storage = storage;
+        this.directory = directory;
+        this.receiveWindow = new ByteBuffer[windowSize];
+        this.received = new boolean[windowSize];
+        this.receivedAfterLastAck = new boolean[windowSize - 1];
+        this.ackBuffer = ByteBuffer.allocateDirect(CONTROL_DATA_LENGTH + Long.BYTES + 1 + windowSize / 8 +
+            Integer.BYTES);
+    }
+    
+    // The message is read from its start up to its limit, and can be reused by the caller once this returns.
+    void onMessage(ByteBuffer message, SocketAddress clientAddress, DatagramChannel channel) throws IOException {
+        lastActivityTime = System.nanoTime();
+        totalNumberOfMessages++;
+        totalNumberOfBytes += message.limit();
+        UDPMetrics.SERVER_RECEIVED_MESSAGES.increment();
+        UDPMetrics.SERVER_RECEIVED_BYTES.add(message.limit());
+        
+        long seqNumber = getSequenceNumber(message);
+        if (hasFlag(message, PARITY_FLAG)) {
+            // The parity messages are not acknowledged, unless they rebuild lost data messages.
+            long firstSeqNumber = fecDecoder == null || completed ? -1 :
+                fecDecoder.onParityMessage(message, lastAckSeq, windowSize);
+            if (firstSeqNumber >= 0 && recoverLostMessages(firstSeqNumber)) {
+                acknowledgeMessageReceived(getTimestamp(message), clientAddress, channel);
+            }
+            return;
+        }
+        
+        acceptMessage(seqNumber, message);
+        if (fecDecoder != null && !completed) {
+            long firstSeqNumber = fecDecoder.findBlock(seqNumber);
+            if (firstSeqNumber >= 0) {
+                recoverLostMessages(firstSeqNumber);
+            }
+            fecDecoder.removeCompletedBlocks(lastAckSeq);
+        }
+        
+        acknowledgeMessageReceived(getTimestamp(message), clientAddress, channel);
+    }
+    
+    private void acceptMessage(long seqNumber, ByteBuffer message) throws IOException {
+        boolean inWindow = seqNumber > lastAckSeq && seqNumber <= lastAckSeq + windowSize &&
+            !received[(int) (seqNumber % windowSize)];
+        if (fecDecoder != null && !completed && inWindow && !hasFlag(message, EOF_FLAG)) {
+            // The payload is kept until the block of the message is complete.
+            fecDecoder.onDataMessage(seqNumber, message);
+        }
+        
+        if (!completed && seqNumber == lastAckSeq + 1) {
+            // The message is in order, so it is processed right from the received buffer.
+            lastAckSeq++;
+            processInOrder(lastAckSeq, message);
+            
+            // Process the buffered messages that are now in order.
+            int nextSlot = (int) ((lastAckSeq + 1) % windowSize);
+            while (!completed && received[nextSlot]) {
+                lastAckSeq++;
+                processInOrder(lastAckSeq, receiveWindow[nextSlot]);
+                received[nextSlot] = false;
+                nextSlot = (int) ((lastAckSeq + 1) % windowSize);
+            }
+        } else if (!completed && seqNumber > lastAckSeq && seqNumber <= lastAckSeq + windowSize) {
+            // Buffer the message until all the previous messages are received.
+            int slot = (int) (seqNumber % windowSize);
+            if (receiveWindow[slot] == null) {
+                receiveWindow[slot] = ByteBuffer.allocateDirect(messageSize);
+            }
+            receiveWindow[slot].clear();
+            receiveWindow[slot].put(message.rewind()).flip();
+            received[slot] = true;
+        } else if (seqNumber > lastAckSeq && !completed) {
+            UDPMetrics.SERVER_OUT_OF_ORDER_DISCARDS.increment();
+            log.debug("Message discarded in session = {}! Expected a sequence number up to = {} " +
+                "but received the sequence number = {}", sessionId, (lastAckSeq + windowSize), seqNumber);
+        } else if (seqNumber <= lastAckSeq) {
+            UDPMetrics.SERVER_DUPLICATE_MESSAGES.increment();
+        }
+    }
+    
+    // Returns true when lost data messages of the block were rebuilt, which are then accepted as if received.
+    private boolean recoverLostMessages(long firstSeqNumber) throws IOException {
+        int numberOfRecoveredMessages = fecDecoder.recover(firstSeqNumber);
+        for (int i = 0; i < numberOfRecoveredMessages; i++) {
+            long seqNumber = fecDecoder.getRecoveredSeqNumber(i);
+            if (!fecDecoder.writeRecoveredMessage(i, recoveredMessage, sessionId)) {
+                log.warn("The data message with sequence number = {} rebuilt in session = {} is invalid, so it " +
+                    "is left for the UDP Client to resend.", seqNumber, sessionId);
+                continue;
+            }
+            acceptMessage(seqNumber, recoveredMessage);
+            UDPMetrics.SERVER_RECOVERED_MESSAGES.increment();
+        }
+        fecDecoder.removeCompletedBlocks(lastAckSeq);
+        
+        return numberOfRecoveredMessages > 0;
+    }
+    
+    // The message doesn't match its checksum. When its sequence number is one the session waits for, it is asked
+    // again right away instead of after the retransmit timer of the UDP Client.
+    void onCorruptMessage(ByteBuffer message, SocketAddress clientAddress, DatagramChannel channel)
+            throws IOException {
+        long seqNumber = getSequenceNumber(message);
+        if (completed || seqNumber <= lastAckSeq || seqNumber > lastAckSeq + windowSize ||
+                received[(int) (seqNumber % windowSize)]) {
+            return;
+        }
+        
+        log.debug("Corrupt message received in session = {} for the sequence number = {}", sessionId, seqNumber);
+        setUDPNegativeAcknowledgeData(ackBuffer, sessionId, seqNumber);
+        channel.send(ackBuffer, clientAddress);
+    }
+    
+    void expire() {
+        UDPMetrics.SERVER_FAILED_SESSIONS.increment();
+        log.info("UDP Client session = {} for the file = {} expired after receiving {} messages.",
+            sessionId, fileName, totalNumberOfMessages);
+        close();
+        if (partFile != null && resumeKey == 0) {
+            partFile.delete();
+        } else if (partFile != null) {
+            log.info("The part file of the file = {} is kept with {} bytes, so the transfer can be resumed.",
+                fileName, partFile.length());
+        }
+    }
+    
+    private void processInOrder(long seqNumber, ByteBuffer message) throws IOException {
+        message.position(CONTROL_DATA_LENGTH);
+        if (seqNumber == 0) {
+            // The start message carries the file size, the resume key, the compression type, the integrity option,
+            // the forward error correction option with the message size, and the file name.
+            long fileSize = message.getLong();
+            resumeKey = message.getLong();
+            CompressionType compressionType = CompressionType.fromCode(message.get());
+            if (compressionType != CompressionType.NONE) {
+                codec = new ChunkCodec(compressionType, Deflater.DEFAULT_COMPRESSION);
+                compressedData = new byte[messageSize];
+                rawData = ByteBuffer.allocate(UDPClient.MAX_RAW_CHUNK_LENGTH);
+            }
+            boolean integrity = message.get() != 0;
+            if (message.get() != 0) {
+                // The messages of a transfer with forward error correction have the size the UDP Client probed, which
+                // its parity messages are rebuilt with.
+                int fecMessageSize = message.getInt();
+                if (fecMessageSize > messageSize || fecMessageSize <= CONTROL_DATA_LENGTH + FecCode.DATA_OVERHEAD) {
+                    throw new IOException("Invalid message size = " + fecMessageSize + " for the parity messages!");
+                }
+                fecDecoder = new FecDecoder(windowSize, fecMessageSize);
+                recoveredMessage = ByteBuffer.allocateDirect(messageSize);
+            }
+            byte[] fileNameBytes = new byte[message.remaining()];
+            message.get(fileNameBytes);
+            fileName = new String(fileNameBytes);
+            // An invalid name fails the session before any file is opened, so the UDP Client is not acknowledged.
+            file = ReceivedFiles.resolve(directory, fileName);
+            if (resumeKey != 0) {
+                // The part file is named after the resume key, so the session resuming the transfer finds it.
+                // The part file is written in order, so its length is the offset to resume from.
+                partFile = file.resolveSibling(file.getFileName() + "." + Long.toHexString(resumeKey) + ".part")
+                    .toFile();
+                resumeOffset = partFile.length() <= fileSize ? partFile.length() : 0;
+            } else {
+                // The file is received in a part file of its own, so concurrent transfers of the same file name
+                // don't corrupt each other.
+                partFile = file.resolveSibling(file.getFileName() + "." + Long.toHexString(sessionId) + ".part")
+                    .toFile();
+            }
+            fileChannel = resumeOffset > 0 ?
+                FileChannel.open(partFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            // The length of a resumable part file is the offset to resume from, so it is not preallocated.
+            fileWriter = storage.openWriter(fileChannel, fileSize, resumeKey == 0);
+            filePosition = resumeOffset;
+            if (integrity) {
+                fileDigest = Checksums.newFileDigest();
+                // The bytes received by the interrupted session are hashed once, the next ones as they arrive.
+                try (FileChannel partFileChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.READ)) {
+                    Checksums.updateFromFile(fileDigest, partFileChannel, 0, resumeOffset);
+                }
+            }
+            log.info("Received an UDP Client request in session = {} to transfer the file = {} " +
+                "with file size = {} and with resume offset = {} and with compression = {} and with integrity = {} " +
+                "and with forward error correction = {}",
+                sessionId, fileName, fileSize, resumeOffset, compressionType, integrity, fecDecoder != null);
+            return;
+        }
+        
+        if (hasFlag(message, EOF_FLAG)) {
+            // The end of file message carries the digest of the file, when the integrity is checked.
+            byte[] expectedDigest = new byte[message.remaining()];
+            message.get(expectedDigest);
+            complete(expectedDigest);
+            return;
+        }
+        
+        ByteBuffer data = message;
+        if (hasFlag(message, COMPRESSED_FLAG)) {
+            int rawLength = message.getInt();
+            if (codec == null || rawLength <= 0 || rawLength > UDPClient.MAX_RAW_CHUNK_LENGTH) {
+                throw new IOException("Invalid compressed message with raw length = " + rawLength +
+                    " for the sequence number = " + seqNumber);
+            }
+            int compressedLength = message.remaining();
+            message.get(compressedData, 0, compressedLength);
+            codec.decompress(compressedData, 0, compressedLength, rawData.array(), 0, rawLength);
+            data = rawData.clear().limit(rawLength);
+        }
+        int dataPosition = data.position();
+        int dataLength = data.remaining();
+        fileWriter.write(data, filePosition);
+        filePosition += dataLength;
+        if (fileDigest != null) {
+            fileDigest.update(data.position(dataPosition));
+        }
+    }
+    
+    private void complete(byte[] expectedDigest) throws IOException {
+        fileWriter.finish();
+        close();
+        if (fileDigest != null && !MessageDigest.isEqual(expectedDigest, fileDigest.digest())) {
+            // The acknowledges tell the UDP Client that the file failed the integrity check.
+            integrityFailed = true;
+            completed = true;
+            partFile.delete();
+            UDPMetrics.SERVER_FAILED_SESSIONS.increment();
+            log.error("The SHA-256 of the file = {} received in session = {} doesn't match the one of the " +
+                "UDP Client, so the file is deleted.", fileName, sessionId);
+            return;
+        }
+        
+        Files.move(partFile.toPath(), file, StandardCopyOption.REPLACE_EXISTING);
+        completed = true;
+        
+        Duration executionTime = Duration.between(startTime, Instant.now());
+        UDPMetrics.SERVER_SESSIONS.increment();
+        UDPMetrics.SERVER_SESSION_MILLIS.record(executionTime.toMillis());
+        log.info("UDP Client request processed successfully in session = {} for the file = {} " +
+            "with execution time = {} and " +
+            "with total number of messages received = {} and " +
+            "with total number of bytes received = {}",
+            sessionId, fileName, executionTime, totalNumberOfMessages, totalNumberOfBytes);
+        if (fecDecoder != null) {
+            log.info("The forward error correction rebuilt {} lost messages in session = {}",
+                fecDecoder.getNumberOfRecoveredMessages(), sessionId);
+        }
+    }
+    
+    private void close() {
+        if (codec != null) {
+            codec.close();
+        }
+        if (fileChannel != null) {
+            try {
+                fileWriter.close();
+            } catch (IOException e) {
+                log.error("The file = {} cannot be closed in session = {}", fileName, sessionId, e);
+            } finally {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    log.error("The file = {} cannot be closed in session = {}", fileName, sessionId, e);
+                }
+                fileChannel = null;
+            }
+        }
+    }
+    
+    private void acknowledgeMessageReceived(long echoedTimestamp, SocketAddress clientAddress,
+            DatagramChannel channel) throws IOException {
+        if (lastAckSeq == 0 && !completed) {
+            // The UDP Client waits for the acknowledge of the start message before sending the file.
+            byte compressionType = codec != null ? codec.getType().getCode() : CompressionType.NONE.getCode();
+            setUDPStartAcknowledgeData(ackBuffer, sessionId, echoedTimestamp, resumeOffset, compressionType);
+            channel.send(ackBuffer, clientAddress);
+            return;
+        }
+        
+        // Flag the buffered messages that follow the last acknowledged sequence number.
+        int bitmapLength = completed ? 0 : receivedAfterLastAck.length;
+        for (int i = 0; i < bitmapLength; i++) {
+            receivedAfterLastAck[i] = received[(int) ((lastAckSeq + 1 + i) % windowSize)];
+        }
+        // The send timestamp of the received message is echoed for the RTT estimation of the UDP Client.
+        // The acknowledges of a completed session flag whether the file passed the integrity check.
+        byte flags = completed ? (integrityFailed ? EOF_FLAG | NAK_FLAG : EOF_FLAG) : 0;
+        setUDPAcknowledgeData(ackBuffer, sessionId, lastAckSeq, echoedTimestamp, receivedAfterLastAck, bitmapLength,
+            flags);
+        if (fecDecoder != null) {
+            appendRecoveredMessageCount(ackBuffer, fecDecoder.getNumberOfRecoveredMessages());
+        }
+        
+        channel.send(ackBuffer, clientAddress);
+    }
+}
\ No newline at end of file
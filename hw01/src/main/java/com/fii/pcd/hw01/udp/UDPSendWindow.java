@@ -0,0 +1,169 @@
+package com.fii.pcd.hw01.udp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import static com.fii.pcd.hw01.udp.UDPUtils.setResendTimestamp;
+
+// The messages sent by the UDP Client that were not acknowledged yet, indexed by (sequence number % window size).
+// Every message has its own retransmit timer. The message buffers are reused by the sequence numbers that fall in
+// the same slot, so the messages are encoded in place and not allocated.
+@Slf4j
+class UDPSendWindow {
+    private final int messageSize;
+    private final ByteBuffer[] messages;
+    private final long[] sentTimes;
+    private final boolean[] acknowledged;
+    @Getter
+    private long base;
+    @Getter
+    private long end;
+    @Getter
+    private int unacknowledgedCount;
+    @Getter
+    private long lastResentBytes;
+    @Getter
+    private long lowestResentSeqNumber;
+    
+    UDPSendWindow(int windowSize, int messageSize, long firstSeqNumber) {
+        this.messageSize = messageSize;
+        base = firstSeqNumber;
+        end = firstSeqNumber;
+        messages = new ByteBuffer[windowSize];
+        sentTimes = new long[windowSize];
+        acknowledged = new boolean[windowSize];
+    }
+    
+    boolean isEmpty() {
+        return base == end;
+    }
+    
+    // The cleared buffer to encode the message with the given sequence number in, before it is sent and added. The
+    // buffer of a slot is allocated the first time the slot is used.
+    ByteBuffer messageBuffer(long seqNumber) {
+        int slot = slot(seqNumber);
+        if (messages[slot] == null) {
+            messages[slot] = ByteBuffer.allocateDirect(messageSize);
+        }
+        
+        return messages[slot].clear();
+    }
+    
+    void add(long seqNumber, long sentTime) {
+        int slot = slot(seqNumber);
+        sentTimes[slot] = sentTime;
+        acknowledged[slot] = false;
+        end = seqNumber + 1;
+        unacknowledgedCount++;
+    }
+    
+    int acknowledgeUpTo(long seqNumber) {
+        int numberOfMessagesAcknowledged = 0;
+        for (long seq = base; seq <= seqNumber && seq < end; seq++) {
+            numberOfMessagesAcknowledged += markAcknowledged(slot(seq));
+        }
+        slide();
+        
+        return numberOfMessagesAcknowledged;
+    }
+    
+    int acknowledge(long seqNumber) {
+        if (seqNumber < base || seqNumber >= end) {
+            return 0;
+        }
+        
+        int numberOfMessagesAcknowledged = markAcknowledged(slot(seqNumber));
+        slide();
+        
+        return numberOfMessagesAcknowledged;
+    }
+    
+    long nanosUntilNextTimeout(long rtoNanos, long now) {
+        long earliestSentTime = Long.MAX_VALUE;
+        for (long seq = base; seq < end; seq++) {
+            int slot = slot(seq);
+            if (!acknowledged[slot]) {
+                earliestSentTime = Math.min(earliestSentTime, sentTimes[slot]);
+            }
+        }
+        if (earliestSentTime == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        
+        return Math.max(rtoNanos - (now - earliestSentTime), 0);
+    }
+    
+    // The retransmit timers of the messages of a block with forward error correction start once its parity messages
+    // are sent, since the UDP Server may rebuild the lost ones from them.
+    void restartTimers(long firstSeqNumber, long lastSeqNumber, long now) {
+        for (long seq = Math.max(firstSeqNumber, base); seq <= lastSeqNumber && seq < end; seq++) {
+            int slot = slot(seq);
+            if (!acknowledged[slot]) {
+                sentTimes[slot] = now;
+            }
+        }
+    }
+    
+    long resendExpired(UDPClientChannel channel, long rtoNanos, long now) throws IOException {
+        long numberOfMessagesResent = 0;
+        lastResentBytes = 0;
+        lowestResentSeqNumber = -1;
+        for (long seq = base; seq < end; seq++) {
+            int slot = slot(seq);
+            if (!acknowledged[slot] && now - sentTimes[slot] >= rtoNanos) {
+                // The message was not acknowledged in time, so it must be resent.
+                resend(slot, channel, now);
+                log.debug("UDP Client is resending the message for the sequence number = {}", seq);
+                numberOfMessagesResent++;
+                lastResentBytes += messages[slot].limit();
+                if (lowestResentSeqNumber < 0) {
+                    lowestResentSeqNumber = seq;
+                }
+            }
+        }
+        
+        return numberOfMessagesResent;
+    }
+    
+    // Resends the message right away, as asked by the UDP Server. Returns its length, or 0 when it was already
+    // acknowledged.
+    int resend(long seqNumber, UDPClientChannel channel, long now) throws IOException {
+        int slot = slot(seqNumber);
+        if (seqNumber < base || seqNumber >= end || acknowledged[slot]) {
+            return 0;
+        }
+        
+        resend(slot, channel, now);
+        log.debug("UDP Client is resending the corrupt message for the sequence number = {}", seqNumber);
+        
+        return messages[slot].limit();
+    }
+    
+    private void resend(int slot, UDPClientChannel channel, long now) throws IOException {
+        setResendTimestamp(messages[slot], now);
+        channel.send(messages[slot]);
+        sentTimes[slot] = now;
+    }
+    
+    private int markAcknowledged(int slot) {
+        if (acknowledged[slot]) {
+            return 0;
+        }
+        
+        acknowledged[slot] = true;
+        unacknowledgedCount--;
+        return 1;
+    }
+    
+    private void slide() {
+        while (base < end && acknowledged[slot(base)]) {
+            base++;
+        }
+    }
+    
+    private int slot(long seqNumber) {
+        return (int) (seqNumber % messages.length);
+    }
+}
\ No newline at end of file
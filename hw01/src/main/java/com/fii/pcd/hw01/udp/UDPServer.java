@@ -1,120 +1,385 @@
 package com.fii.pcd.hw01.udp;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.time.Duration;
-import java.time.Instant;
-import lombok.AllArgsConstructor;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.fii.pcd.hw01.compression.CompressionType;
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import com.fii.pcd.hw01.storage.FileStorage;
+import com.fii.pcd.hw01.storage.HotFileCache;
+import com.fii.pcd.hw01.storage.ReceivedFiles;
+import com.fii.pcd.hw01.storage.StorageOptions;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
-import static com.fii.pcd.hw01.udp.UDPUtils.byteArrayToLong;
-import static com.fii.pcd.hw01.udp.UDPUtils.longToByteArray;
+import static com.fii.pcd.hw01.udp.UDPUtils.CONTROL_DATA_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.DOWNLOAD_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.PROBE_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.START_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.getSessionId;
+import static com.fii.pcd.hw01.udp.UDPUtils.getTimestamp;
+import static com.fii.pcd.hw01.udp.UDPUtils.hasFlag;
+import static com.fii.pcd.hw01.udp.UDPUtils.hasValidChecksum;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPDownloadRefusalData;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPProbeAcknowledgeData;
 
-@AllArgsConstructor
+@RequiredArgsConstructor
 @Slf4j
 public class UDPServer {
+    // A session without messages for this long is dropped, together with its partial file unless it can be resumed.
+    private static final long SESSION_IDLE_TIMEOUT_NANOS = 30_000_000_000L;
+    // How long the last acknowledge is repeated for a UDP Client that did not receive it.
+    private static final long SESSION_LINGER_NANOS = 2_000_000_000L;
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    // The memory of the pooled datagram buffers, shared by the receivers and the workers.
+    private static final int DATAGRAM_POOL_MEMORY = 16 * 1024 * 1024;
+    private static final int MIN_POOLED_DATAGRAMS = 256;
+    // The session expirations that can wait in the queue of a worker, besides the datagrams.
+    private static final int MAX_QUEUED_EXPIRATIONS = 1024;
+    // The downloads sent at once, each one by a sender thread of its own. The next download requests are refused.
+    private static final int MAX_CONCURRENT_DOWNLOADS = 64;
+    
     private final int port;
     private final int messageSize;
-
+    // The number of out of order messages that can be buffered per session (1 means only in order messages
+    // are accepted).
+    private final int windowSize;
+    // The number of threads receiving messages from the network.
+    private final int receiverCount;
+    // The number of threads processing the sessions. All the messages of a session go to the same worker.
+    private final int workerCount;
+    private final StorageOptions storageOptions;
+    // The bytes of the downloaded files kept in memory, 0 to read every download from the disk.
+    private final long downloadCacheSize;
+    private final Map<Long, UDPReceiveSession> sessions = new ConcurrentHashMap<>();
+    // The time the download requests were received at, by download id, so their resent copies are ignored.
+    private final Map<Long, Long> downloads = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor downloadSenders;
+    private HotFileCache downloadCache;
+    private ExecutorService[] workers;
+    // The datagrams not in use. A receiver takes one to receive a datagram in and the worker that processes it puts
+    // it back, so the messages are neither allocated nor copied.
+    private BlockingQueue<ReceivedDatagram> freeDatagrams;
+    private FileStorage storage;
+    
     public void start() {
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            Instant startTime = Instant.now();
-            log.info("UDP Server is starting on port = {} with message size = {}",
-                port, messageSize);
+        List<DatagramChannel> channels = new ArrayList<>();
+        ScheduledExecutorService sessionCleaner = null;
+        
+        try {
+            log.info("UDP Server is starting on port = {} with message size = {} and with window size = {} " +
+                "and with receivers = {} and with workers = {} and with storage = {} " +
+                "and with download cache size = {}",
+                port, messageSize, windowSize, receiverCount, workerCount, storageOptions, downloadCacheSize);
             
             // Create the directory where all received files will be stored.
             File file = new File("./FilesReceived/");
             file.mkdirs();
             
-            long totalNumberOfMessages = 0;
-            long totalNumberOfBytes = 0;
+            storage = new FileStorage(storageOptions);
+            downloadCache = new HotFileCache(downloadCacheSize);
+            AtomicInteger downloadSenderNumber = new AtomicInteger();
+            downloadSenders = new ThreadPoolExecutor(0, MAX_CONCURRENT_DOWNLOADS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> new Thread(runnable,
+                    "udp-download-" + downloadSenderNumber.incrementAndGet()));
+            channels = openChannels();
+            int datagramCount = Math.max(MIN_POOLED_DATAGRAMS, DATAGRAM_POOL_MEMORY / messageSize);
+            freeDatagrams = new ArrayBlockingQueue<>(datagramCount);
+            for (int i = 0; i < datagramCount; i++) {
+                freeDatagrams.add(new ReceivedDatagram(ByteBuffer.allocateDirect(messageSize)));
+            }
+            // The queue of a worker has room for all the datagrams, and its array doesn't allocate per task.
+            workers = new ExecutorService[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(datagramCount + MAX_QUEUED_EXPIRATIONS));
+            }
+            MetricsRegistry.gauge("udp_server_active_sessions", "The sessions receiving their file.",
+                () -> sessions.values().stream().filter(session -> !session.isCompleted()).count());
+            MetricsRegistry.gauge("udp_server_worker_queue_depth", "The datagrams waiting for a worker.",
+                () -> Arrays.stream(workers)
+                    .mapToLong(worker -> ((ThreadPoolExecutor) worker).getQueue().size()).sum());
+            sessionCleaner = Executors.newSingleThreadScheduledExecutor();
+            sessionCleaner.scheduleAtFixedRate(this::removeExpiredSessions, 1, 1, TimeUnit.SECONDS);
             
-            // Read the file name.
-            byte[] fileNameBuffer = new byte[messageSize];
-            DatagramPacket fileNamePacket = new DatagramPacket(fileNameBuffer, fileNameBuffer.length);
-            socket.receive(fileNamePacket);
-            byte[] data = fileNamePacket.getData();
-            String fileName = new String(data, 0, fileNamePacket.getLength());
-            totalNumberOfMessages++;
-            log.info("Received an UDP Client request to transfer the file = {}", fileName);
+            List<Thread> receivers = new ArrayList<>();
+            for (int i = 0; i < receiverCount; i++) {
+                DatagramChannel channel = channels.get(i % channels.size());
+                Thread receiver = new Thread(() -> receiveMessages(channel), "udp-receiver-" + i);
+                receiver.start();
+                receivers.add(receiver);
+            }
             
-            // Read the file content.
-            file = new File("./FilesReceived/" + fileName);
-            try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-                boolean isEof;
-                long seqNumber;
-                long lastAckSeq = 0;
-                
-                while (true) {
-                    byte[] message = new byte[messageSize];
-                    byte[] fileData = new byte[messageSize - (Long.BYTES + 1)];
-                    byte[] seqNumberBytes = new byte[Long.BYTES];
-                    
-                    DatagramPacket fileDataPacket = new DatagramPacket(message, message.length);
-                    socket.receive(fileDataPacket);
-                    message = fileDataPacket.getData();
-                    
-                    // Read the port and the address for sending acknowledgment to the UDP Client.
-                    InetAddress clientAddress = fileDataPacket.getAddress();
-                    int clientPort = fileDataPacket.getPort();
-                    
-                    // Read the sequence number.
-                    System.arraycopy(message, 0, seqNumberBytes, 0, seqNumberBytes.length);
-                    seqNumber = byteArrayToLong(seqNumberBytes);
-                    // Read the end of file flag.
-                    isEof = (message[8] & 0xff) == 1;
-                    totalNumberOfMessages++;
-                    totalNumberOfBytes += message.length;
-                    
-                    if (seqNumber == (lastAckSeq + 1)) {
-                        lastAckSeq = seqNumber;
-                        
-                        if (!isEof) {
-                            // Read the file data from the message.
-                            System.arraycopy(message, Long.BYTES + 1, fileData, 0, fileData.length);
-                            fileOutputStream.write(fileData);
-                        }                        
-                        
-                        acknowledgeMessageReceived(lastAckSeq, socket, clientAddress, clientPort);
-                        
-                        if (isEof) {
-                            break;
-                        }
-                    } else {
-                        log.info("Message discarded! Expected the sequence number = {} " +
-                            "but received the sequence number = {}", (lastAckSeq + 1), seqNumber);
-                        
-                        // Resend the last acknowledge sequence number.
-                        acknowledgeMessageReceived(lastAckSeq, socket, clientAddress, clientPort);
+            log.info("UDP Server is waiting for client requests on {} sockets.", channels.size());
+            for (Thread receiver : receivers) {
+                receiver.join();
+            }
+        } catch (Exception e) {
+            log.error("UDP Server failed to listen on port = {} or to receive message packets.", port, e);
+        } finally {
+            if (sessionCleaner != null) {
+                sessionCleaner.shutdown();
+            }
+            if (downloadSenders != null) {
+                downloadSenders.shutdown();
+            }
+            if (workers != null) {
+                for (ExecutorService worker : workers) {
+                    if (worker != null) {
+                        worker.shutdown();
                     }
                 }
-            } catch (Exception e) {
-                throw e;
+            }
+            if (storage != null) {
+                storage.close();
+            }
+            for (DatagramChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.error("UDP Server socket cannot be closed.", e);
+                }
+            }
+        }
+    }
+    
+    private List<DatagramChannel> openChannels() throws IOException {
+        List<DatagramChannel> channels = new ArrayList<>();
+        DatagramChannel channel = DatagramChannel.open();
+        if (receiverCount > 1 && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            // The kernel spreads the UDP Clients over several sockets bound to the same port.
+            channels.add(bindChannel(channel, true));
+            for (int i = 1; i < receiverCount; i++) {
+                channels.add(bindChannel(DatagramChannel.open(), true));
+            }
+        } else {
+            // All the receivers share the same socket.
+            channels.add(bindChannel(channel, false));
+        }
+        
+        return channels;
+    }
+    
+    private DatagramChannel bindChannel(DatagramChannel channel, boolean reusePort) throws IOException {
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        // A large receive buffer absorbs the bursts of the UDP Clients while the workers are busy.
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        
+        return channel.bind(new InetSocketAddress(port));
+    }
+    
+    private void receiveMessages(DatagramChannel channel) {
+        try {
+            while (true) {
+                // Wait for a free datagram when the workers are behind, the socket buffers the next ones.
+                ReceivedDatagram datagram = freeDatagrams.take();
+                ByteBuffer message = datagram.message.clear();
+                datagram.clientAddress = channel.receive(message);
+                datagram.channel = channel;
+                message.flip();
+                if (message.limit() < CONTROL_DATA_LENGTH) {
+                    freeDatagrams.add(datagram);
+                    continue;
+                }
+                
+                workerFor(getSessionId(message)).execute(datagram);
+            }
+        } catch (ClosedChannelException e) {
+            log.info("UDP Server socket was closed.");
+        } catch (IOException e) {
+            log.error("UDP Server failed to receive message packets.", e);
+        } catch (InterruptedException e) {
+            log.info("UDP Server receiver was interrupted.");
+        }
+    }
+    
+    private void processMessage(ByteBuffer message, SocketAddress clientAddress, DatagramChannel channel) {
+        long sessionId = getSessionId(message);
+        int length = message.limit();
+        UDPReceiveSession session = sessions.get(sessionId);
+        if (!hasValidChecksum(message, length)) {
+            UDPMetrics.SERVER_CORRUPT_MESSAGES.increment();
+            // The session id of a corrupt message cannot be trusted either, so only a known session asks it again.
+            if (session != null) {
+                try {
+                    session.onCorruptMessage(message, clientAddress, channel);
+                } catch (IOException e) {
+                    log.error("UDP Server cannot ask again a corrupt message in session = {}", sessionId, e);
+                }
+            }
+            return;
+        }
+        if (hasFlag(message, PROBE_FLAG)) {
+            acknowledgeProbe(message, clientAddress, channel);
+            return;
+        }
+        if (hasFlag(message, DOWNLOAD_FLAG)) {
+            startDownload(message, clientAddress, channel);
+            return;
+        }
+        if (session == null) {
+            if (!hasFlag(message, START_FLAG)) {
+                // The start message was not received yet, so the UDP Client will resend this message.
+                return;
             }
             
-            Instant endTime = Instant.now();
-            Duration executionTime = Duration.between(startTime, endTime);
-            log.info("UDP Client request processed successfully " +
-                "with execution time = {} and " +
-                "with total number of messages received = {} and " +
-                "with total number of bytes received = {}",
-                executionTime, totalNumberOfMessages, totalNumberOfBytes);
+            session = new UDPReceiveSession(sessionId, windowSize, messageSize, storage, ReceivedFiles.DIRECTORY);
+            sessions.put(sessionId, session);
+        }
+        
+        try {
+            session.onMessage(message, clientAddress, channel);
         } catch (Exception e) {
-            log.error("UDP Server failed to listen on port = {} or to receive message packets.", port, e);
-        }   
-    }    
+            log.error("UDP Client request failed to be processed in session = {}", sessionId, e);
+            sessions.remove(sessionId);
+            session.expire();
+        }
+    }
+    
+    // A probe that arrived whole, so its checksum matches, tells the UDP Client that datagrams of its size reach the
+    // UDP Server. The probes are not part of a session.
+    private void acknowledgeProbe(ByteBuffer message, SocketAddress clientAddress, DatagramChannel channel) {
+        ByteBuffer ack = ByteBuffer.allocate(CONTROL_DATA_LENGTH);
+        setUDPProbeAcknowledgeData(ack, getSessionId(message), message.limit(), getTimestamp(message));
+        try {
+            channel.send(ack, clientAddress);
+        } catch (IOException e) {
+            log.error("UDP Server cannot acknowledge the probe of the UDP Client = {}", clientAddress, e);
+        }
+    }
     
-    private void acknowledgeMessageReceived(long lastAckSeq, DatagramSocket socket,
-            InetAddress clientAddress, int clientPort) throws IOException {
-        byte[] ackData = longToByteArray(lastAckSeq);
+    // Sends the file asked by the download request back to the UDP Client on a sender thread, as an UDP Client
+    // would, from the hot file cache when it has the file. The UDP Client is refused when there is no such file or
+    // when too many downloads are in progress.
+    private void startDownload(ByteBuffer message, SocketAddress clientAddress, DatagramChannel channel) {
+        long downloadId = getSessionId(message);
+        if (downloads.putIfAbsent(downloadId, System.nanoTime()) != null) {
+            return;
+        }
         
-        DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, clientAddress, clientPort);
-        socket.send(ackPacket);
+        message.position(CONTROL_DATA_LENGTH);
+        int clientWindowSize = message.getInt();
+        int clientMessageSize = message.getInt();
+        byte[] fileNameBytes = new byte[message.remaining()];
+        message.get(fileNameBytes);
+        String fileName = new String(fileNameBytes);
+        Path file = resolveReceivedFile(fileName);
+        try {
+            if (file == null || clientWindowSize < 1 || clientMessageSize <= CONTROL_DATA_LENGTH) {
+                log.info("UDP Client = {} asked for the file = {} which was not received.", clientAddress, fileName);
+                refuseDownload(downloadId, clientAddress, channel);
+                return;
+            }
+            
+            // The file is sent with the window and the messages of the UDP Client, up to the ones of the UDP Server,
+            // and checked by the UDP Client against its SHA-256.
+            InetSocketAddress clientSocketAddress = (InetSocketAddress) clientAddress;
+            UDPClient sender = new UDPClient(clientSocketAddress.getPort(), clientSocketAddress.getHostString(),
+                Math.min(clientMessageSize, messageSize), Math.min(clientWindowSize, windowSize),
+                CongestionController.Type.AIMD, false, CompressionType.NONE, 0, true, FecMode.NONE, true);
+            downloadSenders.execute(() -> {
+                try {
+                    sender.sendFile(file.toString(), downloadCache.get(file));
+                } catch (IOException e) {
+                    log.error("The file = {} cannot be read for the UDP Client = {}", fileName, clientAddress, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.info("The download of the file = {} is refused, since {} downloads are in progress.",
+                fileName, MAX_CONCURRENT_DOWNLOADS);
+            refuseDownload(downloadId, clientAddress, channel);
+        }
+    }
+    
+    private void refuseDownload(long downloadId, SocketAddress clientAddress, DatagramChannel channel) {
+        ByteBuffer refusal = ByteBuffer.allocate(CONTROL_DATA_LENGTH);
+        setUDPDownloadRefusalData(refusal, downloadId);
+        try {
+            channel.send(refusal, clientAddress);
+        } catch (IOException e) {
+            log.error("UDP Server cannot refuse the download = {} of the UDP Client = {}",
+                downloadId, clientAddress, e);
+        }
+    }
+    
+    // Resolves the file name under the directory of the received files, and returns null for the invalid names and
+    // for the files that were not received.
+    private static Path resolveReceivedFile(String fileName) {
+        try {
+            Path file = ReceivedFiles.resolve(fileName);
+            
+            return Files.isRegularFile(file) ? file : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    private void removeExpiredSessions() {
+        long now = System.nanoTime();
+        // The copies of a download request arrive within its first seconds.
+        downloads.values().removeIf(requestTime -> now - requestTime > SESSION_IDLE_TIMEOUT_NANOS);
+        for (UDPReceiveSession session : sessions.values()) {
+            long idleTime = now - session.getLastActivityTime();
+            if (session.isCompleted() && idleTime > SESSION_LINGER_NANOS) {
+                sessions.remove(session.getSessionId());
+            } else if (!session.isCompleted() && idleTime > SESSION_IDLE_TIMEOUT_NANOS) {
+                // The session state is only touched by its worker thread. A worker with a full queue expires the
+                // session on a next run.
+                try {
+                    workerFor(session.getSessionId()).execute(() -> {
+                        if (sessions.remove(session.getSessionId(), session)) {
+                            session.expire();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    log.info("The expiration of session = {} is postponed.", session.getSessionId());
+                }
+            }
+        }
+    }
+    
+    private ExecutorService workerFor(long sessionId) {
+        return workers[Math.floorMod(Long.hashCode(sessionId), workers.length)];
+    }
+    
+    // A pooled buffer of one message, processed by the worker of its session, which puts it back in the pool.
+    @RequiredArgsConstructor
+    private class ReceivedDatagram implements Runnable {
+        private final ByteBuffer message;
+        private SocketAddress clientAddress;
+        private DatagramChannel channel;
         
-        // log.info("UDP Server acknowledged the receiving of the sequence number = {}", lastAckSeq);
+        @Override
+        public void run() {
+            try {
+                processMessage(message, clientAddress, channel);
+            } finally {
+                freeDatagrams.add(this);
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+package com.fii.pcd.hw01.udp;
+
+import lombok.Getter;
+import lombok.ToString;
+
+// The congestion control state of an UDP transfer, updated by the sending thread and
+// readable from any other thread while the transfer is running.
+@Getter
+@ToString
+public class UDPTransferStatus {
+    private final String fileName;
+    private final String congestionControl;
+    private volatile double congestionWindow;
+    private volatile long smoothedRttMicros;
+    private volatile long rttVariationMicros;
+    private volatile long rtoMicros;
+    private volatile long numberOfMessagesSent;
+    private volatile long numberOfMessagesResent;
+    
+    UDPTransferStatus(String fileName, String congestionControl) {
+        this.fileName = fileName;
+        this.congestionControl = congestionControl;
+    }
+    
+    void update(CongestionController congestionController, RttEstimator rttEstimator,
+            long numberOfMessagesSent, long numberOfMessagesResent) {
+        this.congestionWindow = congestionController.getCongestionWindow();
+        this.smoothedRttMicros = rttEstimator.getSmoothedRttNanos() / 1000;
+        this.rttVariationMicros = rttEstimator.getRttVariationNanos() / 1000;
+        this.rtoMicros = rttEstimator.getRtoNanos() / 1000;
+        this.numberOfMessagesSent = numberOfMessagesSent;
+        this.numberOfMessagesResent = numberOfMessagesResent;
+    }
+}
\ No newline at end of file
@@ -1,40 +1,200 @@
 package com.fii.pcd.hw01.udp;
 
 import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
 import lombok.experimental.UtilityClass;
 
+// The messages are encoded and decoded in place in their buffer, with absolute gets and puts, so the hot path of
+// the UDP Client and of the UDP Server doesn't allocate.
 @UtilityClass
 public class UDPUtils {
-    public static byte[] longToByteArray(long number) {
-        return new byte[] {
-            (byte) ((number >> 56) & 0xff),
-            (byte) ((number >> 48) & 0xff),
-            (byte) ((number >> 40) & 0xff),
-            (byte) ((number >> 32) & 0xff),
-            (byte) ((number >> 24) & 0xff),
-            (byte) ((number >> 16) & 0xff),
-            (byte) ((number >> 8) & 0xff),
-            (byte) (number & 0xff)
-        };
-    }
-    
-    public static long byteArrayToLong(byte[] bytes) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(Long.BYTES);
-        byteBuffer.put(bytes);
-        byteBuffer.flip();
+    // First 29 bytes of a message are for control (session id, sequence number, flags, timestamp and checksum).
+    public static final int CONTROL_DATA_LENGTH = Long.BYTES + Long.BYTES + 1 + Long.BYTES + Integer.BYTES;
+    private static final int SEQUENCE_NUMBER_OFFSET = Long.BYTES;
+    static final int FLAGS_OFFSET = SEQUENCE_NUMBER_OFFSET + Long.BYTES;
+    private static final int TIMESTAMP_OFFSET = FLAGS_OFFSET + 1;
+    private static final int CHECKSUM_OFFSET = TIMESTAMP_OFFSET + Long.BYTES;
+    // Flags the last message of the file.
+    public static final byte EOF_FLAG = 1;
+    // Flags an acknowledge sent by the UDP Server.
+    public static final byte ACK_FLAG = 2;
+    // Flags the first message of a session, which carries the file name.
+    public static final byte START_FLAG = 4;
+    // The data of the message is a compressed chunk of the file, preceded by its raw length.
+    public static final byte COMPRESSED_FLAG = 8;
+    // Flags an acknowledge that asks again for a message the UDP Server received corrupt. On the acknowledges of a
+    // completed session, it flags that the file failed the integrity check.
+    public static final byte NAK_FLAG = 16;
+    // Flags a parity message of the forward error correction, which is not acknowledged and never resent.
+    public static final byte PARITY_FLAG = 32;
+    // Flags a download request, which carries the name of a file the UDP Server received. The UDP Server sends the
+    // file back as an UDP Client would, or flags its acknowledge with NAK_FLAG when it has no such file.
+    public static final byte DOWNLOAD_FLAG = 64;
+    // Flags a probe of the path MTU, padded to the size probed, and its acknowledge, which carries that size as its
+    // sequence number.
+    public static final byte PROBE_FLAG = (byte) 128;
+    // Every thread reuses its own checksum.
+    private static final ThreadLocal<CRC32C> CHECKSUMS = ThreadLocal.withInitial(CRC32C::new);
+    
+    public static void setUDPControlData(ByteBuffer message, long sessionId, long sequenceNumber, byte flags,
+            long timestamp) {
+        // The session id is on the first 8 bytes, so the UDP Server can tell apart the concurrent transfers.
+        message.putLong(0, sessionId);
+        
+        // The sequence number is on the next 8 bytes.
+        message.putLong(SEQUENCE_NUMBER_OFFSET, sequenceNumber);
+        
+        // The 17th byte holds the flags (end of file, acknowledge, start of session, compressed, negative acknowledge,
+        // parity, download, probe).
+        message.put(FLAGS_OFFSET, flags);
         
-        return byteBuffer.getLong();
+        // The next 8 bytes hold the send timestamp, which the UDP Server echoes in its acknowledge.
+        message.putLong(TIMESTAMP_OFFSET, timestamp);
+    }
+    
+    public static long getSessionId(ByteBuffer message) {
+        return message.getLong(0);
     }
     
-    public static void setUDPControlData(byte[] message, long sequenceNumber, boolean eof) {
-        // Copy the sequence number on the first 8 bytes.
-        System.arraycopy(longToByteArray(sequenceNumber), 0, message, 0, Long.BYTES);
+    public static long getSequenceNumber(ByteBuffer message) {
+        return message.getLong(SEQUENCE_NUMBER_OFFSET);
+    }
+    
+    public static boolean hasFlag(ByteBuffer message, byte flag) {
+        return (message.get(FLAGS_OFFSET) & flag) != 0;
+    }
+    
+    public static long getTimestamp(ByteBuffer message) {
+        return message.getLong(TIMESTAMP_OFFSET);
+    }
+    
+    // A message is resent with the time of its resend, and its checksum updated, so the acknowledge of either copy
+    // echoes the time that copy was sent, and the RTT samples are not ambiguous, as Karn's algorithm requires.
+    public static void setResendTimestamp(ByteBuffer message, long timestamp) {
+        message.putLong(TIMESTAMP_OFFSET, timestamp);
+        setChecksum(message, message.limit());
+    }
+    
+    // The checksum is the CRC32C of the whole message but the checksum bytes, so it is set once the message is
+    // filled. It catches the corruptions the 16 bit checksum of UDP misses.
+    public static void setChecksum(ByteBuffer message, int length) {
+        message.putInt(CHECKSUM_OFFSET, computeChecksum(message, length));
+    }
+    
+    public static boolean hasValidChecksum(ByteBuffer message, int length) {
+        return length >= CONTROL_DATA_LENGTH && message.getInt(CHECKSUM_OFFSET) == computeChecksum(message, length);
+    }
+    
+    private static int computeChecksum(ByteBuffer message, int length) {
+        CRC32C crc32c = CHECKSUMS.get();
+        crc32c.reset();
+        // The checksum reads the message through its position and limit, which are restored after.
+        int position = message.position();
+        int limit = message.limit();
+        message.position(0).limit(CHECKSUM_OFFSET);
+        crc32c.update(message);
+        message.limit(length).position(CONTROL_DATA_LENGTH);
+        crc32c.update(message);
+        message.limit(limit).position(position);
         
-        // The 9th byte will flag if it's the end of the file.
-        if (eof) {
-            message[8] = (byte) (1);
-        } else {
-            message[8] = (byte) (0);
+        return (int) crc32c.getValue();
+    }
+    
+    // The acknowledges are encoded from the start of the buffer, which is left ready to be sent.
+    public static void setUDPAcknowledgeData(ByteBuffer ack, long sessionId, long lastAckSeq, long echoedTimestamp,
+            boolean[] receivedAfterLastAck, int bitmapLength, byte flags) {
+        // The control data holds the cumulative acknowledged sequence number and the echoed timestamp and
+        // the next bytes hold a bitmap where the bit i flags that the sequence number (lastAckSeq + 1 + i)
+        // was received.
+        int ackLength = CONTROL_DATA_LENGTH + (bitmapLength + 7) / 8;
+        ack.clear();
+        setUDPControlData(ack, sessionId, lastAckSeq, (byte) (ACK_FLAG | flags), echoedTimestamp);
+        for (int i = CONTROL_DATA_LENGTH; i < ackLength; i++) {
+            ack.put(i, (byte) 0);
         }
+        for (int i = 0; i < bitmapLength; i++) {
+            if (receivedAfterLastAck[i]) {
+                int byteIndex = CONTROL_DATA_LENGTH + i / 8;
+                ack.put(byteIndex, (byte) (ack.get(byteIndex) | (1 << (i % 8))));
+            }
+        }
+        setChecksum(ack, ackLength);
+        ack.limit(ackLength);
+    }
+    
+    // The acknowledges of a transfer with forward error correction end with the number of messages the UDP Server
+    // rebuilt from the parity messages, which the UDP Client adapts the redundancy to.
+    public static void appendRecoveredMessageCount(ByteBuffer ack, int recoveredMessageCount) {
+        int ackLength = ack.limit() + Integer.BYTES;
+        ack.limit(ackLength);
+        ack.putInt(ackLength - Integer.BYTES, recoveredMessageCount);
+        setChecksum(ack, ackLength);
+    }
+    
+    public static void setUDPNegativeAcknowledgeData(ByteBuffer nak, long sessionId, long seqNumber) {
+        // The sequence number is the one of the corrupt message. Its timestamp cannot be trusted, so none is echoed.
+        nak.clear();
+        setUDPControlData(nak, sessionId, seqNumber, (byte) (ACK_FLAG | NAK_FLAG), 0);
+        setChecksum(nak, CONTROL_DATA_LENGTH);
+        nak.limit(CONTROL_DATA_LENGTH);
+    }
+    
+    public static void setUDPStartAcknowledgeData(ByteBuffer ack, long sessionId, long echoedTimestamp,
+            long resumeOffset, byte compressionType) {
+        // The acknowledge of the start message holds the file offset the UDP Client must send the file from,
+        // which is past the bytes already received when an interrupted transfer is resumed, and the compression
+        // accepted by the UDP Server.
+        int ackLength = CONTROL_DATA_LENGTH + Long.BYTES + 1;
+        ack.clear();
+        setUDPControlData(ack, sessionId, 0, (byte) (ACK_FLAG | START_FLAG), echoedTimestamp);
+        ack.putLong(CONTROL_DATA_LENGTH, resumeOffset);
+        ack.put(CONTROL_DATA_LENGTH + Long.BYTES, compressionType);
+        setChecksum(ack, ackLength);
+        ack.limit(ackLength);
+    }
+    
+    // The download request carries the window size and the message size of the UDP Client, which the UDP Server
+    // sends the file with, and the file name. It is resent until the file starts to arrive, so its id tells the UDP
+    // Server the copies of a request apart from a new one.
+    public static void setUDPDownloadRequestData(ByteBuffer request, long downloadId, int windowSize,
+            int messageSize, byte[] fileName, long timestamp) {
+        request.clear();
+        setUDPControlData(request, downloadId, 0, DOWNLOAD_FLAG, timestamp);
+        request.position(CONTROL_DATA_LENGTH).putInt(windowSize).putInt(messageSize).put(fileName);
+        int requestLength = request.position();
+        setChecksum(request, requestLength);
+        request.limit(requestLength);
+    }
+    
+    public static void setUDPDownloadRefusalData(ByteBuffer ack, long downloadId) {
+        ack.clear();
+        setUDPControlData(ack, downloadId, 0, (byte) (ACK_FLAG | DOWNLOAD_FLAG | NAK_FLAG), 0);
+        setChecksum(ack, CONTROL_DATA_LENGTH);
+        ack.limit(CONTROL_DATA_LENGTH);
+    }
+    
+    // The probe is padded with the bytes left in the buffer, which the checksum covers as well.
+    public static void setUDPProbeData(ByteBuffer probe, long probeId, int probeSize, long timestamp) {
+        probe.clear();
+        setUDPControlData(probe, probeId, probeSize, PROBE_FLAG, timestamp);
+        setChecksum(probe, probeSize);
+        probe.limit(probeSize);
+    }
+    
+    public static void setUDPProbeAcknowledgeData(ByteBuffer ack, long probeId, int probeSize,
+            long echoedTimestamp) {
+        ack.clear();
+        setUDPControlData(ack, probeId, probeSize, (byte) (ACK_FLAG | PROBE_FLAG), echoedTimestamp);
+        setChecksum(ack, CONTROL_DATA_LENGTH);
+        ack.limit(CONTROL_DATA_LENGTH);
+    }
+    
+    public static boolean isSelectivelyAcknowledged(ByteBuffer ack, int ackLength, int bitIndex) {
+        int byteIndex = CONTROL_DATA_LENGTH + bitIndex / 8;
+        if (byteIndex >= ackLength) {
+            return false;
+        }
+        
+        return (ack.get(byteIndex) & (1 << (bitIndex % 8))) != 0;
     }
 }
\ No newline at end of file
@@ -0,0 +1,111 @@
+package com.fii.pcd.hw01.dedup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static com.fii.pcd.hw01.dedup.ContentDefinedChunker.MAX_CHUNK_LENGTH;
+import static com.fii.pcd.hw01.dedup.ContentDefinedChunker.MIN_CHUNK_LENGTH;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Cuts random data with ContentDefinedChunker, edits it, and checks that the chunk boundaries after an edit are the
+// ones of the original data, shifted by the edit, so the edited data shares all the chunks but the ones around it.
+class ContentDefinedChunkerTest {
+    private static final int DATA_LENGTH = 8 * 1024 * 1024;
+    
+    private final Random random = new Random(3);
+    private final byte[] data = randomBytes(DATA_LENGTH);
+    
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, MIN_CHUNK_LENGTH, MIN_CHUNK_LENGTH + 1, MAX_CHUNK_LENGTH, DATA_LENGTH})
+    void cutsChunksBetweenTheMinimumAndTheMaximumLength(int length) {
+        List<Integer> boundaries = boundaries(Arrays.copyOf(data, length));
+        
+        int start = 0;
+        for (int boundary : boundaries) {
+            int chunkLength = boundary - start;
+            assertTrue(chunkLength <= MAX_CHUNK_LENGTH, "chunk length = " + chunkLength);
+            // Only the last chunk may be shorter than the minimum length.
+            assertTrue(chunkLength >= MIN_CHUNK_LENGTH || boundary == length, "chunk length = " + chunkLength);
+            start = boundary;
+        }
+        assertEquals(length, start);
+    }
+    
+    @Test
+    void cutsDataWithoutBoundariesAtTheMaximumLength() {
+        byte[] zeros = new byte[3 * MAX_CHUNK_LENGTH + 100];
+        
+        assertEquals(List.of(MAX_CHUNK_LENGTH, 2 * MAX_CHUNK_LENGTH, 3 * MAX_CHUNK_LENGTH, zeros.length),
+            boundaries(zeros));
+    }
+    
+    @Test
+    void gathersTheChunkLengthsAroundTheNormalLength() {
+        List<Integer> boundaries = boundaries(data);
+        double meanChunkLength = (double) DATA_LENGTH / boundaries.size();
+        
+        assertTrue(meanChunkLength > 32 * 1024 && meanChunkLength < 128 * 1024,
+            "mean chunk length = " + meanChunkLength);
+    }
+    
+    @ParameterizedTest
+    @CsvSource({
+        // offset of the edit, inserted bytes, deleted bytes
+        "0, 1, 0",
+        "1000000, 100, 0",
+        "1000000, 0, 100",
+        "4194304, 70000, 0",
+        "4194304, 0, 300000",
+        "6000000, 5000, 5000"
+    })
+    void keepsTheBoundariesAwayFromAnEdit(int offset, int insertedLength, int deletedLength) {
+        byte[] edited = new byte[DATA_LENGTH + insertedLength - deletedLength];
+        System.arraycopy(data, 0, edited, 0, offset);
+        System.arraycopy(randomBytes(insertedLength), 0, edited, offset, insertedLength);
+        System.arraycopy(data, offset + deletedLength, edited, offset + insertedLength,
+            DATA_LENGTH - offset - deletedLength);
+        
+        List<Integer> boundaries = boundaries(data);
+        Set<Integer> editedBoundaries = new HashSet<>(boundaries(edited));
+        int movedBoundaries = 0;
+        for (int boundary : boundaries) {
+            if (boundary <= offset) {
+                // The chunks before the edit are cut the same way.
+                assertTrue(editedBoundaries.contains(boundary), "boundary = " + boundary);
+            } else if (boundary >= offset + deletedLength &&
+                    !editedBoundaries.contains(boundary + insertedLength - deletedLength)) {
+                movedBoundaries++;
+            }
+        }
+        // The boundaries resynchronize within a couple of chunks after the edit.
+        assertTrue(movedBoundaries <= 2, "moved boundaries = " + movedBoundaries);
+    }
+    
+    // The end offsets of the chunks, the data holding the whole file.
+    private static List<Integer> boundaries(byte[] data) {
+        List<Integer> boundaries = new ArrayList<>();
+        int offset = 0;
+        while (offset < data.length) {
+            offset += ContentDefinedChunker.nextChunkLength(data, offset, data.length - offset);
+            boundaries.add(offset);
+        }
+        
+        return boundaries;
+    }
+    
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        
+        return bytes;
+    }
+}
\ No newline at end of file
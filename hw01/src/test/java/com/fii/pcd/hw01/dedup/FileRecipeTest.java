@@ -0,0 +1,135 @@
+package com.fii.pcd.hw01.dedup;
+
+import com.fii.pcd.hw01.integrity.Checksums;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static com.fii.pcd.hw01.dedup.ContentDefinedChunker.MAX_CHUNK_LENGTH;
+import static com.fii.pcd.hw01.dedup.ContentDefinedChunker.MIN_CHUNK_LENGTH;
+import static com.fii.pcd.hw01.integrity.Checksums.FILE_DIGEST_LENGTH;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Computes the recipe of a file with FileRecipe, sends it through its wire format as the TCP Client does, and checks
+// that the TCP Server reads it back, and that it rejects the recipes no client computes before allocating them.
+class FileRecipeTest {
+    private final Random random = new Random(13);
+    private final byte[] fileDigest = new byte[FILE_DIGEST_LENGTH];
+    @TempDir
+    Path directory;
+    
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, MIN_CHUNK_LENGTH, 3 * 1024 * 1024 + 5})
+    void readsTheRecipeItWrites(int fileLength) throws IOException {
+        byte[] content = new byte[fileLength];
+        random.nextBytes(content);
+        Path file = Files.write(directory.resolve("file"), content);
+        
+        FileRecipe recipe;
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            recipe = FileRecipe.compute(fileChannel);
+        }
+        ByteArrayOutputStream recipeBytes = new ByteArrayOutputStream();
+        recipe.write(new DataOutputStream(recipeBytes));
+        FileRecipe readRecipe = FileRecipe.read(new DataInputStream(new ByteArrayInputStream(
+            recipeBytes.toByteArray())), recipe.getFileDigest(), fileLength);
+        
+        assertArrayEquals(Checksums.newFileDigest().digest(content), recipe.getFileDigest());
+        assertEquals(recipe.getChunkCount(), readRecipe.getChunkCount());
+        int offset = 0;
+        for (int i = 0; i < recipe.getChunkCount(); i++) {
+            int chunkLength = recipe.getChunkLength(i);
+            MessageDigest chunkDigest = Checksums.newFileDigest();
+            chunkDigest.update(content, offset, chunkLength);
+            assertArrayEquals(chunkDigest.digest(), readRecipe.getChunkDigest(i));
+            assertEquals(chunkLength, readRecipe.getChunkLength(i));
+            offset += chunkLength;
+        }
+        assertEquals(fileLength, offset);
+    }
+    
+    @Test
+    void readsARecipeWithMoreChunksThanAReadBatch() throws IOException {
+        int chunkCount = 10_000;
+        int[] chunkLengths = new int[chunkCount];
+        Arrays.fill(chunkLengths, MIN_CHUNK_LENGTH);
+        
+        FileRecipe recipe = read((long) chunkCount * MIN_CHUNK_LENGTH, chunkCount, chunkLengths);
+        
+        assertEquals(chunkCount, recipe.getChunkCount());
+        for (int i = 0; i < chunkCount; i++) {
+            assertEquals(MIN_CHUNK_LENGTH, recipe.getChunkLength(i));
+            assertEquals(i, recipe.getChunkDigest(i)[0] & 0xff | (recipe.getChunkDigest(i)[1] & 0xff) << 8);
+        }
+    }
+    
+    @ParameterizedTest
+    @CsvSource({
+        // file size, chunk count, chunk lengths
+        "100, -1, ''",
+        "100, 2, 50 50",
+        "100, 1, 0",
+        "262145, 1, 262145",
+        "100, 1, 99",
+        "40000, 2, 40000 -100",
+        "-1, 0, ''"
+    })
+    void rejectsTheRecipesNoClientComputes(long fileSize, int chunkCount, String chunkLengths) {
+        int[] lengths = chunkLengths.isBlank() ? new int[0] :
+            Arrays.stream(chunkLengths.trim().split(" +")).mapToInt(Integer::parseInt).toArray();
+        
+        assertThrows(IOException.class, () -> read(fileSize, chunkCount, lengths));
+    }
+    
+    @Test
+    void rejectsAFileLargerThanTheLargestRecipe() {
+        long fileSize = FileRecipe.MAX_FILE_SIZE + 1;
+        int chunkCount = (int) (fileSize / MAX_CHUNK_LENGTH) + 1;
+        
+        assertThrows(IOException.class, () -> read(fileSize, chunkCount, new int[0]));
+    }
+    
+    @Test
+    void failsOnARecipeEndingBeforeItsChunks() {
+        // A client may announce the most chunks a recipe has and send only a few of them.
+        int[] chunkLengths = new int[100];
+        Arrays.fill(chunkLengths, MIN_CHUNK_LENGTH);
+        
+        assertThrows(EOFException.class, () -> read(FileRecipe.MAX_FILE_SIZE, FileRecipe.MAX_CHUNK_COUNT,
+            chunkLengths));
+    }
+    
+    // Writes the chunk count and the given chunks, each one with its index as its digest, and reads them back.
+    private FileRecipe read(long fileSize, int chunkCount, int[] chunkLengths) throws IOException {
+        ByteArrayOutputStream recipeBytes = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(recipeBytes);
+        dataOutputStream.writeInt(chunkCount);
+        for (int i = 0; i < chunkLengths.length; i++) {
+            dataOutputStream.writeInt(chunkLengths[i]);
+            byte[] chunkDigest = new byte[FILE_DIGEST_LENGTH];
+            chunkDigest[0] = (byte) i;
+            chunkDigest[1] = (byte) (i >>> 8);
+            dataOutputStream.write(chunkDigest);
+        }
+        
+        return FileRecipe.read(new DataInputStream(new ByteArrayInputStream(recipeBytes.toByteArray())),
+            fileDigest, fileSize);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,166 @@
+package com.fii.pcd.hw01.delta;
+
+import com.fii.pcd.hw01.integrity.Checksums;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Encodes a new version of a file against the signatures of a base version with DeltaEncoder, rebuilds it with
+// DeltaDecoder, and checks the rebuilt file and the bytes copied from the base version.
+class DeltaRoundTripTest {
+    private static final int BLOCK_SIZE = 2 * 1024;
+    private static final int BLOCK_COUNT = 10;
+    // The base version ends with a partial block, which is never copied.
+    private static final int BASE_LENGTH = BLOCK_COUNT * BLOCK_SIZE + 700;
+    
+    private final Random random = new Random(11);
+    private final byte[] base = randomBytes(BASE_LENGTH);
+    @TempDir
+    Path directory;
+    
+    @Test
+    void copiesTheUnchangedFile() throws IOException {
+        DeltaDecoder decoder = assertRoundTrip(base, base);
+        
+        assertEquals(BLOCK_COUNT * BLOCK_SIZE, decoder.getCopiedBytes());
+        assertEquals(BASE_LENGTH - BLOCK_COUNT * BLOCK_SIZE, decoder.getLiteralBytes());
+    }
+    
+    @Test
+    void copiesEveryBlockAroundAnInsertionAtABlockBoundary() throws IOException {
+        byte[] target = insert(base, 4 * BLOCK_SIZE, randomBytes(100));
+        
+        assertEquals(BLOCK_COUNT * BLOCK_SIZE, assertRoundTrip(base, target).getCopiedBytes());
+    }
+    
+    @Test
+    void copiesTheBlocksAroundAnInsertionInABlock() throws IOException {
+        byte[] target = insert(base, 4 * BLOCK_SIZE + 500, randomBytes(100));
+        
+        assertEquals((BLOCK_COUNT - 1) * BLOCK_SIZE, assertRoundTrip(base, target).getCopiedBytes());
+    }
+    
+    @Test
+    void copiesTheBlocksAroundADeletedBlock() throws IOException {
+        byte[] target = delete(base, 3 * BLOCK_SIZE, BLOCK_SIZE);
+        
+        assertEquals((BLOCK_COUNT - 1) * BLOCK_SIZE, assertRoundTrip(base, target).getCopiedBytes());
+    }
+    
+    @Test
+    void copiesTheBlocksAroundADeletionInABlock() throws IOException {
+        byte[] target = delete(base, 3 * BLOCK_SIZE + 500, 100);
+        
+        assertEquals((BLOCK_COUNT - 1) * BLOCK_SIZE, assertRoundTrip(base, target).getCopiedBytes());
+    }
+    
+    @Test
+    void copiesTheBlocksMovedAfterMoreThanAMaximumLiteral() throws IOException {
+        byte[] target = insert(base, 0, randomBytes(DeltaEncoder.MAX_LITERAL_LENGTH + 1000));
+        
+        DeltaDecoder decoder = assertRoundTrip(base, target);
+        
+        assertEquals(BLOCK_COUNT * BLOCK_SIZE, decoder.getCopiedBytes());
+        assertEquals(target.length - BLOCK_COUNT * BLOCK_SIZE, decoder.getLiteralBytes());
+    }
+    
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, BLOCK_SIZE - 1})
+    void sendsATargetShorterThanABlockAsLiterals(int targetLength) throws IOException {
+        DeltaDecoder decoder = assertRoundTrip(base, Arrays.copyOf(base, targetLength));
+        
+        assertEquals(0, decoder.getCopiedBytes());
+        assertEquals(targetLength, decoder.getLiteralBytes());
+    }
+    
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, BLOCK_SIZE, 3 * DeltaEncoder.MAX_LITERAL_LENGTH + 5})
+    void sendsTheWholeTargetAsLiteralsAgainstAnEmptyBase(int targetLength) throws IOException {
+        DeltaDecoder decoder = assertRoundTrip(new byte[0], randomBytes(targetLength));
+        
+        assertEquals(0, decoder.getCopiedBytes());
+        assertEquals(targetLength, decoder.getLiteralBytes());
+    }
+    
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 7, BLOCK_SIZE})
+    void rollsToTheChecksumOfTheNextBlock(int blockLength) {
+        byte[] data = randomBytes(4 * BLOCK_SIZE);
+        RollingChecksum rollingChecksum = new RollingChecksum();
+        rollingChecksum.reset(data, 0, blockLength);
+        for (int offset = 0; offset + blockLength < data.length; offset++) {
+            assertEquals(RollingChecksum.of(data, offset, blockLength), rollingChecksum.getValue());
+            rollingChecksum.roll(data[offset], data[offset + blockLength]);
+        }
+    }
+    
+    // The signatures go through their wire format, as they do from the server to the client.
+    private DeltaDecoder assertRoundTrip(byte[] baseVersion, byte[] target) throws IOException {
+        Path baseFile = Files.write(directory.resolve("base"), baseVersion);
+        Path targetFile = Files.write(directory.resolve("target"), target);
+        Path rebuiltFile = directory.resolve("rebuilt");
+        
+        try (FileChannel baseFileChannel = FileChannel.open(baseFile, StandardOpenOption.READ);
+            FileChannel targetFileChannel = FileChannel.open(targetFile, StandardOpenOption.READ);
+            FileChannel rebuiltFileChannel = FileChannel.open(rebuiltFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+            BlockSignatures.compute(baseFileChannel, BLOCK_SIZE).write(new DataOutputStream(signatureBytes));
+            BlockSignatures signatures = BlockSignatures.read(
+                new DataInputStream(new ByteArrayInputStream(signatureBytes.toByteArray())));
+            
+            ByteArrayOutputStream deltaBytes = new ByteArrayOutputStream();
+            byte[] targetDigest = new DeltaEncoder(signatures).encode(targetFileChannel,
+                new DataOutputStream(deltaBytes));
+            DeltaDecoder decoder = new DeltaDecoder(baseVersion.length > 0 ? baseFileChannel : null, BLOCK_SIZE);
+            byte[] rebuiltDigest = decoder.decode(new DataInputStream(new ByteArrayInputStream(
+                deltaBytes.toByteArray())), rebuiltFileChannel, target.length);
+            
+            assertArrayEquals(Checksums.newFileDigest().digest(target), targetDigest);
+            assertArrayEquals(targetDigest, rebuiltDigest);
+            assertArrayEquals(target, Files.readAllBytes(rebuiltFile));
+            assertEquals(target.length, decoder.getLiteralBytes() + decoder.getCopiedBytes());
+            
+            return decoder;
+        }
+    }
+    
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        
+        return bytes;
+    }
+    
+    private static byte[] insert(byte[] data, int offset, byte[] inserted) {
+        byte[] result = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, result, 0, offset);
+        System.arraycopy(inserted, 0, result, offset, inserted.length);
+        System.arraycopy(data, offset, result, offset + inserted.length, data.length - offset);
+        
+        return result;
+    }
+    
+    private static byte[] delete(byte[] data, int offset, int length) {
+        byte[] result = new byte[data.length - length];
+        System.arraycopy(data, 0, result, 0, offset);
+        System.arraycopy(data, offset + length, result, offset, data.length - offset - length);
+        
+        return result;
+    }
+}
\ No newline at end of file
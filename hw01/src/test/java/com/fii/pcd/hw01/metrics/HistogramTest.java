@@ -0,0 +1,142 @@
+package com.fii.pcd.hw01.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.LongStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Checks the buckets of Histogram, every value in exactly one bucket of about 1.6% relative width, and the
+// percentiles of its snapshots against the exact ones.
+class HistogramTest {
+    private final Random random = new Random(5);
+    
+    @Test
+    void putsEveryValueInTheBucketThatEndsAtOrAboveIt() {
+        for (long value : values()) {
+            int index = Histogram.bucketIndex(value);
+            assertTrue(Histogram.bucketValue(index) >= value, "value = " + value);
+            if (index > 0) {
+                assertTrue(Histogram.bucketValue(index - 1) < value, "value = " + value);
+                // The bucket is at most 1/64 of its values wide, and the values below 128 have a bucket each.
+                long width = Histogram.bucketValue(index) - Histogram.bucketValue(index - 1);
+                assertTrue(width <= Math.max(1, value / 64), "value = " + value);
+            }
+        }
+    }
+    
+    @Test
+    void numbersTheBucketsWithoutGaps() {
+        for (long value = 0; value < 1_000_000; value++) {
+            int step = Histogram.bucketIndex(value + 1) - Histogram.bucketIndex(value);
+            assertTrue(step == 0 || step == 1, "value = " + value);
+        }
+        for (int shift = 7; shift < Long.SIZE - 1; shift++) {
+            long powerOfTwo = 1L << shift;
+            assertEquals(Histogram.bucketIndex(powerOfTwo - 1) + 1, Histogram.bucketIndex(powerOfTwo));
+        }
+    }
+    
+    @ParameterizedTest
+    @ValueSource(doubles = {0.01, 0.25, 0.5, 0.9, 0.99, 0.999})
+    void findsThePercentilesWithinABucket(double fraction) {
+        List<Long> values = new ArrayList<>();
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 100_000; i++) {
+            // Latencies in microseconds, spread over several orders of magnitude.
+            long value = (long) Math.exp(random.nextDouble() * 16);
+            values.add(value);
+            histogram.record(value);
+        }
+        values.sort(null);
+        
+        long exactPercentile = values.get((int) Math.ceil(fraction * values.size()) - 1);
+        long percentile = histogram.snapshot().getPercentile(fraction);
+        assertTrue(percentile >= exactPercentile, percentile + " < " + exactPercentile);
+        assertTrue(percentile <= exactPercentile + exactPercentile / 64,
+            percentile + " > " + exactPercentile);
+    }
+    
+    @Test
+    void endsTheLastPercentileAtTheMaximum() {
+        Histogram histogram = new Histogram();
+        LongStream.rangeClosed(1, 1000).forEach(histogram::record);
+        histogram.record(1_000_003);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        
+        assertEquals(1_000_003, snapshot.getPercentile(1));
+        assertEquals(1_000_003, snapshot.getMax());
+        assertEquals(1, snapshot.getPercentile(0));
+        assertEquals(1001, snapshot.getCount());
+        assertEquals(500_500 + 1_000_003, snapshot.getSum());
+    }
+    
+    @Test
+    void recordsTheNegativeValuesAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(-1);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(1));
+        assertEquals(0, snapshot.getMean());
+    }
+    
+    @Test
+    void hasNoPercentilesWhenEmpty() {
+        Histogram.Snapshot snapshot = new Histogram().snapshot();
+        
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(0.5));
+        assertEquals(0, snapshot.getMean());
+    }
+    
+    @Test
+    void countsTheValuesRecordedByConcurrentThreads() throws InterruptedException {
+        Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            long value = 1000L * (i + 1);
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    histogram.record(value);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        
+        assertEquals(80_000, snapshot.getCount());
+        assertEquals(10_000L * 1000 * (1 + 2 + 3 + 4 + 5 + 6 + 7 + 8), snapshot.getSum());
+        assertEquals(8000, snapshot.getMax());
+        assertEquals(4000, snapshot.getPercentile(0.5), 4000 / 64);
+    }
+    
+    // The edges of the powers of two, where the buckets change width, and random values of every magnitude.
+    private List<Long> values() {
+        List<Long> values = new ArrayList<>();
+        for (long value = 0; value < 4096; value++) {
+            values.add(value);
+        }
+        for (int shift = 7; shift < Long.SIZE - 1; shift++) {
+            values.add((1L << shift) - 1);
+            values.add(1L << shift);
+            values.add((1L << shift) + 1);
+        }
+        values.add(Long.MAX_VALUE);
+        for (int i = 0; i < 10_000; i++) {
+            values.add(random.nextLong() >>> (1 + random.nextInt(Long.SIZE - 1)));
+        }
+        
+        return values;
+    }
+}
\ No newline at end of file
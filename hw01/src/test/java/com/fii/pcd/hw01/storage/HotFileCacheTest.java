@@ -0,0 +1,143 @@
+package com.fii.pcd.hw01.storage;
+
+import com.fii.pcd.hw01.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// Downloads files through a HotFileCache of 100 000 bytes, with a window of 1 000 bytes and a main area that holds
+// four files of 20 000 bytes, and checks which files it admits, which ones it evicts for them, and which downloads
+// it serves from memory.
+class HotFileCacheTest {
+    private static final long CAPACITY = 100_000;
+    private static final int LARGE_FILE_SIZE = 20_000;
+    // The counter of the cache, the same for every cache of the process.
+    private static final LongAdder HITS = MetricsRegistry.counter("download_cache_hits_total",
+        "The downloads served from the hot file cache.");
+    
+    private final Random random = new Random(17);
+    private final HotFileCache cache = new HotFileCache(CAPACITY);
+    @TempDir
+    Path directory;
+    
+    @Test
+    void servesTheCachedFilesFromMemory() throws IOException {
+        Path file = file("a", LARGE_FILE_SIZE);
+        
+        assertContent(file, cache.get(file));
+        long hits = HITS.sum();
+        assertContent(file, cache.get(file));
+        assertEquals(hits + 1, HITS.sum());
+        assertEquals(LARGE_FILE_SIZE, cache.getSize());
+    }
+    
+    @Test
+    void admitsAFileOnlyWhenItIsMoreFrequentThanItsVictim() throws IOException {
+        Path[] files = new Path[4];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = file("file" + i, LARGE_FILE_SIZE);
+            assertNotNull(cache.get(files[i]));
+        }
+        assertEquals(4L * LARGE_FILE_SIZE, cache.getSize());
+        
+        // The new file was asked as often as the least recently used file, which it would evict, so it is read from
+        // the disk.
+        Path newFile = file("new", LARGE_FILE_SIZE);
+        assertNull(cache.get(newFile));
+        assertEquals(4L * LARGE_FILE_SIZE, cache.getSize());
+        
+        // Asked once more, it is more frequent and takes the place of the least recently used file.
+        assertContent(newFile, cache.get(newFile));
+        assertEquals(4L * LARGE_FILE_SIZE, cache.getSize());
+        long hits = HITS.sum();
+        assertNotNull(cache.get(newFile));
+        for (int i = 1; i < files.length; i++) {
+            assertNotNull(cache.get(files[i]));
+        }
+        assertEquals(hits + files.length, HITS.sum());
+        assertNull(cache.get(files[0]));
+    }
+    
+    @Test
+    void keepsTheFrequentFilesThroughAScan() throws IOException {
+        Path[] files = new Path[4];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = file("file" + i, LARGE_FILE_SIZE);
+            for (int j = 0; j < 3; j++) {
+                assertNotNull(cache.get(files[i]));
+            }
+        }
+        
+        // Files asked once each don't evict the files asked more often.
+        for (int i = 0; i < 20; i++) {
+            assertNull(cache.get(file("scan" + i, LARGE_FILE_SIZE)));
+        }
+        
+        long hits = HITS.sum();
+        for (Path file : files) {
+            assertContent(file, cache.get(file));
+        }
+        assertEquals(hits + files.length, HITS.sum());
+        assertEquals(4L * LARGE_FILE_SIZE, cache.getSize());
+    }
+    
+    @Test
+    void movesTheSmallFilesFromTheWindowToTheMainArea() throws IOException {
+        Path first = file("first", 600);
+        Path second = file("second", 700);
+        
+        assertContent(first, cache.get(first));
+        assertContent(second, cache.get(second));
+        // The first file left the window for the second one, and the main area had room for it.
+        long hits = HITS.sum();
+        assertContent(first, cache.get(first));
+        assertContent(second, cache.get(second));
+        assertEquals(hits + 2, HITS.sum());
+        assertEquals(1300, cache.getSize());
+    }
+    
+    @Test
+    void readsAChangedFileAgain() throws IOException {
+        Path file = file("a", LARGE_FILE_SIZE);
+        assertNotNull(cache.get(file));
+        
+        byte[] newContent = new byte[LARGE_FILE_SIZE + 100];
+        random.nextBytes(newContent);
+        Files.write(file, newContent);
+        
+        assertContent(file, cache.get(file));
+        assertEquals(LARGE_FILE_SIZE + 100, cache.getSize());
+    }
+    
+    @Test
+    void readsTheLargeFilesFromTheDisk() throws IOException {
+        // A file larger than a quarter of the cache would evict too many others.
+        Path file = file("large", (int) CAPACITY / 4 + 1);
+        
+        assertNull(cache.get(file));
+        assertNull(cache.get(file));
+        assertEquals(0, cache.getSize());
+        assertNull(new HotFileCache(0).get(file("a", 10)));
+    }
+    
+    private Path file(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        
+        return Files.write(directory.resolve(name), content);
+    }
+    
+    private static void assertContent(Path file, ByteBuffer content) throws IOException {
+        assertNotNull(content);
+        assertEquals(ByteBuffer.wrap(Files.readAllBytes(file)), content);
+    }
+}
\ No newline at end of file
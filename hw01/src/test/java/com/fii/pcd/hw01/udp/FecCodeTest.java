@@ -0,0 +1,231 @@
+package com.fii.pcd.hw01.udp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static com.fii.pcd.hw01.udp.UDPUtils.COMPRESSED_FLAG;
+import static com.fii.pcd.hw01.udp.UDPUtils.CONTROL_DATA_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.FLAGS_OFFSET;
+import static com.fii.pcd.hw01.udp.UDPUtils.getSequenceNumber;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPControlData;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Encodes blocks of data messages with FecEncoder, erases some of the data and parity messages, and checks that
+// FecDecoder rebuilds the erased data messages byte for byte.
+class FecCodeTest {
+    private static final int MESSAGE_SIZE = 1400;
+    private static final int MAX_DATA_LENGTH = MESSAGE_SIZE - CONTROL_DATA_LENGTH - FecCode.DATA_OVERHEAD;
+    private static final int WINDOW_SIZE = 256;
+    private static final long SESSION_ID = 42;
+    // The data messages the encoder samples before it adapts its redundancy to the losses.
+    private static final int LOSS_SAMPLE_MESSAGES = 256;
+    private static final int RS_BLOCK_LENGTH = 32;
+    
+    private final Random random = new Random(7);
+    // The encoder is told the total number of messages resent at the end of every block.
+    private long numberOfResentMessages;
+    
+    @ParameterizedTest
+    @CsvSource({
+        // block length, parity count, erased data messages, erased parity messages
+        "32, 4, 0 1 2 3, ''",
+        "32, 4, 31, 0 1 2",
+        "32, 4, 5 17, 1 2",
+        "32, 2, '', 0 1",
+        "32, 16, 0 2 4 6 8 10 12 14 16 18 20 22 24 26 28 30, ''",
+        "32, 16, 3 9 27, 0 1 2 3 4 5 6 7 8 9 10 11 12",
+        "7, 3, 0 6, 1",
+        "1, 2, 0, 0"
+    })
+    void rebuildsTheErasedDataMessages(int blockLength, int parityCount, String erasedData, String erasedParities) {
+        FecEncoder encoder = newReedSolomonEncoder(parityCount);
+        
+        assertRoundTrip(encoder, blockLength, indexes(erasedData), indexes(erasedParities));
+    }
+    
+    @Test
+    void rebuildsAnyErasedMessagesUpToTheParityCount() {
+        for (int parityCount = 1; parityCount <= FecCode.MAX_PARITY_COUNT; parityCount++) {
+            for (int trial = 0; trial < 20; trial++) {
+                // A fresh encoder per trial, since the parity count decays as the blocks go by without losses.
+                FecEncoder encoder = newReedSolomonEncoder(parityCount);
+                List<Integer> messages = IntStream.range(0, RS_BLOCK_LENGTH + parityCount).boxed()
+                    .collect(Collectors.toList());
+                Collections.shuffle(messages, random);
+                List<Integer> erasedData = new ArrayList<>();
+                List<Integer> erasedParities = new ArrayList<>();
+                for (int message : messages.subList(0, parityCount)) {
+                    if (message < RS_BLOCK_LENGTH) {
+                        erasedData.add(message);
+                    } else {
+                        erasedParities.add(message - RS_BLOCK_LENGTH);
+                    }
+                }
+                
+                assertRoundTrip(encoder, RS_BLOCK_LENGTH, erasedData, erasedParities);
+            }
+        }
+    }
+    
+    @Test
+    void rebuildsASingleLossWithTheXorParity() {
+        FecEncoder encoder = new FecEncoder(FecMode.XOR, MESSAGE_SIZE);
+        assertEquals(1, encoder.getParityCount());
+        
+        for (int erased : new int[] {0, 17, FecCode.MAX_BLOCK_LENGTH - 1}) {
+            assertRoundTrip(encoder, FecCode.MAX_BLOCK_LENGTH, List.of(erased), List.of());
+        }
+    }
+    
+    @Test
+    void keepsWaitingWithMoreLossesThanParities() {
+        FecEncoder encoder = new FecEncoder(FecMode.XOR, MESSAGE_SIZE);
+        List<ByteBuffer> messages = encodeBlock(encoder, 1, 10);
+        ByteBuffer parity = ByteBuffer.allocate(MESSAGE_SIZE);
+        encoder.writeParityMessage(0, parity, SESSION_ID, 0);
+        encoder.endBlock(0);
+        
+        FecDecoder decoder = new FecDecoder(WINDOW_SIZE, MESSAGE_SIZE);
+        for (int i = 2; i < messages.size(); i++) {
+            decoder.onDataMessage(1 + i, messages.get(i));
+        }
+        assertEquals(1, decoder.onParityMessage(parity, 0, WINDOW_SIZE));
+        
+        assertEquals(0, decoder.recover(1));
+        assertEquals(0, decoder.getNumberOfRecoveredMessages());
+    }
+    
+    @Test
+    void invertsTheCauchyMatrices() {
+        for (int a = 1; a < 256; a++) {
+            assertEquals(1, GaloisField.multiply(a, GaloisField.inverse(a)));
+        }
+        
+        for (int size = 1; size <= FecCode.MAX_PARITY_COUNT; size++) {
+            int[][] matrix = new int[size][size];
+            for (int row = 0; row < size; row++) {
+                for (int column = 0; column < size; column++) {
+                    matrix[row][column] = FecCode.coefficient(FecCode.MAX_PARITY_COUNT, row, 3 * column + 1);
+                }
+            }
+            int[][] original = Arrays.stream(matrix).map(int[]::clone).toArray(int[][]::new);
+            
+            int[][] inverse = GaloisField.invert(matrix);
+            for (int row = 0; row < size; row++) {
+                for (int column = 0; column < size; column++) {
+                    int product = 0;
+                    for (int i = 0; i < size; i++) {
+                        product ^= GaloisField.multiply(original[row][i], inverse[i][column]);
+                    }
+                    assertEquals(row == column ? 1 : 0, product);
+                }
+            }
+        }
+    }
+    
+    // The encoder starts with a single parity per block and raises the parity count with the losses it samples.
+    // Over a sample of 256 messages, 16 losses per parity bring it to the given parity count.
+    private FecEncoder newReedSolomonEncoder(int parityCount) {
+        FecEncoder encoder = new FecEncoder(FecMode.RS, MESSAGE_SIZE);
+        numberOfResentMessages = 0;
+        long seqNumber = 1;
+        while (seqNumber <= LOSS_SAMPLE_MESSAGES) {
+            encodeBlock(encoder, seqNumber, encoder.getMaxBlockLength());
+            seqNumber += encoder.getMaxBlockLength();
+            if (seqNumber > LOSS_SAMPLE_MESSAGES) {
+                numberOfResentMessages = 16L * parityCount;
+            }
+            encoder.endBlock(numberOfResentMessages);
+        }
+        assertEquals(parityCount, encoder.getParityCount());
+        
+        return encoder;
+    }
+    
+    private void assertRoundTrip(FecEncoder encoder, int blockLength, List<Integer> erasedData,
+            List<Integer> erasedParities) {
+        long firstSeqNumber = 1 + random.nextInt(1000);
+        List<ByteBuffer> messages = encodeBlock(encoder, firstSeqNumber, blockLength);
+        List<ByteBuffer> parities = new ArrayList<>();
+        for (int j = 0; j < encoder.getParityCount(); j++) {
+            ByteBuffer parity = ByteBuffer.allocate(MESSAGE_SIZE);
+            encoder.writeParityMessage(j, parity, SESSION_ID, 0);
+            parities.add(parity);
+        }
+        encoder.endBlock(numberOfResentMessages);
+        
+        FecDecoder decoder = new FecDecoder(WINDOW_SIZE, MESSAGE_SIZE);
+        for (int i = 0; i < blockLength; i++) {
+            if (!erasedData.contains(i)) {
+                decoder.onDataMessage(firstSeqNumber + i, messages.get(i));
+            }
+        }
+        for (int j = 0; j < parities.size(); j++) {
+            if (!erasedParities.contains(j)) {
+                assertEquals(firstSeqNumber, decoder.onParityMessage(parities.get(j), firstSeqNumber - 1,
+                    WINDOW_SIZE));
+            }
+        }
+        
+        int recoveredCount = decoder.recover(firstSeqNumber);
+        assertEquals(erasedData.size(), recoveredCount);
+        for (int i = 0; i < recoveredCount; i++) {
+            long seqNumber = decoder.getRecoveredSeqNumber(i);
+            assertTrue(erasedData.contains((int) (seqNumber - firstSeqNumber)));
+            ByteBuffer rebuilt = ByteBuffer.allocate(MESSAGE_SIZE);
+            assertTrue(decoder.writeRecoveredMessage(i, rebuilt, SESSION_ID));
+            assertSameMessage(messages.get((int) (seqNumber - firstSeqNumber)), rebuilt);
+        }
+    }
+    
+    // The data messages have random lengths and flags, so the parities cover the padding and the headers.
+    private List<ByteBuffer> encodeBlock(FecEncoder encoder, long firstSeqNumber, int blockLength) {
+        List<ByteBuffer> messages = new ArrayList<>();
+        for (int i = 0; i < blockLength; i++) {
+            byte[] data = new byte[random.nextInt(MAX_DATA_LENGTH + 1)];
+            random.nextBytes(data);
+            ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+            setUDPControlData(message, SESSION_ID, firstSeqNumber + i, random.nextBoolean() ? COMPRESSED_FLAG : 0,
+                random.nextLong());
+            message.put(CONTROL_DATA_LENGTH, data);
+            message.limit(CONTROL_DATA_LENGTH + data.length);
+            encoder.add(firstSeqNumber + i, message);
+            messages.add(message);
+        }
+        
+        return messages;
+    }
+    
+    private static void assertSameMessage(ByteBuffer expected, ByteBuffer actual) {
+        assertEquals(expected.limit(), actual.limit());
+        assertEquals(getSequenceNumber(expected), getSequenceNumber(actual));
+        assertEquals(expected.get(FLAGS_OFFSET), actual.get(FLAGS_OFFSET));
+        assertArrayEquals(data(expected), data(actual));
+    }
+    
+    private static byte[] data(ByteBuffer message) {
+        byte[] data = new byte[message.limit() - CONTROL_DATA_LENGTH];
+        message.get(CONTROL_DATA_LENGTH, data);
+        
+        return data;
+    }
+    
+    private static List<Integer> indexes(String indexes) {
+        if (indexes == null || indexes.isBlank()) {
+            return List.of();
+        }
+        
+        return Arrays.stream(indexes.trim().split(" +")).map(Integer::valueOf).collect(Collectors.toList());
+    }
+}
\ No newline at end of file
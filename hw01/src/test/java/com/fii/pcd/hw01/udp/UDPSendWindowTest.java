@@ -0,0 +1,186 @@
+package com.fii.pcd.hw01.udp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.fii.pcd.hw01.udp.UDPUtils.CONTROL_DATA_LENGTH;
+import static com.fii.pcd.hw01.udp.UDPUtils.getSequenceNumber;
+import static com.fii.pcd.hw01.udp.UDPUtils.getTimestamp;
+import static com.fii.pcd.hw01.udp.UDPUtils.hasValidChecksum;
+import static com.fii.pcd.hw01.udp.UDPUtils.setChecksum;
+import static com.fii.pcd.hw01.udp.UDPUtils.setUDPControlData;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Fills an UDPSendWindow as the UDP Client does, acknowledges its messages in and out of order, and checks how it
+// slides, which messages it resends when their retransmit timers expire, and what the resent datagrams carry.
+class UDPSendWindowTest {
+    private static final int WINDOW_SIZE = 8;
+    private static final int MESSAGE_SIZE = 256;
+    private static final long SESSION_ID = 42;
+    private static final long RTO_NANOS = 1_000_000;
+    
+    // The resent messages go through a real socket to the loopback address, where they are read back.
+    private DatagramChannel server;
+    private UDPClientChannel channel;
+    
+    @BeforeEach
+    void openChannels() throws IOException {
+        server = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel = new UDPClientChannel((InetSocketAddress) server.getLocalAddress());
+    }
+    
+    @AfterEach
+    void closeChannels() throws IOException {
+        channel.close();
+        server.close();
+    }
+    
+    @Test
+    void slidesOnlyOverTheAcknowledgedMessagesAtItsBase() {
+        UDPSendWindow sendWindow = newSendWindow(0, 8, 0);
+        
+        // A message acknowledged out of order is kept in the window until the ones before it are.
+        assertEquals(1, sendWindow.acknowledge(2));
+        assertEquals(0, sendWindow.getBase());
+        assertEquals(7, sendWindow.getUnacknowledgedCount());
+        
+        assertEquals(2, sendWindow.acknowledgeUpTo(1));
+        assertEquals(3, sendWindow.getBase());
+        assertEquals(5, sendWindow.getUnacknowledgedCount());
+        
+        // The duplicate acknowledges and the ones outside the window acknowledge nothing.
+        assertEquals(0, sendWindow.acknowledge(2));
+        assertEquals(0, sendWindow.acknowledge(1));
+        assertEquals(0, sendWindow.acknowledge(8));
+        assertEquals(0, sendWindow.acknowledgeUpTo(2));
+        
+        assertEquals(5, sendWindow.acknowledgeUpTo(100));
+        assertEquals(8, sendWindow.getBase());
+        assertTrue(sendWindow.isEmpty());
+    }
+    
+    @Test
+    void reusesTheSlotsOfTheAcknowledgedMessages() {
+        UDPSendWindow sendWindow = newSendWindow(0, WINDOW_SIZE, 0);
+        ByteBuffer firstMessage = sendWindow.messageBuffer(0);
+        sendWindow.acknowledgeUpTo(1);
+        
+        addMessage(sendWindow, WINDOW_SIZE, 0);
+        addMessage(sendWindow, WINDOW_SIZE + 1, 0);
+        
+        assertSame(firstMessage, sendWindow.messageBuffer(WINDOW_SIZE));
+        assertEquals(WINDOW_SIZE, sendWindow.getUnacknowledgedCount());
+        assertEquals(1, sendWindow.acknowledge(WINDOW_SIZE));
+        assertEquals(2, sendWindow.getBase());
+        assertEquals(WINDOW_SIZE - 1, sendWindow.acknowledgeUpTo(WINDOW_SIZE + 1));
+        assertTrue(sendWindow.isEmpty());
+    }
+    
+    @Test
+    void resendsTheMessagesWhoseRetransmitTimerExpired() throws IOException {
+        UDPSendWindow sendWindow = newSendWindow(10, 4, 0);
+        addMessage(sendWindow, 14, RTO_NANOS / 2);
+        sendWindow.acknowledge(11);
+        
+        assertEquals(RTO_NANOS / 2, sendWindow.nanosUntilNextTimeout(RTO_NANOS, RTO_NANOS / 2));
+        assertEquals(0, sendWindow.resendExpired(channel, RTO_NANOS, RTO_NANOS - 1));
+        
+        long now = RTO_NANOS;
+        assertEquals(3, sendWindow.resendExpired(channel, RTO_NANOS, now));
+        assertEquals(10, sendWindow.getLowestResentSeqNumber());
+        assertEquals(3L * (CONTROL_DATA_LENGTH + 10), sendWindow.getLastResentBytes());
+        List<ByteBuffer> resentMessages = receive(3);
+        for (int i = 0; i < resentMessages.size(); i++) {
+            ByteBuffer message = resentMessages.get(i);
+            assertEquals(List.of(10L, 12L, 13L).get(i), getSequenceNumber(message));
+            // The resent copy carries the time of its resend, with the checksum updated for it.
+            assertEquals(now, getTimestamp(message));
+            assertTrue(hasValidChecksum(message, message.limit()));
+        }
+        
+        // The timers restart with the resend, so the message sent later expires first.
+        assertEquals(0, sendWindow.nanosUntilNextTimeout(RTO_NANOS, 3 * RTO_NANOS / 2));
+        assertEquals(1, sendWindow.resendExpired(channel, RTO_NANOS, 3 * RTO_NANOS / 2));
+        assertEquals(14, sendWindow.getLowestResentSeqNumber());
+        assertEquals(14, getSequenceNumber(receive(1).get(0)));
+    }
+    
+    @Test
+    void waitsForTheRestartedTimersOfABlock() throws IOException {
+        UDPSendWindow sendWindow = newSendWindow(0, 6, 0);
+        sendWindow.restartTimers(2, 3, RTO_NANOS / 2);
+        
+        assertEquals(4, sendWindow.resendExpired(channel, RTO_NANOS, RTO_NANOS));
+        assertEquals(0, sendWindow.getLowestResentSeqNumber());
+        receive(4);
+        assertEquals(0, sendWindow.nanosUntilNextTimeout(RTO_NANOS, 3 * RTO_NANOS / 2));
+        assertEquals(2, sendWindow.resendExpired(channel, RTO_NANOS, 3 * RTO_NANOS / 2));
+        assertEquals(2, sendWindow.getLowestResentSeqNumber());
+    }
+    
+    @Test
+    void resendsACorruptMessageOnlyWhileItIsNotAcknowledged() throws IOException {
+        UDPSendWindow sendWindow = newSendWindow(0, 4, 0);
+        sendWindow.acknowledge(1);
+        
+        assertEquals(CONTROL_DATA_LENGTH + 10, sendWindow.resend(2, channel, RTO_NANOS / 4));
+        assertEquals(2, getSequenceNumber(receive(1).get(0)));
+        assertEquals(0, sendWindow.resend(1, channel, RTO_NANOS / 4));
+        assertEquals(0, sendWindow.resend(4, channel, RTO_NANOS / 4));
+        
+        // The resend restarts the timer of the message.
+        assertEquals(2, sendWindow.resendExpired(channel, RTO_NANOS, RTO_NANOS));
+        assertEquals(0, sendWindow.getLowestResentSeqNumber());
+        receive(2);
+        assertEquals(RTO_NANOS / 4, sendWindow.nanosUntilNextTimeout(RTO_NANOS, RTO_NANOS));
+    }
+    
+    @Test
+    void hasNoTimeoutWhenEverythingIsAcknowledged() {
+        UDPSendWindow sendWindow = newSendWindow(0, 3, 0);
+        sendWindow.acknowledgeUpTo(2);
+        
+        assertEquals(Long.MAX_VALUE, sendWindow.nanosUntilNextTimeout(RTO_NANOS, RTO_NANOS));
+        assertEquals(0, sendWindow.getUnacknowledgedCount());
+    }
+    
+    private static UDPSendWindow newSendWindow(long firstSeqNumber, int numberOfMessages, long sentTime) {
+        UDPSendWindow sendWindow = new UDPSendWindow(WINDOW_SIZE, MESSAGE_SIZE, firstSeqNumber);
+        for (long seqNumber = firstSeqNumber; seqNumber < firstSeqNumber + numberOfMessages; seqNumber++) {
+            addMessage(sendWindow, seqNumber, sentTime);
+        }
+        
+        return sendWindow;
+    }
+    
+    // Every message carries 10 bytes of data after its control data.
+    private static void addMessage(UDPSendWindow sendWindow, long seqNumber, long sentTime) {
+        ByteBuffer message = sendWindow.messageBuffer(seqNumber).position(CONTROL_DATA_LENGTH);
+        message.put(new byte[10]);
+        setUDPControlData(message, SESSION_ID, seqNumber, (byte) 0, sentTime);
+        message.limit(message.position());
+        setChecksum(message, message.limit());
+        sendWindow.add(seqNumber, sentTime);
+    }
+    
+    private List<ByteBuffer> receive(int numberOfMessages) throws IOException {
+        List<ByteBuffer> messages = new ArrayList<>();
+        for (int i = 0; i < numberOfMessages; i++) {
+            ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+            server.receive(message);
+            messages.add(message.flip());
+        }
+        
+        return messages;
+    }
+}
\ No newline at end of file